@@ -1,7 +1,5 @@
 package markussp.onion;
 
-import markussp.onion.util.Standards;
-
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
@@ -21,14 +19,13 @@ public class TestClient2 {
         InputStream input = client.getInputStream();
         OutputStream output = client.getOutputStream();
 
-        while(true){
-            byte[] message = input.readNBytes(Standards.PACKETSIZE);
-            String response = "From client: " + new String(message, StandardCharsets.UTF_8).trim();
+        byte[] buffer = new byte[1024];
+        int length;
+        while((length = input.read(buffer)) > 0){
+            String response = "From client: " + new String(buffer, 0, length, StandardCharsets.UTF_8);
             System.out.println(response);
-            byte[] responseArray = response.getBytes(StandardCharsets.UTF_8);
-            message = new byte[Standards.PACKETSIZE];
-            System.arraycopy(responseArray, 0, message, 0, responseArray.length);
-            output.write(message);
+            output.write(response.getBytes(StandardCharsets.UTF_8));
         }
+        client.close();
     }
 }
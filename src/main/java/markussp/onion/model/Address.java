@@ -1,13 +1,17 @@
 package markussp.onion.model;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.Objects;
 
 /**
  * The Address class is for holding complete network addresses,
- * both {@code InetAddress} and {@code port}.
+ * both {@code InetAddress} and {@code port}. An address can also hold
+ * a hostname instead, to be resolved by the exit node.
  */
 public class Address {
     public InetAddress address;
+    public String hostname;
     public int port;
 
     /**
@@ -20,8 +24,43 @@ public class Address {
         this.port = port;
     }
 
+    /**
+     * Store an unresolved network address.
+     * @param hostname the hostname, to be resolved by the exit node.
+     * @param port the portnumber.
+     */
+    public Address(String hostname, int port){
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    /**
+     * Check if this address holds a hostname instead of an IP-address.
+     * @return {@code true} if the hostname needs to be resolved
+     */
+    public boolean isUnresolved(){
+        return address == null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof Address)) return false;
+
+        Address other = (Address) o;
+        return port == other.port && Objects.equals(address, other.address) && Objects.equals(hostname, other.hostname);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(address, hostname, port);
+    }
+
     @Override
     public String toString() {
+        if(address == null) return hostname + ":" + port;
+        if(address instanceof Inet6Address) return "[" + address.getHostAddress() + "]:" + port;
+
         return address.getHostAddress() + ":" + port;
     }
 }
@@ -0,0 +1,35 @@
+package markussp.onion.model;
+
+/**
+ * The MemoryStats class is for holding a snapshot of how much data an OnionNode has queued
+ * for destinations, used to size the heap and the memory limit of the node.
+ */
+public class MemoryStats {
+    public long queuedBytes;
+    public long peakQueuedBytes;
+    public long memoryLimit;
+    public int circuits;
+    public long circuitsKilled;
+
+    /**
+     * Store a snapshot of the memory use of a node.
+     * @param queuedBytes the bytes queued right now.
+     * @param peakQueuedBytes the most bytes queued at once since the node started.
+     * @param memoryLimit the bytes that can be queued before chains are killed.
+     * @param circuits the number of open chains.
+     * @param circuitsKilled the number of chains killed to stay below the limit.
+     */
+    public MemoryStats(long queuedBytes, long peakQueuedBytes, long memoryLimit, int circuits, long circuitsKilled){
+        this.queuedBytes = queuedBytes;
+        this.peakQueuedBytes = peakQueuedBytes;
+        this.memoryLimit = memoryLimit;
+        this.circuits = circuits;
+        this.circuitsKilled = circuitsKilled;
+    }
+
+    @Override
+    public String toString() {
+        return "queued " + queuedBytes + " of " + memoryLimit + " bytes (peak " + peakQueuedBytes + "), "
+                + circuits + " chains, " + circuitsKilled + " killed";
+    }
+}
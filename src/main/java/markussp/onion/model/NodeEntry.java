@@ -0,0 +1,29 @@
+package markussp.onion.model;
+
+/**
+ * The NodeEntry class is for holding what the {@link markussp.onion.router.Distributor} knows
+ * about a checked in OnionNode: the addresses it is reachable on, and the bandwidth it has
+ * promised to relay. Distributors share entries with each other, and the version tells which
+ * of two entries for the same node is the newest. A checked out node is kept as an entry that
+ * is not alive, so an older entry from another Distributor does not bring it back.
+ */
+public class NodeEntry {
+    public Address[] addresses;
+    public long capacity;
+    public long version;
+    public boolean alive;
+
+    /**
+     * Store a node entry.
+     * @param addresses the addresses of the node, a dual-stack node has more than one.
+     * @param capacity the bytes per second the node relays, {@code 0} if it is not limited.
+     * @param version the version of the entry, higher is newer.
+     * @param alive {@code false} if the node has checked out.
+     */
+    public NodeEntry(Address[] addresses, long capacity, long version, boolean alive){
+        this.addresses = addresses;
+        this.capacity = capacity;
+        this.version = version;
+        this.alive = alive;
+    }
+}
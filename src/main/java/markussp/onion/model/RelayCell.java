@@ -0,0 +1,116 @@
+package markussp.onion.model;
+
+import markussp.onion.util.Standards;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The RelayCell class is for holding the cleartext of a packet travelling between the client and
+ * the last {@link markussp.onion.router.OnionNode} in a chain. Each packet starts with a one byte
+ * command, a two byte stream id and a two byte payload length, followed by the payload padded
+ * with trailing zeroes. Several streams to different destinations can share one chain.
+ * Cells are {@code PACKETSIZE} bytes unless the chain has negotiated a larger cell size.
+ */
+public class RelayCell {
+    public static final int DATA = 0;                       //payload is stream data
+    public static final int END = 1;                        //sender will not send more stream data, a payload of 1 from the client also tells it has the whole response
+    public static final int BEGIN = 2;                      //open a stream to the address in the payload
+    public static final int CONNECTED = 3;                  //the stream is connected to its destination
+    public static final int ACK = 4;                        //sender got ACKINTERVAL more DATA cells on the chain
+    public static final int RESUME = 5;                     //move the stream with the token in the payload to this chain
+    public static final int KEEPALIVE = 6;                  //answered by the exit node, showing that the chain works
+    public static final int BEGINDATAGRAM = 7;              //open a datagram stream to the address in the payload
+    public static final int DATAGRAM = 8;                   //payload is one whole datagram, never acknowledged or sent again
+    public static final int ESTABLISHINTRO = 9;             //ask for an INTROCHALLENGE if empty, else make this node an introduction point of the service that signed the nonce
+    public static final int INTROESTABLISHED = 10;          //the node is an introduction point of the service
+    public static final int INTRODUCE = 11;                 //pass the introduction in the payload to the service with the id in front of it
+    public static final int INTRODUCED = 12;                //answer to INTRODUCE, a payload of 1 if the introduction was passed on
+    public static final int INTRODUCTION = 13;              //an introduction from a client, sent to the service by its introduction point
+    public static final int ESTABLISHRENDEZVOUS = 14;       //wait for a service to rendezvous with the cookie in the payload
+    public static final int RENDEZVOUSESTABLISHED = 15;     //the node waits for the service
+    public static final int RENDEZVOUS = 16;                //join the chain of the client with the cookie in front of the payload
+    public static final int RENDEZVOUSED = 17;              //the chains are joined, the payload is the rest of the RENDEZVOUS cell
+    public static final int INTROCHALLENGE = 18;            //answer to an empty ESTABLISHINTRO, the payload is the nonce the service signs
+    public static final int HEADERSIZE = 5;                 //command, stream and length
+    public static final int PAYLOADSIZE = Standards.PACKETSIZE - HEADERSIZE;  //payload of a cell of PACKETSIZE
+
+    public int command;
+    public int stream;
+    public byte[] payload;
+
+    /**
+     * Store a relay cell.
+     * @param command the command, for example {@link #DATA}.
+     * @param stream the id of the stream this cell belongs to.
+     * @param payload the payload, with a maximum size of {@link #PAYLOADSIZE}.
+     */
+    public RelayCell(int command, int stream, byte[] payload){
+        this.command = command;
+        this.stream = stream;
+        this.payload = payload;
+    }
+
+    /**
+     * Pack a part of an array into a packet of size {@code PACKETSIZE}, without making
+     * an intermediate RelayCell.
+     * @param command the command
+     * @param stream the id of the stream
+     * @param bytes the array holding the payload
+     * @param offset where in the array the payload starts
+     * @param length the length of the payload, with a maximum of {@link #PAYLOADSIZE}
+     * @return a packet ready to be encrypted
+     */
+    public static byte[] toPacket(int command, int stream, byte[] bytes, int offset, int length){
+        return toPacket(command, stream, bytes, offset, length, Standards.PACKETSIZE);
+    }
+
+    /**
+     * Pack a part of an array into a packet of the cell size of a chain, see
+     * {@link #toPacket(int, int, byte[], int, int) toPacket}.
+     * @param command the command
+     * @param stream the id of the stream
+     * @param bytes the array holding the payload
+     * @param offset where in the array the payload starts
+     * @param length the length of the payload, with a maximum of the cell size minus {@link #HEADERSIZE}
+     * @param size the cell size
+     * @return a packet ready to be encrypted
+     */
+    public static byte[] toPacket(int command, int stream, byte[] bytes, int offset, int length, int size){
+        if(length > size - HEADERSIZE){
+            throw new IllegalArgumentException("Payload of " + length + " bytes does not fit in a cell");
+        }
+
+        byte[] packet = new byte[size];
+        packet[0] = (byte) command;
+        ByteBuffer.wrap(packet, 1, 4).putShort((short) stream).putShort((short) length);
+        System.arraycopy(bytes, offset, packet, HEADERSIZE, length);
+
+        return packet;
+    }
+
+    /**
+     * Read a relay cell from a decrypted packet.
+     * @param packet the cleartext packet
+     * @return the relay cell
+     * @throws IllegalArgumentException if the length field is larger than the packet
+     */
+    public static RelayCell fromPacket(byte[] packet){
+        ByteBuffer buffer = ByteBuffer.wrap(packet, 1, 4);
+        int stream = buffer.getShort() & 0xFFFF;
+        int length = buffer.getShort() & 0xFFFF;
+        if(length > packet.length - HEADERSIZE){
+            throw new IllegalArgumentException("Malformed relay cell with length " + length);
+        }
+
+        return new RelayCell(packet[0], stream, Arrays.copyOfRange(packet, HEADERSIZE, HEADERSIZE + length));
+    }
+
+    /**
+     * Pack this relay cell into a packet of size {@code PACKETSIZE}.
+     * @return a packet ready to be encrypted
+     */
+    public byte[] toPacket(){
+        return toPacket(command, stream, payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,32 @@
+package markussp.onion.model;
+
+/**
+ * The ServiceDescriptor class is for holding what a client needs to reach a hidden service: the
+ * keys of the service and the nodes it can be introduced at. A service publishes its descriptor to
+ * the {@link markussp.onion.router.Distributor}s, signed with its signing key. The hostname of the
+ * service is made from a hash of the signing key, so a client can check that the descriptor it
+ * fetched belongs to the service it asked for. The version tells which of two descriptors is the newest.
+ */
+public class ServiceDescriptor {
+    public byte[] signingKey;
+    public byte[] introKey;
+    public long version;
+    public Address[][] introPoints;
+    public byte[] signature;
+
+    /**
+     * Store a service descriptor.
+     * @param signingKey the encoded public key the descriptor is signed with, naming the service.
+     * @param introKey the encoded X25519 public key introductions to the service are encrypted with.
+     * @param version the version of the descriptor, the time it was made in milliseconds.
+     * @param introPoints the addresses of each node the service can be introduced at.
+     * @param signature the signature, or {@code null} if not signed yet.
+     */
+    public ServiceDescriptor(byte[] signingKey, byte[] introKey, long version, Address[][] introPoints, byte[] signature){
+        this.signingKey = signingKey;
+        this.introKey = introKey;
+        this.version = version;
+        this.introPoints = introPoints;
+        this.signature = signature;
+    }
+}
@@ -1,17 +1,32 @@
 package markussp.onion.model;
 
+import markussp.onion.util.Crypto;
+import markussp.onion.util.Standards;
+
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
 
 /**
  * The SessionKey class is for holding both {@link Cipher} objects needed for encryped
  * communication. The ciphers themselves are private but encryption and decryption
  * is available through methods.
+ *
+ * A SessionKey made with a chain key for each direction can be ratcheted: the next key, initialization
+ * vector and chain key of a direction are derived from its current chain key, which is then forgotten.
+ * Both ends ratcheting at the same packet keeps them in step, and keys taken from a node later can
+ * not decrypt what was sent before.
  */
 public class SessionKey {
     public Cipher cipher;
     public Cipher decipher;
+    private byte[] cipherChain;
+    private byte[] decipherChain;
 
     /**
      * Store a single object for both encryption and decryption.
@@ -23,6 +38,60 @@ public class SessionKey {
         this.decipher = decipher;
     }
 
+    /**
+     * Store a single object for both encryption and decryption, with a chain key for each direction
+     * so the keys can be ratcheted.
+     * @param cipher the cipher object in encryption mode.
+     * @param decipher the cipher object in decryption mode.
+     * @param cipherChain the chain key the next keys for encryption are derived from.
+     * @param decipherChain the chain key the next keys for decryption are derived from.
+     */
+    public SessionKey(Cipher cipher, Cipher decipher, byte[] cipherChain, byte[] decipherChain){
+        this(cipher, decipher);
+        this.cipherChain = cipherChain;
+        this.decipherChain = decipherChain;
+    }
+
+    /**
+     * Replace the cipher with one using the next keys of its chain.
+     * @throws IllegalStateException if this SessionKey has no chain keys
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public void ratchetCipher() throws InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] keys = ratchet(cipherChain);
+        cipher = Crypto.generateCipher(new SecretKeySpec(keys, 0, Standards.KEYLENGTH, "AES"), Arrays.copyOfRange(keys, Standards.KEYLENGTH, Standards.KEYLENGTH << 1));
+        cipherChain = Arrays.copyOfRange(keys, Standards.KEYLENGTH << 1, keys.length);
+        Arrays.fill(keys, (byte) 0);
+    }
+
+    /**
+     * Replace the decipher with one using the next keys of its chain.
+     * @throws IllegalStateException if this SessionKey has no chain keys
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public void ratchetDecipher() throws InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] keys = ratchet(decipherChain);
+        decipher = Crypto.generateDecipher(new SecretKeySpec(keys, 0, Standards.KEYLENGTH, "AES"), Arrays.copyOfRange(keys, Standards.KEYLENGTH, Standards.KEYLENGTH << 1));
+        decipherChain = Arrays.copyOfRange(keys, Standards.KEYLENGTH << 1, keys.length);
+        Arrays.fill(keys, (byte) 0);
+    }
+
+    /**
+     * Derive a key, an initialization vector and the next chain key from a chain key, and wipe it.
+     * @param chain the current chain key
+     * @return the key, initialization vector and chain key after each other
+     */
+    private static byte[] ratchet(byte[] chain) throws InvalidKeyException {
+        if(chain == null){
+            throw new IllegalStateException("No chain key to ratchet");
+        }
+        byte[] keys = Crypto.hkdf(new byte[Standards.CHAINLENGTH], chain, Standards.RATCHETINFO.getBytes(StandardCharsets.US_ASCII), (Standards.KEYLENGTH << 1) + Standards.CHAINLENGTH);
+        Arrays.fill(chain, (byte) 0);
+        return keys;
+    }
+
     /**
      * Encrypt a byte array with this objects cipher.
      * @param cleartext The byte array to encrypt.
@@ -0,0 +1,385 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.RelayCell;
+import markussp.onion.model.SessionKey;
+import markussp.onion.util.CongestionWindow;
+import markussp.onion.util.Crypto;
+import markussp.onion.util.Standards;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AsyncCircuit class is a non-blocking chain of {@link OnionNode}s, ending in an exit node that
+ * can open several streams. It is used by {@link AsyncOnionSocket} for a single stream, and by
+ * {@link SocksProxy} to share one chain between many streams.
+ *
+ * Sending can be done from any thread, packets are written in the order they are sent. DATA cells
+ * wait for room in the {@link CongestionWindow}, so cells sent after a DATA cell on the same stream
+ * should only be sent once it has completed. Only one read can be pending at a time.
+ */
+class AsyncCircuit {
+    private final AsynchronousSocketChannel channel;
+    private final Object writeLock = new Object();
+    private SessionKey[] keys = new SessionKey[0];
+    private CompletableFuture<Void> writes = CompletableFuture.completedFuture(null);
+    private final CongestionWindow window = new CongestionWindow();
+    private long received = 0;
+
+    private AsyncCircuit(AsynchronousSocketChannel channel){
+        this.channel = channel;
+    }
+
+    /**
+     * Request nodes from a Distributor, and set up a chain through them.
+     * @param distAddress the IP-addres of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     * @param group the channel group driving the circuit, or {@code null} for the default group
+     * @return a future completed with the circuit once the exit node is ready to open streams
+     */
+    static CompletableFuture<AsyncCircuit> build(InetAddress distAddress, int distPort, AsynchronousChannelGroup group){
+        return build(new Address[]{new Address(distAddress, distPort)}, group);
+    }
+
+    /**
+     * Request nodes from one of several Distributors, and set up a chain through them. The Distributors
+     * are tried from a random one, moving on to the next if one does not answer within
+     * {@link Standards#DISTTIMEOUT} milliseconds.
+     * @param distributors the addresses of the Distributors
+     * @param group the channel group driving the circuit, or {@code null} for the default group
+     * @return a future completed with the circuit once the exit node is ready to open streams
+     */
+    static CompletableFuture<AsyncCircuit> build(Address[] distributors, AsynchronousChannelGroup group){
+        CompletableFuture<byte[]> answer = CompletableFuture.failedFuture(new ConnectException("No Distributors to connect to"));
+        for(Address distributor : Standards.rotate(distributors)){
+            answer = answer.handle((message, e) -> e == null ? CompletableFuture.completedFuture(message) : requestNodes(distributor, group))
+                    .thenCompose(next -> next);
+        }
+
+        return answer
+            .thenCompose(message -> {
+                //Read the addresses of every node
+                Address[][] nodes = new Address[Standards.NODES][];
+                ByteBuffer buffer = ByteBuffer.wrap(message);
+                try {
+                    for(int i=0; i<Standards.NODES; i++){
+                        nodes[i] = Standards.readAddresses(buffer);
+                    }
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+
+                //Connect to first node
+                return open(nodes[0], group).thenCompose(circuit -> {
+                    //Link the next nodes, and make the last one the exit
+                    CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+                    for(int i=1; i<Standards.NODES; i++){
+                        Address[] next = nodes[i];
+                        chain = chain.thenCompose(v -> circuit.nodeHandshake(next, Standards.RELAY));
+                    }
+
+                    return chain.thenCompose(v -> circuit.nodeHandshake(null, Standards.EXIT))
+                            .thenApply(v -> circuit)
+                            .whenComplete((c, e) -> {
+                                if(e != null) circuit.close();
+                            });
+                });
+            });
+    }
+
+    /**
+     * Request nodes from a Distributor.
+     * @param distributor the address of the Distributor
+     * @param group the channel group driving the request, or {@code null} for the default group
+     * @return a future completed with the decrypted answer, holding the addresses of each node
+     */
+    private static CompletableFuture<byte[]> requestNodes(Address distributor, AsynchronousChannelGroup group){
+        CompletableFuture<AsyncCircuit> connecting = open(new Address[]{distributor}, group);
+        return connecting.thenCompose(dist ->
+                writeFully(dist.channel, ByteBuffer.wrap(new byte[]{2}))
+                .thenCompose(v -> dist.initKeyExchange())
+                .thenCompose(sessionKey -> dist.readPacket().thenApply(ciphertext -> {
+                    try {
+                        return sessionKey.decrypt(ciphertext);
+                    } catch (GeneralSecurityException e) {
+                        throw new CompletionException(e);
+                    }
+                })))
+            .orTimeout(Standards.DISTTIMEOUT, TimeUnit.MILLISECONDS)
+            .whenComplete((message, e) -> connecting.thenAccept(AsyncCircuit::close));
+    }
+
+    /**
+     * Send a relay cell to the exit node.
+     * @param command the command
+     * @param stream the id of the stream
+     * @param bytes the array holding the payload
+     * @param offset where in the array the payload starts
+     * @param length the length of the payload, with a maximum of {@link RelayCell#PAYLOADSIZE}
+     * @return a future completed when the cell is written to the channel
+     */
+    CompletableFuture<Void> sendCell(int command, int stream, byte[] bytes, int offset, int length){
+        byte[] packet = RelayCell.toPacket(command, stream, bytes, offset, length);
+        if(command != RelayCell.DATA){
+            return sendPacket(packet);
+        }
+
+        //The cell is sent as soon as the window has room, before any later DATA cell
+        return window.acquireAsync().thenCompose(v -> sendPacket(packet));
+    }
+
+    /**
+     * Read the next relay cell from the exit node. ACK cells are handled here, and every
+     * {@link Standards#ACKINTERVAL} DATA cells are acknowledged.
+     * @return a future completed with the cell
+     */
+    CompletableFuture<RelayCell> readCell(){
+        return readPacket().thenApply(RelayCell::fromPacket).thenCompose(cell -> {
+            if(cell.command == RelayCell.ACK){
+                window.acknowledge();
+                return readCell();
+            }
+            if(cell.command == RelayCell.DATA && ++received % Standards.ACKINTERVAL == 0){
+                sendCell(RelayCell.ACK, 0, new byte[0], 0, 0);
+            }
+
+            return CompletableFuture.completedFuture(cell);
+        });
+    }
+
+    /**
+     * Get the congestion window of this circuit.
+     * @return the congestion window
+     */
+    CongestionWindow getCongestionWindow(){
+        return window;
+    }
+
+    boolean isOpen(){
+        return channel.isOpen();
+    }
+
+    void close(){
+        window.close();
+        try {
+            channel.close();
+        } catch (IOException ignored){}
+    }
+
+    /**
+     * Send a single packet through the connected onion routers.
+     * Will pad the array with trailing zeroes to ensure the standard packet size
+     * of 512. Will encrypt with {@link SessionKey}s if this circuit has some.
+     * @param bytes the packet to send, with a maximum size of 512
+     * @return a future completed when the packet is written to the channel
+     */
+    private CompletableFuture<Void> sendPacket(byte[] bytes){
+        byte[] message = new byte[Standards.PACKETSIZE];
+        System.arraycopy(bytes, 0, message, 0, bytes.length);
+
+        synchronized (writeLock){
+            //Encrypt with available session keys
+            try {
+                for(int i=keys.length-1; i>=0; i--){
+                    message = keys[i].encrypt(message);
+                }
+            } catch (GeneralSecurityException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+
+            //Only one write can be pending on the channel, so queue behind the previous one
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            CompletableFuture<Void> write = writes.thenCompose(v -> writeFully(channel, buffer));
+            writes = write;
+
+            return write;
+        }
+    }
+
+    /**
+     * Read a single packet through the connected onion routers.
+     * Will decrypt with {@link SessionKey}s if this circuit has some.
+     * @return a future completed with a byte array of size 512
+     */
+    private CompletableFuture<byte[]> readPacket(){
+        return readFully(channel, Standards.PACKETSIZE).thenApply(message -> {
+            //Decrypt with available session keys
+            try {
+                for(SessionKey key : keys){
+                    message = key.decrypt(message);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+
+            return message;
+        });
+    }
+
+    /**
+     * Method for initiating a Diffie-Hellman key exchange. Takes one packet each way.
+     * @return a future completed with a {@link SessionKey} object holding both the cipher and decipher,
+     * the counterpart of the one made by the other node.
+     */
+    private CompletableFuture<SessionKey> initKeyExchange(){
+        //Generate and send public key
+        KeyPair keyPair = Crypto.generateKeyPair();
+
+        //Read other public key and derive the keys
+        return sendPacket(Standards.keyExchangeRequest(keyPair))
+                .thenCompose(v -> readPacket())
+                .thenApply(message -> {
+                    try {
+                        return Standards.keyExchangeReply(keyPair, message);
+                    } catch (GeneralSecurityException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    /**
+     * Method for correctly connecting to a {@link OnionNode}, making it switch over to relay mode.
+     * @param nextNode the addresses of the node this circuit is talking with should relay to,
+     * or {@code null} for the exit
+     * @param type {@link Standards#RELAY} if the next hop is another node, or {@link Standards#EXIT}
+     * if the node is last in the chain
+     * @return a future completed when the address is sent
+     */
+    private CompletableFuture<Void> nodeHandshake(Address[] nextNode, int type){
+        return initKeyExchange().thenCompose(sessionKey -> {
+            synchronized (writeLock){
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length-1] = sessionKey;
+            }
+
+            //Send type and next node addresses
+            ByteBuffer message = ByteBuffer.allocate(Standards.PACKETSIZE);
+            message.put((byte) type);
+            Standards.writeAddresses(message, nextNode == null ? new Address[0] : nextNode);
+            return sendPacket(message.array());
+        });
+    }
+
+    /**
+     * Open a channel and connect it to the first reachable of several addresses, trying them in order.
+     * @param addresses the addresses to connect to
+     * @param group the channel group, or {@code null} for the default group
+     * @return a future completed with a new circuit without any session keys
+     */
+    private static CompletableFuture<AsyncCircuit> open(Address[] addresses, AsynchronousChannelGroup group){
+        CompletableFuture<AsyncCircuit> future = CompletableFuture.failedFuture(new ConnectException("No addresses to connect to"));
+        for(Address address : addresses){
+            future = future.handle((circuit, e) -> e == null ? CompletableFuture.completedFuture(circuit) : open(address, group))
+                    .thenCompose(next -> next);
+        }
+
+        return future;
+    }
+
+    /**
+     * Open a channel and connect it to an address.
+     * @param address the address to connect to
+     * @param group the channel group, or {@code null} for the default group
+     * @return a future completed with a new circuit without any session keys
+     */
+    private static CompletableFuture<AsyncCircuit> open(Address address, AsynchronousChannelGroup group){
+        CompletableFuture<AsyncCircuit> future = new CompletableFuture<>();
+        try {
+            AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address.isUnresolved() ?
+                    new InetSocketAddress(address.hostname, address.port) :
+                    new InetSocketAddress(address.address, address.port), null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void result, Void attachment) {
+                    future.complete(new AsyncCircuit(channel));
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored){}
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Write the whole buffer to a channel.
+     * @param channel the channel to write to
+     * @param buffer the bytes to write
+     * @return a future completed when the buffer has no remaining bytes
+     */
+    static CompletableFuture<Void> writeFully(AsynchronousSocketChannel channel, ByteBuffer buffer){
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        channel.write(buffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer result, Void attachment) {
+                if(buffer.hasRemaining()){
+                    channel.write(buffer, null, this);
+                }else{
+                    future.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Read exactly {@code length} bytes from a channel.
+     * @param channel the channel to read from
+     * @param length the number of bytes to read
+     * @return a future completed with the bytes, or failed with {@link EOFException} if the
+     * channel is closed first
+     */
+    static CompletableFuture<byte[]> readFully(AsynchronousSocketChannel channel, int length){
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer result, Void attachment) {
+                if(result < 0){
+                    future.completeExceptionally(new EOFException("Connection closed"));
+                }else if(buffer.hasRemaining()){
+                    channel.read(buffer, null, this);
+                }else{
+                    future.complete(buffer.array());
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+}
@@ -0,0 +1,296 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.RelayCell;
+import markussp.onion.util.Standards;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The AsyncOnionSocket class is the non-blocking counterpart to {@link OnionSocket}. It speaks the
+ * same protocol, but is built on an {@link AsynchronousSocketChannel} so no method blocks the caller.
+ * Connecting, sending and reading return {@link CompletableFuture}s, and inbound messages can be
+ * consumed as a {@link Flow.Publisher} with backpressure.
+ *
+ * All sockets sharing an {@link AsynchronousChannelGroup} are driven by the threads of that group,
+ * so a small pool can serve a large number of onion connections.
+ */
+public class AsyncOnionSocket implements Flow.Publisher<byte[]> {
+    private static final int STREAM = 1;                    //id of the only stream in this chain
+    private final AsyncCircuit circuit;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+    private volatile boolean ended = false;
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+    private AsyncOnionSocket(AsyncCircuit circuit){
+        this.circuit = circuit;
+    }
+
+    /**
+     * Connect to an address through the onion network using the standard NodeDistribution address
+     * and the default {@link AsynchronousChannelGroup}.
+     * @param address the IP-address to connect to
+     * @param port the portnumber to connect to
+     * @return a future completed with the connected socket once the whole chain is set up
+     */
+    public static CompletableFuture<AsyncOnionSocket> connect(InetAddress address, int port){
+        try {
+            return connect(InetAddress.getByName(Standards.DIST), Standards.DISTPORT, address, port, null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Connect to a hostname through the onion network using the standard NodeDistribution address
+     * and the default {@link AsynchronousChannelGroup}. The hostname is resolved by the last node
+     * in the chain, not locally.
+     * @param host the hostname to connect to
+     * @param port the portnumber to connect to
+     * @return a future completed with the connected socket once the whole chain is set up
+     */
+    public static CompletableFuture<AsyncOnionSocket> connect(String host, int port){
+        try {
+            return connect(InetAddress.getByName(Standards.DIST), Standards.DISTPORT, new Address(host, port), null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Connect to an address through the onion network with a specified NodeDistribution address.
+     * @param distAddress the IP-addres of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     * @param address the IP-address to connect to
+     * @param port the portnumber to connect to
+     * @param group the channel group driving the socket, or {@code null} for the default group
+     * @return a future completed with the connected socket once the whole chain is set up
+     */
+    public static CompletableFuture<AsyncOnionSocket> connect(InetAddress distAddress, int distPort, InetAddress address, int port, AsynchronousChannelGroup group){
+        return connect(distAddress, distPort, new Address(address, port), group);
+    }
+
+    /**
+     * Connect to an address through the onion network with a specified NodeDistribution address.
+     * @param distAddress the IP-addres of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     * @param destination the address to connect to, a hostname is resolved by the last node in the chain
+     * @param group the channel group driving the socket, or {@code null} for the default group
+     * @return a future completed with the connected socket once the whole chain is set up
+     */
+    public static CompletableFuture<AsyncOnionSocket> connect(InetAddress distAddress, int distPort, Address destination, AsynchronousChannelGroup group){
+        return connect(new Address[]{new Address(distAddress, distPort)}, destination, group);
+    }
+
+    /**
+     * Connect to an address through the onion network, with several Distributors of the same network.
+     * A Distributor that does not answer is skipped, see {@link OnionSocket#OnionSocket(Address[], Address)}.
+     * @param distributors the addresses of the Distributors
+     * @param destination the address to connect to, a hostname is resolved by the last node in the chain
+     * @param group the channel group driving the socket, or {@code null} for the default group
+     * @return a future completed with the connected socket once the whole chain is set up
+     */
+    public static CompletableFuture<AsyncOnionSocket> connect(Address[] distributors, Address destination, AsynchronousChannelGroup group){
+        return AsyncCircuit.build(distributors, group).thenCompose(circuit -> {
+            //Open a stream to the destination address
+            ByteBuffer begin = ByteBuffer.allocate(RelayCell.PAYLOADSIZE);
+            Standards.writeAddress(begin, destination);
+            circuit.sendCell(RelayCell.BEGIN, STREAM, begin.array(), 0, begin.position());
+
+            return awaitConnected(circuit, destination.toString()).thenApply(v -> new AsyncOnionSocket(circuit)).whenComplete((socket, e) -> {
+                if(e != null) circuit.close();
+            });
+        });
+    }
+
+    /**
+     * Send a message through the connected onion routers. The destination recieves exactly
+     * these bytes, messages longer than {@link RelayCell#PAYLOADSIZE} are split over several packets.
+     * Messages are written in the order this method is called, as fast as the congestion window allows.
+     * @param bytes the message to send
+     * @return a future completed when the message is written to the channel
+     */
+    public CompletableFuture<Void> send(byte[] bytes){
+        CompletableFuture<Void> write = CompletableFuture.completedFuture(null);
+        synchronized (this){
+            for(int offset=0; offset<bytes.length; offset+=RelayCell.PAYLOADSIZE){
+                int size = Math.min(bytes.length - offset, RelayCell.PAYLOADSIZE);
+                write = circuit.sendCell(RelayCell.DATA, STREAM, bytes, offset, size);
+            }
+            if(bytes.length > 0) lastWrite = write;
+        }
+
+        return write;
+    }
+
+    /**
+     * Tell the destination that no more data will be sent. The connection can still be read from.
+     * @return a future completed when the message is written to the channel
+     */
+    public CompletableFuture<Void> shutdownOutput(){
+        //DATA cells can be waiting for the congestion window, END must not pass them
+        synchronized (this){
+            return lastWrite.handle((v, e) -> null).thenCompose(v -> circuit.sendCell(RelayCell.END, STREAM, new byte[0], 0, 0));
+        }
+    }
+
+    /**
+     * Read a message through the connected onion routers.
+     * Only one read can be pending at a time, and reading is not allowed while
+     * a {@link Flow.Subscriber} is subscribed.
+     * @return a future completed with the bytes sent by the destination in one packet,
+     * or with {@code null} if the destination has closed the connection
+     */
+    public CompletableFuture<byte[]> read(){
+        if(ended){
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return circuit.readCell().thenCompose(cell -> {
+            if(cell.stream == STREAM && cell.command == RelayCell.END){
+                ended = true;
+                return CompletableFuture.completedFuture(null);
+            }
+            if(cell.stream != STREAM || cell.command != RelayCell.DATA || cell.payload.length == 0){
+                return read();
+            }
+
+            return CompletableFuture.completedFuture(cell.payload);
+        });
+    }
+
+    /**
+     * Subscribe to all inbound messages. Only a single subscriber is allowed, and messages are
+     * only read from the channel when the subscriber has requested them. The subscriber is
+     * completed when the destination closes the connection.
+     * @param subscriber the subscriber to recieve the bytes of each packet
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super byte[]> subscriber){
+        if(!subscribed.compareAndSet(false, true)){
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("AsyncOnionSocket only allows one subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new InboundSubscription(subscriber));
+    }
+
+    public void close(){
+        circuit.close();
+    }
+
+    /**
+     * Read cells until the exit node answers the BEGIN cell.
+     * @param circuit the circuit the stream was opened on
+     * @param destination the destination of the stream, for the error message
+     * @return a future completed when the stream is connected, or failed with {@link ConnectException}
+     */
+    private static CompletableFuture<Void> awaitConnected(AsyncCircuit circuit, String destination){
+        return circuit.readCell().thenCompose(cell -> {
+            if(cell.stream == STREAM && cell.command == RelayCell.CONNECTED){
+                return CompletableFuture.completedFuture(null);
+            }
+            if(cell.stream == STREAM && cell.command == RelayCell.END){
+                return CompletableFuture.failedFuture(new ConnectException("The exit node could not connect to " + destination));
+            }
+
+            return awaitConnected(circuit, destination);
+        });
+    }
+
+    /**
+     * The InboundSubscription class reads messages from the channel as long as the subscriber
+     * has outstanding demand, with at most one read pending at a time.
+     */
+    private class InboundSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super byte[]> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean reading = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+
+        InboundSubscription(Flow.Subscriber<? super byte[]> subscriber){
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0){
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+                return;
+            }
+
+            demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain(){
+            while(!cancelled && demand.get() > 0 && reading.compareAndSet(false, true)){
+                CompletableFuture<byte[]> next = read();
+                if(!next.isDone()){
+                    next.whenComplete((message, e) -> {
+                        if(deliver(message, e)) drain();
+                    });
+                    return;
+                }
+
+                //Completed on this thread, keep looping instead of growing the stack
+                if(!next.handle(this::deliver).join()) return;
+            }
+        }
+
+        /**
+         * Hand a completed read to the subscriber.
+         * @return {@code true} if reading should continue
+         */
+        private boolean deliver(byte[] message, Throwable e){
+            if(cancelled) return false;
+
+            if(e != null){
+                cancelled = true;
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if(cause instanceof EOFException){
+                    subscriber.onComplete();
+                }else{
+                    subscriber.onError(cause);
+                }
+                return false;
+            }
+
+            if(message == null){
+                cancelled = true;
+                subscriber.onComplete();
+                return false;
+            }
+
+            demand.decrementAndGet();
+            subscriber.onNext(message);
+            reading.set(false);
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.util.Standards;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The CircuitLink class carries many chains over one TCP connection between a client and the first
+ * node of its chains. A client keeps links to a few guard nodes open, so building a chain does not
+ * wait for a new connection and its slow start. A link is opened by sending a packet starting with
+ * {@link Standards#LINK} where a key exchange would start with the key length.
+ *
+ * On the link every packet is framed with the id of its circuit, a type and its length. The type is
+ * the opening of the circuit, a packet of the chain, or the closing of the circuit. A packet is a
+ * whole cell, so a chain with larger cells also sends fewer frames. Ids are chosen by the client,
+ * counting up, so the node can tell a new circuit from a late frame of a closed one. Each end sees a
+ * {@link Circuit} as a connection of its own, with streams and a read timeout like a socket.
+ *
+ * Packets are queued in their circuit until read, so one slow circuit does not hold up the others on
+ * the link. The queue is not bounded by the link itself. A node counts the queued bytes of each circuit
+ * towards its memory limit instead, see {@link Circuit#setQueueCounter(LongConsumer)}.
+ */
+public class CircuitLink implements Closeable {
+    private static final int PACKET = 0;                    //a packet of the circuit follows
+    private static final int CLOSE = 1;                     //the circuit is closed
+    private static final int OPEN = 2;                      //a new circuit, opened by the client
+    private static final int HEADERSIZE = 4 + 1 + 2;        //circuit id, type and length of the packet
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final Consumer<Circuit> acceptor;
+    private final ConcurrentHashMap<Integer, Circuit> circuits = new ConcurrentHashMap<>();
+    private int nextId = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Open a link to a node as a client, reading from it in a thread of its own.
+     * @param addresses the addresses of the node, tried in order
+     * @param timeout the timeout in milliseconds for connecting to each address
+     * @return the link
+     * @throws IOException the error from the last address, if none could be reached
+     */
+    public static CircuitLink connect(Address[] addresses, int timeout) throws IOException {
+        Socket socket = null;
+        IOException error = new ConnectException("No addresses to connect to");
+        for(int i=0; i<addresses.length && socket == null; i++){
+            try {
+                socket = Standards.connect(addresses[i], timeout);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if(socket == null) throw error;
+
+        //An idle link waits for frames as long as it is open
+        socket.setSoTimeout(0);
+        socket.getOutputStream().write(ByteBuffer.allocate(Standards.PACKETSIZE).putInt(Standards.LINK).array());
+
+        CircuitLink link = new CircuitLink(socket, null);
+        //A link left open must not keep the JVM running
+        Thread reader = new Thread(link::run);
+        reader.setDaemon(true);
+        reader.start();
+        return link;
+    }
+
+    /**
+     * Wrap a connection as a link, must be followed by {@link #run()}.
+     * @param socket the connection, after the packet opening the link
+     * @param acceptor gets each new circuit opened by the other end, {@code null} if the other end
+     * may not open circuits
+     * @throws IOException if the streams of the connection could not be opened
+     */
+    public CircuitLink(Socket socket, Consumer<Circuit> acceptor) throws IOException {
+        this.socket = socket;
+        //Frames are read in two parts, buffering saves system calls
+        this.input = new BufferedInputStream(socket.getInputStream());
+        this.output = socket.getOutputStream();
+        this.acceptor = acceptor;
+    }
+
+    /**
+     * Open a new circuit on the link.
+     * @return the circuit
+     * @throws IOException if the link is closed
+     */
+    public synchronized Circuit open() throws IOException {
+        if(closed) throw new IOException("The link is closed");
+
+        //Sent holding the lock, so the other end sees the ids counting up
+        Circuit circuit = new Circuit(nextId++);
+        circuits.put(circuit.id, circuit);
+        send(circuit.id, OPEN, null, 0, 0);
+        return circuit;
+    }
+
+    /**
+     * Read frames and hand the packets to their circuits, until the link closes. Every circuit
+     * still open is closed then.
+     */
+    public void run() {
+        try {
+            byte[] header;
+            while((header = input.readNBytes(HEADERSIZE)).length == HEADERSIZE){
+                ByteBuffer buffer = ByteBuffer.wrap(header);
+                int id = buffer.getInt();
+                int type = buffer.get();
+                int length = buffer.getShort() & 0xFFFF;
+
+                if(type == PACKET){
+                    if(length == 0 || length > Standards.MAXCELLSIZE) break;
+                    byte[] packet = input.readNBytes(length);
+                    if(packet.length < length) break;
+
+                    //Late packets of closed circuits are thrown away
+                    Circuit circuit = circuits.get(id);
+                    if(circuit != null) circuit.deliver(packet);
+                }else if(type == OPEN){
+                    if(!accept(id)) break;
+                }else if(type == CLOSE){
+                    Circuit circuit = circuits.remove(id);
+                    if(circuit != null) circuit.end();
+                }else{
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+            //The link broke, its circuits are closed below
+        }
+        close();
+    }
+
+    /**
+     * Check if the link has closed, after which it can not open more circuits.
+     * @return {@code true} if closed
+     */
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Close the link and every circuit on it.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+
+        for(Circuit circuit : new ArrayList<>(circuits.values())){
+            circuit.end();
+        }
+        circuits.clear();
+    }
+
+    /**
+     * Make a circuit opened by the other end.
+     * @param id the id of the circuit, above every id opened before
+     * @return {@code false} if this end does not take circuits or the id is not new, breaking the link
+     */
+    private synchronized boolean accept(int id){
+        if(acceptor == null || id < nextId) return false;
+
+        nextId = id + 1;
+        Circuit circuit = new Circuit(id);
+        circuits.put(id, circuit);
+        acceptor.accept(circuit);
+        return true;
+    }
+
+    /**
+     * Write a frame to the link. Frames of different circuits are not mixed, as one write is made of each.
+     * @param id the id of the circuit
+     * @param type the type of the frame
+     * @param bytes the array holding the packet, or {@code null} for a frame without one
+     * @param offset where in the array the packet starts
+     * @param length the length of the packet
+     */
+    private void send(int id, int type, byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(HEADERSIZE + length);
+        frame.putInt(id).put((byte) type).putShort((short) length);
+        if(bytes != null) frame.put(bytes, offset, length);
+
+        synchronized (output){
+            output.write(frame.array());
+        }
+    }
+
+    /**
+     * The Circuit class is one chain on a link. Packets from the link are queued until read, and
+     * thrown away when the circuit is closed by this end. A write of whole packets is sent as one
+     * frame, other written bytes are sent once they fill a packet.
+     */
+    public class Circuit implements Closeable {
+        private final int id;
+        private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+        private final byte[] outgoing = new byte[Standards.PACKETSIZE];
+        private int outgoingLength = 0;
+        private byte[] current;
+        private int currentOffset = 0;
+        private boolean ended = false;
+        private int timeout = 0;
+        private volatile LongConsumer counter = bytes -> {};
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return Circuit.this.read(bytes, offset, length);
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                Circuit.this.write(bytes, offset, length);
+            }
+        };
+
+        private Circuit(int id){
+            this.id = id;
+        }
+
+        public InputStream getInputStream(){
+            return in;
+        }
+
+        public OutputStream getOutputStream(){
+            return out;
+        }
+
+        /**
+         * Set the timeout for reads, see {@link Socket#setSoTimeout(int)}.
+         * @param timeout the timeout in milliseconds, 0 for infinite
+         */
+        public synchronized void setSoTimeout(int timeout){
+            this.timeout = timeout;
+        }
+
+        /**
+         * Count the bytes queued in this circuit, for example towards a memory limit. The counter is
+         * called with the length of each packet queued, and with the negative length when the packet
+         * is read or thrown away. Must be set before packets arrive, as the acceptor of the link does.
+         * @param counter gets the change in queued bytes
+         */
+        public void setQueueCounter(LongConsumer counter){
+            this.counter = counter;
+        }
+
+        /**
+         * Close the circuit, telling the other end, and throw away the packets not read yet.
+         * The link stays open for other circuits.
+         */
+        @Override
+        public void close() {
+            boolean open;
+            long dropped = 0;
+            synchronized (this){
+                open = !ended;
+                end();
+                for(byte[] packet : packets){
+                    dropped += packet.length;
+                }
+                packets.clear();
+                current = null;
+            }
+            if(dropped > 0) counter.accept(-dropped);
+            if(open && circuits.remove(id, this)){
+                try {
+                    send(id, CLOSE, null, 0, 0);
+                } catch (IOException ignored) {
+                    //The link is broken, so the other end closes the circuit by itself
+                }
+            }
+        }
+
+        private void deliver(byte[] packet){
+            LongConsumer counter = this.counter;
+            synchronized (this){
+                if(ended) return;
+
+                packets.add(packet);
+                notifyAll();
+            }
+            //Counted outside the lock, as the counter may close circuits to free memory
+            counter.accept(packet.length);
+        }
+
+        private synchronized void end(){
+            ended = true;
+            notifyAll();
+        }
+
+        private synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            if(length == 0) return 0;
+
+            long deadline = System.currentTimeMillis() + timeout;
+            while(current == null){
+                current = packets.poll();
+                currentOffset = 0;
+                if(current != null){
+                    counter.accept(-current.length);
+                    break;
+                }
+                if(ended) return -1;
+
+                long left = deadline - System.currentTimeMillis();
+                if(timeout > 0 && left <= 0) throw new SocketTimeoutException("Read timed out");
+                try {
+                    wait(timeout > 0 ? left : 0);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            int size = Math.min(length, current.length - currentOffset);
+            System.arraycopy(current, currentOffset, bytes, offset, size);
+            currentOffset += size;
+            if(currentOffset == current.length) current = null;
+            return size;
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            //Only one writer fills the packet at a time, the link lock is taken for each frame
+            synchronized (outgoing){
+                if(outgoingLength == 0 && length % Standards.PACKETSIZE == 0 && length <= Standards.MAXCELLSIZE && length > 0){
+                    synchronized (this){
+                        if(ended) throw new IOException("The circuit is closed");
+                    }
+                    send(id, PACKET, bytes, offset, length);
+                    return;
+                }
+                while(length > 0){
+                    synchronized (this){
+                        if(ended) throw new IOException("The circuit is closed");
+                    }
+                    int size = Math.min(length, outgoing.length - outgoingLength);
+                    System.arraycopy(bytes, offset, outgoing, outgoingLength, size);
+                    outgoingLength += size;
+                    offset += size;
+                    length -= size;
+
+                    if(outgoingLength == outgoing.length){
+                        send(id, PACKET, outgoing, 0, outgoing.length);
+                        outgoingLength = 0;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,48 +1,261 @@
 package markussp.onion.router;
 
 import markussp.onion.model.Address;
+import markussp.onion.model.NodeEntry;
+import markussp.onion.model.ServiceDescriptor;
 import markussp.onion.model.SessionKey;
+import markussp.onion.util.DirectoryLog;
 import markussp.onion.util.Standards;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.spec.InvalidKeySpecException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * The Distributor class is a {@code main}-class and runs a ServerSocket,
+ * The Distributor class is a {@code main}-class and runs a server,
  * by default on port 3040. A different port number can be given as argument when running.
- * There should only be one instance of this server running in a onion network, as this
- * class oversees traffic in the network. All {@link OnionNode}s needs to connect to this
+ * A onion network is run by one Distributor, or by a few sharing their directory as described below,
+ * as this class oversees traffic in the network. All {@link OnionNode}s needs to connect to this
  * server upon creation to 'check in', enabling the Distributor to assign OnionNodes to
  * clients.
+ *
+ * All connections are handled by one thread with a {@link Selector}. The costly requests, the key
+ * exchange of a node request, checking the signature of a descriptor and merging a directory from a
+ * peer, are done by a bounded pool of worker threads. A connection can send several requests without
+ * waiting for the replies, which are sent in the order of the requests. When the workers can not keep
+ * up, new costly requests are refused by closing the connection, and when there are too many
+ * connections no more are accepted until some close.
+ *
+ * Several Distributors can serve the same network, each given the others as peers. Every
+ * {@link Standards#GOSSIPINTERVAL} a Distributor swaps its whole directory with a random peer, and
+ * both keep the newest entry for each node, so a node checking in with one of them is soon known
+ * by all. Directories are only taken from the hosts of the peers, and entries with a version more
+ * than {@link Standards#MAXVERSIONSKEW} milliseconds ahead of the local clock are ignored. Clients
+ * and nodes given a list of Distributors start at a random one and try the next if it does not answer.
+ *
+ * Given a file, the Distributor logs every change to its directory there, and reads it back when it
+ * starts. The changes are written by a thread of their own, so no request waits for the disk. Before serving, every node read from the file is checked by connecting to it, so nodes that
+ * went down while the Distributor was away are not handed out.
+ *
+ * Nodes report how many chains they carry and how busy they are every {@link Standards#LOADINTERVAL}.
+ * Each node of a chain is the less loaded of two picked by bandwidth, so a burst of requests does not
+ * pile onto the same few nodes. Reports replace the load of a node without taking the lock of the
+ * Distributor, and every node handed out counts as one more chain until its next report.
+ *
+ * Hidden services publish their signed {@link ServiceDescriptor} to every Distributor they know, and
+ * clients fetch it by the id in the hostname of the service. Descriptors are not shared between
+ * Distributors, and are forgotten {@link Standards#DESCRIPTORLIFETIME} milliseconds after they were made.
  */
 public class Distributor {
-    private static int portnr = Standards.DISTPORT;
-    private static final ArrayList<Address> nodes = new ArrayList<>();
+    private final int portnr;
+    private final Address[] peers;
+    private final Path directoryFile;
+    private final LinkedHashMap<Address, NodeEntry> directory = new LinkedHashMap<>();
+    private final HashMap<ByteBuffer, ServiceDescriptor> services = new HashMap<>();
+    private final ConcurrentHashMap<Address, Load> loads = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<DistributorConnection> ready = new ConcurrentLinkedQueue<>();
+    private final ArrayBlockingQueue<NodeEntry> unlogged = new ArrayBlockingQueue<>(Standards.LOGQUEUE);
+    private volatile Set<InetAddress> peerHosts = Set.of();
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(Standards.DISTWORKERS, Standards.DISTWORKERS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Standards.DISTQUEUE));
+    private volatile Selector selector;
+    private volatile boolean running = true;
+    private volatile int port = 0;
+    private int connections = 0;
+    private long clock = 0;
+    private DirectoryLog log;
 
     public static void main(String[] args) throws IOException {
         //Override standard portnumber if given
+        int portnr = Standards.DISTPORT;
+        Address[] peers = new Address[0];
+        Path directoryFile = null;
         if(args.length > 0){
             portnr = Integer.parseInt(args[0]);
+            if(args.length > 1){
+                //Comma separated list of host:port of the other Distributors in the network
+                if(!args[1].isEmpty()) peers = Standards.parseAddresses(args[1], Standards.DISTPORT);
+                if(args.length > 2){
+                    //File to keep the directory in between restarts
+                    directoryFile = Paths.get(args[2]);
+                }
+            }
         }
 
         //Launch server
-        ServerSocket server = new ServerSocket(portnr);
+        new Distributor(portnr, peers, directoryFile).launch();
+    }
+
+    /**
+     * Make a new Distributor with a custom portnumber.
+     * @param portnr an available port, or {@code 0} for any free port
+     */
+    public Distributor(int portnr){
+        this(portnr, new Address[0]);
+    }
+
+    /**
+     * Make a new Distributor sharing its directory with other Distributors.
+     * @param portnr an available port
+     * @param peers the addresses of the other Distributors in the network
+     */
+    public Distributor(int portnr, Address[] peers){
+        this(portnr, peers, null);
+    }
 
-        //Listen on port and send new connections to their own thread
-        while(true){
-            Socket socket = server.accept();
-            new Thread(new DistributorThread(socket)).start();
+    /**
+     * Make a new Distributor keeping its directory in a file, so it knows the nodes of the network
+     * right away after a restart.
+     * @param portnr an available port
+     * @param peers the addresses of the other Distributors in the network
+     * @param directoryFile the file to keep the directory in, {@code null} to keep it only in memory
+     */
+    public Distributor(int portnr, Address[] peers, Path directoryFile){
+        this.portnr = portnr;
+        this.peers = peers;
+        this.directoryFile = directoryFile;
+    }
+
+    /**
+     * Launch the server, handling connections until {@link #close()} is called.
+     * @throws IOException if the server could not be opened
+     */
+    public void launch() throws IOException {
+        resolvePeers();
+        if(directoryFile != null){
+            restore();
+        }
+        Thread logWriter = new Thread(this::writeLog);
+        logWriter.start();
+
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            this.selector = selector;
+            server.bind(new InetSocketAddress(portnr), Standards.DISTCONNECTIONS);
+            port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            server.configureBlocking(false);
+            SelectionKey acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+
+            Thread maintenance = new Thread(this::maintain);
+            maintenance.start();
+
+            while(running){
+                selector.select(Standards.DISTIDLETIME / 4);
+
+                //Send replies finished by the workers
+                DistributorConnection connection;
+                while((connection = ready.poll()) != null){
+                    connection.flush();
+                }
+
+                for(SelectionKey key : selector.selectedKeys()){
+                    if(!key.isValid()) continue;
+
+                    if(key.isAcceptable()){
+                        accept(server);
+                    }else{
+                        connection = (DistributorConnection) key.attachment();
+                        if(key.isReadable()) connection.read();
+                        if(key.isValid() && key.isWritable()) connection.flush();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                //Close connections idle for too long
+                long now = System.currentTimeMillis();
+                for(SelectionKey key : selector.keys()){
+                    if(key.attachment() instanceof DistributorConnection){
+                        ((DistributorConnection) key.attachment()).closeIfIdle(now);
+                    }
+                }
+
+                //Leave new connections in the backlog while there are too many
+                acceptKey.interestOps(connections < Standards.DISTCONNECTIONS ? SelectionKey.OP_ACCEPT : 0);
+            }
+
+            workers.shutdownNow();
+            maintenance.interrupt();
+            for(SelectionKey key : selector.keys()){
+                if(key.attachment() instanceof DistributorConnection){
+                    ((DistributorConnection) key.attachment()).close();
+                }
+            }
+        } finally {
+            running = false;
+            try {
+                logWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this){
+                if(log != null){
+                    try {
+                        //Changes made while the log writer stopped
+                        NodeEntry node;
+                        while((node = unlogged.poll()) != null){
+                            log.append(node);
+                        }
+                    } finally {
+                        log.close();
+                        log = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the port the Distributor listens on, which is only known after binding when launched on port 0.
+     * @return the port, or {@code 0} if {@link #launch()} has not bound it yet
+     */
+    public int getPort(){
+        return port;
+    }
+
+    /**
+     * Close the Distributor server safely
+     */
+    public void close(){
+        running = false;
+        Selector current = selector;
+        if(current != null){
+            current.wakeup();
         }
     }
 
@@ -50,106 +263,827 @@ public class Distributor {
      * Get the current amount of OnionNodes available in this network.
      * @return the amount of available OnionNodes
      */
-    static synchronized int getSize(){
-        return nodes.size();
+    synchronized int getSize(){
+        int size = 0;
+        for(NodeEntry node : directory.values()){
+            if(node.alive) size++;
+        }
+        return size;
+    }
+
+    /**
+     * Choose distinct nodes for a chain. For each position two different nodes are picked with a chance
+     * proportional to the bandwidth they have promised to relay, and the less loaded of them is
+     * chosen, see {@link #isLessLoaded(NodeEntry, NodeEntry) isLessLoaded}. A fast node therefore
+     * carries more chains than a slow one, but not more than its share.
+     * @param count the number of nodes to choose
+     * @param random the source of randomness
+     * @return the addresses of each chosen node, a dual-stack node has more than one.
+     * {@code null} if fewer than {@code count} nodes are checked in.
+     */
+    synchronized Address[][] chooseNodes(int count, Random random){
+        ArrayList<NodeEntry> candidates = new ArrayList<>();
+        for(NodeEntry node : directory.values()){
+            if(node.alive) candidates.add(node);
+        }
+        if(candidates.size() < count) return null;
+
+        Address[][] chosen = new Address[count][];
+
+        for(int i=0; i<count; i++){
+            long total = 0;
+            for(NodeEntry node : candidates){
+                total += weight(node);
+            }
+
+            int first = pick(candidates, total, random, -1);
+            int index = first;
+            if(candidates.size() > 1){
+                int second = pick(candidates, total - weight(candidates.get(first)), random, first);
+                if(isLessLoaded(candidates.get(second), candidates.get(first))) index = second;
+            }
+            chosen[i] = candidates.remove(index).addresses;
+        }
+
+        //Counted until the nodes report their load again, so the next requests see them as busier
+        for(Address[] node : chosen){
+            loads.computeIfAbsent(node[0], address -> new Load()).assigned.incrementAndGet();
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Walk the candidates until a random point in the total weight is passed.
+     * @param skip the index of a candidate not to pick, or -1
+     * @return the index of the picked candidate
+     */
+    private static int pick(ArrayList<NodeEntry> candidates, long total, Random random, int skip){
+        long point = (long) (random.nextDouble() * total);
+        int index = skip == 0 ? 1 : 0;
+        while((point -= weight(candidates.get(index))) >= 0 && index < candidates.size() - 1){
+            if(++index == skip && index < candidates.size() - 1) index++;
+        }
+        return index;
+    }
+
+    /**
+     * Compare the load of two nodes: the chains each carries, counting the ones handed out since its
+     * last report, per byte per second of bandwidth. A node busy relaying close to its bandwidth counts
+     * up to twice, as a few bulk chains load it as much as many quiet ones.
+     * @param node the node to compare
+     * @param other the node to compare with
+     * @return {@code true} if {@code node} is less loaded than {@code other}
+     */
+    private boolean isLessLoaded(NodeEntry node, NodeEntry other){
+        return load(node) < load(other);
+    }
+
+    private double load(NodeEntry node){
+        Load load = loads.get(node.addresses[0]);
+        if(load == null) return 1.0 / weight(node);
+
+        return (load.circuits + load.assigned.get() + 1) * (1000.0 + load.utilization) / 1000 / weight(node);
     }
 
     /**
-     * Get the network address in the list of available nodes in this network.
-     * Call {@link #getSize() getNodeSize} beforehand to know the range available.
-     * @param index a list index between {@code 0} and {@code nodeSize}.
-     * @return the address object, or {@code null} if out of bounds.
+     * Used by {@link OnionNode} to report its load, replacing the last report. Does not take the lock of
+     * the Distributor, so reports from many nodes do not hold up node requests.
+     * @param address the address the node checked in from
+     * @param circuits the chains the node carries
+     * @param utilization the bytes relayed in the last interval, in permille of the bandwidth of the node
      */
-    static synchronized Address getNode(int index){
-        return nodes.get(index);
+    void reportLoad(Address address, int circuits, int utilization){
+        Load load = loads.computeIfAbsent(address, key -> new Load());
+        load.circuits = Math.max(0, circuits);
+        load.utilization = Math.max(0, Math.min(1000, utilization));
+        load.assigned.set(0);
     }
 
     /**
-     * Used by {@link OnionNode} to 'check in'. This action saves the OnionNodes address,
+     * Used by {@link OnionNode} to 'check in'. This action saves the OnionNodes addresses,
      * to be handed to requesting clients. Make sure to call {@link #checkOut(Address) checkOut}
      * before closing the OnionNode.
-     * @param address the OnionNodes address
+     * @param addresses the OnionNodes addresses, starting with the one it checked in from
+     * @param capacity the bytes per second the OnionNode relays, {@code 0} if it is not limited,
+     * at most {@link Standards#MAXCAPACITY} is kept
      */
-    static synchronized void checkIn(Address address){
-        nodes.add(address);
+    synchronized void checkIn(Address[] addresses, long capacity){
+        checkOut(addresses[0]);
+        store(new NodeEntry(addresses, clampCapacity(capacity), tick(), true));
     }
 
     /**
      * Used by {@link OnionNode} to 'check out'. If the OnionNode is checked in to a Distributor,
      * this method needs to be called before shutdown.
-     * @param address the OnionNodes address
+     * @param address one of the OnionNodes addresses
+     */
+    synchronized void checkOut(Address address){
+        loads.remove(address);
+        boolean found = false;
+        for(Map.Entry<Address, NodeEntry> entry : directory.entrySet()){
+            NodeEntry node = entry.getValue();
+            if(node.alive && Arrays.asList(node.addresses).contains(address)){
+                entry.setValue(new NodeEntry(node.addresses, 0, tick(), false));
+                persist(entry.getValue());
+                found = true;
+            }
+        }
+
+        //Remember the check-out even if the check-in has not reached this Distributor yet
+        if(!found && !directory.containsKey(address)){
+            store(new NodeEntry(new Address[]{address}, 0, tick(), false));
+        }
+    }
+
+    /**
+     * Check if a connection comes from the host of one of the peers, the only ones allowed to send their directory.
+     * @param remote the address the connection comes from
+     * @return {@code true} if it is the address of a peer
+     */
+    boolean isPeer(InetAddress remote){
+        return peerHosts.contains(remote);
+    }
+
+    /**
+     * Take in entries from another Distributor, keeping the newest entry for each node.
+     * A check-out wins over a check-in with the same version. Entries more than
+     * {@link Standards#MAXVERSIONSKEW} milliseconds ahead of the local clock are ignored, as they
+     * would win over every change made until then.
+     * @param entries the entries of the other Distributor
+     */
+    synchronized void merge(List<NodeEntry> entries){
+        long latest = System.currentTimeMillis() + Standards.MAXVERSIONSKEW;
+        for(NodeEntry node : entries){
+            if(node.addresses.length == 0 || node.version > latest) continue;
+            node.capacity = clampCapacity(node.capacity);
+
+            NodeEntry local = directory.get(node.addresses[0]);
+            if(local == null || node.version > local.version || (node.version == local.version && local.alive && !node.alive)){
+                store(node);
+            }
+            clock = Math.max(clock, node.version);
+        }
+    }
+
+    /**
+     * Store the descriptor of a hidden service, unless a newer one is stored already.
+     * @param descriptor the descriptor
+     * @return {@code true} if the descriptor is signed by the service it names and was stored
+     */
+    boolean publish(ServiceDescriptor descriptor){
+        //Checked without the lock, it is the slow part
+        if(!Standards.verifyDescriptor(descriptor, null)) return false;
+
+        ByteBuffer id = ByteBuffer.wrap(Standards.serviceId(descriptor.signingKey));
+        synchronized (this){
+            ServiceDescriptor stored = services.get(id);
+            if(stored != null && stored.version >= descriptor.version) return stored.version == descriptor.version;
+
+            services.put(id, descriptor);
+            return true;
+        }
+    }
+
+    /**
+     * Find the descriptor of a hidden service.
+     * @param id the id of the service
+     * @return the descriptor, or {@code null} if none has been published recently
      */
-    static synchronized void checkOut(Address address){
-        nodes.remove(address);
+    synchronized ServiceDescriptor findService(byte[] id){
+        ServiceDescriptor descriptor = services.get(ByteBuffer.wrap(id));
+        if(descriptor == null || System.currentTimeMillis() - descriptor.version > Standards.DESCRIPTORLIFETIME) return null;
+
+        return descriptor;
+    }
+
+    /**
+     * Get every entry in the directory, including checked out nodes.
+     * @return a copy of the entries
+     */
+    synchronized List<NodeEntry> snapshot(){
+        return new ArrayList<>(directory.values());
+    }
+
+    /**
+     * Write directory entries to be sent to another Distributor.
+     * @param entries the entries
+     * @return a buffer ready to be written, holding the length and count followed by the entries
+     */
+    static ByteBuffer encodeDirectory(List<NodeEntry> entries){
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ByteBuffer entry = ByteBuffer.allocate(Standards.MAXENTRYSIZE);
+        for(NodeEntry node : entries){
+            entry.clear();
+            Standards.writeEntry(entry, node);
+            body.write(entry.array(), 0, entry.position());
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(8 + body.size());
+        message.putInt(4 + body.size());
+        message.putInt(entries.size());
+        message.put(body.toByteArray());
+        message.flip();
+
+        return message;
+    }
+
+    /**
+     * Read directory entries written by {@link #encodeDirectory(List) encodeDirectory}.
+     * @param buffer the buffer to read from, starting after the length
+     * @return the entries
+     * @throws UnknownHostException if an address type is unknown
+     * @throws BufferUnderflowException if the buffer ends before the entries
+     */
+    static List<NodeEntry> decodeDirectory(ByteBuffer buffer) throws UnknownHostException {
+        int count = buffer.getInt();
+        ArrayList<NodeEntry> entries = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            entries.add(Standards.readEntry(buffer));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Run a task on a worker thread.
+     * @param task the task
+     * @throws RejectedExecutionException if the workers are overloaded
+     */
+    void submit(Runnable task){
+        workers.execute(task);
+    }
+
+    /**
+     * Wake up the server to send replies finished by a worker.
+     * @param connection the connection with a finished reply
+     */
+    void ready(DistributorConnection connection){
+        ready.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Forget a connection that has been closed.
+     */
+    void closed(){
+        connections--;
+    }
+
+    /**
+     * Every {@link Standards#GOSSIPINTERVAL}, swap directories with a random peer, forget old
+     * check-outs and compact the directory file, until the Distributor is closed. Runs in its own
+     * thread, as it does blocking IO.
+     */
+    private void maintain(){
+        while(running){
+            try {
+                Thread.sleep(Standards.GOSSIPINTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if(peers.length > 0){
+                resolvePeers();
+                gossip(peers[ThreadLocalRandom.current().nextInt(peers.length)]);
+            }
+            purge();
+
+            DirectoryLog current;
+            synchronized (this){
+                current = log;
+            }
+            if(current != null && current.getAppended() > Standards.COMPACTRECORDS){
+                try {
+                    current.compact(this::snapshot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Swap directories with a peer, keeping the newest entry for each node.
+     * @param peer the address of the other Distributor
+     */
+    private void gossip(Address peer){
+        try (Socket socket = Standards.connect(peer, Standards.DISTTIMEOUT)) {
+            ByteBuffer message = encodeDirectory(snapshot());
+            OutputStream output = socket.getOutputStream();
+            output.write(3);
+            output.write(message.array(), 0, message.limit());
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            int length = input.readInt();
+            if(length < 4 || length > Standards.GOSSIPSIZE){
+                throw new IOException("Directory of " + length + " bytes from " + peer);
+            }
+            merge(decodeDirectory(ByteBuffer.wrap(input.readNBytes(length))));
+        } catch (IOException | BufferUnderflowException ignored) {
+            //The peer is down or sent garbage, the next round tries another
+        }
+    }
+
+    /**
+     * Look up the hosts of the peers, which may have moved since the last round. A peer given by a
+     * hostname that can not be resolved is left out until it can.
+     */
+    private void resolvePeers(){
+        HashSet<InetAddress> hosts = new HashSet<>();
+        for(Address peer : peers){
+            if(!peer.isUnresolved()){
+                hosts.add(peer.address);
+                continue;
+            }
+            try {
+                hosts.addAll(Arrays.asList(InetAddress.getAllByName(peer.hostname)));
+            } catch (UnknownHostException ignored) {}
+        }
+        peerHosts = hosts;
+    }
+
+    /**
+     * Load the directory kept in the file, and forget the nodes that can not be reached anymore.
+     * @throws IOException if the file could not be read
+     */
+    private void restore() throws IOException {
+        DirectoryLog saved = new DirectoryLog(directoryFile);
+        merge(saved.load());
+
+        //Check every node at once, a node that is down costs a timeout
+        ArrayList<NodeEntry> nodes = new ArrayList<>();
+        for(NodeEntry node : snapshot()){
+            if(node.alive) nodes.add(node);
+        }
+        if(!nodes.isEmpty()){
+            ExecutorService probes = Executors.newFixedThreadPool(Math.min(nodes.size(), Standards.PROBETHREADS));
+            for(NodeEntry node : nodes){
+                probes.execute(() -> {
+                    if(!isReachable(node)) forget(node);
+                });
+            }
+            probes.shutdown();
+            try {
+                probes.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                probes.shutdownNow();
+            }
+        }
+
+        //Start from a file holding only the nodes still up
+        synchronized (this){
+            log = saved;
+        }
+        saved.compact(this::snapshot);
+    }
+
+    /**
+     * Check if a node accepts connections on any of its addresses.
+     * @param node the node
+     * @return {@code true} if the node could be reached within {@link Standards#DISTTIMEOUT}
+     */
+    private static boolean isReachable(NodeEntry node){
+        for(Address address : node.addresses){
+            try {
+                Standards.connect(address, Standards.DISTTIMEOUT).close();
+                return true;
+            } catch (IOException ignored) {}
+        }
+        return false;
+    }
+
+    /**
+     * Forget a node without a check-out, as other Distributors may know better. The node is
+     * only forgotten if its entry has not changed in the meantime.
+     * @param node the entry of the node
+     */
+    private synchronized void forget(NodeEntry node){
+        directory.remove(node.addresses[0], node);
+    }
+
+    /**
+     * Put an entry in the directory, replacing the entry for the same node.
+     * @param node the entry
+     */
+    private void store(NodeEntry node){
+        directory.put(node.addresses[0], node);
+        persist(node);
+    }
+
+    /**
+     * Hand a changed entry to the log writer, if there is a directory file. The entry is still used if
+     * it is not written, because writing fails or {@link Standards#LOGQUEUE} changes are already
+     * waiting, it is only lost on the next restart unless the file is compacted first.
+     * @param node the entry
+     */
+    private void persist(NodeEntry node){
+        if(log == null) return;
+
+        unlogged.offer(node);
+    }
+
+    /**
+     * Write the changes handed over by {@link #persist(NodeEntry) persist} to the directory file, until
+     * the Distributor is closed. Runs in its own thread, so neither the thread of the Distributor
+     * nor its lock waits for the disk.
+     */
+    private void writeLog(){
+        while(running){
+            NodeEntry node;
+            try {
+                node = unlogged.poll(Standards.LOGPOLL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(node == null) continue;
+
+            DirectoryLog current;
+            synchronized (this){
+                current = log;
+            }
+            if(current == null) continue;
+            try {
+                current.append(node);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Forget checked out nodes after {@link Standards#TOMBSTONETIME}, when every peer has had time to hear of it,
+     * and descriptors of hidden services older than {@link Standards#DESCRIPTORLIFETIME}.
+     */
+    private synchronized void purge(){
+        long now = System.currentTimeMillis();
+        directory.values().removeIf(node -> !node.alive && now - node.version > Standards.TOMBSTONETIME);
+        services.values().removeIf(descriptor -> now - descriptor.version > Standards.DESCRIPTORLIFETIME);
+    }
+
+    /**
+     * Get a new version for a change made here. The version follows the wall clock, and is always
+     * newer than every version seen so far.
+     * @return the version
+     */
+    private long tick(){
+        clock = Math.max(clock + 1, System.currentTimeMillis());
+        return clock;
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while(connections < Standards.DISTCONNECTIONS && (channel = server.accept()) != null){
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new DistributorConnection(this, channel, key));
+            connections++;
+        }
+    }
+
+    /**
+     * Keep an advertised capacity within what {@link #chooseNodes(int, Random)} can add up.
+     * @param capacity the bytes per second a node claims to relay
+     * @return the capacity between {@code 0} and {@link Standards#MAXCAPACITY}
+     */
+    private static long clampCapacity(long capacity){
+        return Math.max(0, Math.min(Standards.MAXCAPACITY, capacity));
+    }
+
+    private static long weight(NodeEntry node){
+        return node.capacity > 0 ? node.capacity : Standards.DEFAULTCAPACITY;
+    }
+
+    /**
+     * The Load class holds the last load reported by a node, and the chains handed out since.
+     */
+    private static class Load {
+        private volatile int circuits = 0;
+        private volatile int utilization = 0;
+        private final AtomicInteger assigned = new AtomicInteger();
     }
 }
 
 /**
- * The DistributorThread class is called by {@link Distributor} upon connection with a client
- * or node. This class handles the communication, either checking in an OnionNode or giving
- * OnionNodes to a client.
+ * The DistributorConnection class is a single connection to the {@link Distributor}, from a client
+ * or a node. Requests are read as they arrive, checking nodes in and out right away and handing the
+ * costly requests to the workers. The replies are sent in the order of the requests. Everything except the
+ * work done by the workers happens on the thread of the Distributor.
  */
-class DistributorThread implements Runnable{
-    private final Socket socket;
+class DistributorConnection {
+    private static final int CHECKIN = 1 + 4 + 8 + Standards.PACKETSIZE;    //flag, port, capacity and addresses
+    private static final int CHECKOUT = 1 + 4;                              //flag and port
+    private static final int REQUEST = 1 + Standards.PACKETSIZE;            //flag and key exchange
+    private static final int GOSSIP = 1 + 4;                                //flag and length, followed by the directory
+    private static final int PUBLISH = 1 + 4;                               //flag and length, followed by the descriptor
+    private static final int FETCH = 1 + Standards.SERVICEIDLENGTH;         //flag and service id
+    private static final int LOAD = 1 + 4 + 4 + 4;                          //flag, port, circuits and utilization
+
+    private final Distributor distributor;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetAddress remote;
+    private ByteBuffer input = ByteBuffer.allocate(Standards.PACKETSIZE << 2);
+    private final ArrayDeque<Reply> replies = new ArrayDeque<>();
+    private boolean inputEnded = false;
+    private boolean writing = false;
+    private boolean closed = false;
+    private long lastActive = System.currentTimeMillis();
 
     /**
-     * Create a new object to be ran in a seperate thread.
-     * @param socket the socket object to communicate with
+     * Handle a new connection.
+     * @param distributor the Distributor that accepted the connection
+     * @param channel the connection
+     * @param key the key of the connection in the selector of the Distributor
      */
-    DistributorThread(Socket socket){
-        this.socket = socket;
+    DistributorConnection(Distributor distributor, SocketChannel channel, SelectionKey key) throws IOException {
+        this.distributor = distributor;
+        this.channel = channel;
+        this.key = key;
+        this.remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
     }
 
-    @Override
-    public void run() {
+    /**
+     * Read what has arrived and handle every complete request.
+     */
+    void read(){
         try {
-            InputStream input = socket.getInputStream();
-            OutputStream output = socket.getOutputStream();
+            if(channel.read(input) < 0){
+                inputEnded = true;
+            }
+            lastActive = System.currentTimeMillis();
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Send the replies that are finished, in the order of the requests, and handle requests
+     * that had to wait for earlier replies.
+     */
+    void flush(){
+        if(closed) return;
+
+        try {
+            //Requests answered right away are sent in the same round
+            do {
+                while(!replies.isEmpty() && replies.peek().done){
+                    Reply reply = replies.peek();
+                    if(reply.data != null){
+                        channel.write(reply.data);
+                        lastActive = System.currentTimeMillis();
+                        if(reply.data.hasRemaining()){
+                            writing = true;
+                            updateInterest();
+                            return;
+                        }
+                    }
+                    replies.poll();
+
+                    if(reply.close){
+                        close();
+                        return;
+                    }
+                }
+                writing = false;
+
+                parse();
+                if(closed) return;
+            } while(!replies.isEmpty() && replies.peek().done);
+
+            if(inputEnded && replies.isEmpty()){
+                close();
+                return;
+            }
+            updateInterest();
+        } catch (IOException | BufferUnderflowException e) {
+            //Broken connection, or a request that does not fit its length
+            close();
+        }
+    }
+
+    /**
+     * Close the connection if it has been idle for too long.
+     * @param now the current time in milliseconds
+     */
+    void closeIfIdle(long now){
+        if(replies.isEmpty() && now - lastActive > Standards.DISTIDLETIME){
+            close();
+        }
+    }
+
+    void close(){
+        if(closed) return;
+
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        }catch (IOException ignored){}
+        distributor.closed();
+    }
+
+    /**
+     * Handle the complete requests in the input, until too many replies are waiting.
+     */
+    private void parse() throws UnknownHostException {
+        input.flip();
+        while(replies.size() < Standards.DISTPIPELINE && input.hasRemaining()){
+            int flag = input.get(input.position());
+            int length = requestLength(flag);
+            if(length < 0){
+                close();
+                return;
+            }
+            if(length == 0 || input.remaining() < length){
+                if(length > input.capacity() && input.remaining() == input.capacity()){
+                    //Make room for a large directory from another Distributor once the input is full, doubling
+                    //each time, so a peer only gets as much memory as it has sent and not what its header claims
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(length, input.capacity() << 1));
+                    larger.put(input);
+                    input = larger;
+                    return;
+                }
+                break;
+            }
+            input.get();
 
-            int flag = input.read();
             if(flag == 0){                  //Node check-in
-                int port = ByteBuffer.wrap(input.readNBytes(4)).getInt();
-                Address address = new Address(socket.getInetAddress(), port);
-                Distributor.checkIn(address);
+                int port = input.getInt();
+                long capacity = input.getLong();
+                byte[] packet = new byte[Standards.PACKETSIZE];
+                input.get(packet);
+                Address[] advertised = Standards.readAddresses(ByteBuffer.wrap(packet));
+
+                //The address the node checked in from comes first, followed by other addresses it is reachable on
+                LinkedHashSet<Address> addresses = new LinkedHashSet<>();
+                addresses.add(new Address(remote, port));
+                addresses.addAll(Arrays.asList(advertised));
+                distributor.checkIn(addresses.stream().limit(Standards.MAXADDRESSES).toArray(Address[]::new), capacity);
             }else if(flag == 1){            //Node check-out
-                int port = ByteBuffer.wrap(input.readNBytes(4)).getInt();
-                Address address = new Address(socket.getInetAddress(), port);
-                Distributor.checkOut(address);
+                int port = input.getInt();
+                distributor.checkOut(new Address(remote, port));
+            }else if(flag == 6){            //Node load report
+                int port = input.getInt();
+                distributor.reportLoad(new Address(remote, port), input.getInt(), input.getInt());
             }else if(flag == 2){            //Client node-request
-                SessionKey sessionKey = Standards.handleKeyExchange(input, output);
+                byte[] packet = new byte[Standards.PACKETSIZE];
+                input.get(packet);
+                Reply reply = new Reply();
+                replies.add(reply);
+                long submitted = System.nanoTime();
+                try {
+                    distributor.submit(() -> answer(packet, reply, submitted));
+                } catch (RejectedExecutionException e) {
+                    //Overloaded, the client is told by the connection closing
+                    reply.close = true;
+                    reply.done = true;
+                }
+            }else if(flag == 4){            //Hidden service publishing its descriptor
+                ByteBuffer body = input.slice();
+                body.limit(length - 1);
+                body.position(4);
+                input.position(input.position() + length - 1);
 
-                byte[] message = new byte[Standards.PACKETSIZE];
-                Random random = new Random();
-                ArrayList<Integer> used = new ArrayList<>(Standards.NODES);
-                int size = Distributor.getSize();
+                ServiceDescriptor descriptor = Standards.readDescriptor(body);
+                submit(() -> ByteBuffer.wrap(new byte[]{(byte) (distributor.publish(descriptor) ? 1 : 0)}));
+            }else if(flag == 5){            //Client fetching the descriptor of a hidden service
+                byte[] id = new byte[Standards.SERVICEIDLENGTH];
+                input.get(id);
+                ServiceDescriptor descriptor = distributor.findService(id);
 
-                if(size >= Standards.NODES){
-                    //Give three nodes to the client
-                    for(int i=0; i<Standards.NODES; i++){
-                        int index;
+                //The length of the descriptor, 0 if there is none
+                ByteBuffer message = ByteBuffer.allocate(4 + Standards.DESCRIPTORSIZE);
+                message.putInt(0);
+                if(descriptor != null){
+                    Standards.writeDescriptor(message, descriptor);
+                    message.putInt(0, message.position() - 4);
+                }
+                message.flip();
 
-                        //Find an unused node
-                        while(used.contains(index = random.nextInt(size)));
+                Reply reply = new Reply();
+                reply.data = message;
+                reply.done = true;
+                replies.add(reply);
+            }else{                          //Directory from another Distributor
+                byte[] body = new byte[length - GOSSIP];
+                input.position(input.position() + 4);
+                input.get(body);
 
-                        //Store the nodes address
-                        Address address = Distributor.getNode(index);
-                        used.add(index);
+                //Answer with the merged directory
+                submit(() -> {
+                    distributor.merge(Distributor.decodeDirectory(ByteBuffer.wrap(body)));
+                    return Distributor.encodeDirectory(distributor.snapshot());
+                });
+            }
+        }
+        input.compact();
+    }
 
-                        byte[] addArray = address.address.getAddress();
-                        byte[] portArray = ByteBuffer.allocate(4).putInt(address.port).array();
-                        System.arraycopy(addArray, 0, message, i*8, 4);
-                        System.arraycopy(portArray, 0, message, i*8 + 4, 4);
-                    }
+    /**
+     * Get the length of the next request in the input.
+     * @param flag the first byte of the request
+     * @return the length including the flag, {@code 0} if more input is needed to tell, or
+     * {@code -1} if the request is not valid
+     */
+    private int requestLength(int flag){
+        if(flag == 0) return CHECKIN;
+        if(flag == 1) return CHECKOUT;
+        if(flag == 2) return REQUEST;
+        if(flag == 3){
+            if(!distributor.isPeer(remote)) return -1;
+            if(input.remaining() < GOSSIP) return 0;
+            int length = input.getInt(input.position() + 1);
+            return length < 4 || length > Standards.GOSSIPSIZE ? -1 : GOSSIP + length;
+        }
+        if(flag == 4){
+            if(input.remaining() < PUBLISH) return 0;
+            int length = input.getInt(input.position() + 1);
+            return length < 0 || length > Standards.DESCRIPTORSIZE ? -1 : PUBLISH + length;
+        }
+        if(flag == 5) return FETCH;
+        if(flag == 6) return LOAD;
+        return -1;
+    }
 
-                    //Send the chosen nodes to the client
-                    output.write(sessionKey.encrypt(message));
+    /**
+     * Do the key exchange of a node request and encrypt the chosen nodes. Runs on a worker thread,
+     * and is recorded as a {@link Events.NodeRequest} event if it took long.
+     * @param packet the key exchange packet of the client
+     * @param reply where to store the reply
+     * @param submitted when the request was given to the workers, from {@link System#nanoTime()}
+     */
+    private void answer(byte[] packet, Reply reply, long submitted){
+        Events.NodeRequest event = new Events.NodeRequest();
+        event.begin();
+        event.queueTime = System.nanoTime() - submitted;
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Standards.PACKETSIZE << 1);
+            SessionKey sessionKey = Standards.handleKeyExchange(new ByteArrayInputStream(packet), output);
+
+            //Give three nodes to the client, favouring the ones with most bandwidth
+            Address[][] chosen = distributor.chooseNodes(Standards.NODES, ThreadLocalRandom.current());
+
+            if(chosen != null){
+                event.nodes = chosen.length;
+                ByteBuffer message = ByteBuffer.allocate(Standards.PACKETSIZE);
+                for(Address[] node : chosen){
+                    Standards.writeAddresses(message, node);
                 }
+                output.write(sessionKey.encrypt(message.array()));
+            }else{
+                //Without enough nodes the client is told by the connection closing
+                reply.close = true;
             }
-
-            output.flush();
-            socket.close();
-        } catch (IOException | InvalidAlgorithmParameterException | InvalidKeySpecException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
+            reply.data = ByteBuffer.wrap(output.toByteArray());
+        } catch (IOException | GeneralSecurityException e) {
             e.printStackTrace();
+            reply.close = true;
         }
+        event.commit();
+        reply.done = true;
+        distributor.ready(this);
+    }
+
+    /**
+     * Answer a request on a worker thread. If the workers are overloaded, or the answer fails, the
+     * client is told by the connection closing.
+     * @param answer makes the reply
+     */
+    private void submit(Callable<ByteBuffer> answer){
+        Reply reply = new Reply();
+        replies.add(reply);
+        try {
+            distributor.submit(() -> {
+                try {
+                    reply.data = answer.call();
+                } catch (Exception e) {
+                    //A request that does not fit its length
+                    reply.close = true;
+                }
+                reply.done = true;
+                distributor.ready(this);
+            });
+        } catch (RejectedExecutionException e) {
+            reply.close = true;
+            reply.done = true;
+        }
+    }
+
+    private void updateInterest(){
+        int ops = 0;
+        if(!inputEnded && replies.size() < Standards.DISTPIPELINE) ops |= SelectionKey.OP_READ;
+        if(writing) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /**
+     * The Reply class holds the reply to one request, filled in by a worker.
+     */
+    private static class Reply {
+        private volatile ByteBuffer data;
+        private volatile boolean close = false;
+        private volatile boolean done = false;
     }
 }
@@ -0,0 +1,124 @@
+package markussp.onion.router;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * The Events class holds the JDK Flight Recorder events of the onion network, so a recording shows
+ * what the chains were doing next to GC pauses and thread scheduling. Start a recording with
+ * {@code -XX:StartFlightRecording} and open it in JDK Mission Control, the events are under Onion.
+ *
+ * Events are only made per chain or per call, never per cell. Sends, reads and Distributor requests
+ * have a threshold, so the fast ones are left out and the events can stay on in production. No event
+ * names the next node of a chain, as a recording must not link the hops of a chain together.
+ */
+final class Events {
+    private Events(){}
+
+    /**
+     * One step of building a chain in an {@link OnionSocket}.
+     */
+    @Name("markussp.onion.ChainBuild")
+    @Label("Chain Build")
+    @Category({"Onion", "Client"})
+    @Description("A step of building a chain: nodes from a Distributor, the guard circuit, a handshake, opening the stream, or meeting a hidden service")
+    static class ChainBuild extends Event {
+        @Label("Step")
+        String step;
+
+        @Label("Node")
+        @Description("The node or destination of the step")
+        String node;
+
+        @Label("Hop")
+        @Description("The position in the chain of the node doing the handshake")
+        int hop;
+
+        ChainBuild(String step, int hop){
+            this.step = step;
+            this.hop = hop;
+        }
+    }
+
+    /**
+     * A call to {@link OnionSocket#send(byte[], int, int)} that took long, usually because the
+     * congestion window was full.
+     */
+    @Name("markussp.onion.Send")
+    @Label("Onion Send")
+    @Category({"Onion", "Client"})
+    @Threshold("10 ms")
+    static class Send extends Event {
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @Label("Cells")
+        int cells;
+    }
+
+    /**
+     * A read from an {@link OnionSocket} that waited long for data.
+     */
+    @Name("markussp.onion.Read")
+    @Label("Onion Read")
+    @Category({"Onion", "Client"})
+    @Threshold("10 ms")
+    static class Read extends Event {
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    /**
+     * A chain through an {@link OnionNode}, from the connection being accepted until it closed.
+     */
+    @Name("markussp.onion.Circuit")
+    @Label("Circuit")
+    @Category({"Onion", "Node"})
+    @Description("A chain through this node, from the connection being accepted until it closed")
+    static class Circuit extends Event {
+        @Label("Role")
+        @Description("relay or exit")
+        String role;
+
+        @Label("Cells Forward")
+        long cellsForward;
+
+        @Label("Cells Backward")
+        long cellsBackward;
+
+        @Label("Crypto Time")
+        @Description("Time spent adding and removing this node's layer of encryption")
+        @Timespan
+        long cryptoTime;
+
+        @Label("Cell Size")
+        @DataAmount
+        int cellSize;
+    }
+
+    /**
+     * A node request handled by a worker of the {@link Distributor}.
+     */
+    @Name("markussp.onion.NodeRequest")
+    @Label("Node Request")
+    @Category({"Onion", "Distributor"})
+    @Threshold("1 ms")
+    static class NodeRequest extends Event {
+        @Label("Queue Time")
+        @Description("Time the request waited for a worker")
+        @Timespan
+        long queueTime;
+
+        @Label("Nodes Assigned")
+        @Description("0 if there were not enough nodes")
+        int nodes;
+    }
+}
@@ -0,0 +1,148 @@
+package markussp.onion.router;
+
+import markussp.onion.model.RelayCell;
+import markussp.onion.util.Standards;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The LoadTest class starts an {@link OnionCluster} and opens a number of OnionSockets to its echo
+ * server at once. Each socket sends its bytes in chunks and reads every chunk back, checking that it
+ * came back unchanged. Reported are the throughput of all sockets together, percentiles of the time
+ * taken to set up a chain, and the CPU time of the whole JVM for each cell sent or recieved by the
+ * clients. As every part runs in the same JVM, the CPU time includes the nodes and the echo server.
+ * The sockets can use larger cells, to compare bulk throughput per core with the standard cell size.
+ */
+public class LoadTest {
+    private static final int CHUNKCELLS = 32;               //cells sent before reading them back
+    private static int size = 6;
+    private static int connections = 16;
+    private static long bytes = 1 << 20;
+    private static int cellSize = Standards.PACKETSIZE;
+
+    public static void main(String[] args) throws Exception {
+        //Override standard values if given
+        if(args.length > 0){
+            size = Integer.parseInt(args[0]);
+            if(args.length > 1){
+                connections = Integer.parseInt(args[1]);
+                if(args.length > 2){
+                    bytes = Long.parseLong(args[2]);
+                    if(args.length > 3){
+                        cellSize = Standards.cellSize(Integer.parseInt(args[3]));
+                    }
+                }
+            }
+        }
+
+        try (OnionCluster cluster = new OnionCluster(size)) {
+            cluster.start();
+            System.out.println("Cluster of " + size + " nodes started, opening " + connections + " connections with cells of " + cellSize + " bytes");
+
+            long[] builds = new long[connections];
+            AtomicLong cells = new AtomicLong();
+            AtomicInteger failed = new AtomicInteger();
+            Thread[] threads = new Thread[connections];
+            long cpuStart = cpuTime();
+            long start = System.nanoTime();
+            for(int i=0; i<connections; i++){
+                int index = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        long built = System.nanoTime();
+                        OnionSocket socket = cluster.connect(cellSize);
+                        builds[index] = System.nanoTime() - built;
+                        cells.addAndGet(echo(socket, new Random(index)));
+                        socket.close();
+                    } catch (Exception e) {
+                        builds[index] = -1;
+                        failed.incrementAndGet();
+                        System.out.println("Connection " + index + " failed: " + e);
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread thread : threads){
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            long cpu = cpuTime() - cpuStart;
+
+            long[] succeeded = Arrays.stream(builds).filter(time -> time >= 0).sorted().toArray();
+            long total = bytes * succeeded.length;
+            System.out.printf("%d of %d connections echoed %d bytes each in %d ms, %.1f MB/s%n",
+                    succeeded.length, connections, bytes, elapsed / 1000000, total / (elapsed / 1e9) / 1e6);
+            if(succeeded.length > 0){
+                System.out.printf("Chain setup: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+                        percentile(succeeded, 50), percentile(succeeded, 90), percentile(succeeded, 99), succeeded[succeeded.length-1] / 1000000);
+            }
+            if(cpu >= 0 && cells.get() > 0){
+                System.out.printf("CPU: %d ms for %d cells, %d us per cell%n", cpu / 1000000, cells.get(), cpu / 1000 / cells.get());
+            }
+            if(failed.get() > 0){
+                System.out.println(failed.get() + " connections failed");
+            }
+        }
+    }
+
+    /**
+     * Send random bytes and read them back, one chunk at a time. Reading each chunk before sending
+     * the next keeps the echo server from blocking on a full connection.
+     * @param socket the socket connected to the echo server
+     * @param random the source of the bytes
+     * @return the number of cells sent and recieved
+     * @throws Exception if the connection failed or the bytes did not come back unchanged
+     */
+    private static long echo(OnionSocket socket, Random random) throws Exception {
+        int payload = cellSize - RelayCell.HEADERSIZE;
+        int chunk = payload * CHUNKCELLS;
+        byte[] sent = new byte[chunk];
+        byte[] read = new byte[chunk];
+        long cells = 0;
+        for(long left = bytes; left > 0; left -= chunk){
+            int length = (int) Math.min(left, chunk);
+            random.nextBytes(sent);
+            socket.send(sent, 0, length);
+
+            int offset = 0;
+            while(offset < length){
+                int count = socket.read(read, offset, length - offset);
+                if(count < 0) throw new IllegalStateException("The echo server closed the connection");
+                offset += count;
+            }
+            if(!Arrays.equals(sent, 0, length, read, 0, length)){
+                throw new IllegalStateException("The echo did not match what was sent");
+            }
+            cells += 2L * ((length + payload - 1) / payload);
+        }
+        return cells;
+    }
+
+    /**
+     * Get the value at a percentile of sorted times.
+     * @param sorted the times in nanoseconds, sorted
+     * @param percent the percentile
+     * @return the time in milliseconds
+     */
+    private static long percentile(long[] sorted, int percent){
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000000;
+    }
+
+    /**
+     * Get the CPU time used by the JVM so far.
+     * @return the time in nanoseconds, or {@code -1} if the JVM does not tell
+     */
+    private static long cpuTime(){
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if(bean instanceof com.sun.management.OperatingSystemMXBean){
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
@@ -3,12 +3,18 @@ package markussp.onion.router;
 import markussp.onion.util.Standards;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.Scanner;
 
 public class Node {
     private static int portnr = Standards.PORTNR;
     private static String distAddress = Standards.DIST;
     private static int distPort = Standards.DISTPORT;
+    private static InetAddress[] advertised = new InetAddress[0];
+    private static long rate = 0;
+    private static long circuitRate = 0;
+    private static String[] pooled = new String[0];
+    private static int acceptors = 1;
 
     public static void main(String[] args) throws Exception{
         //Override standard values if given
@@ -18,12 +24,43 @@ public class Node {
                 distAddress = args[1];
                 if(args.length > 2){
                     distPort = Integer.parseInt(args[2]);
+                    if(args.length > 3 && !args[3].isEmpty()){
+                        //Comma separated list of other addresses, for example the IPv6 address of a dual-stack node
+                        String[] hosts = args[3].split(",");
+                        advertised = new InetAddress[hosts.length];
+                        for(int i=0; i<hosts.length; i++){
+                            advertised[i] = InetAddress.getByName(hosts[i]);
+                        }
+                    }
+                    if(args.length > 4){
+                        //Bytes per second for the whole node, and for each chain
+                        rate = Long.parseLong(args[4]);
+                        if(args.length > 5){
+                            circuitRate = Long.parseLong(args[5]);
+                            if(args.length > 6){
+                                //Comma separated list of host:port destinations to keep connections open to
+                                if(!args[6].isEmpty()) pooled = args[6].split(",");
+                                if(args.length > 7){
+                                    //Listening sockets sharing the port, each with its own thread
+                                    acceptors = Integer.parseInt(args[7]);
+                                }
+                            }
+                        }
+                    }
                 }
             }
         }
 
-        //Start OnionNode in own thread
-        OnionNode node = new OnionNode(portnr, distAddress, distPort);
+        //Start OnionNode in own thread, the Distributor address can be a comma separated list of host:port
+        OnionNode node = new OnionNode(portnr, Standards.parseAddresses(distAddress, distPort), advertised);
+        //Allow bursts of one second
+        node.setRateLimit(rate, rate);
+        node.setCircuitRateLimit(circuitRate, circuitRate);
+        node.setAcceptors(acceptors);
+        for(String destination : pooled){
+            int colon = destination.lastIndexOf(':');
+            node.poolConnections(InetAddress.getByName(destination.substring(0, colon)), Integer.parseInt(destination.substring(colon + 1)));
+        }
         Thread thread = new Thread(() -> {
             try {
                 node.launch();
@@ -33,11 +70,15 @@ public class Node {
         });
         thread.start();
 
-        //Wait for user to type exit command
-        System.out.println("OnionNode is running, type 'x' to exit");
+        //Wait for user to type exit command, printing memory use on 's'
+        System.out.println("OnionNode is running, type 's' for memory use or 'x' to exit");
         Scanner scanner = new Scanner(System.in);
         String line;
-        while(!(line = scanner.nextLine()).equals("x"));
+        while(!(line = scanner.nextLine()).equals("x")){
+            if(line.equals("s")){
+                System.out.println(node.getMemoryStats());
+            }
+        }
 
         //Close node
         node.close();
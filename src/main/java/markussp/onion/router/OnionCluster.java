@@ -0,0 +1,245 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.util.Standards;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The OnionCluster class runs a whole onion network inside one JVM: a {@link Distributor}, a number
+ * of {@link OnionNode}s and an echo server as destination, all on free ports of localhost. It is
+ * meant for tests and load testing, where starting every part by hand is impractical.
+ *
+ * Calling {@link #start()} blocks until every node has checked in, after which
+ * {@link #connect()} opens OnionSockets to the echo server. Closing the cluster stops every part
+ * and waits for their threads.
+ */
+public class OnionCluster implements AutoCloseable {
+    private final int size;
+    private final Distributor distributor = new Distributor(0);
+    private final OnionNode[] nodes;
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    private final ArrayList<Thread> nodeThreads = new ArrayList<>();
+    private final Set<Socket> echoConnections = ConcurrentHashMap.newKeySet();
+    private ServerSocket echo;
+    private int acceptors = 1;
+
+    /**
+     * Make a new cluster, not yet started.
+     * @param size the number of OnionNodes, at least {@link Standards#NODES}
+     */
+    public OnionCluster(int size){
+        if(size < Standards.NODES){
+            throw new IllegalArgumentException("A cluster needs at least " + Standards.NODES + " nodes");
+        }
+        this.size = size;
+        this.nodes = new OnionNode[size];
+    }
+
+    /**
+     * Let every node accept connections on several sockets, see {@link OnionNode#setAcceptors(int)}.
+     * Must be called before {@link #start()}.
+     * @param count the number of listening sockets of each node
+     */
+    public void setAcceptors(int count){
+        acceptors = count;
+    }
+
+    /**
+     * Start the Distributor, the echo server and the OnionNodes, each in threads of their own.
+     * @throws IOException if the nodes did not check in within {@link Standards#CLUSTERTIMEOUT} milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void start() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + Standards.CLUSTERTIMEOUT;
+        launch(distributor::launch);
+        while(distributor.getPort() == 0){
+            awaitStep(deadline);
+        }
+
+        echo = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptEcho);
+        threads.add(acceptor);
+        acceptor.start();
+
+        Address[] distributors = new Address[]{getDistributor()};
+        for(int i=0; i<size; i++){
+            OnionNode node = new OnionNode(0, distributors, new InetAddress[0]);
+            node.setAcceptors(acceptors);
+            nodes[i] = node;
+            nodeThreads.add(launch(node::launch));
+        }
+        while(distributor.getSize() < size){
+            awaitStep(deadline);
+        }
+    }
+
+    /**
+     * Open an OnionSocket to the echo server through the cluster.
+     * @return the connected socket
+     * @throws IOException if the chain could not be set up
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public OnionSocket connect() throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return connect(Standards.PACKETSIZE);
+    }
+
+    /**
+     * Open an OnionSocket to the echo server through the cluster, with larger cells.
+     * @param cellSize the largest cell size of the chain
+     * @return the connected socket
+     * @throws IOException if the chain could not be set up
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public OnionSocket connect(int cellSize) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return new OnionSocket(new Address[]{getDistributor()}, getEcho(), cellSize);
+    }
+
+    /**
+     * Get the address of the Distributor, for connecting other clients to the cluster.
+     * @return the address
+     */
+    public Address getDistributor(){
+        return new Address(InetAddress.getLoopbackAddress(), distributor.getPort());
+    }
+
+    /**
+     * Get the address of the echo server, which sends back whatever it recieves.
+     * @return the address
+     */
+    public Address getEcho(){
+        return new Address(InetAddress.getLoopbackAddress(), echo.getLocalPort());
+    }
+
+    /**
+     * Get the OnionNodes of the cluster, for example to look at their memory use.
+     * @return the nodes, {@code null} before {@link #start()}
+     */
+    public OnionNode[] getNodes(){
+        return nodes.clone();
+    }
+
+    /**
+     * Stop every part of the cluster, and wait for their threads to finish. If interrupted while
+     * waiting, the rest is closed without waiting and the interrupt flag is set again.
+     * @throws IOException if the echo server could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        for(OnionNode node : nodes){
+            if(node != null) node.close();
+        }
+        //The nodes check out before the Distributor goes away
+        boolean interrupted = join(nodeThreads, false);
+        distributor.close();
+
+        if(echo != null){
+            echo.close();
+        }
+        for(Socket socket : echoConnections){
+            socket.close();
+        }
+        if(join(threads, interrupted)){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for threads to finish, unless interrupted.
+     * @param threads the threads
+     * @param interrupted if already interrupted, in which case nothing is waited for
+     * @return {@code true} if interrupted
+     */
+    private static boolean join(ArrayList<Thread> threads, boolean interrupted){
+        if(interrupted) return true;
+        try {
+            for(Thread thread : threads){
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run a part of the cluster in a thread of its own.
+     * @param part the blocking launch method of the part
+     * @return the thread
+     */
+    private Thread launch(Launchable part){
+        Thread thread = new Thread(() -> {
+            try {
+                part.launch();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitStep(long deadline) throws IOException, InterruptedException {
+        if(System.currentTimeMillis() > deadline){
+            throw new IOException("The cluster did not start within " + Standards.CLUSTERTIMEOUT + " milliseconds");
+        }
+        Thread.sleep(10);
+    }
+
+    /**
+     * Accept connections to the echo server until it is closed, echoing each in a thread of its own.
+     */
+    private void acceptEcho(){
+        try {
+            while(true){
+                Socket socket = echo.accept();
+                echoConnections.add(socket);
+                new Thread(() -> echo(socket)).start();
+            }
+        } catch (IOException ignored) {
+            //The cluster has closed
+        }
+    }
+
+    private void echo(Socket socket){
+        try (socket) {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            byte[] buffer = new byte[Standards.PACKETSIZE * 16];
+            int length;
+            while((length = input.read(buffer)) >= 0){
+                output.write(buffer, 0, length);
+            }
+        } catch (IOException ignored) {
+            //The connection was closed abruptly
+        } finally {
+            echoConnections.remove(socket);
+        }
+    }
+
+    private interface Launchable{
+        void launch() throws Exception;
+    }
+}
@@ -1,38 +1,114 @@
 package markussp.onion.router;
 
+import markussp.onion.model.Address;
+import markussp.onion.model.MemoryStats;
+import markussp.onion.model.RelayCell;
 import markussp.onion.model.SessionKey;
+import markussp.onion.util.Compressor;
+import markussp.onion.util.CongestionWindow;
+import markussp.onion.util.ConnectionPool;
+import markussp.onion.util.Decompressor;
+import markussp.onion.util.ResolverCache;
 import markussp.onion.util.Standards;
+import markussp.onion.util.TokenBucket;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
 
 /**
  * The OnionNode class is used to relay messages through an onion network.
  * By calling {@link #launch() launch()} the server will start.
  * By default the server will run on port 3000.
+ *
+ * Data waiting to be written to a destination is counted for each chain and for the whole node.
+ * If the total goes over the memory limit, chains are killed until it is below again, so a
+ * client sending faster than its destinations read can not make the node run out of memory.
+ *
+ * A client can ask for a stream to be resumable. If the chain of such a stream breaks, for example
+ * because a node in the middle went down, the exit node keeps the stream and its connection to the
+ * destination for {@link Standards#RESUMETIME} milliseconds, waiting for the client to move it to a
+ * new chain ending in the same exit node.
+ *
+ * Every exit node can be an introduction point of a hidden service, passing introductions from
+ * clients to the chain the service keeps open to it once that chain has signed a nonce from the
+ * node with the key of the service, and a rendezvous point, joining the chain of a client with the
+ * one the service builds to it. Joined chains are relayed packet by packet, and the node can not
+ * read them, as the client and the service have a layer of encryption of their own.
  */
 public class OnionNode {
+    /**
+     * Which chains to kill when the memory limit is exceeded.
+     */
+    public enum KillPolicy {
+        /** The chain with the most queued bytes */
+        LARGEST,
+        /** The chain with the queued cell that has waited longest */
+        OLDEST
+    }
+
     private final int portnr;
-    private final String distAddress;
-    private final int distPort;
-    private boolean running = true;
+    private final Address[] distributors;
+    private final InetAddress[] advertised;
+    private final ResolverCache resolver = new ResolverCache(Standards.DNSCACHESIZE, Standards.DNSTTL, Standards.DNSNEGATIVETTL);
+    private final Set<NodeThread> circuits = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<ByteBuffer, ExitStream> resumable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteBuffer, NodeThread> introductions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteBuffer, NodeThread> rendezvous = new ConcurrentHashMap<>();
+    private final Set<CircuitLink> links = ConcurrentHashMap.newKeySet();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong peakQueued = new AtomicLong();
+    private final AtomicLong killed = new AtomicLong();
+    private final LongAdder relayed = new LongAdder();
+    private final Object reclaiming = new Object();
+    private TokenBucket bucket;
+    private long circuitRate = 0;
+    private long circuitBurst = 0;
+    private long memoryLimit = Standards.MEMORYLIMIT;
+    private int maxCellSize = Standards.MAXCELLSIZE;
+    private boolean compression = true;
+    private KillPolicy killPolicy = KillPolicy.LARGEST;
+    private ConnectionPool pool = new ConnectionPool(Standards.POOLSIZE, Standards.POOLIDLE, Standards.POOLIDLETIME);
+    private final ArrayList<ServerSocket> listeners = new ArrayList<>();
+    private int acceptors = 1;
+    private volatile int port = 0;
+    private volatile boolean running = true;
 
     /**
      * Make a new OnionNode with a custom portnumber
-     * @param portnr an available port
+     * @param portnr an available port, or {@code 0} for any free port
      * @throws IOException
      */
     public OnionNode(int portnr) throws IOException {
@@ -61,56 +137,291 @@ public class OnionNode {
      * @throws IOException
      */
     public OnionNode(int portnr, String distAddress, int distPort) throws IOException {
+        this(portnr, distAddress, distPort, new InetAddress[0]);
+    }
+
+    /**
+     * Make a new dual-stack OnionNode, advertising more addresses than the one it checks in from.
+     * The Distributor hands out all of them, so both IPv4 and IPv6 nodes can reach this one.
+     * @param portnr an available port to host on
+     * @param distAddress the IP-address of the NodeDistributor
+     * @param distPort the portnumber of the NodeDistributor
+     * @param advertised other addresses this node is reachable on, at most {@code Standards.MAXADDRESSES - 1}
+     * @throws IOException
+     */
+    public OnionNode(int portnr, String distAddress, int distPort, InetAddress[] advertised) throws IOException {
+        this(portnr, new Address[]{new Address(distAddress, distPort)}, advertised);
+    }
+
+    /**
+     * Make a new OnionNode for a network with several Distributors. The node checks in and out
+     * with one of them, starting at a random one and moving on to the next if it does not answer
+     * within {@link Standards#DISTTIMEOUT} milliseconds. The Distributors share the check-in between them.
+     * @param portnr an available port to host on
+     * @param distributors the addresses of the Distributors
+     * @param advertised other addresses this node is reachable on, at most {@code Standards.MAXADDRESSES - 1}
+     * @throws IOException
+     */
+    public OnionNode(int portnr, Address[] distributors, InetAddress[] advertised) throws IOException {
         this.portnr = portnr;
-        this.distAddress = distAddress;
-        this.distPort = distPort;
+        this.distributors = distributors;
+        this.advertised = advertised;
+    }
+
+    /**
+     * Limit the bandwidth of all chains through this node together. The rate is advertised to
+     * the Distributor, which hands out faster nodes more often. Must be called before {@link #launch()}.
+     * Chains going over the limit are slowed down, no packets are dropped.
+     * @param bytesPerSecond the bytes relayed per second, {@code 0} for no limit
+     * @param burst the bytes that can be relayed at once after being idle
+     */
+    public void setRateLimit(long bytesPerSecond, long burst){
+        bucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, burst) : null;
+    }
+
+    /**
+     * Limit the bandwidth of each chain through this node, so one chain can not take all of it.
+     * Must be called before {@link #launch()}.
+     * @param bytesPerSecond the bytes relayed per second for one chain, {@code 0} for no limit
+     * @param burst the bytes one chain can relay at once after being idle
+     */
+    public void setCircuitRateLimit(long bytesPerSecond, long burst){
+        circuitRate = bytesPerSecond;
+        circuitBurst = burst;
+    }
+
+    /**
+     * Limit the bytes queued for destinations, or waiting on a {@link CircuitLink}, by all chains together.
+     * @param bytes the most bytes to queue before killing chains
+     * @param policy which chains to kill first
+     */
+    public void setMemoryLimit(long bytes, KillPolicy policy){
+        memoryLimit = bytes;
+        killPolicy = policy;
+    }
+
+    /**
+     * Set the largest cell size this node takes, advertised to clients in the key exchange. A chain
+     * uses the largest size all of its nodes and the client take. Must be called before {@link #launch()}.
+     * @param cellSize the cell size, rounded down to a multiple of {@link Standards#PACKETSIZE} and at
+     * most {@link Standards#MAXCELLSIZE}
+     */
+    public void setMaxCellSize(int cellSize){
+        maxCellSize = Standards.cellSize(cellSize);
+    }
+
+    /**
+     * Get the largest cell size this node takes.
+     * @return the cell size in bytes
+     */
+    int getMaxCellSize(){
+        return maxCellSize;
+    }
+
+    /**
+     * Accept connections with several threads, each listening on its own socket bound to the same port
+     * with SO_REUSEPORT. The kernel spreads new connections between the sockets, so a burst of new
+     * chains is not handled by one thread and one backlog. Where SO_REUSEPORT is not supported, like on
+     * Windows, one socket is used. Must be called before {@link #launch()}.
+     * @param count the number of listening sockets, {@code 1} by default
+     */
+    public void setAcceptors(int count){
+        if(count < 1) throw new IllegalArgumentException("A node needs at least one acceptor");
+        acceptors = count;
+    }
+
+    /**
+     * Allow or refuse compressing streams for clients that ask for it. Each compressed stream keeps a
+     * Deflater and an Inflater, so a busy exit node may refuse to save memory and CPU time. Must be
+     * called before {@link #launch()}.
+     * @param allowed {@code true} to compress streams when asked, the default
+     */
+    public void setCompression(boolean allowed){
+        compression = allowed;
+    }
+
+    /**
+     * Check if this node compresses streams when asked.
+     * @return {@code true} if allowed
+     */
+    boolean allowsCompression(){
+        return compression;
+    }
+
+    /**
+     * Keep connections to a destination open after a stream ends, for the next stream to reuse.
+     * Only use this for protocols where one request is done before the next begins, like HTTP with
+     * keep-alive. A connection is only kept when the client ends its stream with
+     * {@link OnionSocket#finishRequest()} after reading the whole response, any other end closes it.
+     * Must be called before {@link #launch()}.
+     * @param address the IP-address of the destination
+     * @param port the portnumber of the destination
+     */
+    public void poolConnections(InetAddress address, int port){
+        pool.enable(new Address(address, port));
+    }
+
+    /**
+     * Replace the pool of connections to destinations, for example to change how many idle
+     * connections are kept and for how long. Must be called before {@link #launch()}.
+     * @param pool the pool, with the pooled destinations enabled
+     */
+    public void setConnectionPool(ConnectionPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Get a snapshot of the data queued in this node.
+     * @return the current and peak queued bytes, and the number of chains open and killed
+     */
+    public MemoryStats getMemoryStats(){
+        return new MemoryStats(queued.get(), peakQueued.get(), memoryLimit, circuits.size(), killed.get());
     }
 
     /**
-     * Launch the server. Will check in with the Distributor, afterwards
-     * it listens on the port handling connections in seperate threads.
+     * Launch the server. Will bind the port and check in with the Distributor, afterwards
+     * it handles connections in seperate threads.
      * Will block until {@link #close()} is called.
      * @throws IOException if an error occurs when:
      * <ul>
      * <li> creating the {@link Socket}, {@link OutputStream} or {@link ServerSocket} </li>
      * <li> writing to OutputStream </li>
      * <li> closing the Socket or OutputStream </li>
-     * <li> waiting for a connection </li>
      * </ul>
      * @throws IOException
      * @throws InterruptedException
      */
     public void launch() throws IOException, InterruptedException {
-        //Check in at Distributor
-        sendToDistributor(0);
+        //Listen on port with one or more sockets, each accepting connections in its own thread
+        Queue<Thread> threads = new ConcurrentLinkedQueue<>();
+        ArrayList<Thread> acceptorThreads = new ArrayList<>();
+        try {
+            bind();
+
+            //Check in at Distributor with the port actually bound
+            sendToDistributor(0);
+            synchronized (listeners){
+                for(ServerSocket server : listeners){
+                    Thread thread = new Thread(() -> accept(server, threads));
+                    acceptorThreads.add(thread);
+                    thread.start();
+                }
+            }
+
+            //Evict idle connections, expire broken streams and report the load until close() wakes this thread
+            long reported = System.currentTimeMillis();
+            while(running){
+                synchronized (listeners){
+                    if(running) listeners.wait(Standards.NODEMAINTENANCE);
+                }
+                pool.evict();
+                expireStreams();
+
+                long now = System.currentTimeMillis();
+                if(running && now - reported >= Standards.LOADINTERVAL){
+                    reportLoad(now - reported);
+                    reported = now;
+                }
+            }
+        } finally {
+            closeListeners();
+            for(Thread thread : acceptorThreads){
+                thread.join();
+            }
+        }
+
+        //Notify Distributor and close connections
+        try {
+            sendToDistributor(1);
+        } finally {
+            for(CircuitLink link : links){
+                link.close();
+            }
+            for(NodeThread node : new ArrayList<>(circuits)){
+                node.kill();
+            }
+            for(ExitStream stream : resumable.values()){
+                stream.close();
+            }
+
+            for(Thread thread : threads){
+                thread.join();
+            }
+            pool.close();
+        }
+    }
 
-        //Listen on port and send new connections to their own threads
-        ServerSocket server = new ServerSocket(portnr);
-        ArrayList<NodeThread> nodes = new ArrayList<>();
-        ArrayList<Thread> threads = new ArrayList<>();
+    /**
+     * Open the listening sockets. Several acceptors each get their own socket on the same port through
+     * SO_REUSEPORT, and the kernel spreads new connections between them. Where SO_REUSEPORT is not
+     * supported a single socket is opened.
+     * @throws IOException if the port could not be bound
+     */
+    private void bind() throws IOException {
+        int bound = portnr;
+        int count = acceptors;
+        for(int i=0; i<count; i++){
+            ServerSocket server = new ServerSocket();
+            synchronized (listeners){
+                listeners.add(server);
+            }
+            if(count > 1){
+                if(server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)){
+                    server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }else{
+                    count = 1;
+                }
+            }
+            server.bind(new InetSocketAddress(bound), Standards.NODEBACKLOG);
+            //Launched on port 0, the other sockets join the port the first one got
+            bound = server.getLocalPort();
+        }
+        port = bound;
+    }
 
-        server.setSoTimeout(500);
+    /**
+     * Accept connections on one listening socket until it is closed, starting a chain for each.
+     * @param server the listening socket
+     * @param threads the threads of the chains, joined when the node closes
+     */
+    private void accept(ServerSocket server, Queue<Thread> threads){
         while(running){
             try {
                 Socket socket = server.accept();
-                NodeThread node = new NodeThread(socket);
+                socket.setTcpNoDelay(true);
+                NodeThread node = new NodeThread(this, socket);
                 Thread thread = new Thread(node);
-                nodes.add(node);
+                circuits.add(node);
                 threads.add(thread);
 
                 thread.start();
-            }catch(SocketTimeoutException ignored){}
+            } catch (IOException e) {
+                //Closing the socket is how close() stops the acceptors
+                if(server.isClosed()) return;
+                e.printStackTrace();
+            }
         }
+    }
 
-        //Close connections and notify Distributor
-        sendToDistributor(1);
-        for(NodeThread node : nodes){
-            node.close();
+    /**
+     * Close the listening sockets, waking up the acceptors blocked on them.
+     */
+    private void closeListeners(){
+        synchronized (listeners){
+            for(ServerSocket server : listeners){
+                try {
+                    server.close();
+                }catch (IOException ignored){}
+            }
         }
+    }
 
-        for(Thread thread : threads){
-            thread.join();
-        }
+    /**
+     * Get the port this node listens on, which is only known after binding when launched on port 0.
+     * @return the port, or {@code 0} if {@link #launch()} has not bound it yet
+     */
+    public int getPort(){
+        return port;
     }
 
     /**
@@ -118,21 +429,343 @@ public class OnionNode {
      * @throws IOException
      */
     public void close() throws IOException {
-        running = false;
+        synchronized (listeners){
+            running = false;
+            listeners.notifyAll();
+        }
+        closeListeners();
+    }
+
+    /**
+     * Resolve a hostname for a stream leaving the network through this node. Answers are cached
+     * and shared by all chains.
+     * @param hostname the hostname to resolve
+     * @return the IP-address
+     * @throws UnknownHostException if the hostname could not be resolved
+     */
+    InetAddress resolve(String hostname) throws UnknownHostException {
+        return resolver.resolve(hostname);
+    }
+
+    /**
+     * Make the bucket limiting a new chain.
+     * @return the bucket, or {@code null} if chains are not limited
+     */
+    TokenBucket newCircuitBucket(){
+        return circuitRate > 0 ? new TokenBucket(circuitRate, circuitBurst) : null;
+    }
+
+    /**
+     * Wait until the global limit allows relaying more bytes.
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    void throttle(int bytes) throws InterruptedIOException {
+        relayed.add(bytes);
+        if(bucket != null){
+            bucket.acquire(bytes);
+        }
+    }
+
+    /**
+     * Check if connections to a destination are pooled.
+     * @param destination the IP-address and port of the destination
+     * @return {@code true} if the connection should be released instead of closed when the stream ends
+     */
+    boolean isPooled(Address destination){
+        return pool.isEnabled(destination);
+    }
+
+    /**
+     * Take an idle connection to a destination, skipping the ones the destination has closed.
+     * @param destination the IP-address and port of the destination
+     * @return the connection, or {@code null} if there is none
+     */
+    Socket takeConnection(Address destination){
+        Socket socket;
+        while((socket = pool.take(destination)) != null){
+            if(isAlive(socket)) return socket;
+            try {
+                socket.close();
+            }catch (IOException ignored){}
+        }
+        return null;
     }
 
     /**
-     * Send a flag to the Distributor. 0 for check-in, 1 for check-out
+     * Give a connection back to the pool when its stream has ended.
+     * @param destination the IP-address and port of the destination
+     * @param socket the connection
+     */
+    void releaseConnection(Address destination, Socket socket){
+        pool.release(destination, socket);
+    }
+
+    /**
+     * Count bytes queued for a destination, killing chains if the memory limit is exceeded.
+     * @param bytes the number of bytes
+     */
+    void queue(long bytes){
+        long total = queued.addAndGet(bytes);
+        peakQueued.accumulateAndGet(total, Math::max);
+        if(total > memoryLimit){
+            reclaim();
+        }
+    }
+
+    /**
+     * Count bytes that are no longer queued, because they are written or thrown away.
+     * @param bytes the number of bytes
+     */
+    void dequeue(long bytes){
+        queued.addAndGet(-bytes);
+    }
+
+    /**
+     * Forget a chain that has been closed.
+     * @param circuit the chain
+     */
+    void removeCircuit(NodeThread circuit){
+        circuits.remove(circuit);
+    }
+
+    /**
+     * Start a chain for a circuit opened on a {@link CircuitLink}.
+     * @param circuit the circuit
+     */
+    void acceptCircuit(CircuitLink.Circuit circuit){
+        NodeThread node = new NodeThread(this, circuit);
+        circuits.add(node);
+        new Thread(node).start();
+    }
+
+    /**
+     * Remember an open link, so it is closed when the node is.
+     * @param link the link
+     */
+    void addLink(CircuitLink link){
+        links.add(link);
+        if(!running) link.close();
+    }
+
+    /**
+     * Forget a link that has closed.
+     * @param link the link
+     */
+    void removeLink(CircuitLink link){
+        links.remove(link);
+    }
+
+    /**
+     * Remember a resumable stream, so a new chain can find it by its token.
+     * @param token the token of the stream
+     * @param stream the stream
+     */
+    void addResumable(byte[] token, ExitStream stream){
+        resumable.put(ByteBuffer.wrap(token), stream);
+    }
+
+    /**
+     * Forget a resumable stream that has been closed.
+     * @param token the token of the stream
+     */
+    void removeResumable(byte[] token){
+        resumable.remove(ByteBuffer.wrap(token));
+    }
+
+    /**
+     * Find a resumable stream by its token.
+     * @param token the token sent by the client
+     * @return the stream, or {@code null} if there is none
+     */
+    ExitStream findResumable(byte[] token){
+        return resumable.get(ByteBuffer.wrap(token));
+    }
+
+    /**
+     * Make a chain the one introductions to a hidden service are passed to, replacing an earlier one.
+     * The chain must have proven that it belongs to the service, see {@link Standards#readIntroductionProof(byte[], byte[])}.
+     * @param id the id of the service
+     * @param circuit the chain the service keeps open to this node
+     */
+    void addIntroduction(byte[] id, NodeThread circuit){
+        introductions.put(ByteBuffer.wrap(id), circuit);
+    }
+
+    /**
+     * Forget the chain of a hidden service that has been closed, unless it was already replaced.
+     * @param id the id of the service
+     * @param circuit the chain
+     */
+    void removeIntroduction(byte[] id, NodeThread circuit){
+        introductions.remove(ByteBuffer.wrap(id), circuit);
+    }
+
+    /**
+     * Find the chain introductions to a hidden service are passed to.
+     * @param id the id of the service
+     * @return the chain, or {@code null} if this is not an introduction point of the service
+     */
+    NodeThread findIntroduction(byte[] id){
+        return introductions.get(ByteBuffer.wrap(id));
+    }
+
+    /**
+     * Make a chain of a client wait for a hidden service to rendezvous with it.
+     * @param cookie the cookie the client gave the service
+     * @param circuit the chain of the client
+     */
+    void addRendezvous(byte[] cookie, NodeThread circuit){
+        rendezvous.put(ByteBuffer.wrap(cookie), circuit);
+    }
+
+    /**
+     * Forget a chain of a client that has been closed, or joined with a service.
+     * @param cookie the cookie the client gave the service
+     * @param circuit the chain
+     */
+    void removeRendezvous(byte[] cookie, NodeThread circuit){
+        rendezvous.remove(ByteBuffer.wrap(cookie), circuit);
+    }
+
+    /**
+     * Take the chain of the client waiting with a cookie, so no other chain can join it.
+     * @param cookie the cookie sent by the service
+     * @return the chain, or {@code null} if no client waits with the cookie
+     */
+    NodeThread takeRendezvous(byte[] cookie){
+        return rendezvous.remove(ByteBuffer.wrap(cookie));
+    }
+
+    /**
+     * Close the streams that have waited too long for a new chain.
+     */
+    private void expireStreams(){
+        long now = System.currentTimeMillis();
+        for(ExitStream stream : resumable.values()){
+            if(stream.isExpired(now)){
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Kill chains by the kill policy until the queued bytes are below the memory limit.
+     * Closing a chain throws away its queued bytes.
+     */
+    private void reclaim(){
+        synchronized (reclaiming){
+            while(queued.get() > memoryLimit){
+                NodeThread victim = null;
+                for(NodeThread circuit : circuits){
+                    if(circuit.getQueuedBytes() > 0 && (victim == null || (killPolicy == KillPolicy.OLDEST ?
+                            circuit.getOldestQueued() < victim.getOldestQueued() :
+                            circuit.getQueuedBytes() > victim.getQueuedBytes()))){
+                        victim = circuit;
+                    }
+                }
+                if(victim == null) return;
+
+                victim.kill();
+                killed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Check that an idle connection is drained and still open. Anything waiting to be read is left over
+     * from an earlier stream, and must not reach the next one. A closed connection is found by reading
+     * with a short timeout, which can only time out as nothing is waiting.
+     * @param socket the connection
+     * @return {@code true} if nothing was waiting and the read timed out
+     */
+    private static boolean isAlive(Socket socket){
+        if(socket.isClosed()) return false;
+
+        try {
+            if(socket.getInputStream().available() > 0) return false;
+
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                //Anything but a timeout means the destination closed, or sent data nobody asked for
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                socket.setSoTimeout(timeout);
+                return true;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a flag to a Distributor. 0 for check-in, 1 for check-out.
+     * Checking in also tells the Distributor the rate limit of this node.
      * @param flag 0 or 1
-     * @throws IOException
+     * @throws IOException if no Distributor could be reached
      */
     private void sendToDistributor(int flag) throws IOException {
-        Socket socket = new Socket(distAddress, distPort);
+        IOException error = new ConnectException("No Distributors to connect to");
+        for(Address distributor : Standards.rotate(distributors)){
+            try {
+                sendToDistributor(distributor, flag);
+                return;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        throw error;
+    }
+
+    /**
+     * Tell every Distributor how many chains this node carries, and how much of its bandwidth it used
+     * since the last report. Each Distributor chooses nodes by the reports it got, so a Distributor that
+     * does not answer is skipped until the next report.
+     * @param elapsed milliseconds since the last report
+     */
+    private void reportLoad(long elapsed){
+        long capacity = bucket == null ? Standards.DEFAULTCAPACITY : bucket.getRate();
+        long utilization = relayed.sumThenReset() * 1000 * 1000 / (Math.max(1, elapsed) * capacity);
+        ByteBuffer load = ByteBuffer.allocate(8).putInt(circuits.size()).putInt((int) Math.min(1000, utilization));
+
+        for(Address distributor : distributors){
+            try {
+                sendToDistributor(distributor, 6, load.array());
+            } catch (IOException e) {
+                //Reported again after the next interval
+            }
+        }
+    }
+
+    private void sendToDistributor(Address distributor, int flag) throws IOException {
+        sendToDistributor(distributor, flag, null);
+    }
+
+    private void sendToDistributor(Address distributor, int flag, byte[] body) throws IOException {
+        Socket socket = Standards.connect(distributor, Standards.DISTTIMEOUT);
         OutputStream output = socket.getOutputStream();
-        byte[] portArray = ByteBuffer.allocate(4).putInt(portnr).array();
+        byte[] portArray = ByteBuffer.allocate(4).putInt(port).array();
 
         output.write(flag);
         output.write(portArray);
+        if(flag == 0){
+            output.write(ByteBuffer.allocate(8).putLong(bucket == null ? 0 : bucket.getRate()).array());
+
+            //Advertise other addresses, for example IPv6 next to IPv4
+            ByteBuffer addresses = ByteBuffer.allocate(Standards.PACKETSIZE);
+            Address[] array = new Address[advertised.length];
+            for(int i=0; i<advertised.length; i++){
+                array[i] = new Address(advertised[i], port);
+            }
+            Standards.writeAddresses(addresses, array);
+            output.write(addresses.array());
+        }
+        if(body != null){
+            output.write(body);
+        }
 
         socket.close();
     }
@@ -142,73 +775,1339 @@ public class OnionNode {
  * The NodeThread class is called by {@link OnionNode} upon connection with a client
  * or node. This class handles the initial key exchange before it goes into relay mode,
  * encrypting traffic going backwards in the chain and decrypting traffic going forwards in the
- * chain.
+ * chain. Each direction is relayed by its own thread, and the connection is closed in both ends
+ * as soon as one of them closes.
+ *
+ * If the client tells this node it is the exit, it does not connect anywhere by itself. Instead it
+ * unpacks the {@link RelayCell}s from the client, opening an {@link ExitStream} to a destination for
+ * each BEGIN cell and writing only the payload of DATA cells to the destinations. DATA cells going
+ * back to the client are limited by a {@link CongestionWindow}, and DATA cells from the client are
+ * queued for their destination and acknowledged once written. A slow destination therefore holds
+ * back the window of its chain, and the bytes queued are counted towards the memory limit of the node.
+ *
+ * Every packet relayed is first taken from the rate limit of the chain and then from the one of the
+ * OnionNode, sleeping while either is exceeded. The reading thread is slowed down, so TCP pushes
+ * back on the sender instead of packets queueing up in the node.
+ *
+ * The streams of the DATA cells sent to the client are remembered in sending order, so each ACK
+ * tells a resumable stream how much of its data the client has. When the chain closes, resumable
+ * streams are left waiting for a RESUME cell on another chain instead of being closed.
+ *
+ * All packets are {@link Standards#PACKETSIZE} bytes until the client sends a resize packet encrypted
+ * up to this node, right after building the chain. The node then reads larger cells from the client
+ * and from the next node, which was switched first. Nothing flows back while the chain is built, so
+ * the next node has sent nothing in the new size before this one switches. Every packet is relayed
+ * with one write, whatever its size.
+ *
+ * A packet from the client that reads as a rekey packet once this node has removed its layer makes
+ * the node ratchet its {@link SessionKey}, and is not passed on.
+ *
+ * A connection opening a {@link CircuitLink} is not a chain itself. It is kept as a link instead,
+ * and every circuit the client opens on it gets a NodeThread of its own. Packets waiting in a circuit
+ * of the link are counted like the bytes queued for destinations.
+ *
+ * Each chain is recorded as a {@link Events.Circuit} event when it closes, with the cells it carried
+ * and the time spent on its layer of encryption. The time is only measured while the event is recorded.
+ *
+ * An exit chain joined with another at a rendezvous no longer unpacks relay cells. Each packet from
+ * the client, with the layer of this node removed, is sent on the other chain with the layer of that
+ * chain added, and closing one of the chains closes both.
  */
 class NodeThread implements Runnable{
-    private final Socket socket;
-    private boolean running = true;
+    private final OnionNode server;
+    private final Closeable connection;
+    private final InputStream input;
+    private final OutputStream output;
+    private final ConcurrentHashMap<Integer, ExitStream> streams = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ExitDatagram> datagrams = new ConcurrentHashMap<>();
+    private Socket nextSocket;
+    private SessionKey sessionKey;
+    private volatile int cellSize = Standards.PACKETSIZE;
+    private final CongestionWindow window = new CongestionWindow();
+    private final ArrayDeque<ExitStream> inFlight = new ArrayDeque<>();
+    private final TokenBucket bucket;
+    private final Object sending = new Object();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Events.Circuit event = new Events.Circuit();
+    private final boolean timing;
+    //Forward counts are kept by the thread reading from the client, backward ones while holding the sending lock
+    private long cellsForward = 0;
+    private long cellsBackward = 0;
+    private long cryptoForward = 0;
+    private long cryptoBackward = 0;
+    private volatile boolean running = true;
+    private volatile NodeThread joined;
+    private byte[] introduction;
+    private byte[] introNonce;
+    private byte[] cookie;
 
     /**
      * Create a new object to be ran in a seperate thread.
+     * @param server the OnionNode that accepted the connection
      * @param socket the socket object to communicate with
+     * @throws IOException if the streams of the socket could not be opened
+     */
+    public NodeThread(OnionNode server, Socket socket) throws IOException {
+        this(server, socket, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Create a new object for a circuit on a {@link CircuitLink}.
+     * @param server the OnionNode that accepted the link
+     * @param circuit the circuit to communicate with
      */
-    public NodeThread(Socket socket){
-        this.socket = socket;
+    NodeThread(OnionNode server, CircuitLink.Circuit circuit){
+        this(server, circuit, circuit.getInputStream(), circuit.getOutputStream());
+        //Packets waiting on the link count towards the memory limit, so a client sending faster than this chain relays gets it killed
+        circuit.setQueueCounter(bytes -> {
+            if(bytes > 0){
+                queue(bytes);
+            }else{
+                dequeue(-bytes);
+            }
+        });
+    }
+
+    private NodeThread(OnionNode server, Closeable connection, InputStream input, OutputStream output){
+        this.server = server;
+        this.connection = connection;
+        this.input = input;
+        this.output = output;
+        this.bucket = server.newCircuitBucket();
+        event.begin();
+        this.timing = event.isEnabled();
     }
 
     @Override
     public void run() {
         try {
-            InputStream input = socket.getInputStream();
-            OutputStream output = socket.getOutputStream();
-
-            SessionKey sessionKey = Standards.handleKeyExchange(input, output);
+            byte[] request = input.readNBytes(Standards.PACKETSIZE);
+            if(request.length == 0){
+                throw new EOFException("Closed before the key exchange");
+            }
+            if(connection instanceof Socket && request.length == Standards.PACKETSIZE && ByteBuffer.wrap(request).getInt() == Standards.LINK){
+                link((Socket) connection);
+                return;
+            }
+            sessionKey = Standards.handleKeyExchange(request, output, server.getMaxCellSize());
 
-            //Read next node address
+            //Read type and next node addresses
             byte[] ciphertext = input.readNBytes(Standards.PACKETSIZE);
-            byte[] cleartext = sessionKey.decrypt(ciphertext);
-            InetAddress nextAddress = InetAddress.getByAddress(Arrays.copyOf(cleartext, 4));
-            int nextPort = ByteBuffer.wrap(Arrays.copyOfRange(cleartext, 4, 8)).getInt();
+            ByteBuffer cleartext = ByteBuffer.wrap(decrypt(ciphertext));
 
-            Socket nextSocket = new Socket(nextAddress, nextPort);
-            InputStream nextInput = nextSocket.getInputStream();
-            OutputStream nextOutput = nextSocket.getOutputStream();
-
-            //---------------RELAY MODE------------------------
-            //Will continiously listen to the sockets in each end to relay incoming data
-            while(running){
-                if(nextInput.available() > 0){
-                    //Read from next node and encrypt
-                    cleartext = nextInput.readNBytes(512);
-                    ciphertext = sessionKey.encrypt(cleartext);
-
-                    //Send to previous node
-                    output.write(ciphertext);
+            if(cleartext.get() == Standards.EXIT){
+                event.role = "exit";
+                exit(input);
+            }else{
+                Address[] addresses = Standards.readAddresses(cleartext);
+                event.role = "relay";
+                Socket next = Standards.connect(addresses);
+                synchronized (this){
+                    if(!running){
+                        next.close();
+                        return;
+                    }
+                    nextSocket = next;
                 }
-                if(input.available() > 0){
-                    //Read from previous node and decrypt
-                    ciphertext = input.readNBytes(512);
-                    cleartext = sessionKey.decrypt(ciphertext);
 
-                    //Send to next node
-                    nextOutput.write(cleartext);
-                }
+                relay(input);
             }
-
-            //Shut down connections
-            output.flush();
-            nextOutput.flush();
-            nextSocket.close();
-            socket.close();
+            close();
+        } catch (EOFException e) {
+            //Closed before the key exchange, like a Distributor checking that this node is up
+            close();
         } catch (IOException | InvalidAlgorithmParameterException | InvalidKeySpecException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
-            e.printStackTrace();
-            try {
-                socket.close();
-            }catch (IOException ignored){}
+            if(running) e.printStackTrace();
+            close();
+        } catch (InterruptedException e) {
+            close();
         }
     }
 
+    /**
+     * Close all connections, ending the relay in both directions. Resumable streams are kept.
+     */
     public void close(){
+        close(true);
+        closeJoined();
+    }
+
+    /**
+     * Close all connections and every stream, also the resumable ones.
+     */
+    void kill(){
+        close(false);
+        closeJoined();
+    }
+
+    /**
+     * Close the chain joined with this one, outside the lock of this chain so two chains closing at
+     * once do not wait for each other.
+     */
+    private void closeJoined(){
+        NodeThread other = joined;
+        joined = null;
+        if(other != null) other.close();
+    }
+
+    private synchronized void close(boolean detach){
+        //Connections closed before the key exchange, like the checks of a Distributor, are not chains
+        if(running && event.role != null){
+            event.cellsForward = cellsForward;
+            event.cellsBackward = cellsBackward;
+            event.cryptoTime = cryptoForward + cryptoBackward;
+            event.cellSize = cellSize;
+            event.commit();
+        }
         running = false;
+        server.removeCircuit(this);
+        if(introduction != null) server.removeIntroduction(introduction, this);
+        if(cookie != null) server.removeRendezvous(cookie, this);
+        //Sockets first, as they wake up threads blocked in writes while holding the window
+        try {
+            connection.close();
+        }catch (IOException ignored){}
+        if(nextSocket != null){
+            try {
+                nextSocket.close();
+            }catch (IOException ignored){}
+        }
+        window.close();
+        for(ExitStream stream : streams.values()){
+            stream.release(this, detach);
+        }
+        for(ExitDatagram datagram : datagrams.values()){
+            datagram.close();
+        }
+    }
+
+    /**
+     * Encrypt a relay cell and send it to the previous node. Used by all streams of this chain.
+     * @param command the command
+     * @param stream the id of the stream
+     * @param bytes the array holding the payload
+     * @param offset where in the array the payload starts
+     * @param length the length of the payload
+     */
+    void sendCell(int command, int stream, byte[] bytes, int offset, int length) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        //Not synchronized on this, so a blocked write does not keep the chain from being closed
+        synchronized (sending){
+            output.write(encrypt(RelayCell.toPacket(command, stream, bytes, offset, length, cellSize)));
+        }
+    }
+
+    /**
+     * Add the layer of this node to a packet going to the client, must be called holding the sending lock.
+     * @param packet the packet
+     * @return the encrypted packet
+     */
+    private byte[] encrypt(byte[] packet) throws BadPaddingException, IllegalBlockSizeException {
+        long start = timing ? System.nanoTime() : 0;
+        byte[] ciphertext = sessionKey.encrypt(packet);
+        if(timing) cryptoBackward += System.nanoTime() - start;
+        cellsBackward++;
+        return ciphertext;
+    }
+
+    /**
+     * Remove the layer of this node from a packet coming from the client, only called by the thread reading from it.
+     * @param packet the packet
+     * @return the decrypted packet
+     */
+    private byte[] decrypt(byte[] packet) throws BadPaddingException, IllegalBlockSizeException {
+        long start = timing ? System.nanoTime() : 0;
+        byte[] cleartext = sessionKey.decrypt(packet);
+        if(timing) cryptoForward += System.nanoTime() - start;
+        cellsForward++;
+        return cleartext;
+    }
+
+    /**
+     * Get the largest payload of a cell sent to the client.
+     * @return the payload size in bytes
+     */
+    int getPayloadSize(){
+        return cellSize - RelayCell.HEADERSIZE;
+    }
+
+    /**
+     * Count a DATA cell from the client as handled, sending an ACK for every {@link Standards#ACKINTERVAL} cells.
+     */
+    void acknowledgeData() throws IOException, BadPaddingException, IllegalBlockSizeException {
+        if(written.incrementAndGet() % Standards.ACKINTERVAL == 0){
+            sendCell(RelayCell.ACK, 0, new byte[0], 0, 0);
+        }
+    }
+
+    /**
+     * Count bytes queued for a destination in this chain and in the OnionNode.
+     * @param bytes the number of bytes
+     */
+    void queue(long bytes){
+        queued.addAndGet(bytes);
+        server.queue(bytes);
+    }
+
+    /**
+     * Count bytes that are no longer queued in this chain.
+     * @param bytes the number of bytes
+     */
+    void dequeue(long bytes){
+        queued.addAndGet(-bytes);
+        server.dequeue(bytes);
+    }
+
+    /**
+     * Get the bytes queued for destinations in this chain.
+     * @return the number of bytes
+     */
+    long getQueuedBytes(){
+        return queued.get();
+    }
+
+    /**
+     * Get when the oldest cell queued in this chain was queued.
+     * @return the time in nanoseconds, or {@link Long#MAX_VALUE} if nothing is queued
+     */
+    long getOldestQueued(){
+        long oldest = Long.MAX_VALUE;
+        for(ExitStream stream : streams.values()){
+            oldest = Math.min(oldest, stream.getOldestQueued());
+        }
+        return oldest;
+    }
+
+    /**
+     * Send a DATA cell to the client, blocking while the congestion window is full.
+     * @param stream the stream
+     * @param bytes the array holding the payload
+     * @param offset where in the array the payload starts
+     * @param length the length of the payload
+     */
+    void sendData(ExitStream stream, byte[] bytes, int offset, int length) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        //The window is matched with ACKs in sending order, so taking room and sending must not be split by other streams
+        throttle(getPayloadSize() + RelayCell.HEADERSIZE);
+        synchronized (window){
+            window.acquire();
+            synchronized (inFlight){
+                inFlight.add(stream);
+            }
+            sendCell(RelayCell.DATA, stream.getId(), bytes, offset, length);
+        }
+    }
+
+    /**
+     * Forget a stream that has been closed.
+     * @param stream the id of the stream
+     */
+    void removeStream(int stream){
+        streams.remove(stream);
+    }
+
+    /**
+     * Send a DATAGRAM cell to the client. It is limited by the rate limits, but not by the congestion
+     * window, as datagrams are never acknowledged.
+     * @param stream the id of the datagram stream
+     * @param bytes the array holding the datagram
+     * @param offset where in the array the datagram starts
+     * @param length the length of the datagram
+     */
+    void sendDatagram(int stream, byte[] bytes, int offset, int length) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        throttle(getPayloadSize() + RelayCell.HEADERSIZE);
+        sendCell(RelayCell.DATAGRAM, stream, bytes, offset, length);
+    }
+
+    /**
+     * Send a packet from the chain joined with this one to the client, adding the layer of this node.
+     * @param packet the packet, with the layer of the node on the other chain removed
+     * @throws IOException if the chains have different cell sizes, or the client can not be reached
+     */
+    void sendJoined(byte[] packet) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        throttle(packet.length);
+        synchronized (sending){
+            if(packet.length != cellSize){
+                throw new IOException("Joined chains have different cell sizes");
+            }
+            output.write(encrypt(packet));
+        }
+    }
+
+    /**
+     * Join this chain with the one of a client waiting at this rendezvous point.
+     * @param other the chain of the client
+     */
+    private void join(NodeThread other){
+        joined = other;
+        other.joined = this;
+    }
+
+    /**
+     * Forget a datagram stream that has been closed.
+     * @param stream the id of the datagram stream
+     */
+    void removeDatagram(int stream){
+        datagrams.remove(stream);
+    }
+
+    /**
+     * Wait until both the chain and the OnionNode are below their rate limits for one more packet.
+     * @param size the size of the packet
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    private void throttle(int size) throws InterruptedIOException {
+        if(bucket != null){
+            bucket.acquire(size);
+        }
+        server.throttle(size);
+    }
+
+    /**
+     * Serve the connection as a link until it closes, starting a NodeThread for each new circuit.
+     * @param socket the connection
+     */
+    private void link(Socket socket) throws IOException {
+        server.removeCircuit(this);
+        CircuitLink link = new CircuitLink(socket, server::acceptCircuit);
+        server.addLink(link);
+        try {
+            link.run();
+        } finally {
+            server.removeLink(link);
+        }
+    }
+
+    /**
+     * Relay packets between the previous and the next node, until one of them closes.
+     * Traffic going backwards is relayed in a new thread, traffic going forwards in this one.
+     */
+    private void relay(InputStream input) throws IOException, BadPaddingException, IllegalBlockSizeException, InvalidKeyException, InvalidAlgorithmParameterException, InterruptedException {
+        InputStream nextInput = nextSocket.getInputStream();
+        OutputStream nextOutput = nextSocket.getOutputStream();
+
+        Thread backward = new Thread(() -> {
+            try {
+                relay(nextInput, output, true);
+            } catch (IOException | GeneralSecurityException e) {
+                if(running) e.printStackTrace();
+            }
+            close();
+        });
+        backward.start();
+
+        relay(input, nextOutput, false);
+        close();
+        backward.join();
+    }
+
+    /**
+     * Relay whole packets from one connection to the other until the sending end closes.
+     * @param from the stream to read packets from
+     * @param to the stream to write packets to
+     * @param encrypt {@code true} to add a layer of encryption, {@code false} to remove one
+     */
+    private void relay(InputStream from, OutputStream to, boolean encrypt) throws IOException, BadPaddingException, IllegalBlockSizeException, InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] message;
+        if(encrypt){
+            while((message = readBackward(from)) != null){
+                throttle(message.length);
+                synchronized (sending){
+                    to.write(encrypt(message));
+                }
+            }
+            return;
+        }
+
+        int size = Standards.PACKETSIZE;
+        while((message = from.readNBytes(size)).length == size){
+            throttle(size);
+            byte[] cleartext = decrypt(message);
+            if(Standards.isRekey(cleartext)){
+                rekey();
+            }else if(Standards.readResize(cleartext) > 0){
+                size = resize(Standards.readResize(cleartext));
+            }else{
+                to.write(cleartext);
+            }
+        }
+    }
+
+    /**
+     * Read a packet from the next node. The cell size can be switched by the thread reading from the
+     * client while this one waits, so the first {@link Standards#PACKETSIZE} bytes are read before the
+     * size is looked at.
+     * @param from the stream of the next node
+     * @return the packet, or {@code null} if the next node closed
+     */
+    private byte[] readBackward(InputStream from) throws IOException {
+        byte[] message = new byte[cellSize];
+        if(from.readNBytes(message, 0, Standards.PACKETSIZE) < Standards.PACKETSIZE) return null;
+
+        int size = cellSize;
+        if(size > message.length){
+            message = Arrays.copyOf(message, size);
+        }
+        int length = message.length - Standards.PACKETSIZE;
+        return from.readNBytes(message, Standards.PACKETSIZE, length) == length ? message : null;
+    }
+
+    /**
+     * Switch this hop to a new cell size after the client sent a resize packet.
+     * @param size the new cell size
+     * @return the new cell size
+     * @throws IOException if the cells are larger than this node takes
+     */
+    private int resize(int size) throws IOException {
+        if(size > server.getMaxCellSize()){
+            throw new IOException("Cells of " + size + " bytes are larger than this node takes");
+        }
+        synchronized (sending){
+            cellSize = size;
+        }
+        return size;
+    }
+
+    /**
+     * Ratchet the keys of this hop after the client sent a rekey packet. The packets after it from the
+     * client use the next keys, and a rekey packet sent back tells the client where this node switched.
+     */
+    private void rekey() throws IOException, BadPaddingException, IllegalBlockSizeException, InvalidKeyException, InvalidAlgorithmParameterException {
+        sessionKey.ratchetDecipher();
+        synchronized (sending){
+            output.write(encrypt(Standards.rekeyPacket(cellSize)));
+            sessionKey.ratchetCipher();
+        }
+    }
+
+    /**
+     * Tell the streams of the next {@link Standards#ACKINTERVAL} DATA cells sent that the client has them.
+     */
+    private void acknowledgeStreams(){
+        for(int i=0; i<Standards.ACKINTERVAL; i++){
+            ExitStream stream;
+            synchronized (inFlight){
+                stream = inFlight.poll();
+            }
+            if(stream == null) return;
+
+            stream.delivered(this);
+        }
+    }
+
+    /**
+     * Move a resumable stream from a broken chain to this one. The payload of the RESUME cell holds
+     * the token of the stream and the number of bytes the client has recieved on it.
+     * @param cell the RESUME cell, its stream id is the id of the stream on this chain
+     */
+    private void resume(RelayCell cell) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        ExitStream stream = null;
+        long delivered = 0;
+        if(cell.payload.length == Standards.TOKENLENGTH + 8){
+            ByteBuffer payload = ByteBuffer.wrap(cell.payload);
+            byte[] token = new byte[Standards.TOKENLENGTH];
+            payload.get(token);
+            delivered = payload.getLong();
+            stream = server.findResumable(token);
+        }
+
+        //Added before the stream answers, so the DATA cells the client sends after CONNECTED find it
+        if(stream != null){
+            streams.put(cell.stream, stream);
+            if(stream.resume(this, cell.stream, delivered)) return;
+            streams.remove(cell.stream);
+        }
+        sendCell(RelayCell.END, cell.stream, new byte[0], 0, 0);
+    }
+
+    /**
+     * Act as the last node in the chain, handling relay cells from the client until it closes.
+     */
+    private void exit(InputStream input) throws IOException, BadPaddingException, IllegalBlockSizeException, InvalidKeyException, InvalidAlgorithmParameterException {
+        int size = Standards.PACKETSIZE;
+        byte[] ciphertext;
+        while((ciphertext = input.readNBytes(size)).length == size){
+            byte[] cleartext = decrypt(ciphertext);
+            if(Standards.isRekey(cleartext)){
+                rekey();
+                continue;
+            }
+            if(Standards.readResize(cleartext) > 0){
+                size = resize(Standards.readResize(cleartext));
+                continue;
+            }
+            NodeThread other = joined;
+            if(other != null){
+                other.sendJoined(cleartext);
+                continue;
+            }
+            RelayCell cell = RelayCell.fromPacket(cleartext);
+            ExitStream stream = streams.get(cell.stream);
+
+            if(cell.command == RelayCell.DATA || cell.command == RelayCell.DATAGRAM){
+                throttle(size);
+            }
+
+            if(cell.command == RelayCell.ACK){
+                window.acknowledge();
+                acknowledgeStreams();
+            }else if(cell.command == RelayCell.BEGIN && stream == null){
+                //The address may be followed by a byte asking for a resumable stream, and one asking for compression
+                ByteBuffer payload = ByteBuffer.wrap(cell.payload);
+                Address address;
+                try {
+                    address = Standards.readAddress(payload);
+                } catch (UnknownHostException | BufferUnderflowException e) {
+                    sendCell(RelayCell.END, cell.stream, new byte[0], 0, 0);
+                    continue;
+                }
+                boolean resumable = payload.hasRemaining() && payload.get() == 1;
+                boolean compress = payload.hasRemaining() && payload.get() == 1;
+                stream = new ExitStream(server, this, cell.stream, address, resumable, compress);
+                streams.put(cell.stream, stream);
+                new Thread(stream).start();
+            }else if(cell.command == RelayCell.BEGINDATAGRAM && stream == null && !datagrams.containsKey(cell.stream)){
+                Address address;
+                try {
+                    address = Standards.readAddress(ByteBuffer.wrap(cell.payload));
+                } catch (UnknownHostException | BufferUnderflowException e) {
+                    sendCell(RelayCell.END, cell.stream, new byte[0], 0, 0);
+                    continue;
+                }
+                ExitDatagram datagram = new ExitDatagram(server, this, cell.stream, address);
+                datagrams.put(cell.stream, datagram);
+                new Thread(datagram).start();
+            }else if(cell.command == RelayCell.DATAGRAM){
+                //Datagrams for a stream not connected yet are lost, like on any network
+                ExitDatagram datagram = datagrams.get(cell.stream);
+                if(datagram != null) datagram.write(cell.payload);
+            }else if(cell.command == RelayCell.RESUME && stream == null){
+                resume(cell);
+            }else if(cell.command == RelayCell.DATA){
+                //Cells that can not be queued are thrown away, and acknowledged right away
+                if(stream == null || !stream.write(this, cell.payload)){
+                    acknowledgeData();
+                }
+            }else if(cell.command == RelayCell.END && stream != null){
+                stream.shutdownOutput(cell.payload.length > 0 && cell.payload[0] == 1);
+            }else if(cell.command == RelayCell.END && datagrams.containsKey(cell.stream)){
+                datagrams.get(cell.stream).close();
+            }else if(cell.command == RelayCell.KEEPALIVE){
+                sendCell(RelayCell.KEEPALIVE, 0, new byte[0], 0, 0);
+            }else if(cell.command >= RelayCell.ESTABLISHINTRO && !service(cell)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handle a cell of a hidden service, as its introduction point or the rendezvous point of a client.
+     * @param cell the cell
+     * @return {@code false} if the chain should be closed
+     */
+    private boolean service(RelayCell cell) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        if(cell.command == RelayCell.ESTABLISHINTRO && cell.payload.length == 0){
+            introNonce = new byte[Standards.INTRONONCELENGTH];
+            new SecureRandom().nextBytes(introNonce);
+            sendCell(RelayCell.INTROCHALLENGE, 0, introNonce, 0, introNonce.length);
+        }else if(cell.command == RelayCell.ESTABLISHINTRO){
+            //Only a chain that signed a fresh nonce with the key of the service can take its introductions
+            byte[] id = introNonce == null ? null : Standards.readIntroductionProof(cell.payload, introNonce);
+            introNonce = null;
+            if(id == null) return false;
+
+            if(introduction != null) server.removeIntroduction(introduction, this);
+            introduction = id;
+            server.addIntroduction(introduction, this);
+            sendCell(RelayCell.INTROESTABLISHED, 0, new byte[0], 0, 0);
+        }else if(cell.command == RelayCell.INTRODUCE && cell.payload.length > Standards.SERVICEIDLENGTH){
+            //Pass the rest of the payload on to the service, the client is told if it got there
+            NodeThread service = server.findIntroduction(Arrays.copyOf(cell.payload, Standards.SERVICEIDLENGTH));
+            boolean passed = false;
+            if(service != null){
+                try {
+                    service.sendCell(RelayCell.INTRODUCTION, 0, cell.payload, Standards.SERVICEIDLENGTH, cell.payload.length - Standards.SERVICEIDLENGTH);
+                    passed = true;
+                } catch (IOException ignored) {
+                    //The chain of the service broke, it will build a new one and publish a new descriptor
+                }
+            }
+            sendCell(RelayCell.INTRODUCED, 0, new byte[]{(byte) (passed ? 1 : 0)}, 0, 1);
+        }else if(cell.command == RelayCell.ESTABLISHRENDEZVOUS && cell.payload.length == Standards.COOKIELENGTH){
+            if(cookie != null) server.removeRendezvous(cookie, this);
+            cookie = cell.payload;
+            server.addRendezvous(cookie, this);
+            sendCell(RelayCell.RENDEZVOUSESTABLISHED, 0, new byte[0], 0, 0);
+        }else if(cell.command == RelayCell.RENDEZVOUS && cell.payload.length > Standards.COOKIELENGTH){
+            NodeThread client = server.takeRendezvous(Arrays.copyOf(cell.payload, Standards.COOKIELENGTH));
+            if(client == null) return false;
+
+            //Joined before the client is told, so its first packet for the service is relayed
+            join(client);
+            client.sendCell(RelayCell.RENDEZVOUSED, 0, cell.payload, Standards.COOKIELENGTH, cell.payload.length - Standards.COOKIELENGTH);
+        }
+        return true;
+    }
+}
+
+/**
+ * The ExitDatagram class is a datagram stream from an exit node to a UDP destination. It resolves the
+ * hostname if the client sent one, connects a {@link DatagramChannel} to the destination and answers
+ * with a CONNECTED cell. Each DATAGRAM cell from the client is sent as one datagram, and each datagram
+ * from the destination is packed into one DATAGRAM cell. Nothing is queued, acknowledged or sent again:
+ * a datagram the destination refuses is dropped, and datagrams arriving faster than the chain takes
+ * them are dropped by the UDP socket. The stream ends with an END cell from either side, or with its chain.
+ */
+class ExitDatagram implements Runnable{
+    private final OnionNode server;
+    private final NodeThread node;
+    private final int id;
+    private final Address address;
+    private volatile DatagramChannel channel;
+    private boolean closed = false;
+
+    /**
+     * Make a datagram stream, connected when ran in a thread of its own.
+     * @param server the exit node
+     * @param node the chain the stream was opened on
+     * @param id the id of the stream on the chain
+     * @param address the IP-address or hostname and port of the destination
+     */
+    ExitDatagram(OnionNode server, NodeThread node, int id, Address address){
+        this.server = server;
+        this.node = node;
+        this.id = id;
+        this.address = address;
+    }
+
+    @Override
+    public void run() {
+        try {
+            InetAddress inetAddress = address.isUnresolved() ? server.resolve(address.hostname) : address.address;
+            DatagramChannel opened = DatagramChannel.open();
+            synchronized (this){
+                channel = opened;
+                if(closed) opened.close();
+            }
+            opened.connect(new InetSocketAddress(inetAddress, address.port));
+            node.sendCell(RelayCell.CONNECTED, id, new byte[0], 0, 0);
+
+            //One byte more than the largest cell, so a datagram too large for any cell is never sent cut off
+            ByteBuffer buffer = ByteBuffer.allocate(Standards.MAXCELLSIZE - RelayCell.HEADERSIZE + 1);
+            while(true){
+                buffer.clear();
+                try {
+                    opened.read(buffer);
+                } catch (PortUnreachableException e) {
+                    //The destination refused an earlier datagram
+                    continue;
+                }
+                //Datagrams are not split, one larger than the cells of the chain is dropped
+                if(buffer.position() <= node.getPayloadSize()){
+                    node.sendDatagram(id, buffer.array(), 0, buffer.position());
+                }
+            }
+        } catch (IOException | BadPaddingException | IllegalBlockSizeException ignored) {
+            //Closed, or the destination could not be resolved
+        }
+
+        boolean ended;
+        synchronized (this){
+            ended = closed;
+        }
+        close();
+        if(!ended){
+            try {
+                node.sendCell(RelayCell.END, id, new byte[0], 0, 0);
+            } catch (IOException | BadPaddingException | IllegalBlockSizeException ignored) {
+                //The chain has closed
+            }
+        }
+    }
+
+    /**
+     * Send a datagram from the client to the destination, dropping it if that fails.
+     * @param bytes the payload of a DATAGRAM cell
+     */
+    void write(byte[] bytes){
+        DatagramChannel current = channel;
+        if(current == null || !current.isConnected()) return;
+        try {
+            current.write(ByteBuffer.wrap(bytes));
+        } catch (IOException ignored) {
+            //Lost, like any datagram
+        }
+    }
+
+    /**
+     * Close the stream, after an END cell from the client or when its chain closes.
+     */
+    void close(){
+        DatagramChannel current;
+        synchronized (this){
+            if(closed) return;
+            closed = true;
+            current = channel;
+        }
+        node.removeDatagram(id);
+        if(current != null){
+            try {
+                current.close();
+            }catch (IOException ignored){}
+        }
+    }
+}
+
+/**
+ * The ExitStream class is a single connection from an exit node to a destination. It resolves the
+ * hostname if the client sent one, connects, answers with a CONNECTED cell and then packs whatever
+ * the destination sends into DATA cells for the client. When the destination stops sending an END
+ * cell is sent, and the stream is closed once the client has sent END as well. If the hostname can
+ * not be resolved or the connection fails, only END is sent.
+ *
+ * Data from the client is queued and written to the destination by a thread of its own, so a slow
+ * destination does not hold up the other streams of the chain.
+ *
+ * Connections to pooled destinations are taken from the pool of the OnionNode when possible. Only
+ * the client knows where a response ends, so a pooled connection is given back to the pool when the
+ * client ends the stream with an END cell saying it has the whole response, and the queue is written.
+ * If the destination sends anything after that, the connection is closed instead. A client that
+ * only half-closes the stream gets the rest of the response like on any other stream.
+ *
+ * A resumable stream sends a random token in its CONNECTED cell, and keeps every DATA cell it sends
+ * until the client has acknowledged it. When its chain breaks, sending waits until the client moves
+ * the stream to a new chain with a RESUME cell. The stream then answers with CONNECTED holding the
+ * token and the number of bytes it has recieved, and sends the kept cells the client is missing.
+ *
+ * A client asking for compression gets a last byte in the CONNECTED cell telling if the stream is
+ * compressed. Data from the client is then decompressed when written to the destination, a chunk of
+ * {@link Standards#INFLATECHUNK} bytes at a time so a cell that expands a lot waits for the destination
+ * instead of filling memory, and data from the destination compressed before it is packed into DATA cells. Kept cells and counted bytes
+ * are compressed data, so a resumed stream continues the same compressed stream.
+ */
+class ExitStream implements Runnable{
+    private final OnionNode server;
+    private final Address address;
+    private final byte[] token;
+    private final boolean compressionAsked;
+    private final Compressor compressor;
+    private final Decompressor decompressor;
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private final ArrayDeque<Long> queueTimes = new ArrayDeque<>();
+    private final ArrayDeque<NodeThread> queueOwners = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> retained = new ArrayDeque<>();
+    private final Object sending = new Object();
+    private volatile NodeThread node;
+    private volatile int id;
+    private NodeThread takenFrom;
+    private long retainedFrom = 0;
+    private long received = 0;
+    private long detachedAt = 0;
+    private Socket socket;
+    private boolean inputEnded = false;
+    private boolean outputEnded = false;
+    private boolean endReceived = false;
+    private boolean releaseAsked = false;
+    private boolean keepAlive = false;
+    private boolean closed = false;
+    private boolean pooled = false;
+
+    /**
+     * Create a new stream to be ran in a seperate thread.
+     * @param server the OnionNode the stream is on
+     * @param node the chain this stream belongs to
+     * @param id the id of the stream, chosen by the client
+     * @param address the destination to connect to
+     * @param resumable {@code true} if the client can move the stream to a new chain
+     * @param compress {@code true} if the client asks for the stream to be compressed
+     */
+    ExitStream(OnionNode server, NodeThread node, int id, Address address, boolean resumable, boolean compress){
+        this.server = server;
+        this.node = node;
+        this.id = id;
+        this.address = address;
+        this.compressionAsked = compress;
+        if(compress && server.allowsCompression()){
+            compressor = new Compressor();
+            decompressor = new Decompressor();
+        }else{
+            compressor = null;
+            decompressor = null;
+        }
+        if(resumable){
+            token = new byte[Standards.TOKENLENGTH];
+            new SecureRandom().nextBytes(token);
+            server.addResumable(token, this);
+        }else{
+            token = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[Standards.MAXCELLSIZE - RelayCell.HEADERSIZE];
+        Address destination = null;
+        Socket connected = null;
+        boolean reusable = false;
+        try {
+            InetAddress inetAddress = address.isUnresolved() ? server.resolve(address.hostname) : address.address;
+            destination = new Address(inetAddress, address.port);
+            pooled = server.isPooled(destination);
+
+            //An idle pooled connection saves waiting for a new one
+            connected = pooled ? server.takeConnection(destination) : null;
+            if(connected == null){
+                connected = new Socket(inetAddress, address.port);
+            }
+            if(pooled){
+                connected.setSoTimeout(Standards.POOLPOLL);
+            }
+            synchronized (this){
+                socket = connected;
+                if(closed) connected.close();
+            }
+            byte[] payload = token == null ? new byte[0] : token;
+            if(compressionAsked){
+                payload = Arrays.copyOf(payload, payload.length + 1);
+                payload[payload.length-1] = (byte) (compressor != null ? 1 : 0);
+            }
+            attached().sendCell(RelayCell.CONNECTED, id, payload, 0, payload.length);
+            Socket writing = connected;
+            new Thread(() -> writeQueued(writing)).start();
+
+            reusable = readInput(connected, buffer);
+        } catch (IOException | BadPaddingException | IllegalBlockSizeException ignored) {
+            //The destination could not be reached or closed abruptly, the client is told by END
+        }
+        if(compressor != null){
+            compressor.end();
+        }
+
+        endInput();
+
+        boolean release;
+        synchronized (this){
+            release = reusable && !closed;
+            if(release){
+                //Closing the stream leaves the connection open
+                socket = null;
+            }
+            closeIfDone();
+        }
+
+        if(release){
+            server.releaseConnection(destination, connected);
+        }else if(connected == null){
+            //Without a connection nothing queued will ever be written
+            endOutput(false);
+        }
+    }
+
+    /**
+     * Get the id of the stream on the chain it is on.
+     * @return the id
+     */
+    int getId(){
+        return id;
+    }
+
+    /**
+     * Queue data from the client for the destination.
+     * @param from the chain the data came on
+     * @param bytes the payload of a DATA cell
+     * @return {@code false} if the destination will not recieve more data, and the bytes are thrown away
+     */
+    boolean write(NodeThread from, byte[] bytes){
+        synchronized (this){
+            if(closed || outputEnded || from != node) return false;
+
+            queue.add(bytes);
+            queueTimes.add(System.nanoTime());
+            queueOwners.add(from);
+            received += bytes.length;
+            notifyAll();
+        }
+        //Counted outside the lock, as going over the memory limit closes other streams
+        from.queue(bytes.length);
+        return true;
+    }
+
+    /**
+     * The client has sent END, so the destination will not recieve more data once the queue is written.
+     * @param release {@code true} if the client also has the whole response, so a pooled connection can be reused
+     */
+    synchronized void shutdownOutput(boolean release){
+        endReceived = true;
+        releaseAsked = release;
+        notifyAll();
+    }
+
+    /**
+     * Get when the oldest data in the queue was queued.
+     * @return the time in nanoseconds, or {@link Long#MAX_VALUE} if nothing is queued
+     */
+    synchronized long getOldestQueued(){
+        return queueTimes.isEmpty() ? Long.MAX_VALUE : queueTimes.peek();
+    }
+
+    /**
+     * The client has the oldest DATA cell sent on the chain, so it does not have to be kept anymore.
+     * @param from the chain the ACK came on
+     */
+    synchronized void delivered(NodeThread from){
+        if(from != node || retained.isEmpty()) return;
+
+        retainedFrom += retained.poll().length;
+    }
+
+    /**
+     * The chain of the stream has closed. A resumable stream waits for a new chain, any other is closed.
+     * @param from the chain that closed
+     * @param detach {@code false} if the stream should be closed even if it is resumable
+     */
+    void release(NodeThread from, boolean detach){
+        synchronized (this){
+            if(from != node) return;
+
+            if(detach && token != null && !closed){
+                node = null;
+                detachedAt = System.currentTimeMillis();
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Check if the stream has waited too long for a new chain.
+     * @param now the current time in milliseconds
+     * @return {@code true} if the stream should be closed
+     */
+    synchronized boolean isExpired(long now){
+        return node == null && !closed && now - detachedAt > Standards.RESUMETIME;
+    }
+
+    /**
+     * Move the stream to a new chain. The chain it was on is closed if it has not already, as the
+     * client has given up on it. Answering is done by a thread of its own, as resending the kept
+     * cells waits for ACKs that are read by the new chain.
+     * @param to the new chain
+     * @param newId the id of the stream on the new chain
+     * @param delivered the number of bytes the client has recieved on the stream
+     * @return {@code false} if the stream is closed
+     */
+    boolean resume(NodeThread to, int newId, long delivered){
+        NodeThread previous;
+        synchronized (this){
+            if(closed) return false;
+            previous = node;
+        }
+        if(previous != null && previous != to){
+            previous.close();
+        }
+
+        new Thread(() -> reattach(to, newId, delivered)).start();
+        return true;
+    }
+
+    synchronized void close(){
+        closed = true;
+        notifyAll();
+        clearQueue();
+
+        if(token != null){
+            server.removeResumable(token);
+        }
+        NodeThread current = node;
+        if(current != null){
+            current.removeStream(id);
+        }
+        if(socket != null){
+            try {
+                socket.close();
+            }catch (IOException ignored){}
+        }
+    }
+
+    /**
+     * Relay what the destination sends to the client, until the destination closes. A pooled
+     * stream also ends once the client has the whole response and its data is written.
+     * @param connected the connection to the destination
+     * @param buffer the buffer to read into
+     * @return {@code true} if the client ended a pooled stream, and the connection can be reused
+     */
+    private boolean readInput(Socket connected, byte[] buffer) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        InputStream input = connected.getInputStream();
+        while(true){
+            int length;
+            try {
+                //One cell of the chain at a time, compressed data is read in larger parts to fill its cells
+                NodeThread current = node;
+                length = input.read(buffer, 0, compressor != null ? buffer.length : current == null ? RelayCell.PAYLOADSIZE : current.getPayloadSize());
+            } catch (SocketTimeoutException e) {
+                //Only pooled connections time out, to check if the client is done
+                synchronized (this){
+                    if(keepAlive) return true;
+                    if(closed) return false;
+                }
+                continue;
+            }
+            if(length < 0) return false;
+            synchronized (this){
+                //More than the client took as the response, it would reach the next stream
+                if(releaseAsked) return false;
+            }
+
+            if(compressor != null){
+                //The buffer may grow while compressing, so it is fetched after
+                int compressed = compressor.compress(buffer, 0, length);
+                deliver(compressor.getBuffer(), compressed);
+            }else{
+                deliver(buffer, length);
+            }
+        }
+    }
+
+    /**
+     * Send data from the destination to the client. A resumable stream keeps the data, and waits
+     * for a new chain if the one it is on breaks.
+     * @param buffer the array holding the data
+     * @param length the length of the data
+     */
+    private void deliver(byte[] buffer, int length) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        synchronized (sending){
+            //Split if the stream was moved to a chain with smaller cells since the data was read
+            int offset = 0;
+            while(offset < length){
+                NodeThread current = node;
+                int size = Math.min(length - offset, current == null ? RelayCell.PAYLOADSIZE : current.getPayloadSize());
+                if(token != null){
+                    synchronized (this){
+                        retained.add(Arrays.copyOfRange(buffer, offset, offset + size));
+                    }
+                }
+
+                try {
+                    if(current == null) throw new IOException("The chain of the stream has closed");
+                    current.sendData(this, buffer, offset, size);
+                } catch (IOException e) {
+                    if(token == null) throw e;
+                    //The kept data is sent again when the stream is moved
+                    awaitResume(current);
+                }
+                offset += size;
+            }
+        }
+    }
+
+    /**
+     * Wait until the stream is moved to another chain, must be called holding the sending lock.
+     * @param broken the chain that broke, or {@code null} if the stream has none
+     * @throws IOException if the stream is closed before it is moved
+     */
+    private void awaitResume(NodeThread broken) throws IOException {
+        while(node == null || node == broken){
+            synchronized (this){
+                if(closed) throw new IOException("The stream was not resumed");
+            }
+            try {
+                sending.wait(Standards.RESUMEPOLL);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * The destination will not send more data, so END is sent to the client. If the stream has no
+     * chain, END is sent when it is moved to a new one.
+     */
+    private void endInput(){
+        synchronized (sending){
+            synchronized (this){
+                inputEnded = true;
+            }
+            NodeThread current = node;
+            if(current == null) return;
+            try {
+                current.sendCell(RelayCell.END, id, new byte[0], 0, 0);
+            } catch (IOException | BadPaddingException | IllegalBlockSizeException ignored) {}
+        }
+    }
+
+    /**
+     * Answer the RESUME cell of the client on the new chain, and send what the client is missing.
+     * @param to the new chain
+     * @param newId the id of the stream on the new chain
+     * @param delivered the number of bytes the client has recieved on the stream
+     */
+    private void reattach(NodeThread to, int newId, long delivered){
+        synchronized (sending){
+            ArrayList<byte[]> missing;
+            ByteBuffer payload = ByteBuffer.allocate(Standards.TOKENLENGTH + 8);
+            synchronized (this){
+                if(closed) return;
+
+                node = to;
+                id = newId;
+                while(!retained.isEmpty() && retainedFrom + retained.peek().length <= delivered){
+                    retainedFrom += retained.poll().length;
+                }
+                //Kept one cell each, so the new chain may need them split
+                missing = Standards.split(retained, to.getPayloadSize());
+                retained.clear();
+                retained.addAll(missing);
+                payload.put(token).putLong(received);
+            }
+
+            try {
+                to.sendCell(RelayCell.CONNECTED, newId, payload.array(), 0, payload.capacity());
+                for(byte[] bytes : missing){
+                    to.sendData(this, bytes, 0, bytes.length);
+                }
+                if(inputEnded){
+                    to.sendCell(RelayCell.END, newId, new byte[0], 0, 0);
+                }
+            } catch (IOException | BadPaddingException | IllegalBlockSizeException ignored) {
+                //The new chain broke as well, the client may move the stream again
+            }
+            sending.notifyAll();
+        }
+        synchronized (this){
+            closeIfDone();
+        }
+    }
+
+    /**
+     * Write queued data to the destination and acknowledge it, until the client has sent END
+     * and the queue is empty.
+     * @param connected the connection to the destination
+     */
+    private void writeQueued(Socket connected){
+        boolean clean = false;
+        try {
+            OutputStream output = connected.getOutputStream();
+            byte[] bytes;
+            while((bytes = take()) != null){
+                if(decompressor != null){
+                    //Written a chunk at a time, so a cell that expands a lot is held back by the destination
+                    decompressor.setInput(bytes, 0, bytes.length);
+                    int length;
+                    while((length = decompressor.inflate()) > 0){
+                        output.write(decompressor.getBuffer(), 0, length);
+                    }
+                }else{
+                    output.write(bytes);
+                }
+                acknowledge(takenFrom);
+            }
+            clean = true;
+        } catch (IOException | BadPaddingException | IllegalBlockSizeException | DataFormatException ignored) {
+            //The destination or the client closed, what is left in the queue is thrown away
+        }
+        if(decompressor != null){
+            decompressor.end();
+        }
+        endOutput(clean);
+    }
+
+    /**
+     * Acknowledge a DATA cell on the chain it came on. The chain of a resumable stream may have
+     * broken, the client then learns what was recieved when the stream is moved.
+     * @param owner the chain the DATA cell came on
+     */
+    private void acknowledge(NodeThread owner) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        try {
+            owner.acknowledgeData();
+        } catch (IOException e) {
+            if(token == null) throw e;
+        }
+    }
+
+    /**
+     * Wait for data in the queue.
+     * @return the oldest queued data, or {@code null} once the queue is empty after END or the stream is closed
+     */
+    private synchronized byte[] take(){
+        while(queue.isEmpty() && !endReceived && !closed){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        if(closed || queue.isEmpty()) return null;
+
+        byte[] bytes = queue.poll();
+        queueTimes.poll();
+        takenFrom = queueOwners.poll();
+        takenFrom.dequeue(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Stop writing to the destination, throwing away and acknowledging whatever is still queued.
+     * @param clean {@code true} if the client sent END and everything was written
+     */
+    private void endOutput(boolean clean){
+        ArrayList<NodeThread> owners;
+        synchronized (this){
+            outputEnded = true;
+            owners = clearQueue();
+
+            if(inputEnded){
+                closeIfDone();
+            }else if(pooled && clean && releaseAsked && !closed){
+                //Keep the connection open, the reader gives it back to the pool
+                keepAlive = true;
+            }else if(socket != null){
+                try {
+                    socket.shutdownOutput();
+                }catch (IOException ignored){}
+            }
+        }
+
+        //The client still counts the cells against its window
+        try {
+            for(NodeThread owner : owners){
+                acknowledge(owner);
+            }
+        } catch (IOException | BadPaddingException | IllegalBlockSizeException ignored) {}
+    }
+
+    /**
+     * Close the stream once both directions have ended. A resumable stream without a chain is kept,
+     * so the client can still get the END cell when it moves the stream.
+     */
+    private synchronized void closeIfDone(){
+        if(inputEnded && outputEnded && (token == null || node != null)){
+            close();
+        }
+    }
+
+    /**
+     * Throw away the queue.
+     * @return the chains the thrown away cells came on, one for each cell
+     */
+    private synchronized ArrayList<NodeThread> clearQueue(){
+        ArrayList<NodeThread> owners = new ArrayList<>(queueOwners);
+        for(byte[] queued : queue){
+            queueOwners.poll().dequeue(queued.length);
+        }
+        queue.clear();
+        queueTimes.clear();
+        queueOwners.clear();
+
+        return owners;
+    }
+
+    /**
+     * Get the chain the stream is on.
+     * @return the chain
+     * @throws IOException if the chain has closed
+     */
+    private NodeThread attached() throws IOException {
+        NodeThread current = node;
+        if(current == null) throw new IOException("The chain of the stream has closed");
+        return current;
     }
 }
@@ -0,0 +1,278 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.ServiceDescriptor;
+import markussp.onion.util.Crypto;
+import markussp.onion.util.Standards;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The OnionService class is a hidden service: a server reached through the onion network by its
+ * hostname, without clients learning where it runs or the service learning who they are. The
+ * hostname is made from the signing key of the service, so keeping the keys keeps the hostname.
+ *
+ * When started, the service builds chains to {@link Standards#INTROPOINTS} nodes and makes them its
+ * introduction points, and publishes a {@link ServiceDescriptor} naming them to every Distributor.
+ * A client connecting to the hostname sends an introduction through one of them, telling the service
+ * which node to meet it at. The service builds a chain to that rendezvous node, and the node joins it
+ * with the chain of the client. The stream is then encrypted end to end, and each connection is an
+ * {@link OnionSocket} returned by {@link #accept()}.
+ *
+ * The chains to the introduction points are kept open and reused for every introduction. A chain that
+ * breaks is replaced, and the descriptor published again, within {@link Standards#SERVICERETRY}
+ * milliseconds. The descriptor is also published every {@link Standards#REPUBLISHINTERVAL} milliseconds,
+ * as Distributors forget it after {@link Standards#DESCRIPTORLIFETIME}.
+ */
+public class OnionService implements Closeable {
+    private final Address[] distributors;
+    private final KeyPair signingKeys;
+    private final KeyPair introKeys;
+    private final byte[] id;
+    private final ArrayList<OnionSocket> introPoints = new ArrayList<>();
+    private final LinkedBlockingQueue<OnionSocket> accepted = new LinkedBlockingQueue<>();
+    private Thread maintenance;
+    private long version = 0;
+    private volatile boolean running = false;
+
+    /**
+     * Make a new hidden service with new keys, and so a new hostname.
+     * @param distributors the addresses of the Distributors of the network
+     */
+    public OnionService(Address[] distributors){
+        this(distributors, Crypto.generateSigningKeyPair(), Crypto.generateKeyPair());
+    }
+
+    /**
+     * Make a hidden service with keys it has used before, keeping its hostname.
+     * @param distributors the addresses of the Distributors of the network
+     * @param signingKeys the P-256 key pair the descriptor is signed with, from {@link Crypto#generateSigningKeyPair()}
+     * @param introKeys the X25519 key pair introductions are encrypted with, from {@link Crypto#generateKeyPair()}
+     */
+    public OnionService(Address[] distributors, KeyPair signingKeys, KeyPair introKeys){
+        this.distributors = distributors;
+        this.signingKeys = signingKeys;
+        this.introKeys = introKeys;
+        this.id = Standards.serviceId(signingKeys.getPublic().getEncoded());
+    }
+
+    /**
+     * Get the hostname clients connect to. The port they give is not used, every connection is
+     * returned by {@link #accept()}.
+     * @return the hostname, ending in {@link Standards#ONIONSUFFIX}
+     */
+    public String getHostname(){
+        return Standards.onionHostname(id);
+    }
+
+    /**
+     * Build the chains to the introduction points and publish the descriptor.
+     * @throws IOException if no introduction point could be set up, or no Distributor took the descriptor
+     * @throws GeneralSecurityException
+     */
+    public void start() throws IOException, GeneralSecurityException {
+        running = true;
+        openIntroPoints();
+        synchronized (introPoints){
+            if(introPoints.isEmpty()){
+                running = false;
+                throw new ConnectException("No introduction points could be set up");
+            }
+        }
+        publish();
+
+        maintenance = new Thread(this::maintain);
+        maintenance.start();
+    }
+
+    /**
+     * Wait for a client to connect.
+     * @return the socket of the connection, read and written like any other OnionSocket
+     * @throws IOException if the service is closed while waiting
+     */
+    public OnionSocket accept() throws IOException {
+        try {
+            while(running){
+                OnionSocket socket = accepted.poll(Standards.SERVICEPOLL, TimeUnit.MILLISECONDS);
+                if(socket != null) return socket;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while accepting");
+        }
+        throw new SocketException("The service is closed");
+    }
+
+    /**
+     * Stop taking introductions, closing the chains to the introduction points. Connections already
+     * accepted stay open. The descriptor is forgotten by the Distributors once it expires.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if(maintenance != null) maintenance.interrupt();
+        synchronized (introPoints){
+            for(OnionSocket introPoint : introPoints){
+                introPoint.close();
+            }
+            introPoints.clear();
+        }
+        OnionSocket socket;
+        while((socket = accepted.poll()) != null){
+            socket.close();
+        }
+    }
+
+    /**
+     * Replace broken introduction points and publish the descriptor when they change, or every
+     * {@link Standards#REPUBLISHINTERVAL}, until the service is closed.
+     */
+    private void maintain(){
+        long published = System.currentTimeMillis();
+        while(running){
+            try {
+                synchronized (introPoints){
+                    introPoints.wait(introPoints.size() < Standards.INTROPOINTS ? Standards.SERVICERETRY : Standards.REPUBLISHINTERVAL);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if(openIntroPoints() || System.currentTimeMillis() - published >= Standards.REPUBLISHINTERVAL){
+                    publish();
+                    published = System.currentTimeMillis();
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                //The network may be down for a while, the next round tries again
+            }
+        }
+    }
+
+    /**
+     * Build chains to new introduction points until there are {@link Standards#INTROPOINTS}, each at a
+     * different node. Each chain gets a thread waiting for introductions.
+     * @return {@code true} if an introduction point was added
+     */
+    private boolean openIntroPoints(){
+        boolean added = false;
+        for(int i=0; i<Standards.INTROPOINTS << 1 && running; i++){
+            synchronized (introPoints){
+                if(introPoints.size() >= Standards.INTROPOINTS) break;
+            }
+
+            OnionSocket introPoint;
+            try {
+                introPoint = OnionSocket.introductionPoint(distributors, signingKeys);
+            } catch (IOException | GeneralSecurityException e) {
+                continue;
+            }
+            synchronized (introPoints){
+                boolean taken = false;
+                for(OnionSocket other : introPoints){
+                    taken |= other.getExit()[0].equals(introPoint.getExit()[0]);
+                }
+                if(taken || !running){
+                    closeQuietly(introPoint);
+                    continue;
+                }
+                introPoints.add(introPoint);
+            }
+            added = true;
+            new Thread(() -> introductions(introPoint)).start();
+        }
+        return added;
+    }
+
+    /**
+     * Answer the introductions coming on the chain to an introduction point, until it breaks.
+     * Each is answered in a thread of its own, as building the chain to the rendezvous node takes a while.
+     * @param introPoint the chain to the introduction point
+     */
+    private void introductions(OnionSocket introPoint){
+        try {
+            while(running){
+                byte[] introduction = introPoint.readIntroduction();
+                new Thread(() -> answer(introduction)).start();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            //Replaced by the maintenance thread, unless the service is closed
+        }
+        closeQuietly(introPoint);
+        synchronized (introPoints){
+            introPoints.remove(introPoint);
+            introPoints.notifyAll();
+        }
+    }
+
+    /**
+     * Meet the client of an introduction at its rendezvous node, and make the connection ready to be accepted.
+     * @param introduction the introduction
+     */
+    private void answer(byte[] introduction){
+        try {
+            OnionSocket socket = OnionSocket.answerIntroduction(distributors, introKeys, introduction);
+            if(running){
+                accepted.add(socket);
+            }else{
+                socket.close();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            //A client that gave up, or an introduction that was not encrypted for this service
+        }
+    }
+
+    /**
+     * Publish a new descriptor naming the current introduction points to every Distributor, as the
+     * Distributors do not share descriptors.
+     * @throws IOException if no Distributor took the descriptor
+     */
+    private void publish() throws IOException, GeneralSecurityException {
+        ServiceDescriptor descriptor;
+        synchronized (introPoints){
+            Address[][] nodes = new Address[introPoints.size()][];
+            for(int i=0; i<nodes.length; i++){
+                nodes[i] = introPoints.get(i).getExit();
+            }
+            version = Math.max(version + 1, System.currentTimeMillis());
+            descriptor = new ServiceDescriptor(signingKeys.getPublic().getEncoded(), introKeys.getPublic().getEncoded(), version, nodes, null);
+        }
+        Standards.signDescriptor(descriptor, signingKeys.getPrivate());
+        ByteBuffer message = ByteBuffer.allocate(1 + 4 + Standards.DESCRIPTORSIZE);
+        message.put((byte) 4).putInt(0);
+        Standards.writeDescriptor(message, descriptor);
+        message.putInt(1, message.position() - 5);
+
+        IOException error = new ConnectException("No Distributor took the descriptor");
+        boolean published = false;
+        for(Address distributor : distributors){
+            try (Socket socket = Standards.connect(distributor, Standards.DISTTIMEOUT)) {
+                OutputStream output = socket.getOutputStream();
+                output.write(message.array(), 0, message.position());
+                InputStream input = socket.getInputStream();
+                published |= input.read() == 1;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if(!published) throw error;
+    }
+
+    private static void closeQuietly(OnionSocket socket){
+        try {
+            socket.close();
+        }catch (IOException ignored){}
+    }
+}
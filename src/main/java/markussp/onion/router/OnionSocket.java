@@ -1,25 +1,43 @@
 package markussp.onion.router;
 
 import markussp.onion.model.Address;
+import markussp.onion.model.RelayCell;
+import markussp.onion.model.ServiceDescriptor;
 import markussp.onion.model.SessionKey;
+import markussp.onion.util.Compressor;
+import markussp.onion.util.CongestionWindow;
 import markussp.onion.util.Crypto;
+import markussp.onion.util.Decompressor;
+import markussp.onion.util.DescriptorCache;
 import markussp.onion.util.Standards;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.DataFormatException;
 
 /**
  * The OnionSocket class provides secure communication by using a onion network. If a network is
@@ -32,12 +50,70 @@ import java.util.Arrays;
  * <li> Run atleast three instances of {@link OnionNode}</li>
  * </ul>
  * Read the documentation and make sure to specify the correct addresses in each class.
+ *
+ * The stream is resumable: if a node in the chain goes down, or the chain does not answer a
+ * KEEPALIVE cell within {@link Standards#CHAINTIMEOUT} milliseconds, a new chain to the same exit
+ * node is built and the stream moved to it. Data the exit node has not acknowledged is kept and
+ * sent again, so neither side loses or repeats any bytes. Only if the exit node itself is gone,
+ * or {@link Standards#REBUILDS} new chains fail, does the socket throw.
+ *
+ * The first node of every chain is one of a few guard nodes shared by all OnionSockets in the JVM,
+ * reached over a {@link CircuitLink} that stays open between chains.
+ *
+ * An OnionSocket made by {@link #datagram(Address[], Address, int) datagram} carries UDP datagrams
+ * instead of a byte stream. Each datagram is one DATAGRAM cell, which is not acknowledged, not held
+ * back by the congestion window and not sent again, and the exit node sends it from a UDP socket of
+ * its own. Such a stream is not resumable, it fails with its chain.
+ *
+ * A destination with the hostname of a hidden service, see {@link OnionService}, is reached without
+ * leaving the onion network. The descriptor of the service is fetched from a Distributor, and kept for
+ * {@link Standards#SERVICECACHETTL} milliseconds so the next connection to the service does not wait
+ * for it. The chain ends at a rendezvous node, and an introduction sent through one of the introduction
+ * points of the service tells it to build a chain to the same node, which joins the two. Both ends then
+ * add a layer of encryption of their own, so the rendezvous node can not read the stream. Such a
+ * stream is not resumable and not compressed, and its cells are {@link Standards#PACKETSIZE} bytes.
  */
 public class OnionSocket {
+    private static final int STREAM = 1;                    //id of the only stream in this chain
+    private static final DescriptorCache descriptors = new DescriptorCache(Standards.SERVICECACHESIZE, Standards.SERVICECACHETTL);
+    private static final SecureRandom random = new SecureRandom();
+    private final Address[] distributors;
+    private final Address destination;
+    private final boolean datagram;
+    private Address[] exit;
+    private Address[][] chain;
+    private byte[] token;
     private SessionKey[] keys = new SessionKey[0];
-    private Socket socket;
+    private SessionKey endKey;
+    private CircuitLink.Circuit circuit;
     private InputStream input;
     private OutputStream output;
+    private byte[] pending = new byte[0];
+    private int pendingOffset = 0;
+    private boolean ended = false;
+    private final int maxCellSize;
+    private Compressor compressor;
+    private Decompressor decompressor;
+    private int sendSize = Standards.PACKETSIZE;
+    private int readSize = Standards.PACKETSIZE;
+    private byte[] packet = new byte[Standards.PACKETSIZE];
+    private int packetOffset = 0;
+    private CongestionWindow window = new CongestionWindow();
+    private final ArrayDeque<RelayCell> inbound = new ArrayDeque<>();
+    private int staleInbound = 0;
+    private long received = 0;
+    private long receivedBytes = 0;
+    private final ArrayDeque<byte[]> unacked = new ArrayDeque<>();
+    private long unackedFrom = 0;
+    private boolean outputShutdown = false;
+    private boolean closed = false;
+    private int timeout = 0;
+    private long lastReceived;
+    private long lastKeepalive;
+    private long rekeyBytes = Standards.REKEYBYTES;
+    private long rekeyTime = Standards.REKEYTIME;
+    private long keyedBytes = 0;
+    private long keyedAt = -1;
 
     /**
      * Get an instance of OnionSocket using the standard NodeDistribution address.
@@ -54,6 +130,22 @@ public class OnionSocket {
         this(InetAddress.getByName(Standards.DIST), Standards.DISTPORT, address, port);
     }
 
+    /**
+     * Get an instance of OnionSocket using the standard NodeDistribution address. The hostname
+     * is resolved by the last node in the chain, not locally.
+     * @param host the hostname to connect to
+     * @param port the portnumber to connect to
+     * @throws IOException
+     * @throws InvalidAlgorithmParameterException
+     * @throws IllegalBlockSizeException
+     * @throws InvalidKeySpecException
+     * @throws BadPaddingException
+     * @throws InvalidKeyException
+     */
+    public OnionSocket(String host, int port) throws IOException, InvalidAlgorithmParameterException, IllegalBlockSizeException, InvalidKeySpecException, BadPaddingException, InvalidKeyException {
+        this(InetAddress.getByName(Standards.DIST), Standards.DISTPORT, new Address(host, port));
+    }
+
     /**
      * Get an instance of OnionSocket with a specified NodeDistribution address.
      * @param distAddress the IP-addres of the NodeDistribution server
@@ -68,93 +160,1142 @@ public class OnionSocket {
      * @throws BadPaddingException
      */
     public OnionSocket(InetAddress distAddress, int distPort, InetAddress address, int port) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        //Request nodes from Distributor
-        socket = new Socket(distAddress, distPort);
-        input = socket.getInputStream();
-        output = socket.getOutputStream();
-        output.write(2);
+        this(distAddress, distPort, new Address(address, port));
+    }
+
+    /**
+     * Get an instance of OnionSocket with a specified NodeDistribution address.
+     * @param distAddress the IP-addres of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     * @param destination the address to connect to, a hostname is resolved by the last node in the chain
+     * @throws IOException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public OnionSocket(InetAddress distAddress, int distPort, Address destination) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        this(new Address[]{new Address(distAddress, distPort)}, destination);
+    }
+
+    /**
+     * Get an instance of OnionSocket with several Distributors of the same network. The Distributors
+     * are tried from a random one, moving on to the next if one does not answer within
+     * {@link Standards#DISTTIMEOUT} milliseconds.
+     * @param distributors the addresses of the Distributors
+     * @param destination the address to connect to, a hostname is resolved by the last node in the chain
+     * @throws IOException if no Distributor answered, or the chain could not be set up
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public OnionSocket(Address[] distributors, Address destination) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        this(distributors, destination, Standards.PACKETSIZE);
+    }
+
+    /**
+     * Get an instance of OnionSocket whose chain uses larger cells, for bulk transfers. Each cell
+     * costs the same to encrypt and relay whatever its size, so fewer cells carry more data per core.
+     * Small cells of {@link Standards#PACKETSIZE} bytes are better for interactive traffic, as a cell is
+     * sent whole. The chain uses the largest size that every node in it takes, up to this one.
+     * @param distributors the addresses of the Distributors
+     * @param destination the address to connect to, a hostname is resolved by the last node in the chain
+     * @param cellSize the largest cell size, rounded down to a multiple of {@link Standards#PACKETSIZE}
+     * and at most {@link Standards#MAXCELLSIZE}
+     * @throws IOException if no Distributor answered, or the chain could not be set up
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public OnionSocket(Address[] distributors, Address destination, int cellSize) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        this(distributors, destination, cellSize, false);
+    }
+
+    /**
+     * Get an instance of OnionSocket that can compress the stream, for compressible data like JSON
+     * or logs. Data is compressed before it is split into cells and decompressed after the cells are
+     * decrypted, so fewer cells are encrypted and relayed. The exit node decompresses what it writes
+     * to the destination and compresses what it reads, so the destination sees the data unchanged.
+     * The exit node may refuse, and the stream is then not compressed.
+     * @param distributors the addresses of the Distributors
+     * @param destination the address to connect to, a hostname is resolved by the last node in the chain
+     * @param cellSize the largest cell size, see {@link #OnionSocket(Address[], Address, int)}
+     * @param compress {@code true} to ask the exit node to compress the stream
+     * @throws IOException if no Distributor answered, or the chain could not be set up
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public OnionSocket(Address[] distributors, Address destination, int cellSize, boolean compress) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        this(distributors, destination, cellSize, compress, false);
+    }
 
-        //Read answer
-        SessionKey sessionKey = initKeyExchange();
-        byte[] ciphertext = read();
-        byte[] message = sessionKey.decrypt(ciphertext);
-        socket.close();
+    private OnionSocket(Address[] distributors, Address destination, int cellSize, boolean compress, boolean datagram) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        this.distributors = distributors;
+        this.destination = destination;
+        this.datagram = datagram;
+        byte[] service = Standards.readOnionHostname(destination);
+        this.maxCellSize = service == null ? Standards.cellSize(cellSize) : Standards.PACKETSIZE;
+        if(service != null){
+            if(datagram) throw new IllegalArgumentException("Hidden services take streams only");
+            connectService(service);
+        }else{
+            connect(compress);
+        }
+        lastReceived = System.currentTimeMillis();
+        keyedAt = lastReceived;
+        setSoTimeout(0);
+    }
 
-        //Read first node
-        InetAddress a = InetAddress.getByAddress(Arrays.copyOf(message, 4));
-        int p = ByteBuffer.wrap(Arrays.copyOfRange(message, 4, 8)).getInt();
+    /**
+     * Make a chain without a stream, for the introductions and rendezvous of hidden services.
+     * @param distributors the addresses of the Distributors
+     * @param last the addresses of the last node in the chain, {@code null} for any node
+     */
+    private OnionSocket(Address[] distributors, Address[] last) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        this.distributors = distributors;
+        this.destination = null;
+        this.datagram = false;
+        this.maxCellSize = Standards.PACKETSIZE;
+        Address[][] nodes = last == null ? requestNodes() : chainTo(last);
+        exit = nodes[nodes.length-1];
+        buildChain(nodes);
+        lastReceived = System.currentTimeMillis();
+        keyedAt = lastReceived;
+        setSoTimeout(Standards.RENDEZVOUSTIMEOUT);
+    }
 
-        //Connect to first node
-        socket = new Socket(a, p);
-        input = socket.getInputStream();
-        output = socket.getOutputStream();
+    /**
+     * Build a chain and open a stream to the destination, see {@link #OnionSocket(Address[], Address, int, boolean)}.
+     * @param compress {@code true} to ask the exit node to compress the stream
+     */
+    private void connect(boolean compress) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        Address[][] nodes = requestNodes();
+        exit = nodes[nodes.length-1];
+        buildChain(nodes);
 
-        //Link the next two nodes
-        for(int i=1; i<3; i++){
-            a = InetAddress.getByAddress(Arrays.copyOfRange(message, 8*i, 8*i + 4));
-            p = ByteBuffer.wrap(Arrays.copyOfRange(message, 8*i + 4, 8*(i+1))).getInt();
+        //Open a resumable stream to the destination address, possibly compressed, or a datagram stream
+        Events.ChainBuild event = new Events.ChainBuild("stream", Standards.NODES - 1);
+        event.begin();
+        ByteBuffer begin = ByteBuffer.allocate(RelayCell.PAYLOADSIZE);
+        Standards.writeAddress(begin, destination);
+        if(!datagram){
+            begin.put((byte) 1);
+            if(compress){
+                begin.put((byte) 1);
+            }
+        }
+        sendPacket(RelayCell.toPacket(datagram ? RelayCell.BEGINDATAGRAM : RelayCell.BEGIN, STREAM, begin.array(), 0, begin.position()));
+        RelayCell cell;
+        while((cell = RelayCell.fromPacket(readPacket())).command != RelayCell.CONNECTED){
+            if(cell.command == RelayCell.END){
+                circuit.close();
+                throw new ConnectException("The exit node could not connect to " + destination);
+            }
+        }
 
-            nodeHandshake(new Address(a, p));
+        //Asking for compression is answered by a last byte, 1 if the exit node compresses
+        int tokenLength = cell.payload.length;
+        if(compress && tokenLength > 0){
+            tokenLength--;
+            if(cell.payload[tokenLength] == 1){
+                compressor = new Compressor();
+                decompressor = new Decompressor();
+            }
         }
 
-        //Connect to destination address
-        nodeHandshake(new Address(address, port));
+        //An exit node not supporting resumable streams sends no token
+        token = tokenLength == Standards.TOKENLENGTH ? Arrays.copyOf(cell.payload, tokenLength) : null;
+        event.node = destination.toString();
+        event.commit();
     }
 
     /**
-     * Send a message through the connected onion routers.
-     * Will pad the array with trailing zeroes to ensure the standard packet size
-     * of 512. Will encrypt with {@link SessionKey}s if this socket has some.
-     * @param bytes the message to send, with a maximum size of 512
+     * Reach a hidden service through a rendezvous node. A descriptor from the cache that no
+     * introduction point takes is fetched again, as the service may have moved since.
+     * @param id the id of the service
+     */
+    private void connectService(byte[] id) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        boolean connected = false;
+        try {
+            try {
+                rendezvous(descriptors.get(id, this::fetchDescriptor), id);
+            } catch (ConnectException e) {
+                if(circuit != null) circuit.close();
+                descriptors.invalidate(id);
+                rendezvous(descriptors.get(id, this::fetchDescriptor), id);
+            }
+            connected = true;
+        } finally {
+            if(!connected && circuit != null) circuit.close();
+        }
+    }
+
+    /**
+     * Build a chain to a rendezvous node, introduce this client to the service and wait for it to
+     * join the chain. The keys of the stream are derived from the key exchange in the introduction,
+     * with the introduction key of the service, and the one in the answer, with a new key of the service.
+     * @param descriptor the descriptor of the service
+     * @param id the id of the service
+     * @throws ConnectException if no introduction point took the introduction
+     */
+    private void rendezvous(ServiceDescriptor descriptor, byte[] id) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        Events.ChainBuild event = new Events.ChainBuild("rendezvous", Standards.NODES - 1);
+        event.begin();
+        Address[][] nodes = requestNodes();
+        exit = nodes[nodes.length-1];
+        buildChain(nodes);
+        lastReceived = System.currentTimeMillis();
+        setSoTimeout(Standards.RENDEZVOUSTIMEOUT);
+        byte[] cookie = new byte[Standards.COOKIELENGTH];
+        random.nextBytes(cookie);
+        sendPacket(RelayCell.toPacket(RelayCell.ESTABLISHRENDEZVOUS, 0, cookie, 0, cookie.length));
+        await(RelayCell.RENDEZVOUSESTABLISHED);
+        event.node = exit[0].toString();
+        event.commit();
+
+        //The rendezvous node and the cookie, encrypted for the service
+        KeyPair keyPair = Crypto.generateKeyPair();
+        byte[] encodedKey = keyPair.getPublic().getEncoded();
+        byte[] introSecret = Crypto.generateSecret(keyPair, descriptor.introKey);
+        ByteBuffer block = ByteBuffer.allocate(Standards.INTRODUCTIONSIZE);
+        block.put(cookie);
+        Standards.writeAddresses(block, exit);
+        SessionKey introKey = Standards.deriveSessionKey(introSecret, encodedKey, descriptor.introKey, Standards.INTROINFO, true);
+        ByteBuffer introduction = ByteBuffer.allocate(RelayCell.PAYLOADSIZE);
+        introduction.put(id).putShort((short) encodedKey.length).put(encodedKey).put(introKey.encrypt(block.array()));
+
+        //No KEEPALIVE from here, as one reaching the rendezvous node after the service would be passed on without the end to end layer
+        lastKeepalive = Long.MAX_VALUE;
+        ConnectException error = new ConnectException("The hidden service has no introduction points");
+        boolean introduced = false;
+        for(Address[] introPoint : shuffle(descriptor.introPoints)){
+            event = new Events.ChainBuild("introduce", Standards.NODES - 1);
+            event.begin();
+            try {
+                introduce(introPoint, introduction);
+                introduced = true;
+                event.node = introPoint[0].toString();
+                event.commit();
+                break;
+            } catch (IOException | GeneralSecurityException e) {
+                error = new ConnectException("The hidden service could not be introduced to at " + introPoint[0]);
+                error.initCause(e);
+            }
+        }
+        if(!introduced) throw error;
+
+        RelayCell cell = await(RelayCell.RENDEZVOUSED);
+        ByteBuffer answer = ByteBuffer.wrap(cell.payload);
+        int length = answer.remaining() < 2 ? -1 : answer.getShort() & 0xFFFF;
+        if(length < 0 || length > answer.remaining()){
+            throw new ConnectException("Malformed answer from the hidden service");
+        }
+        byte[] serviceKey = new byte[length];
+        answer.get(serviceKey);
+        byte[] secret = concat(introSecret, Crypto.generateSecret(keyPair, serviceKey));
+        endKey = Standards.deriveSessionKey(secret, encodedKey, serviceKey, Standards.RENDEZVOUSINFO, true);
+        lastKeepalive = 0;
+    }
+
+    /**
+     * Send an introduction through a chain of its own ending at an introduction point of the service.
+     * @param introPoint the addresses of the introduction point
+     * @param introduction the payload of the INTRODUCE cell
+     * @throws ConnectException if the introduction point does not know the service
+     */
+    private void introduce(Address[] introPoint, ByteBuffer introduction) throws IOException, GeneralSecurityException {
+        OnionSocket chain = new OnionSocket(distributors, introPoint);
+        try {
+            chain.sendPacket(RelayCell.toPacket(RelayCell.INTRODUCE, 0, introduction.array(), 0, introduction.position()));
+            RelayCell cell = chain.await(RelayCell.INTRODUCED);
+            if(cell.payload.length == 0 || cell.payload[0] != 1){
+                throw new ConnectException("The introduction point does not know the hidden service");
+            }
+        } finally {
+            chain.close();
+        }
+    }
+
+    /**
+     * Fetch the descriptor of a hidden service from a Distributor. The Distributors are tried from a
+     * random one, until one knows the service.
+     * @param id the id of the service
+     * @return the descriptor, signed by the service
+     * @throws IOException if no Distributor knows the service
+     */
+    private ServiceDescriptor fetchDescriptor(byte[] id) throws IOException {
+        IOException error = new ConnectException("No Distributors to connect to");
+        for(Address distributor : Standards.rotate(distributors)){
+            try (Socket socket = Standards.connect(distributor, Standards.DISTTIMEOUT)) {
+                OutputStream output = socket.getOutputStream();
+                output.write(5);
+                output.write(id);
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                int length = input.readInt();
+                if(length <= 0 || length > Standards.DESCRIPTORSIZE){
+                    error = new ConnectException("The Distributor at " + distributor + " does not know " + destination.hostname);
+                    continue;
+                }
+
+                ServiceDescriptor descriptor = Standards.readDescriptor(ByteBuffer.wrap(input.readNBytes(length)));
+                if(Standards.verifyDescriptor(descriptor, id)) return descriptor;
+                error = new ConnectException("The Distributor at " + distributor + " sent a descriptor not signed by " + destination.hostname);
+            } catch (IOException | BufferUnderflowException e) {
+                error = e instanceof IOException ? (IOException) e : new IOException("Malformed descriptor from " + distributor, e);
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * Make a chain ending at a node that is an introduction point of a hidden service, see {@link OnionService}.
+     * The node sends a nonce, which is signed to prove that the chain belongs to the service.
+     * @param distributors the addresses of the Distributors
+     * @param signingKeys the signing keys of the service
+     * @return the chain, the introductions are read with {@link #readIntroduction()}
+     */
+    static OnionSocket introductionPoint(Address[] distributors, KeyPair signingKeys) throws IOException, GeneralSecurityException {
+        OnionSocket chain = new OnionSocket(distributors, (Address[]) null);
+        try {
+            chain.sendPacket(RelayCell.toPacket(RelayCell.ESTABLISHINTRO, 0, new byte[0], 0, 0));
+            byte[] nonce = chain.await(RelayCell.INTROCHALLENGE).payload;
+            byte[] proof = Standards.writeIntroductionProof(signingKeys, nonce);
+            chain.sendPacket(RelayCell.toPacket(RelayCell.ESTABLISHINTRO, 0, proof, 0, proof.length));
+            chain.await(RelayCell.INTROESTABLISHED);
+            chain.setSoTimeout(0);
+        } catch (IOException | GeneralSecurityException e) {
+            chain.close();
+            throw e;
+        }
+        return chain;
+    }
+
+    /**
+     * Wait for the next introduction on a chain made by {@link #introductionPoint(Address[], KeyPair) introductionPoint}.
+     * @return the introduction, to be answered with {@link #answerIntroduction(Address[], KeyPair, byte[]) answerIntroduction}
+     * @throws IOException if the chain broke
+     */
+    byte[] readIntroduction() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        return await(RelayCell.INTRODUCTION).payload;
+    }
+
+    /**
+     * Get the addresses of the last node in the chain.
+     * @return the addresses
+     */
+    Address[] getExit(){
+        return exit;
+    }
+
+    /**
+     * Get the addresses of each node in the current chain, starting with the guard.
+     * @return the addresses of each node
+     */
+    Address[][] getChain(){
+        return chain.clone();
+    }
+
+    /**
+     * Answer an introduction as a hidden service: build a chain to the rendezvous node of the client
+     * and join its chain with a RENDEZVOUS cell holding the cookie and a new public key.
+     * @param distributors the addresses of the Distributors
+     * @param introKeys the introduction keys of the service
+     * @param introduction the introduction, as read by {@link #readIntroduction()}
+     * @return the connected socket, with a stream to the client
+     * @throws IOException if the rendezvous node could not be reached
+     * @throws GeneralSecurityException if the introduction was not encrypted for this service
+     */
+    static OnionSocket answerIntroduction(Address[] distributors, KeyPair introKeys, byte[] introduction) throws IOException, GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(introduction);
+        Address[] rendezvous;
+        byte[] clientKey;
+        byte[] cookie = new byte[Standards.COOKIELENGTH];
+        SessionKey introKey;
+        byte[] introSecret;
+        try {
+            int length = buffer.getShort() & 0xFFFF;
+            if(length > buffer.remaining()) throw new InvalidKeySpecException("Malformed introduction");
+            clientKey = new byte[length];
+            buffer.get(clientKey);
+            byte[] block = new byte[Standards.INTRODUCTIONSIZE];
+            buffer.get(block);
+            introSecret = Crypto.generateSecret(introKeys, clientKey);
+            introKey = Standards.deriveSessionKey(introSecret, clientKey, introKeys.getPublic().getEncoded(), Standards.INTROINFO, false);
+            ByteBuffer cleartext = ByteBuffer.wrap(introKey.decrypt(block));
+            cleartext.get(cookie);
+            rendezvous = Standards.readAddresses(cleartext);
+        } catch (BufferUnderflowException e) {
+            throw new InvalidKeySpecException("Malformed introduction", e);
+        }
+        if(rendezvous.length == 0) throw new InvalidKeySpecException("Introduction without a rendezvous node");
+
+        OnionSocket socket = new OnionSocket(distributors, rendezvous);
+        try {
+            KeyPair keyPair = Crypto.generateKeyPair();
+            byte[] encodedKey = keyPair.getPublic().getEncoded();
+            ByteBuffer message = ByteBuffer.allocate(Standards.COOKIELENGTH + 2 + encodedKey.length);
+            message.put(cookie).putShort((short) encodedKey.length).put(encodedKey);
+            socket.sendPacket(RelayCell.toPacket(RelayCell.RENDEZVOUS, 0, message.array(), 0, message.capacity()));
+
+            byte[] secret = concat(introSecret, Crypto.generateSecret(keyPair, clientKey));
+            socket.endKey = Standards.deriveSessionKey(secret, clientKey, encodedKey, Standards.RENDEZVOUSINFO, false);
+            socket.setSoTimeout(0);
+        } catch (IOException | GeneralSecurityException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Get an instance of OnionSocket sending and recieving UDP datagrams, for loss-tolerant data where
+     * latency matters more than delivery, like telemetry. Use {@link #sendDatagram(byte[], int, int)
+     * sendDatagram} and {@link #receiveDatagram()} instead of send and read. A datagram is never split,
+     * so it has to fit in one cell of the chain, see {@link #getMaxDatagramSize()}.
+     * @param distributors the addresses of the Distributors, tried from a random one
+     * @param destination the address or hostname and port of the UDP destination
+     * @param cellSize the largest cell size to ask the chain for, which limits the datagram size
+     * @return the connected socket
+     * @throws IOException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public static OnionSocket datagram(Address[] distributors, Address destination, int cellSize) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return new OnionSocket(distributors, destination, cellSize, false, true);
+    }
+
+    /**
+     * Send a message through the connected onion routers. The destination recieves exactly
+     * these bytes, messages longer than the payload of a cell are split over several packets.
+     * @param bytes the message to send
      * @throws IOException
      * @throws IllegalBlockSizeException
      * @throws BadPaddingException
      */
     public void send(byte[] bytes) throws IOException, IllegalBlockSizeException, BadPaddingException {
-        byte[] message = new byte[Standards.PACKETSIZE];
-        System.arraycopy(bytes, 0, message, 0, bytes.length);
+        send(bytes, 0, bytes.length);
+    }
 
-        //Encrypt with available session keys
-        if(keys.length > 0){
-            for(int i=keys.length-1; i>=0; i--){
-                message = keys[i].encrypt(message);
-            }
+    /**
+     * Send a part of an array through the connected onion routers, see {@link #send(byte[]) send}.
+     * Will block while the {@link CongestionWindow} is full, reading cells from the destination
+     * until an ACK makes room.
+     * @param bytes the array holding the message
+     * @param offset where in the array the message starts
+     * @param length the length of the message
+     * @throws IOException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public void send(byte[] bytes, int offset, int length) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if(datagram) throw new IllegalStateException("A datagram stream is written with sendDatagram");
+        Events.Send event = new Events.Send();
+        event.begin();
+        event.bytes = length;
+        if(compressor != null && length > 0){
+            length = compressor.compress(bytes, offset, length);
+            bytes = compressor.getBuffer();
+            offset = 0;
         }
+        while(length > 0){
+            int size = Math.min(length, sendSize - RelayCell.HEADERSIZE);
+            byte[] payload = Arrays.copyOfRange(bytes, offset, offset + size);
+            try {
+                acquire();
+            } catch (IOException e) {
+                recover(e);
+                continue;
+            }
 
-        output.write(message);
+            //Kept until acknowledged, so it is sent again if the chain breaks
+            if(token != null) unacked.add(payload);
+            try {
+                sendPacket(RelayCell.toPacket(RelayCell.DATA, STREAM, payload, 0, size, sendSize));
+            } catch (IOException e) {
+                recover(e);
+            }
+            offset += size;
+            length -= size;
+            event.cells++;
+        }
+        event.commit();
     }
 
     /**
      * Read a message through the connected onion routers.
      * Will block until a message is recieved, so call when you expect a message.
-     * Will be padded with trailing zeroes to ensure the standard packet size
-     * of 512. Will decrypt with {@link SessionKey}s if this socket has some.
-     * @return a byte array of size 512
+     * @return the bytes sent by the destination in one packet, or {@code null} if the
+     * destination has closed the connection
      * @throws IOException
      * @throws IllegalBlockSizeException
      * @throws BadPaddingException
      */
     public byte[] read() throws IOException, IllegalBlockSizeException, BadPaddingException {
-        byte[] message = input.readNBytes(Standards.PACKETSIZE);
+        if(pendingOffset == pending.length && !fillPending()){
+            return null;
+        }
+
+        byte[] message = Arrays.copyOfRange(pending, pendingOffset, pending.length);
+        pendingOffset = pending.length;
+
+        return message;
+    }
+
+    /**
+     * Read up to {@code length} bytes through the connected onion routers. Bytes left over from a
+     * packet are kept for the next call, so this can be mixed freely with {@link #read() read}.
+     * Will block until at least one byte is available.
+     * @param bytes the array to read into
+     * @param offset where in the array to start writing
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read, or {@code -1} if the destination has closed the connection
+     * @throws IOException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public int read(byte[] bytes, int offset, int length) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if(length == 0){
+            return 0;
+        }
+        if(pendingOffset == pending.length && !fillPending()){
+            return -1;
+        }
+
+        int size = Math.min(length, pending.length - pendingOffset);
+        System.arraycopy(pending, pendingOffset, bytes, offset, size);
+        pendingOffset += size;
+
+        return size;
+    }
+
+    /**
+     * Send one datagram to the destination of a datagram stream. It is sent right away, without
+     * waiting for the congestion window, and it may be lost on the way.
+     * @param bytes the array holding the datagram
+     * @param offset where in the array the datagram starts
+     * @param length the length of the datagram, at most {@link #getMaxDatagramSize()}
+     * @throws IOException if the chain is broken
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public void sendDatagram(byte[] bytes, int offset, int length) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if(!datagram) throw new IllegalStateException("Not a datagram stream");
+        if(length > getMaxDatagramSize()){
+            throw new IllegalArgumentException("A datagram of " + length + " bytes does not fit in a cell of the chain");
+        }
+        sendPacket(RelayCell.toPacket(RelayCell.DATAGRAM, STREAM, bytes, offset, length, sendSize));
+    }
+
+    /**
+     * Wait for the next datagram from the destination of a datagram stream.
+     * @return the datagram, or {@code null} if the exit node has closed the stream
+     * @throws IOException if the chain is broken, or {@link SocketTimeoutException} if the timeout expired
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public byte[] receiveDatagram() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if(!datagram) throw new IllegalStateException("Not a datagram stream");
+        while(!ended){
+            RelayCell cell = readCell();
+            if(cell == null || cell.stream != STREAM) continue;
+
+            if(cell.command == RelayCell.DATAGRAM){
+                return cell.payload;
+            }else if(cell.command == RelayCell.END){
+                ended = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the largest datagram that can be sent, which is the payload of one cell of the chain.
+     * @return the size in bytes
+     */
+    public int getMaxDatagramSize(){
+        return sendSize - RelayCell.HEADERSIZE;
+    }
+
+    /**
+     * Get the number of bytes that can be read without blocking.
+     * @return the number of bytes left over from the last packet
+     */
+    public int available(){
+        return pending.length - pendingOffset;
+    }
+
+    /**
+     * Tell the destination that no more data will be sent. The connection can still be read from.
+     * @throws IOException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    public void shutdownOutput() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        outputShutdown = true;
+        try {
+            sendPacket(RelayCell.toPacket(RelayCell.END, STREAM, new byte[0], 0, 0));
+        } catch (IOException e) {
+            recover(e);
+        }
+    }
 
-        //Decrypt with available session keys
+    /**
+     * End the stream after reading the whole response to a request, instead of {@link #shutdownOutput()}.
+     * If the exit node pools connections to the destination, see {@link OnionNode#poolConnections(InetAddress, int)},
+     * the connection is then kept open for another stream. Only the client knows where a response ends,
+     * so a stream ended any other way never gives its connection back.
+     * @throws IOException if the END cell could not be sent
+     */
+    public void finishRequest() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        outputShutdown = true;
+        try {
+            sendPacket(RelayCell.toPacket(RelayCell.END, STREAM, new byte[]{1}, 0, 1));
+        } catch (IOException e) {
+            recover(e);
+        }
+    }
+
+    /**
+     * Set the timeout for reads, see {@link Socket#setSoTimeout(int)}. A read that times out
+     * can safely be retried.
+     * @param timeout the timeout in milliseconds, 0 for infinite
+     * @throws SocketException
+     */
+    public void setSoTimeout(int timeout) throws SocketException {
+        this.timeout = timeout;
+        //The connection wakes up at least every KEEPALIVEINTERVAL to check the chain
+        circuit.setSoTimeout(timeout == 0 ? Standards.KEEPALIVEINTERVAL : Math.min(timeout, Standards.KEEPALIVEINTERVAL));
+    }
+
+    /**
+     * Set how much traffic the keys of the chain protect before they are ratcheted. The client then
+     * tells every node to derive new keys from the current ones, so keys taken from a node later can
+     * not decrypt what was sent before. Defaults are {@link Standards#REKEYBYTES} and {@link Standards#REKEYTIME}.
+     * @param bytes bytes sent and recieved through the chain, 0 for no limit
+     * @param millis milliseconds since the keys were made, 0 for no limit. Checked when a packet is sent
+     */
+    public void setRekeyThreshold(long bytes, long millis){
+        rekeyBytes = bytes;
+        rekeyTime = millis;
+    }
+
+    public void close() throws IOException {
+        //Without an exit node in between, the other end of a hidden service stream is told by an END cell
+        if(endKey != null && !outputShutdown && !closed){
+            try {
+                sendPacket(RelayCell.toPacket(RelayCell.END, STREAM, new byte[0], 0, 0));
+            } catch (IOException | GeneralSecurityException ignored) {}
+        }
+        closed = true;
+        circuit.close();
+    }
+
+    /**
+     * Get the congestion window of this chain, for example to look at the round trip time.
+     * @return the congestion window
+     */
+    public CongestionWindow getCongestionWindow(){
+        return window;
+    }
+
+    /**
+     * Check if the stream is compressed, which needs both asking for it and the exit node agreeing.
+     * @return {@code true} if compressed
+     */
+    public boolean isCompressed(){
+        return compressor != null;
+    }
+
+    /**
+     * Read data packets until one with payload arrives, and store the payload as pending.
+     * Every {@link Standards#ACKINTERVAL} DATA cells are acknowledged.
+     * @return {@code false} if the destination has closed the connection
+     */
+    private boolean fillPending() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if(datagram) throw new IllegalStateException("A datagram stream is read with receiveDatagram");
+        Events.Read event = new Events.Read();
+        event.begin();
+        //What is left of the last cell is decompressed before reading another
+        if(decompressor != null && (pending = inflate()).length > 0){
+            pendingOffset = 0;
+            event.bytes = pending.length;
+            event.commit();
+            return true;
+        }
+        while(!ended){
+            RelayCell cell = null;
+            boolean stale = false;
+            try {
+                if(inbound.isEmpty()){
+                    cell = readCell();
+                }else{
+                    //Cells that came on a broken chain are not acknowledged on the new one
+                    stale = staleInbound > 0;
+                    if(stale) staleInbound--;
+                    cell = inbound.poll();
+                }
+                if(cell == null){
+                    continue;
+                }
+                if(cell.command == RelayCell.DATA && !stale && ++received % Standards.ACKINTERVAL == 0){
+                    sendPacket(RelayCell.toPacket(RelayCell.ACK, 0, new byte[0], 0, 0));
+                }
+            } catch (IOException e) {
+                //A cell read before the ACK failed is counted as recieved, so the exit node will not send it again
+                if(cell != null) inbound.addFirst(cell);
+                recover(e);
+                continue;
+            }
+            if(cell.stream != STREAM){
+                continue;
+            }
+            if(cell.command == RelayCell.END){
+                ended = true;
+            }else if(cell.payload.length > 0){
+                pending = cell.payload;
+                pendingOffset = 0;
+                if(decompressor != null){
+                    decompressor.setInput(cell.payload, 0, cell.payload.length);
+                    pending = inflate();
+                    //A cell can end in the middle of compressed data, giving nothing yet
+                    if(pending.length == 0) continue;
+                }
+                event.bytes = pending.length;
+                event.commit();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Decompress the next chunk of the DATA cells given to the decompressor.
+     * @return the decompressed data, empty once the cells given are used up
+     * @throws IOException if the exit node did not send a deflate stream
+     */
+    private byte[] inflate() throws IOException {
+        try {
+            int length = decompressor.inflate();
+            return Arrays.copyOf(decompressor.getBuffer(), length);
+        } catch (DataFormatException e) {
+            throw new IOException("The exit node sent malformed compressed data", e);
+        }
+    }
+
+    /**
+     * Wait for room in the congestion window, reading cells from the destination until an ACK
+     * makes room. Cells arriving while waiting are kept for reading, and not acknowledged before
+     * they are read.
+     */
+    private void acquire() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        while(!window.tryAcquire()){
+            RelayCell cell = readCell();
+            if(cell != null) inbound.add(cell);
+        }
+    }
+
+    /**
+     * Read a relay cell, handling ACK and KEEPALIVE cells from the exit node. While the chain is
+     * quiet a KEEPALIVE cell is sent every {@link Standards#KEEPALIVEINTERVAL} milliseconds.
+     * @return the cell, or {@code null} if it was an ACK or KEEPALIVE
+     * @throws SocketTimeoutException if the timeout set by {@link #setSoTimeout(int) setSoTimeout} expires
+     * @throws IOException if the chain has broken or not answered for {@link Standards#CHAINTIMEOUT} milliseconds
+     */
+    private RelayCell readCell() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        long start = System.currentTimeMillis();
+        byte[] packet;
+        while(true){
+            try {
+                packet = readPacket();
+                break;
+            } catch (SocketTimeoutException e) {
+                long now = System.currentTimeMillis();
+                if(now - lastReceived > Standards.CHAINTIMEOUT){
+                    throw new IOException("The onion network stopped answering");
+                }
+                if(now - Math.max(lastReceived, lastKeepalive) >= Standards.KEEPALIVEINTERVAL){
+                    sendPacket(RelayCell.toPacket(RelayCell.KEEPALIVE, 0, new byte[0], 0, 0));
+                    lastKeepalive = now;
+                }
+                if(timeout > 0 && now - start >= timeout) throw e;
+            }
+        }
+        lastReceived = System.currentTimeMillis();
+
+        RelayCell cell = RelayCell.fromPacket(packet);
+        if(cell.command == RelayCell.ACK){
+            window.acknowledge();
+            //The exit node has written these cells, so they are not sent again
+            for(int i=0; i<Standards.ACKINTERVAL && !unacked.isEmpty(); i++){
+                unackedFrom += unacked.poll().length;
+            }
+            return null;
+        }
+        if(cell.command == RelayCell.KEEPALIVE){
+            //Joined with a hidden service or its client, the other end answers instead of the exit node
+            if(endKey != null && cell.stream == 0){
+                sendPacket(RelayCell.toPacket(RelayCell.KEEPALIVE, STREAM, new byte[0], 0, 0));
+            }
+            return null;
+        }
+        if(cell.command == RelayCell.DATA && cell.stream == STREAM){
+            receivedBytes += cell.payload.length;
+        }
+
+        return cell;
+    }
+
+    /**
+     * Read cells until one with a command arrives, for setting up hidden services.
+     * @param command the command
+     * @return the cell
+     * @throws ConnectException if the exit node ends the stream or closes the chain first
+     */
+    private RelayCell await(int command) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        RelayCell cell;
+        do {
+            try {
+                cell = readCell();
+            } catch (EOFException e) {
+                throw new ConnectException("The onion network closed the chain");
+            }
+            if(cell != null && cell.command == RelayCell.END){
+                throw new ConnectException("The exit node ended the stream");
+            }
+        } while(cell == null || cell.command != command);
+
+        return cell;
+    }
+
+    private static Address[][] shuffle(Address[][] nodes){
+        ArrayList<Address[]> list = new ArrayList<>(Arrays.asList(nodes));
+        Collections.shuffle(list, random);
+        return list.toArray(new Address[0][]);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second){
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    /**
+     * Move the stream to a new chain after the current one broke, see {@link #resume() resume}.
+     * @param cause why the current chain is given up on
+     * @throws IOException the cause, if the stream is not resumable or no new chain worked
+     */
+    private void recover(IOException cause) throws IOException {
+        if(token == null || closed || cause instanceof SocketTimeoutException) throw cause;
+
+        for(int i=0; i<Standards.REBUILDS; i++){
+            circuit.close();
+            try {
+                resume();
+                return;
+            } catch (IOException | GeneralSecurityException e) {
+                cause.addSuppressed(e);
+            }
+        }
+        circuit.close();
+        throw cause;
+    }
+
+    /**
+     * Build a new chain ending in the same exit node, and move the stream to it with a RESUME cell
+     * holding the token and the number of bytes recieved. The exit node answers with CONNECTED
+     * holding the number of bytes it has recieved, and the rest is sent again.
+     */
+    private void resume() throws IOException, GeneralSecurityException {
+        Events.ChainBuild event = new Events.ChainBuild("resume", Standards.NODES - 1);
+        event.begin();
+        keys = new SessionKey[0];
+        packetOffset = 0;
+        keyedAt = -1;
+        //A new chain starts with small cells, like the Distributor takes
+        sendSize = Standards.PACKETSIZE;
+        readSize = Standards.PACKETSIZE;
+        packet = new byte[Standards.PACKETSIZE];
+
+        //The stream stays on the same exit node, the nodes before it are taken from a new answer
+        buildChain(chainTo(exit));
+
+        window = new CongestionWindow();
+        received = 0;
+        staleInbound = inbound.size();
+        lastReceived = System.currentTimeMillis();
+        keyedBytes = 0;
+        keyedAt = lastReceived;
+
+        //The timeout of the user does not apply while resuming, only the chain timeout does
+        int userTimeout = timeout;
+        setSoTimeout(0);
+        try {
+            moveStream();
+        } finally {
+            setSoTimeout(userTimeout);
+        }
+        event.node = exit[0].toString();
+        event.commit();
+    }
+
+    /**
+     * Send the RESUME cell on the new chain, and what the exit node is missing once it answers.
+     */
+    private void moveStream() throws IOException, GeneralSecurityException {
+        ByteBuffer message = ByteBuffer.allocate(Standards.TOKENLENGTH + 8);
+        message.put(token).putLong(receivedBytes);
+        sendPacket(RelayCell.toPacket(RelayCell.RESUME, STREAM, message.array(), 0, message.capacity()));
+        RelayCell cell;
+        do {
+            cell = readCell();
+            if(cell != null && cell.stream == STREAM && cell.command == RelayCell.END){
+                throw new ConnectException("The exit node has closed the stream");
+            }
+        } while(cell == null || cell.stream != STREAM || cell.command != RelayCell.CONNECTED);
+
+        //Send what the exit node is missing
+        long exitReceived = ByteBuffer.wrap(cell.payload).getLong(Standards.TOKENLENGTH);
+        while(!unacked.isEmpty() && unackedFrom + unacked.peek().length <= exitReceived){
+            unackedFrom += unacked.poll().length;
+        }
+        //Kept one cell each, so the new chain may need them split
+        ArrayList<byte[]> missing = Standards.split(unacked, sendSize - RelayCell.HEADERSIZE);
+        unacked.clear();
+        unacked.addAll(missing);
+        for(byte[] payload : missing){
+            acquire();
+            sendPacket(RelayCell.toPacket(RelayCell.DATA, STREAM, payload, 0, payload.length, sendSize));
+        }
+        if(outputShutdown){
+            sendPacket(RelayCell.toPacket(RelayCell.END, STREAM, new byte[0], 0, 0));
+        }
+    }
+
+    /**
+     * Choose the nodes of a chain ending at a given node, taking the nodes before it from a Distributor.
+     * @param last the addresses of the last node
+     * @return the addresses of each node
+     * @throws ConnectException if the Distributor did not give enough other nodes
+     */
+    private Address[][] chainTo(Address[] last) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        ArrayList<Address[]> chain = new ArrayList<>();
+        for(Address[] node : requestNodes()){
+            if(chain.size() < Standards.NODES-1 && !node[0].equals(last[0])){
+                chain.add(node);
+            }
+        }
+        if(chain.size() < Standards.NODES-1){
+            throw new ConnectException("Not enough nodes to build a new chain");
+        }
+        chain.add(last);
+        return chain.toArray(new Address[0][]);
+    }
+
+    /**
+     * Request nodes for a chain from a Distributor. The Distributors are tried from a random one.
+     * @return the addresses of each node, the first is the one to connect to
+     * @throws IOException if no Distributor answered
+     */
+    private Address[][] requestNodes() throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        ByteBuffer message = null;
+        IOException error = new ConnectException("No Distributors to connect to");
+        Events.ChainBuild event = new Events.ChainBuild("nodes", -1);
+        event.begin();
+        for(Address distributor : Standards.rotate(distributors)){
+            event.node = distributor.toString();
+            try (Socket socket = Standards.connect(distributor, Standards.DISTTIMEOUT)) {
+                input = socket.getInputStream();
+                output = socket.getOutputStream();
+                output.write(2);
+
+                //Read answer
+                SessionKey sessionKey = initKeyExchange();
+                byte[] ciphertext = readPacket();
+                message = ByteBuffer.wrap(sessionKey.decrypt(ciphertext));
+                break;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if(message == null) throw error;
+        event.commit();
+
+        Address[][] nodes = new Address[Standards.NODES][];
+        for(int i=0; i<nodes.length; i++){
+            nodes[i] = Standards.readAddresses(message);
+        }
+        return nodes;
+    }
+
+    /**
+     * Open a circuit to a guard node, link the next nodes and make the last one the exit. The
+     * first node is replaced by the guard.
+     * @param nodes the addresses of each node in the chain
+     */
+    private void buildChain(Address[][] nodes) throws IOException, InvalidAlgorithmParameterException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        Events.ChainBuild event = new Events.ChainBuild("guard", 0);
+        event.begin();
+        circuit = Guards.open(nodes);
+        chain = nodes.clone();
+        input = circuit.getInputStream();
+        output = circuit.getOutputStream();
+        event.node = nodes[0][0].toString();
+        event.commit();
+
+        int cellSize = maxCellSize;
+        for(int i=1; i<=nodes.length; i++){
+            event = new Events.ChainBuild("handshake", i-1);
+            event.begin();
+            cellSize = Math.min(cellSize, i < nodes.length ? nodeHandshake(nodes[i], Standards.RELAY) : nodeHandshake(null, Standards.EXIT));
+            event.node = nodes[i-1][0].toString();
+            event.commit();
+        }
+
+        //Switch every node in the chain to the larger cells, each with a packet encrypted up to it. The exit
+        //goes first, as a node reads the packets after its own in the new size
+        if(cellSize > sendSize){
+            for(int i=keys.length-1; i>=0; i--){
+                byte[] message = Standards.resizePacket(sendSize, cellSize);
+                for(int j=i; j>=0; j--){
+                    message = keys[j].encrypt(message);
+                }
+                output.write(message);
+            }
+            sendSize = cellSize;
+            readSize = cellSize;
+            packet = new byte[cellSize];
+        }
+    }
+
+    /**
+     * Send a single packet through the connected onion routers.
+     * Will pad the array with trailing zeroes to ensure the standard packet size
+     * of 512. Will encrypt with {@link SessionKey}s if this socket has some, and with the end to end
+     * key of a hidden service stream.
+     * @param bytes the packet to send, with a maximum size of 512
+     * @throws IOException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    private void sendPacket(byte[] bytes) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if(rekeyDue()){
+            rekey();
+        }
+        byte[] message = new byte[sendSize];
+        System.arraycopy(bytes, 0, message, 0, bytes.length);
+
+        //The layer of a hidden service or its client is innermost, the nodes do not see it
+        if(endKey != null){
+            message = endKey.encrypt(message);
+        }
+
+        //Encrypt with available session keys
         if(keys.length > 0){
+            for(int i=keys.length-1; i>=0; i--){
+                message = keys[i].encrypt(message);
+            }
+        }
+
+        output.write(message);
+        keyedBytes += message.length;
+    }
+
+    /**
+     * Check if the keys of a built chain have protected enough traffic, see {@link #setRekeyThreshold(long, long) setRekeyThreshold}.
+     * @return {@code true} if the keys should be ratcheted
+     */
+    private boolean rekeyDue(){
+        if(keyedAt < 0) return false;
+        return (rekeyBytes > 0 && keyedBytes >= rekeyBytes) || (rekeyTime > 0 && System.currentTimeMillis() - keyedAt >= rekeyTime);
+    }
+
+    /**
+     * Ratchet the keys of every node. Each node gets a rekey packet encrypted only up to itself, and
+     * the packets after it are encrypted with the next keys. A node answers with a rekey packet of its
+     * own, which {@link #readPacket() readPacket} switches the keys for the other direction on.
+     */
+    private void rekey() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        try {
             for(int i=0; i<keys.length; i++){
-                message = keys[i].decrypt(message);
+                byte[] message = Standards.rekeyPacket(sendSize);
+                for(int j=i; j>=0; j--){
+                    message = keys[j].encrypt(message);
+                }
+                output.write(message);
+                keys[i].ratchetCipher();
             }
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new IOException("Could not ratchet the keys of the chain", e);
         }
+        keyedBytes = 0;
+        keyedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Read a single packet through the connected onion routers.
+     * Will decrypt with {@link SessionKey}s if this socket has some.
+     * @return a byte array of size 512
+     * @throws IOException if the connection is closed before a whole packet is read, or the
+     * timeout set by {@link #setSoTimeout(int) setSoTimeout} expires
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    private byte[] readPacket() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        byte[] message;
+        do {
+            //Keep partial packets between calls, so a read timeout does not lose data
+            while(packetOffset < readSize){
+                int length = input.read(packet, packetOffset, readSize - packetOffset);
+                if(length < 0){
+                    throw new EOFException("Connection closed by the onion network");
+                }
+                packetOffset += length;
+            }
+            message = packet.clone();
+            packetOffset = 0;
+            keyedBytes += readSize;
+        } while((message = decrypt(message)) == null);
 
         return message;
     }
 
-    public void close() throws IOException {
-        socket.close();
+    /**
+     * Decrypt a packet with available session keys, one layer at a time. A rekey packet from a node
+     * ratchets the keys it was sent with, as every packet after it is encrypted with the next ones.
+     * @param message the packet as recieved
+     * @return the decrypted packet, or {@code null} if it was a rekey packet
+     */
+    private byte[] decrypt(byte[] message) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        for(int i=0; i<keys.length; i++){
+            message = keys[i].decrypt(message);
+            if(keyedAt >= 0 && Standards.isRekey(message)){
+                try {
+                    keys[i].ratchetDecipher();
+                } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+                    throw new IOException("Could not ratchet the keys of the chain", e);
+                }
+                return null;
+            }
+        }
+        return endKey == null ? message : endKey.decrypt(message);
     }
 
     /**
-     * Method for initiating a Diffie-Hellman key exchange.
-     * @return a {@link SessionKey} object holding both the cipher and decipher, this
-     * will be the same object as the other node.
+     * Method for initiating a Diffie-Hellman key exchange. Takes one packet each way.
+     * @return a {@link SessionKey} object holding both the cipher and decipher, the
+     * counterpart of the one made by the other node.
      * @throws InvalidKeySpecException
      * @throws InvalidKeyException
      * @throws InvalidAlgorithmParameterException
@@ -165,36 +1306,10 @@ public class OnionSocket {
     private SessionKey initKeyExchange() throws InvalidKeySpecException, InvalidKeyException, InvalidAlgorithmParameterException, IOException, IllegalBlockSizeException, BadPaddingException {
         //Generate and send public key
         KeyPair keyPair = Crypto.generateKeyPair();
-        byte[] publicKey = keyPair.getPublic().getEncoded();
-        byte[] message = new byte[Standards.PACKETSIZE];
-        byte[] message2 = new byte[Standards.PACKETSIZE];
-        byte[] lengthArray = ByteBuffer.allocate(4).putInt(publicKey.length).array();
-        System.arraycopy(lengthArray, 0, message, 0, 4);
-        System.arraycopy(publicKey, 0, message, 4, Standards.PACKETSIZE - 4);
-        System.arraycopy(publicKey, Standards.PACKETSIZE - 4, message2, 0, publicKey.length - Standards.PACKETSIZE + 4);
-
-        send(message);
-        send(message2);
-
-        //Read other public key and cipher parameters
-        message = read();
-        message2 = read();
-        lengthArray = Arrays.copyOf(message, 4);
-        int keyLength = ByteBuffer.wrap(lengthArray).getInt();
-        byte[] otherEncodedKey = new byte[keyLength];
-        System.arraycopy(message, 4, otherEncodedKey, 0, message.length - 4);
-        System.arraycopy(message2, 0, otherEncodedKey, message.length - 4, keyLength - message.length + 4);
-        byte[] encodedParams = Arrays.copyOfRange(message2, keyLength - message.length + 4, keyLength - message.length + 22);
+        sendPacket(Standards.keyExchangeRequest(keyPair));
 
-        //Generate shared secret and ciphers
-        SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPair, otherEncodedKey);
-        Cipher decipher = Crypto.generateDecipher(encodedParams, secretKeySpec);
-        Cipher cipher = Crypto.generateCipher(secretKeySpec);
-
-        //Send cipher parameters
-        send(cipher.getParameters().getEncoded());
-
-        return new SessionKey(cipher, decipher);
+        //Read other public key and derive the keys
+        return Standards.keyExchangeReply(keyPair, readPacket());
     }
 
     /**
@@ -204,7 +1319,10 @@ public class OnionSocket {
      * it reaches the intended recipient using the {@link SessionKey}s made during the
      * previous handshakes.
      * @param nextNode after the key exchange the node this socket is talking with needs to
-     * know who to relay to. This is the address of the next node.
+     * know who to relay to. These are the addresses of the next node, or {@code null} for the exit.
+     * @param type {@link Standards#RELAY} if the next hop is another node, or {@link Standards#EXIT}
+     * if the node is last in the chain, making it unpack {@link RelayCell}s.
+     * @return the largest cell size the node takes
      * @throws InvalidAlgorithmParameterException
      * @throws IllegalBlockSizeException
      * @throws InvalidKeySpecException
@@ -212,20 +1330,125 @@ public class OnionSocket {
      * @throws BadPaddingException
      * @throws InvalidKeyException
      */
-    private void nodeHandshake(Address nextNode) throws InvalidAlgorithmParameterException, IllegalBlockSizeException, InvalidKeySpecException, IOException, BadPaddingException, InvalidKeyException {
-        SessionKey sessionKey = initKeyExchange();
+    private int nodeHandshake(Address[] nextNode, int type) throws InvalidAlgorithmParameterException, IllegalBlockSizeException, InvalidKeySpecException, IOException, BadPaddingException, InvalidKeyException {
+        KeyPair keyPair = Crypto.generateKeyPair();
+        sendPacket(Standards.keyExchangeRequest(keyPair));
+        byte[] reply = readPacket();
+        SessionKey sessionKey = Standards.keyExchangeReply(keyPair, reply);
         keys = Arrays.copyOf(keys, keys.length + 1);
         keys[keys.length-1] = sessionKey;
 
-        //Send next node address
-        InetAddress address = nextNode.address;
-        int port = nextNode.port;
-        byte[] addressArray = address.getAddress();
-        byte[] portArray = ByteBuffer.allocate(4).putInt(port).array();
-        byte[] nextAddress = new byte[8];
-        System.arraycopy(addressArray, 0, nextAddress, 0, 4);
-        System.arraycopy(portArray, 0, nextAddress, 4, 4);
+        //Send type and next node addresses
+        ByteBuffer message = ByteBuffer.allocate(Standards.PACKETSIZE);
+        message.put((byte) type);
+        Standards.writeAddresses(message, nextNode == null ? new Address[0] : nextNode);
+        sendPacket(message.array());
+        return Standards.readCellSize(reply);
+    }
+}
+
+/**
+ * The Guards class keeps the guard nodes of the OnionSockets in this JVM, and a {@link CircuitLink}
+ * to each. Every chain starts at one of at most {@link Standards#GUARDS} guards, so its first hop
+ * goes over a connection that is already open. Guards are taken from the first nodes the
+ * Distributor hands out, which favours nodes with more capacity, and a guard is dropped as soon as
+ * its link can not be opened.
+ */
+class Guards {
+    private static final ArrayList<Address[]> guards = new ArrayList<>();
+    private static final HashMap<Address, CircuitLink> links = new HashMap<>();
+    private static final Random random = new Random();
+
+    /**
+     * Open a circuit to a guard for a chain, replacing the first node of the chain with the guard.
+     * @param nodes the addresses of each node in the chain
+     * @return the circuit
+     * @throws IOException if no guard could be reached
+     */
+    static CircuitLink.Circuit open(Address[][] nodes) throws IOException {
+        IOException error = new ConnectException("No guard nodes to connect to");
+        for(int i=0; i<=Standards.GUARDS; i++){
+            Address[] guard = choose(nodes);
+            if(guard == null) break;
+
+            try {
+                CircuitLink.Circuit circuit = link(guard).open();
+                nodes[0] = guard;
+                return circuit;
+            } catch (IOException e) {
+                drop(guard);
+                error = e;
+            }
+        }
 
-        send(nextAddress);
+        throw error;
+    }
+
+    /**
+     * Choose a guard that is not already in the chain, taking the first node as a new guard if
+     * there are fewer than {@link Standards#GUARDS}.
+     * @param nodes the addresses of each node in the chain
+     * @return the addresses of the guard, or {@code null} if none can be used
+     */
+    private static synchronized Address[] choose(Address[][] nodes){
+        if(guards.size() < Standards.GUARDS && indexOf(nodes[0]) < 0){
+            guards.add(nodes[0]);
+        }
+
+        ArrayList<Address[]> candidates = new ArrayList<>();
+        for(Address[] guard : guards){
+            boolean inChain = false;
+            for(int i=1; i<nodes.length; i++){
+                inChain |= guard[0].equals(nodes[i][0]);
+            }
+            if(!inChain) candidates.add(guard);
+        }
+
+        return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Get the open link to a guard, connecting if there is none. Connecting is done without holding
+     * the lock, so a guard that does not answer only holds up the chains that chose it.
+     * @param guard the addresses of the guard
+     * @return the link
+     * @throws IOException if the guard could not be reached within {@link Standards#GUARDTIMEOUT}
+     */
+    private static CircuitLink link(Address[] guard) throws IOException {
+        synchronized (Guards.class){
+            CircuitLink link = links.get(guard[0]);
+            if(link != null && !link.isClosed()) return link;
+        }
+
+        CircuitLink connected = CircuitLink.connect(guard, Standards.GUARDTIMEOUT);
+        synchronized (Guards.class){
+            CircuitLink link = links.get(guard[0]);
+            if(link != null && !link.isClosed()){
+                //Another chain connected to the guard meanwhile, one link is enough
+                connected.close();
+                return link;
+            }
+            links.put(guard[0], connected);
+            return connected;
+        }
+    }
+
+    /**
+     * Stop using a guard that could not be reached.
+     * @param guard the addresses of the guard
+     */
+    private static synchronized void drop(Address[] guard){
+        int index = indexOf(guard);
+        if(index >= 0) guards.remove(index);
+
+        CircuitLink link = links.remove(guard[0]);
+        if(link != null) link.close();
+    }
+
+    private static int indexOf(Address[] node){
+        for(int i=0; i<guards.size(); i++){
+            if(guards.get(i)[0].equals(node[0])) return i;
+        }
+        return -1;
     }
 }
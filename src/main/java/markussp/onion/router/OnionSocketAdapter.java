@@ -0,0 +1,51 @@
+package markussp.onion.router;
+
+import markussp.onion.util.Standards;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The OnionSocketAdapter class is a {@link Socket} connecting through the onion network, so it can
+ * be handed to libraries and HTTP clients expecting a regular socket. Construct it unconnected and
+ * call {@link #connect(java.net.SocketAddress) connect}, or use the constructor taking the address
+ * to connect to.
+ *
+ * The streams have the usual socket semantics. Reads return whatever is available, up to the
+ * requested length, and {@code -1} once the destination has closed the connection.
+ * {@link #shutdownOutput()} tells the destination that nothing more will be sent.
+ */
+public class OnionSocketAdapter extends Socket {
+
+    /**
+     * Make an unconnected socket using the standard NodeDistribution address.
+     * @throws IOException if the NodeDistribution address can not be resolved
+     */
+    public OnionSocketAdapter() throws IOException {
+        this(InetAddress.getByName(Standards.DIST), Standards.DISTPORT);
+    }
+
+    /**
+     * Make an unconnected socket with a specified NodeDistribution address.
+     * @param distAddress the IP-addres of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     * @throws IOException
+     */
+    public OnionSocketAdapter(InetAddress distAddress, int distPort) throws IOException {
+        super(new OnionSocketImpl(distAddress, distPort));
+    }
+
+    /**
+     * Make a socket connected to an address, using the standard NodeDistribution address.
+     * The hostname is resolved by the last node in the chain, not locally.
+     * @param host the hostname to connect to
+     * @param port the portnumber to connect to
+     * @throws IOException if the chain of OnionNodes could not be set up
+     */
+    public OnionSocketAdapter(String host, int port) throws IOException {
+        this();
+        connect(InetSocketAddress.createUnresolved(host, port));
+    }
+}
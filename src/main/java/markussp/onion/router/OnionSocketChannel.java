@@ -0,0 +1,142 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.RelayCell;
+import markussp.onion.util.Standards;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.security.GeneralSecurityException;
+
+/**
+ * The OnionSocketChannel class wraps an {@link OnionSocket} as a blocking {@link ByteChannel}, for
+ * code written against {@link java.nio.channels.SocketChannel}. Buffers backed by an array are read
+ * into and written from directly, without copying through an intermediate array.
+ */
+public class OnionSocketChannel implements ByteChannel {
+    private final OnionSocket socket;
+    private final byte[] buffer = new byte[Standards.MAXCELLSIZE - RelayCell.HEADERSIZE];
+    private volatile boolean open = true;
+
+    /**
+     * Wrap an already connected OnionSocket.
+     * @param socket the socket to read from and write to
+     */
+    public OnionSocketChannel(OnionSocket socket){
+        this.socket = socket;
+    }
+
+    /**
+     * Open a channel to an address using the standard NodeDistribution address.
+     * @param address the address to connect to
+     * @return a connected channel
+     * @throws IOException if the chain of OnionNodes could not be set up
+     */
+    public static OnionSocketChannel open(InetSocketAddress address) throws IOException {
+        return open(InetAddress.getByName(Standards.DIST), Standards.DISTPORT, address);
+    }
+
+    /**
+     * Open a channel to an address with a specified NodeDistribution address.
+     * @param distAddress the IP-addres of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     * @param address the address to connect to, if unresolved it is resolved by the last node in the chain
+     * @return a connected channel
+     * @throws IOException if the chain of OnionNodes could not be set up
+     */
+    public static OnionSocketChannel open(InetAddress distAddress, int distPort, InetSocketAddress address) throws IOException {
+        try {
+            Address destination = address.isUnresolved() ?
+                    new Address(address.getHostString(), address.getPort()) :
+                    new Address(address.getAddress(), address.getPort());
+            return new OnionSocketChannel(new OnionSocket(distAddress, distPort, destination));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up encryption with the onion network", e);
+        }
+    }
+
+    /**
+     * Read bytes into the buffer. Will block until at least one byte is available.
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or {@code -1} if the destination has closed the connection
+     * @throws IOException
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if(!open) throw new ClosedChannelException();
+
+        try {
+            int length;
+            if(dst.hasArray()){
+                length = socket.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if(length > 0) dst.position(dst.position() + length);
+            }else{
+                length = socket.read(buffer, 0, Math.min(buffer.length, dst.remaining()));
+                if(length > 0) dst.put(buffer, 0, length);
+            }
+
+            return length;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt data from the onion network", e);
+        }
+    }
+
+    /**
+     * Write all remaining bytes of the buffer.
+     * @param src the buffer to write from
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if(!open) throw new ClosedChannelException();
+
+        int total = src.remaining();
+        try {
+            if(src.hasArray()){
+                socket.send(src.array(), src.arrayOffset() + src.position(), total);
+                src.position(src.limit());
+            }else{
+                while(src.hasRemaining()){
+                    int length = Math.min(buffer.length, src.remaining());
+                    src.get(buffer, 0, length);
+                    socket.send(buffer, 0, length);
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt data for the onion network", e);
+        }
+
+        return total;
+    }
+
+    /**
+     * Tell the destination that no more data will be sent. The channel can still be read from.
+     * @return this channel
+     * @throws IOException
+     */
+    public OnionSocketChannel shutdownOutput() throws IOException {
+        try {
+            socket.shutdownOutput();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt data for the onion network", e);
+        }
+
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        socket.close();
+    }
+}
@@ -0,0 +1,212 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketOptions;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+
+/**
+ * The OnionSocketImpl class lets {@link OnionSocketAdapter} behave like a regular {@link java.net.Socket}.
+ * Connecting sets up an {@link OnionSocket}, and the streams read and write through it with
+ * the usual stream semantics: reads may return fewer bytes than requested, and {@code -1} is
+ * returned once the destination has closed the connection.
+ */
+class OnionSocketImpl extends SocketImpl {
+    private final InetAddress distAddress;
+    private final int distPort;
+    private final HashMap<Integer, Object> options = new HashMap<>();
+    private OnionSocket onion;
+    private int timeout = 0;
+    private boolean outputShutdown = false;
+
+    /**
+     * Make a new unconnected implementation.
+     * @param distAddress the IP-address of the NodeDistribution server
+     * @param distPort the portnumber of the NodeDistribution server
+     */
+    OnionSocketImpl(InetAddress distAddress, int distPort){
+        this.distAddress = distAddress;
+        this.distPort = distPort;
+    }
+
+    @Override
+    protected void create(boolean stream) throws IOException {
+        if(!stream){
+            throw new SocketException("Onion sockets only support streams");
+        }
+    }
+
+    @Override
+    protected void connect(String host, int port) throws IOException {
+        connect(InetSocketAddress.createUnresolved(host, port), 0);
+    }
+
+    @Override
+    protected void connect(InetAddress address, int port) throws IOException {
+        connect(new InetSocketAddress(address, port), 0);
+    }
+
+    /**
+     * Set up a chain of OnionNodes to the address. An unresolved address is resolved by the last
+     * node in the chain. The timeout is not used, as setting up the chain consists of several connections.
+     */
+    @Override
+    protected void connect(SocketAddress address, int timeout) throws IOException {
+        InetSocketAddress socketAddress = (InetSocketAddress) address;
+        Address destination = socketAddress.isUnresolved() ?
+                new Address(socketAddress.getHostString(), socketAddress.getPort()) :
+                new Address(socketAddress.getAddress(), socketAddress.getPort());
+
+        try {
+            onion = new OnionSocket(distAddress, distPort, destination);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up encryption with the onion network", e);
+        }
+        onion.setSoTimeout(this.timeout);
+
+        this.address = socketAddress.getAddress();
+        this.port = socketAddress.getPort();
+    }
+
+    @Override
+    protected void bind(InetAddress host, int port) throws IOException {
+        throw new SocketException("Onion sockets can not be bound");
+    }
+
+    @Override
+    protected void listen(int backlog) throws IOException {
+        throw new SocketException("Onion sockets can not listen");
+    }
+
+    @Override
+    protected void accept(SocketImpl s) throws IOException {
+        throw new SocketException("Onion sockets can not accept");
+    }
+
+    @Override
+    protected InputStream getInputStream() throws IOException {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] bytes = new byte[1];
+                int length = read(bytes, 0, 1);
+
+                return length < 0 ? -1 : bytes[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                try {
+                    return onion.read(bytes, offset, length);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Could not decrypt data from the onion network", e);
+                }
+            }
+
+            @Override
+            public int available() {
+                return onion.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                OnionSocketImpl.this.close();
+            }
+        };
+    }
+
+    /**
+     * The stream is not buffered, every write is sent right away like on a regular socket.
+     * Wrap it in a {@link java.io.BufferedOutputStream} to avoid sending many small packets.
+     */
+    @Override
+    protected OutputStream getOutputStream() throws IOException {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if(outputShutdown){
+                    throw new SocketException("Socket output is shutdown");
+                }
+
+                try {
+                    onion.send(bytes, offset, length);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Could not encrypt data for the onion network", e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                OnionSocketImpl.this.close();
+            }
+        };
+    }
+
+    @Override
+    protected int available() throws IOException {
+        return onion.available();
+    }
+
+    @Override
+    protected void close() throws IOException {
+        if(onion != null){
+            onion.close();
+        }
+    }
+
+    @Override
+    protected void shutdownInput() throws IOException {}
+
+    @Override
+    protected void shutdownOutput() throws IOException {
+        if(outputShutdown) return;
+
+        try {
+            onion.shutdownOutput();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt data for the onion network", e);
+        }
+        outputShutdown = true;
+    }
+
+    @Override
+    protected void sendUrgentData(int data) throws IOException {
+        throw new SocketException("Onion sockets do not support urgent data");
+    }
+
+    @Override
+    public void setOption(int optID, Object value) throws SocketException {
+        if(optID == SocketOptions.SO_TIMEOUT){
+            timeout = (Integer) value;
+            if(onion != null){
+                onion.setSoTimeout(timeout);
+            }
+        }else{
+            //Options for the local connection has no meaning through the onion network
+            options.put(optID, value);
+        }
+    }
+
+    @Override
+    public Object getOption(int optID) throws SocketException {
+        if(optID == SocketOptions.SO_TIMEOUT){
+            return timeout;
+        }
+
+        return options.get(optID);
+    }
+}
@@ -0,0 +1,598 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.RelayCell;
+import markussp.onion.util.Standards;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The SocksProxy class is a {@code main}-class running a SOCKS5 proxy on localhost, by default on
+ * port 1080, letting any application with SOCKS support use the onion network. Each proxied
+ * connection becomes a stream through the onion network.
+ *
+ * Chains of {@link OnionNode}s are reused for new connections while they are open, and closed after
+ * being idle for a minute. Connections are only put on the same chain if they have the same isolation
+ * key, which is made from the destination address and/or the clients port when enabled.
+ *
+ * Arguments, all optional: {@code [port] [isolation] [distAddress] [distPort]}, where isolation is
+ * {@code none} or a comma separated list of {@code destination} and {@code clientport}.
+ * Everything runs on a small pool of threads driving non-blocking channels.
+ */
+public class SocksProxy {
+    static final long IDLETIME = 60000;                     //milliseconds before an unused chain is closed
+    private final int portnr;
+    private final InetAddress distAddress;
+    private final int distPort;
+    private final boolean isolateDestination;
+    private final boolean isolateClientPort;
+    private final ConcurrentHashMap<String, CompletableFuture<ProxyCircuit>> circuits = new ConcurrentHashMap<>();
+    private AsynchronousChannelGroup group;
+    private AsynchronousServerSocketChannel server;
+    private ScheduledExecutorService sweeper;
+
+    public static void main(String[] args) throws Exception {
+        int portnr = Standards.SOCKSPORT;
+        boolean isolateDestination = false;
+        boolean isolateClientPort = false;
+        String distAddress = Standards.DIST;
+        int distPort = Standards.DISTPORT;
+
+        //Override standard values if given
+        if(args.length > 0){
+            portnr = Integer.parseInt(args[0]);
+            if(args.length > 1){
+                for(String key : args[1].split(",")){
+                    if(key.equals("destination")){
+                        isolateDestination = true;
+                    }else if(key.equals("clientport")){
+                        isolateClientPort = true;
+                    }else if(!key.equals("none")){
+                        throw new IllegalArgumentException("Unknown isolation key: " + key);
+                    }
+                }
+                if(args.length > 2){
+                    distAddress = args[2];
+                    if(args.length > 3){
+                        distPort = Integer.parseInt(args[3]);
+                    }
+                }
+            }
+        }
+
+        SocksProxy proxy = new SocksProxy(portnr, InetAddress.getByName(distAddress), distPort, isolateDestination, isolateClientPort);
+        proxy.launch();
+
+        //Wait for user to type exit command
+        System.out.println("SocksProxy is running on port " + portnr + ", type 'x' to exit");
+        Scanner scanner = new Scanner(System.in);
+        while(!scanner.nextLine().equals("x"));
+
+        proxy.close();
+    }
+
+    /**
+     * Make a new SocksProxy.
+     * @param portnr the local port to accept SOCKS connections on
+     * @param distAddress the IP-address of the NodeDistributor
+     * @param distPort the portnumber of the NodeDistributor
+     * @param isolateDestination only share chains between connections to the same destination
+     * @param isolateClientPort only share chains between connections from the same client port
+     */
+    public SocksProxy(int portnr, InetAddress distAddress, int distPort, boolean isolateDestination, boolean isolateClientPort){
+        this.portnr = portnr;
+        this.distAddress = distAddress;
+        this.distPort = distPort;
+        this.isolateDestination = isolateDestination;
+        this.isolateClientPort = isolateClientPort;
+    }
+
+    /**
+     * Start accepting connections on localhost. Returns right away, the proxy runs on its own threads
+     * until {@link #close()} is called.
+     * @throws IOException if the port could not be bound
+     */
+    public void launch() throws IOException {
+        group = AsynchronousChannelGroup.withFixedThreadPool(Runtime.getRuntime().availableProcessors(), Executors.defaultThreadFactory());
+        server = AsynchronousServerSocketChannel.open(group).bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), portnr));
+
+        sweeper = Executors.newSingleThreadScheduledExecutor();
+        sweeper.scheduleAtFixedRate(this::closeIdle, IDLETIME, IDLETIME >> 2, TimeUnit.MILLISECONDS);
+
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel client, Void attachment) {
+                server.accept(null, this);
+                new SocksConnection(SocksProxy.this, client).start();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                if(server.isOpen()) e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Get the port the proxy listens on, which is only known after binding when launched on port 0.
+     * @return the port, or {@code 0} if {@link #launch()} has not bound it yet
+     */
+    public int getPort(){
+        try {
+            return server == null ? 0 : ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stop accepting connections and close all chains.
+     * @throws IOException if the listening channel could not be closed
+     */
+    public void close() throws IOException {
+        server.close();
+        sweeper.shutdownNow();
+        for(CompletableFuture<ProxyCircuit> future : circuits.values()){
+            future.thenAccept(ProxyCircuit::close);
+        }
+        group.shutdownNow();
+    }
+
+    /**
+     * Open a stream for a client, on a chain with the same isolation key if one is open.
+     * @param client the SOCKS client
+     * @param address the destination of the stream
+     * @return a future completed with the stream once the exit node has connected to the destination
+     */
+    CompletableFuture<ProxyStream> openStream(AsynchronousSocketChannel client, Address address){
+        String key;
+        try {
+            int clientPort = ((InetSocketAddress) client.getRemoteAddress()).getPort();
+            key = (isolateDestination ? address.toString() : "") + "|" + (isolateClientPort ? clientPort : "");
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return circuitFor(key).thenCompose(circuit -> {
+            ProxyStream stream = circuit.register(client);
+            if(stream == null){
+                //The chain was closed in the meantime, so build a new one
+                circuits.remove(key);
+                return circuitFor(key).thenApply(c -> c.register(client));
+            }
+            return CompletableFuture.completedFuture(stream);
+        }).thenCompose(stream -> {
+            if(stream == null){
+                return CompletableFuture.failedFuture(new IOException("No open chain available"));
+            }
+            return stream.begin(address).thenApply(v -> stream);
+        });
+    }
+
+    /**
+     * Forget a chain that has been closed, so the next connection with its key builds a new one.
+     * @param key the isolation key of the chain
+     * @param circuit the chain
+     */
+    void remove(String key, ProxyCircuit circuit){
+        circuits.computeIfPresent(key, (k, future) ->
+                future.isDone() && !future.isCompletedExceptionally() && future.join() == circuit ? null : future);
+    }
+
+    /**
+     * Get the chain for an isolation key, building it if needed. Chains that fail to build are
+     * forgotten right away.
+     */
+    private CompletableFuture<ProxyCircuit> circuitFor(String key){
+        CompletableFuture<ProxyCircuit> future = circuits.computeIfAbsent(key, k ->
+                AsyncCircuit.build(distAddress, distPort, group).thenApply(c -> new ProxyCircuit(this, k, c).start()));
+        future.whenComplete((circuit, e) -> {
+            if(e != null) circuits.remove(key, future);
+        });
+
+        return future;
+    }
+
+    /**
+     * Close chains that have not had any streams for {@link #IDLETIME} milliseconds.
+     */
+    private void closeIdle(){
+        long now = System.currentTimeMillis();
+        for(CompletableFuture<ProxyCircuit> future : circuits.values()){
+            if(future.isDone() && !future.isCompletedExceptionally()){
+                future.join().closeIfIdle(now - IDLETIME);
+            }
+        }
+    }
+}
+
+/**
+ * The SocksConnection class handles the SOCKS5 handshake with a single client. Only the CONNECT
+ * command without authentication is supported. When the stream is connected the client gets a
+ * success reply, and the rest is handled by {@link ProxyStream}.
+ */
+class SocksConnection {
+    private static final int SUCCEEDED = 0;
+    private static final int FAILURE = 1;
+    private static final int HOST_UNREACHABLE = 4;
+    private static final int REFUSED = 5;
+    private static final int COMMAND_NOT_SUPPORTED = 7;
+    private static final int ADDRESS_NOT_SUPPORTED = 8;
+    private final SocksProxy proxy;
+    private final AsynchronousSocketChannel client;
+
+    SocksConnection(SocksProxy proxy, AsynchronousSocketChannel client){
+        this.proxy = proxy;
+        this.client = client;
+    }
+
+    void start(){
+        //Greeting with the supported authentication methods
+        AsyncCircuit.readFully(client, 2).thenCompose(greeting -> {
+            if(greeting[0] != 5){
+                throw new CompletionException(new IOException("Not a SOCKS5 client"));
+            }
+            return AsyncCircuit.readFully(client, greeting[1] & 0xFF);
+        }).thenCompose(methods -> {
+            for(byte method : methods){
+                if(method == 0){
+                    return AsyncCircuit.writeFully(client, ByteBuffer.wrap(new byte[]{5, 0}));
+                }
+            }
+            return AsyncCircuit.writeFully(client, ByteBuffer.wrap(new byte[]{5, (byte) 0xFF})).thenRun(() -> {
+                throw new CompletionException(new IOException("SOCKS client requires authentication"));
+            });
+        }).thenCompose(v -> AsyncCircuit.readFully(client, 4)).thenCompose(request -> {
+            //Request with version, command, reserved and address type
+            if(request[1] != 1){
+                throw new CompletionException(new SocksException(COMMAND_NOT_SUPPORTED));
+            }
+            return readAddress(request[3]);
+        }).thenCompose(address ->
+                proxy.openStream(client, address)
+        ).thenCompose(stream ->
+                reply(SUCCEEDED).whenComplete((v, e) -> {
+                    if(e != null){
+                        stream.close();
+                    }else{
+                        stream.pump();
+                    }
+                })
+        ).whenComplete((v, e) -> {
+            if(e == null) return;
+
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            int code = cause instanceof SocksException ? ((SocksException) cause).reply :
+                       cause instanceof ConnectException ? REFUSED :
+                       cause instanceof TimeoutException ? HOST_UNREACHABLE : FAILURE;
+            reply(code).whenComplete((w, f) -> close());
+        });
+    }
+
+    /**
+     * Read the destination address of a request.
+     * @param type the address type, 1 for IPv4, 3 for a hostname and 4 for IPv6
+     * @return a future completed with the address
+     */
+    private CompletableFuture<Address> readAddress(int type){
+        if(type == 1 || type == 4){
+            int length = type == 1 ? 4 : 16;
+            return AsyncCircuit.readFully(client, length + 2).thenApply(bytes -> {
+                try {
+                    return new Address(InetAddress.getByAddress(Arrays.copyOf(bytes, length)), port(bytes, length));
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }else if(type == 3){
+            //Hostnames are resolved by the exit node
+            return AsyncCircuit.readFully(client, 1)
+                    .thenCompose(length -> AsyncCircuit.readFully(client, (length[0] & 0xFF) + 2))
+                    .thenApply(bytes -> new Address(new String(bytes, 0, bytes.length - 2, StandardCharsets.US_ASCII), port(bytes, bytes.length - 2)));
+        }
+
+        return CompletableFuture.failedFuture(new SocksException(ADDRESS_NOT_SUPPORTED));
+    }
+
+    private static int port(byte[] bytes, int offset){
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private CompletableFuture<Void> reply(int code){
+        return AsyncCircuit.writeFully(client, ByteBuffer.wrap(new byte[]{5, (byte) code, 0, 1, 0, 0, 0, 0, 0, 0}));
+    }
+
+    private void close(){
+        try {
+            client.close();
+        } catch (IOException ignored){}
+    }
+
+    /**
+     * The SocksException class carries the reply code a failed request should be answered with.
+     */
+    private static class SocksException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int reply;
+
+        SocksException(int reply){
+            super("SOCKS request failed with reply " + reply);
+            this.reply = reply;
+        }
+    }
+}
+
+/**
+ * The ProxyCircuit class is a chain shared by several {@link ProxyStream}s. It reads all relay cells
+ * from the exit node and hands them to the stream they belong to. Reading is paused while a stream
+ * writes to its client, so a slow client slows down the whole chain instead of buffering. A client
+ * that takes no data for {@link Standards#SOCKSWRITETIMEOUT} milliseconds has its stream closed, so a
+ * stalled client does not hold up the other streams for longer than that.
+ */
+class ProxyCircuit {
+    private final SocksProxy proxy;
+    private final String key;
+    private final AsyncCircuit circuit;
+    private final ConcurrentHashMap<Integer, ProxyStream> streams = new ConcurrentHashMap<>();
+    private int nextStream = 1;
+    private boolean closed = false;
+    private long idleSince = System.currentTimeMillis();
+
+    ProxyCircuit(SocksProxy proxy, String key, AsyncCircuit circuit){
+        this.proxy = proxy;
+        this.key = key;
+        this.circuit = circuit;
+    }
+
+    /**
+     * Start reading relay cells from the exit node.
+     * @return this chain
+     */
+    ProxyCircuit start(){
+        readLoop();
+        return this;
+    }
+
+    /**
+     * Make a new stream on this chain.
+     * @param client the SOCKS client of the stream
+     * @return the stream, or {@code null} if the chain is closed
+     */
+    synchronized ProxyStream register(AsynchronousSocketChannel client){
+        if(closed || streams.size() >= 0xFFFF) return null;
+
+        //Find an unused id, 0 is never used
+        while(streams.containsKey(nextStream)){
+            nextStream = nextStream % 0xFFFF + 1;
+        }
+        ProxyStream stream = new ProxyStream(this, nextStream, client);
+        streams.put(nextStream, stream);
+        nextStream = nextStream % 0xFFFF + 1;
+
+        return stream;
+    }
+
+    synchronized void remove(int id){
+        streams.remove(id);
+        if(streams.isEmpty()){
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    CompletableFuture<Void> sendCell(int command, int stream, byte[] bytes, int offset, int length){
+        return circuit.sendCell(command, stream, bytes, offset, length);
+    }
+
+    /**
+     * Close the chain if it has not had any streams since the given time.
+     * @param time the time in milliseconds
+     */
+    synchronized void closeIfIdle(long time){
+        if(streams.isEmpty() && idleSince < time){
+            close();
+        }
+    }
+
+    void close(){
+        synchronized (this){
+            if(closed) return;
+            closed = true;
+        }
+        proxy.remove(key, this);
+        circuit.close();
+        for(ProxyStream stream : streams.values()){
+            stream.close();
+        }
+    }
+
+    private void readLoop(){
+        circuit.readCell().thenCompose(this::dispatch).whenComplete((v, e) -> {
+            if(e != null){
+                close();
+            }else{
+                readLoop();
+            }
+        });
+    }
+
+    /**
+     * Hand a relay cell to its stream.
+     * @return a future completed when the next cell can be read
+     */
+    private CompletableFuture<Void> dispatch(RelayCell cell){
+        ProxyStream stream = streams.get(cell.stream);
+        if(stream == null){
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if(cell.command == RelayCell.CONNECTED){
+            stream.connected();
+        }else if(cell.command == RelayCell.DATA){
+            return stream.write(cell.payload);
+        }else if(cell.command == RelayCell.END){
+            stream.remoteEnded();
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+}
+
+/**
+ * The ProxyStream class connects a SOCKS client to a stream on a {@link ProxyCircuit}. Data from the
+ * client is read in chunks fitting a relay cell, and the next chunk is only read when the previous
+ * one is written to the chain. The stream is closed when both ends have sent END.
+ */
+class ProxyStream {
+    private final ProxyCircuit circuit;
+    private final int id;
+    private final AsynchronousSocketChannel client;
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+    private boolean localEnded = false;
+    private boolean remoteEnded = false;
+
+    ProxyStream(ProxyCircuit circuit, int id, AsynchronousSocketChannel client){
+        this.circuit = circuit;
+        this.id = id;
+        this.client = client;
+    }
+
+    /**
+     * Ask the exit node to connect to the destination.
+     * @param address the destination
+     * @return a future completed when the exit node has connected, or failed with a
+     * {@link TimeoutException} if it did not answer within {@link Standards#SOCKSCONNECTTIMEOUT} milliseconds
+     */
+    CompletableFuture<Void> begin(Address address){
+        ByteBuffer begin = ByteBuffer.allocate(RelayCell.PAYLOADSIZE);
+        Standards.writeAddress(begin, address);
+        circuit.sendCell(RelayCell.BEGIN, id, begin.array(), 0, begin.position()).whenComplete((v, e) -> {
+            if(e != null) connected.completeExceptionally(e);
+        });
+
+        return connected.orTimeout(Standards.SOCKSCONNECTTIMEOUT, TimeUnit.MILLISECONDS).whenComplete((v, e) -> {
+            if(e == null) return;
+
+            //The exit node may still connect later, so tell it the stream is gone
+            if(e instanceof TimeoutException){
+                circuit.sendCell(RelayCell.END, id, new byte[0], 0, 0);
+            }
+            close();
+        });
+    }
+
+    void connected(){
+        connected.complete(null);
+    }
+
+    /**
+     * Relay data from the client to the chain until the client stops sending.
+     */
+    void pump(){
+        ByteBuffer buffer = ByteBuffer.allocate(RelayCell.PAYLOADSIZE);
+        client.read(buffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer length, Void attachment) {
+                if(length < 0){
+                    circuit.sendCell(RelayCell.END, id, buffer.array(), 0, 0);
+                    localEnded();
+                    return;
+                }
+
+                CompletionHandler<Integer, Void> handler = this;
+                circuit.sendCell(RelayCell.DATA, id, buffer.array(), 0, length).whenComplete((v, e) -> {
+                    if(e != null){
+                        close();
+                        return;
+                    }
+                    buffer.clear();
+                    client.read(buffer, null, handler);
+                });
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Write data from the chain to the client. A client that does not take the data within
+     * {@link Standards#SOCKSWRITETIMEOUT} milliseconds is closed.
+     * @param bytes the payload of a DATA cell
+     * @return a future completed when the data is written, even if writing failed or timed out
+     */
+    CompletableFuture<Void> write(byte[] bytes){
+        return AsyncCircuit.writeFully(client, ByteBuffer.wrap(bytes)).orTimeout(Standards.SOCKSWRITETIMEOUT, TimeUnit.MILLISECONDS).exceptionally(e -> {
+            close();
+            return null;
+        });
+    }
+
+    /**
+     * The exit node has sent END, either because the destination stopped sending or because
+     * it could not connect.
+     */
+    void remoteEnded(){
+        if(!connected.isDone()){
+            connected.completeExceptionally(new ConnectException("The exit node could not connect"));
+            return;
+        }
+
+        synchronized (this){
+            remoteEnded = true;
+            if(localEnded){
+                close();
+                return;
+            }
+        }
+        try {
+            client.shutdownOutput();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private synchronized void localEnded(){
+        localEnded = true;
+        if(remoteEnded){
+            close();
+        }
+    }
+
+    /**
+     * Close the client connection, and tell the exit node if it has not been told already.
+     */
+    void close(){
+        boolean tell;
+        synchronized (this){
+            tell = !localEnded && connected.isDone() && !connected.isCompletedExceptionally();
+            localEnded = true;
+        }
+        if(tell){
+            circuit.sendCell(RelayCell.END, id, new byte[0], 0, 0);
+        }
+        circuit.remove(id);
+        try {
+            client.close();
+        } catch (IOException ignored){}
+    }
+}
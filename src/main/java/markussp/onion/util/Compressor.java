@@ -0,0 +1,48 @@
+package markussp.onion.util;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * The Compressor class compresses one direction of a stream with deflate, for a {@link Decompressor}
+ * at the other end. The stream is compressed as a whole, so later data refers back to earlier data,
+ * and every call is flushed so the other end can decompress all of it right away. The Deflater and
+ * the output buffer are kept between calls. Not thread-safe, each direction is compressed by one thread.
+ */
+public class Compressor {
+    private final Deflater deflater = new Deflater(Standards.DEFLATELEVEL, true);
+    private byte[] buffer = new byte[Standards.PACKETSIZE];
+
+    /**
+     * Compress a part of an array. The compressed bytes are in {@link #getBuffer()} until the next call.
+     * @param bytes the array holding the data
+     * @param offset where in the array the data starts
+     * @param length the length of the data
+     * @return the number of compressed bytes
+     */
+    public int compress(byte[] bytes, int offset, int length){
+        deflater.setInput(bytes, offset, length);
+        int size = 0;
+        while(true){
+            size += deflater.deflate(buffer, size, buffer.length - size, Deflater.SYNC_FLUSH);
+            //A full buffer may mean that the flush is not done
+            if(size < buffer.length) return size;
+            buffer = Arrays.copyOf(buffer, buffer.length << 1);
+        }
+    }
+
+    /**
+     * Get the buffer holding the output of the last call.
+     * @return the buffer, only valid up to the length returned
+     */
+    public byte[] getBuffer(){
+        return buffer;
+    }
+
+    /**
+     * Free the memory of the Deflater, the Compressor can not be used after this.
+     */
+    public void end(){
+        deflater.end();
+    }
+}
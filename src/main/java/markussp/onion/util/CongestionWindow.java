@@ -0,0 +1,223 @@
+package markussp.onion.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+
+/**
+ * The CongestionWindow class limits how many DATA cells one end of a chain can have in flight.
+ * The receiving end answers every {@link Standards#ACKINTERVAL} DATA cells with an ACK cell, and
+ * the time from sending the cell to getting its ACK is the round trip time.
+ *
+ * The window is adapted like TCP Vegas: the lowest round trip time seen is taken as the time without
+ * any queues, and the difference to the current round trip time tells how many cells are queued in
+ * the nodes. The window doubles every round trip until cells start queueing, and after that it grows
+ * while fewer than {@link Standards#VEGASALPHA} cells are queued and shrinks when more than
+ * {@link Standards#VEGASBETA} are. Fast links get a large window, while congested nodes keep short queues.
+ */
+public class CongestionWindow {
+    private final LongSupplier clock;
+    private final ArrayDeque<Long> sendTimes = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+    private int window = Standards.INITWINDOW;
+    private int inFlight = 0;
+    private long sent = 0;
+    private long rtt = 0;
+    private long baseRtt = Long.MAX_VALUE;
+    private boolean slowStart = true;
+    private boolean releasing = false;
+    private boolean closed = false;
+
+    /**
+     * Make a new window measuring time with {@link System#nanoTime()}.
+     */
+    public CongestionWindow(){
+        this(System::nanoTime);
+    }
+
+    /**
+     * Make a new window with a custom clock.
+     * @param clock the current time in nanoseconds
+     */
+    public CongestionWindow(LongSupplier clock){
+        this.clock = clock;
+    }
+
+    /**
+     * Take room for one DATA cell if the window is not full. Must be called right before the
+     * cell is sent, as cells are matched with ACKs in the order they are sent.
+     * @return {@code true} if the cell can be sent
+     */
+    public synchronized boolean tryAcquire(){
+        if(closed || isBlocked()) return false;
+
+        take();
+        return true;
+    }
+
+    /**
+     * Take room for one DATA cell, blocking until an ACK makes room.
+     * @throws IOException if the window is closed, or the thread is interrupted
+     */
+    public synchronized void acquire() throws IOException {
+        while(!closed && isBlocked()){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for the congestion window");
+            }
+        }
+        if(closed) throw new IOException("Circuit is closed");
+
+        take();
+    }
+
+    /**
+     * Take room for one DATA cell without blocking. Futures are completed in the order they
+     * were requested, and the cell must be sent before the future completion returns.
+     * @return a future completed when the cell can be sent, or failed if the window is closed
+     */
+    public CompletableFuture<Void> acquireAsync(){
+        synchronized (this){
+            if(closed) return CompletableFuture.failedFuture(new IOException("Circuit is closed"));
+            if(!isBlocked()){
+                take();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            waiting.add(future);
+            return future;
+        }
+    }
+
+    /**
+     * Register an ACK cell, making room for {@link Standards#ACKINTERVAL} more cells and adapting
+     * the window to the measured round trip time.
+     */
+    public void acknowledge(){
+        synchronized (this){
+            Long time = sendTimes.poll();
+            if(time == null) return;
+            inFlight = Math.max(0, inFlight - Standards.ACKINTERVAL);
+
+            rtt = Math.max(1, clock.getAsLong() - time);
+            baseRtt = Math.min(baseRtt, rtt);
+            adapt();
+        }
+
+        release();
+    }
+
+    /**
+     * Let waiting senders through in order. The futures are completed without holding the lock, and
+     * until they are, new senders wait behind them instead of passing them while the window has room.
+     * Only one thread releases at a time, looping until no more senders fit in the window.
+     */
+    private void release(){
+        while(true){
+            ArrayList<CompletableFuture<Void>> ready = new ArrayList<>();
+            synchronized (this){
+                if(releasing) return;
+                while(inFlight < window && !waiting.isEmpty()){
+                    take();
+                    ready.add(waiting.poll());
+                }
+                if(ready.isEmpty()){
+                    notifyAll();
+                    return;
+                }
+                releasing = true;
+            }
+
+            try {
+                for(CompletableFuture<Void> future : ready){
+                    future.complete(null);
+                }
+            } finally {
+                synchronized (this){
+                    releasing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail every waiting sender, and make further acquires fail.
+     */
+    public void close(){
+        ArrayList<CompletableFuture<Void>> failed;
+        synchronized (this){
+            closed = true;
+            failed = new ArrayList<>(waiting);
+            waiting.clear();
+            notifyAll();
+        }
+
+        for(CompletableFuture<Void> future : failed){
+            future.completeExceptionally(new IOException("Circuit is closed"));
+        }
+    }
+
+    /**
+     * Get the current window.
+     * @return the number of DATA cells allowed in flight
+     */
+    public synchronized int getWindow(){
+        return window;
+    }
+
+    /**
+     * Get the number of DATA cells sent without being acknowledged.
+     * @return the cells in flight
+     */
+    public synchronized int getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * Get the last measured round trip time.
+     * @return the round trip time in nanoseconds, or {@code 0} if nothing is measured yet
+     */
+    public synchronized long getRtt(){
+        return rtt;
+    }
+
+    private boolean isBlocked(){
+        return inFlight >= window || !waiting.isEmpty() || releasing;
+    }
+
+    private void take(){
+        inFlight++;
+        if(++sent % Standards.ACKINTERVAL == 0){
+            sendTimes.add(clock.getAsLong());
+        }
+    }
+
+    private void adapt(){
+        //Cells queued in the nodes, estimated from how much longer the round trip is than the lowest seen
+        long queued = window * (rtt - baseRtt) / rtt;
+
+        if(slowStart){
+            if(queued > Standards.VEGASGAMMA){
+                slowStart = false;
+                window -= queued >> 1;
+            }else{
+                window += Standards.ACKINTERVAL;
+            }
+        }else{
+            //About one cell per round trip, as there are window / ACKINTERVAL ACKs per round trip
+            int step = Math.max(1, Standards.ACKINTERVAL * Standards.ACKINTERVAL / window);
+            if(queued < Standards.VEGASALPHA){
+                window += step;
+            }else if(queued > Standards.VEGASBETA){
+                window -= step;
+            }
+        }
+
+        window = Math.max(Standards.MINWINDOW, Math.min(Standards.MAXWINDOW, window));
+    }
+}
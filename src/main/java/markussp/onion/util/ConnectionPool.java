@@ -0,0 +1,177 @@
+package markussp.onion.util;
+
+import markussp.onion.model.Address;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The ConnectionPool class keeps idle connections from an exit node to destinations open, so a new
+ * stream to the same destination can reuse one instead of waiting for a new connection. Only destinations
+ * enabled with {@link #enable(Address)} are pooled, as reusing a connection only works for protocols
+ * where one request is done before the next begins, like HTTP with keep-alive.
+ *
+ * The most recently used connection is handed out first. Connections idle for longer than the idle
+ * time are closed, and so are the ones idle for longest when a destination or the pool has too many.
+ */
+public class ConnectionPool {
+    private final int maxPerDestination;
+    private final int maxIdle;
+    private final long idleTime;
+    private final LongSupplier clock;
+    private final Set<Address> enabled = ConcurrentHashMap.newKeySet();
+    private final HashMap<Address, ArrayDeque<Idle>> idle = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Make a new empty pool.
+     * @param maxPerDestination the maximum number of idle connections to one destination
+     * @param maxIdle the maximum number of idle connections in total
+     * @param idleTime milliseconds a connection can be idle before it is closed
+     */
+    public ConnectionPool(int maxPerDestination, int maxIdle, long idleTime){
+        this(maxPerDestination, maxIdle, idleTime, System::currentTimeMillis);
+    }
+
+    /**
+     * Make a new empty pool with a custom clock.
+     * @param maxPerDestination the maximum number of idle connections to one destination
+     * @param maxIdle the maximum number of idle connections in total
+     * @param idleTime milliseconds a connection can be idle before it is closed
+     * @param clock the current time in milliseconds
+     */
+    public ConnectionPool(int maxPerDestination, int maxIdle, long idleTime, LongSupplier clock){
+        this.maxPerDestination = maxPerDestination;
+        this.maxIdle = maxIdle;
+        this.idleTime = idleTime;
+        this.clock = clock;
+    }
+
+    /**
+     * Pool connections to a destination.
+     * @param destination the IP-address and port of the destination
+     */
+    public void enable(Address destination){
+        enabled.add(destination);
+    }
+
+    /**
+     * Check if connections to a destination are pooled.
+     * @param destination the IP-address and port of the destination
+     * @return {@code true} if the destination is enabled
+     */
+    public boolean isEnabled(Address destination){
+        return enabled.contains(destination);
+    }
+
+    /**
+     * Take the most recently used idle connection to a destination. The destination may have closed
+     * it in the meantime, so the caller should check it before use.
+     * @param destination the IP-address and port of the destination
+     * @return the connection, or {@code null} if there is none
+     */
+    public synchronized Socket take(Address destination){
+        ArrayDeque<Idle> connections = idle.get(destination);
+        long now = clock.getAsLong();
+
+        while(connections != null && !connections.isEmpty()){
+            Idle connection = connections.pollLast();
+            size--;
+            if(now - connection.since < idleTime){
+                return connection.socket;
+            }
+            close(connection.socket);
+        }
+
+        return null;
+    }
+
+    /**
+     * Put a connection back in the pool, closing the ones idle for longest if there are too many.
+     * @param destination the IP-address and port of the destination
+     * @param socket the connection, open and with nothing left to read
+     */
+    public synchronized void release(Address destination, Socket socket){
+        ArrayDeque<Idle> connections = idle.computeIfAbsent(destination, key -> new ArrayDeque<>());
+        connections.add(new Idle(socket, clock.getAsLong()));
+        size++;
+
+        if(connections.size() > maxPerDestination){
+            close(connections.poll().socket);
+            size--;
+        }
+        while(size > maxIdle){
+            //The first connection of each destination is the one idle for longest
+            ArrayDeque<Idle> oldest = null;
+            for(ArrayDeque<Idle> candidate : idle.values()){
+                if(!candidate.isEmpty() && (oldest == null || candidate.peek().since < oldest.peek().since)){
+                    oldest = candidate;
+                }
+            }
+            close(oldest.poll().socket);
+            size--;
+        }
+    }
+
+    /**
+     * Close every connection that has been idle for longer than the idle time.
+     */
+    public synchronized void evict(){
+        long now = clock.getAsLong();
+        Iterator<ArrayDeque<Idle>> iterator = idle.values().iterator();
+
+        while(iterator.hasNext()){
+            ArrayDeque<Idle> connections = iterator.next();
+            while(!connections.isEmpty() && now - connections.peek().since >= idleTime){
+                close(connections.poll().socket);
+                size--;
+            }
+            if(connections.isEmpty()){
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of idle connections, including expired ones not yet closed.
+     * @return the number of connections
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * Close every idle connection.
+     */
+    public synchronized void close(){
+        for(ArrayDeque<Idle> connections : idle.values()){
+            for(Idle connection : connections){
+                close(connection.socket);
+            }
+        }
+        idle.clear();
+        size = 0;
+    }
+
+    private static void close(Socket socket){
+        try {
+            socket.close();
+        }catch (IOException ignored){}
+    }
+
+    private static class Idle {
+        private final Socket socket;
+        private final long since;
+
+        private Idle(Socket socket, long since){
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+}
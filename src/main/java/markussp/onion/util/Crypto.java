@@ -2,17 +2,21 @@ package markussp.onion.util;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.IOException;
 import java.security.*;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
 
 /**
- * The Crypto class is a static class providing methods used in a Diffie-Hellman Key Exchange.
+ * The Crypto class is a static class providing methods used in an X25519 Diffie-Hellman Key Exchange,
+ * and for deriving keys from the shared secret with HKDF (RFC 5869). Hidden services sign their
+ * descriptors with ECDSA on the P-256 curve.
  */
 public final class Crypto {
 
@@ -22,11 +26,11 @@ public final class Crypto {
      */
     public static KeyPair generateKeyPair(){
         try {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
-            keyPairGenerator.initialize(Standards.KEYSIZE);
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("XDH");
+            keyPairGenerator.initialize(NamedParameterSpec.X25519);
 
             return keyPairGenerator.generateKeyPair();
-        } catch (NoSuchAlgorithmException e) {
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
             e.printStackTrace();
             return null;
         }
@@ -40,12 +44,9 @@ public final class Crypto {
      */
     public static KeyPair generateKeyPair(byte[] otherEncodedKey) throws InvalidKeySpecException{
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("DH");
-            X509EncodedKeySpec otherEncodedKeySpec = new X509EncodedKeySpec(otherEncodedKey);
-            PublicKey otherPublicKey = keyFactory.generatePublic(otherEncodedKeySpec);
-            DHParameterSpec parameterSpec = ((DHPublicKey) otherPublicKey).getParams();
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
-            keyPairGenerator.initialize(parameterSpec);
+            XECPublicKey otherPublicKey = (XECPublicKey) decodePublicKey(otherEncodedKey);
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("XDH");
+            keyPairGenerator.initialize(otherPublicKey.getParams());
 
             return keyPairGenerator.generateKeyPair();
         } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
@@ -56,24 +57,55 @@ public final class Crypto {
 
     /**
      * After generating a KeyPair and getting the other clients PublicKey, the shared secret can be
-     * generated.
+     * generated. The secret should not be used as a key directly, but through {@link #hkdf(byte[], byte[], byte[], int) hkdf}.
      * @param keyPair this clients key pair
      * @param otherEncodedKey the other clients encoded public key
-     * @return a SecretKeySpec, will be equal to the other clients one
+     * @return the shared secret, will be equal to the other clients one
      * @throws InvalidKeySpecException
      * @throws InvalidKeyException
      */
-    public static SecretKeySpec generateSecretKeySpec(KeyPair keyPair, byte[] otherEncodedKey) throws InvalidKeySpecException, InvalidKeyException{
+    public static byte[] generateSecret(KeyPair keyPair, byte[] otherEncodedKey) throws InvalidKeySpecException, InvalidKeyException{
         try {
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("DH");
+            KeyAgreement keyAgreement = KeyAgreement.getInstance("XDH");
             keyAgreement.init(keyPair.getPrivate());
-            KeyFactory keyFactory = KeyFactory.getInstance("DH");
-            X509EncodedKeySpec otherEncodedKeySpec = new X509EncodedKeySpec(otherEncodedKey);
-            PublicKey otherPublicKey = keyFactory.generatePublic(otherEncodedKeySpec);
-            keyAgreement.doPhase(otherPublicKey, true);
-            byte[] sharedSecret = keyAgreement.generateSecret();
+            keyAgreement.doPhase(decodePublicKey(otherEncodedKey), true);
+
+            return keyAgreement.generateSecret();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            return new SecretKeySpec(sharedSecret, 0, 16, "AES");
+    /**
+     * Derive key material from a shared secret with HKDF using HMAC-SHA256.
+     * @param salt a non-secret value binding the keys to this exchange, for example both public keys
+     * @param secret the shared secret
+     * @param info what the keys are used for
+     * @param length the number of bytes to derive, at most 8160
+     * @return the derived bytes
+     * @throws InvalidKeyException
+     */
+    public static byte[] hkdf(byte[] salt, byte[] secret, byte[] info, int length) throws InvalidKeyException{
+        try {
+            //Extract a pseudorandom key from the secret
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt.length == 0 ? new byte[32] : salt, "HmacSHA256"));
+            byte[] prk = mac.doFinal(secret);
+
+            //Expand it to the wanted length
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            for(int i=0, counter=1; i<length; i+=block.length, counter++){
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                System.arraycopy(block, 0, output, i, Math.min(block.length, length - i));
+            }
+
+            return output;
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return null;
@@ -81,15 +113,35 @@ public final class Crypto {
     }
 
     /**
-     * After generating a SecretKeySpec, a Cipher object can be generated to encrypt data
-     * @param secretKeySpec the shared secret
+     * Make a Cipher object to encrypt data, with a key and initialization vector agreed upon with
+     * the other client, for example derived with {@link #hkdf(byte[], byte[], byte[], int) hkdf}.
+     * @param secretKeySpec the key
+     * @param iv the initialization vector of 16 bytes
      * @return a Cipher object for encryption
      * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
      */
-    public static Cipher generateCipher(SecretKeySpec secretKeySpec) throws InvalidKeyException{
+    public static Cipher generateCipher(SecretKeySpec secretKeySpec, byte[] iv) throws InvalidKeyException, InvalidAlgorithmParameterException{
+        return generateCipher(Cipher.ENCRYPT_MODE, secretKeySpec, iv);
+    }
+
+    /**
+     * Make a Cipher object to decrypt data from the other client, which encrypted it with the
+     * same key and initialization vector.
+     * @param secretKeySpec the key
+     * @param iv the initialization vector of 16 bytes
+     * @return a Cipher object for decryption
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public static Cipher generateDecipher(SecretKeySpec secretKeySpec, byte[] iv) throws InvalidKeyException, InvalidAlgorithmParameterException{
+        return generateCipher(Cipher.DECRYPT_MODE, secretKeySpec, iv);
+    }
+
+    private static Cipher generateCipher(int mode, SecretKeySpec secretKeySpec, byte[] iv) throws InvalidKeyException, InvalidAlgorithmParameterException{
         try {
             Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
+            cipher.init(mode, secretKeySpec, new IvParameterSpec(iv));
 
             return cipher;
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
@@ -99,25 +151,81 @@ public final class Crypto {
     }
 
     /**
-     * After generating a SecretKeySpec, the other client will generate a Cipher and send this client
-     * the specifications used in the creation. This method will make a Cipher object that can decipher
-     * the data from the other client.
-     * @param encodedParams the encoded cipher parameters from the other client
-     * @param secretKeySpec the shared secret
-     * @return a Cipher object for decryption
-     * @throws IOException
+     * Generate a key pair for signing, the identity of a hidden service.
+     * @return a new P-256 KeyPair
+     */
+    public static KeyPair generateSigningKeyPair(){
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+            keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+
+            return keyPairGenerator.generateKeyPair();
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Sign data with SHA256withECDSA.
+     * @param privateKey the private key of a pair made by {@link #generateSigningKeyPair()}
+     * @param data the data to sign
+     * @return the signature, at most 72 bytes
      * @throws InvalidKeyException
-     * @throws InvalidAlgorithmParameterException
      */
-    public static Cipher generateDecipher(byte[] encodedParams, SecretKeySpec secretKeySpec) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException{
+    public static byte[] sign(PrivateKey privateKey, byte[] data) throws InvalidKeyException{
         try {
-            AlgorithmParameters algParams = AlgorithmParameters.getInstance("AES");
-            algParams.init(encodedParams);
-            Cipher decipher = Cipher.getInstance("AES/CBC/NoPadding");
-            decipher.init(Cipher.DECRYPT_MODE, secretKeySpec, algParams);
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(privateKey);
+            signature.update(data);
 
-            return decipher;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return signature.sign();
+        } catch (NoSuchAlgorithmException | SignatureException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Check a signature made by {@link #sign(PrivateKey, byte[]) sign}.
+     * @param encodedKey the encoded public key of the signer
+     * @param data the data that was signed
+     * @param signature the signature
+     * @return {@code true} if the signature is valid, {@code false} if it is not or the key is malformed
+     */
+    public static boolean verify(byte[] encodedKey, byte[] data, byte[] signature){
+        try {
+            PublicKey publicKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encodedKey));
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hash data with SHA-256.
+     * @param data the data to hash
+     * @return the 32 byte hash
+     */
+    public static byte[] sha256(byte[] data){
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static PublicKey decodePublicKey(byte[] encodedKey) throws InvalidKeySpecException{
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("XDH");
+
+            return keyFactory.generatePublic(new X509EncodedKeySpec(encodedKey));
+        } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return null;
         }
@@ -0,0 +1,51 @@
+package markussp.onion.util;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The Decompressor class decompresses one direction of a stream compressed by a {@link Compressor}.
+ * Data is given in the order it was compressed, split in any way. Each part is decompressed into a
+ * buffer of {@link Standards#INFLATECHUNK} bytes at a time, so a small part that expands to a lot of
+ * data never takes more memory than that. Not thread-safe, each direction is decompressed by one thread.
+ */
+public class Decompressor {
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[Standards.INFLATECHUNK];
+
+    /**
+     * Give the next part of the compressed data, to be decompressed by {@link #inflate()}. The
+     * part given before must be used up first, and the array must not change until it is.
+     * @param bytes the array holding the compressed data
+     * @param offset where in the array the data starts
+     * @param length the length of the data
+     */
+    public void setInput(byte[] bytes, int offset, int length){
+        inflater.setInput(bytes, offset, length);
+    }
+
+    /**
+     * Decompress the next chunk of the input. The decompressed bytes are in {@link #getBuffer()}
+     * until the next call. Called until it returns {@code 0}, which means the input is used up.
+     * @return the number of decompressed bytes, at most {@link Standards#INFLATECHUNK}
+     * @throws DataFormatException if the data is not a deflate stream
+     */
+    public int inflate() throws DataFormatException {
+        return inflater.inflate(buffer);
+    }
+
+    /**
+     * Get the buffer holding the output of the last call.
+     * @return the buffer, only valid up to the length returned
+     */
+    public byte[] getBuffer(){
+        return buffer;
+    }
+
+    /**
+     * Free the memory of the Inflater, the Decompressor can not be used after this.
+     */
+    public void end(){
+        inflater.end();
+    }
+}
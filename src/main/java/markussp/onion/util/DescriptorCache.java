@@ -0,0 +1,111 @@
+package markussp.onion.util;
+
+import markussp.onion.model.ServiceDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * The DescriptorCache class remembers the descriptors of hidden services for a limited time, so
+ * connecting to the same service again does not wait for a Distributor. When the cache is full the
+ * least recently used service is forgotten. A descriptor that turned out to be stale, because none
+ * of its introduction points answered, is dropped with {@link #invalidate(byte[]) invalidate}.
+ */
+public class DescriptorCache {
+    private final long ttl;
+    private final LongSupplier clock;
+    private final LinkedHashMap<ByteBuffer, Lookup> entries;
+
+    /**
+     * The Fetcher interface is for getting a descriptor on a cache miss, usually from a Distributor.
+     */
+    public interface Fetcher {
+        ServiceDescriptor fetch(byte[] id) throws IOException;
+    }
+
+    /**
+     * Make a new cache.
+     * @param capacity the maximum number of services to remember
+     * @param ttl milliseconds to remember a descriptor
+     */
+    public DescriptorCache(int capacity, long ttl){
+        this(capacity, ttl, System::currentTimeMillis);
+    }
+
+    /**
+     * Make a new cache with a custom clock.
+     * @param capacity the maximum number of services to remember
+     * @param ttl milliseconds to remember a descriptor
+     * @param clock the current time in milliseconds
+     */
+    public DescriptorCache(int capacity, long ttl, LongSupplier clock){
+        this.ttl = ttl;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Lookup> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the descriptor of a service, using the cached one if it has not expired. The fetch itself
+     * is done without holding the lock, so a slow Distributor does not block other services.
+     * @param id the id of the service
+     * @param fetcher where to get the descriptor on a cache miss
+     * @return the descriptor
+     * @throws IOException if the descriptor could not be fetched
+     */
+    public ServiceDescriptor get(byte[] id, Fetcher fetcher) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(id.clone());
+        long now = clock.getAsLong();
+
+        synchronized (entries){
+            Lookup entry = entries.get(key);
+            if(entry != null && entry.expires > now){
+                return entry.descriptor;
+            }
+        }
+
+        ServiceDescriptor descriptor = fetcher.fetch(id);
+        synchronized (entries){
+            entries.put(key, new Lookup(descriptor, now + ttl));
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Forget the descriptor of a service, so the next {@link #get(byte[], Fetcher) get} fetches it again.
+     * @param id the id of the service
+     */
+    public void invalidate(byte[] id){
+        synchronized (entries){
+            entries.remove(ByteBuffer.wrap(id));
+        }
+    }
+
+    /**
+     * Get the number of services currently remembered, including expired ones not yet forgotten.
+     * @return the number of entries
+     */
+    public int size(){
+        synchronized (entries){
+            return entries.size();
+        }
+    }
+
+    private static class Lookup {
+        private final ServiceDescriptor descriptor;
+        private final long expires;
+
+        private Lookup(ServiceDescriptor descriptor, long expires){
+            this.descriptor = descriptor;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package markussp.onion.util;
+
+import markussp.onion.model.NodeEntry;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * The DirectoryLog class keeps the directory of a {@link markussp.onion.router.Distributor} on disk,
+ * so a restarted Distributor knows the nodes of the network right away. Every change to an entry is
+ * appended to the file as a record holding its length, a checksum and the entry. Loading reads the
+ * records in order, and a record cut short by a crash is dropped together with everything after it.
+ *
+ * As entries change, old records pile up. Compacting writes the current entries to a new file,
+ * which replaces the log in one step, so the file on disk is always a complete log. Entries carry
+ * their version, so records appended while compacting can simply be copied after the new ones.
+ */
+public class DirectoryLog implements AutoCloseable {
+    private static final int HEADER = 4 + 4;                //length and checksum of a record
+    private final Path path;
+    private final ByteBuffer record = ByteBuffer.allocate(HEADER + Standards.MAXENTRYSIZE);
+    private FileChannel channel;
+    private int appended = 0;
+
+    /**
+     * Open a log, creating the file if it does not exist.
+     * @param path the file holding the log
+     * @throws IOException if the file could not be opened
+     */
+    public DirectoryLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Read every entry in the log, oldest first. A broken record at the end is cut off, so
+     * new records follow the last complete one.
+     * @return the entries, several entries for the same node are possible
+     * @throws IOException if the file could not be read
+     */
+    public synchronized List<NodeEntry> load() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        buffer.flip();
+
+        ArrayList<NodeEntry> entries = new ArrayList<>();
+        int end = 0;
+        while(buffer.remaining() >= HEADER){
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length < 0 || length > Standards.MAXENTRYSIZE || length > buffer.remaining()) break;
+
+            ByteBuffer entry = buffer.slice();
+            entry.limit(length);
+            if(checksum(entry) != checksum) break;
+            try {
+                entries.add(Standards.readEntry(entry));
+            } catch (IOException | BufferUnderflowException e) {
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            end = buffer.position();
+        }
+
+        channel.truncate(end);
+        channel.position(end);
+        return entries;
+    }
+
+    /**
+     * Append a changed entry to the log. The record is handed to the operating system, but not
+     * forced to disk, so a crash of the machine can lose the latest changes.
+     * @param entry the entry
+     * @throws IOException if the record could not be written
+     */
+    public synchronized void append(NodeEntry entry) throws IOException {
+        writeRecord(channel, record, entry);
+        appended++;
+    }
+
+    /**
+     * Replace the log with the current entries. Records appended while the new file is written
+     * are copied to the end of it, so no change is lost.
+     * @param snapshot gets the current entries, called without holding the lock of this log
+     * @throws IOException if the new file could not be written, the old log is kept then
+     */
+    public void compact(Supplier<List<NodeEntry>> snapshot) throws IOException {
+        //Changes logged after this position may be missing from the snapshot
+        long from;
+        synchronized (this){
+            from = channel.position();
+            appended = 0;
+        }
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel output = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(record.capacity());
+            for(NodeEntry entry : snapshot.get()){
+                writeRecord(output, buffer, entry);
+            }
+
+            synchronized (this){
+                long to = channel.position();
+                while(from < to){
+                    from += channel.transferTo(from, to - from, output);
+                }
+                output.force(true);
+                Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                channel.close();
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+            }
+        }
+    }
+
+    /**
+     * Get the number of records appended since the log was last compacted.
+     * @return the number of records
+     */
+    public synchronized int getAppended(){
+        return appended;
+    }
+
+    /**
+     * Force the log to disk and close it.
+     * @throws IOException if the file could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(channel.isOpen()){
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    private static void writeRecord(FileChannel output, ByteBuffer record, NodeEntry entry) throws IOException {
+        record.clear();
+        record.position(HEADER);
+        Standards.writeEntry(record, entry);
+        record.flip();
+
+        ByteBuffer body = record.duplicate();
+        body.position(HEADER);
+        record.putInt(0, body.remaining());
+        record.putInt(4, checksum(body));
+
+        while(record.hasRemaining()){
+            output.write(record);
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer){
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+}
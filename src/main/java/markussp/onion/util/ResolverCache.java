@@ -0,0 +1,118 @@
+package markussp.onion.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * The ResolverCache class resolves hostnames for exit nodes, remembering each answer for a limited
+ * time. Hostnames that could not be resolved are remembered as well, for a shorter time. When the
+ * cache is full the least recently used hostname is forgotten.
+ */
+public class ResolverCache {
+    private final long ttl;
+    private final long negativeTtl;
+    private final Resolver resolver;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Lookup> entries;
+
+    /**
+     * The Resolver interface is for looking up a hostname, by default with {@link InetAddress#getByName(String)}.
+     */
+    public interface Resolver {
+        InetAddress resolve(String hostname) throws UnknownHostException;
+    }
+
+    /**
+     * Make a new cache using the system resolver.
+     * @param capacity the maximum number of hostnames to remember
+     * @param ttl milliseconds to remember a resolved hostname
+     * @param negativeTtl milliseconds to remember a hostname that could not be resolved
+     */
+    public ResolverCache(int capacity, long ttl, long negativeTtl){
+        this(capacity, ttl, negativeTtl, InetAddress::getByName, System::currentTimeMillis);
+    }
+
+    /**
+     * Make a new cache with a custom resolver and clock.
+     * @param capacity the maximum number of hostnames to remember
+     * @param ttl milliseconds to remember a resolved hostname
+     * @param negativeTtl milliseconds to remember a hostname that could not be resolved
+     * @param resolver the resolver to use on a cache miss
+     * @param clock the current time in milliseconds
+     */
+    public ResolverCache(int capacity, long ttl, long negativeTtl, Resolver resolver, LongSupplier clock){
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.resolver = resolver;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Lookup> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Resolve a hostname, using the cached answer if it has not expired. The lookup itself is done
+     * without holding the lock, so a slow lookup does not block other hostnames.
+     * @param hostname the hostname to resolve
+     * @return the IP-address
+     * @throws UnknownHostException if the hostname could not be resolved, now or recently
+     */
+    public InetAddress resolve(String hostname) throws UnknownHostException {
+        String key = hostname.toLowerCase(Locale.ROOT);
+        long now = clock.getAsLong();
+
+        synchronized (entries){
+            Lookup entry = entries.get(key);
+            if(entry != null && entry.expires > now){
+                if(entry.address == null){
+                    throw new UnknownHostException(hostname);
+                }
+                return entry.address;
+            }
+        }
+
+        InetAddress address;
+        try {
+            address = resolver.resolve(hostname);
+        } catch (UnknownHostException e) {
+            put(key, new Lookup(null, now + negativeTtl));
+            throw e;
+        }
+        put(key, new Lookup(address, now + ttl));
+
+        return address;
+    }
+
+    /**
+     * Get the number of hostnames currently remembered, including expired ones not yet forgotten.
+     * @return the number of entries
+     */
+    public int size(){
+        synchronized (entries){
+            return entries.size();
+        }
+    }
+
+    private void put(String key, Lookup entry){
+        synchronized (entries){
+            entries.put(key, entry);
+        }
+    }
+
+    private static class Lookup {
+        private final InetAddress address;
+        private final long expires;
+
+        private Lookup(InetAddress address, long expires){
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+}
@@ -1,18 +1,33 @@
 package markussp.onion.util;
 
+import markussp.onion.model.Address;
+import markussp.onion.model.NodeEntry;
+import markussp.onion.model.ServiceDescriptor;
 import markussp.onion.model.SessionKey;
 
-import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * The Standards class is a static class for package-wide constants and methods.
@@ -21,16 +36,101 @@ public final class Standards {
     public static final int PORTNR = 3000;                  //port number to run servers on
     public static final String DIST = "localhost";          //address for the Distributor
     public static final int DISTPORT = 3040;                //port for the Distributor
-    public static final int PACKETSIZE = 512;               //packet size
+    public static final int PACKETSIZE = 512;               //packet size, and the cell size of a chain until the client negotiates a larger one
+    public static final int MAXCELLSIZE = 16384;            //largest cell size a chain can negotiate, a multiple of PACKETSIZE
+    public static final byte[] RESIZE = "onion cell size!".getBytes(StandardCharsets.US_ASCII);  //start of a packet telling a hop to switch the cell size of its chain
     public static final int NODES = 3;                      //number of nodes in a chain
-    public static final int KEYSIZE = 2048;                 //Public key size
+    public static final int KEYLENGTH = 16;                 //bytes in an AES key and initialization vector
+    public static final String KEYINFO = "onion hop keys";  //HKDF info for the keys of a hop
+    public static final int CHAINLENGTH = 32;               //bytes in the chain key a direction is ratcheted with
+    public static final String RATCHETINFO = "onion hop ratchet";  //HKDF info for the next keys of a direction
+    public static final byte[] REKEY = "onion hop rekey!".getBytes(StandardCharsets.US_ASCII);  //start of a packet telling a hop to ratchet its keys
+    public static final long REKEYBYTES = 268435456;        //bytes through a chain before the client ratchets its keys
+    public static final long REKEYTIME = 600000;            //milliseconds before the client ratchets the keys of a chain
+    public static final int DEFLATELEVEL = 1;               //deflate level of compressed streams, fastest as every cell is flushed
+    public static final int INFLATECHUNK = 16384;           //bytes decompressed at a time, however much a cell expands
+    public static final int RELAY = 0;                      //next hop is an OnionNode
+    public static final int EXIT = 1;                       //node is last in the chain and opens streams
+    public static final int LINK = -1;                      //first int of a packet opening a CircuitLink, instead of a key length
+    public static final int SOCKSPORT = 1080;               //port for the SocksProxy
+    public static final int SOCKSWRITETIMEOUT = 5000;       //milliseconds a shared chain waits for a SOCKS client to take data before closing its stream
+    public static final int SOCKSCONNECTTIMEOUT = 10000;    //milliseconds a SOCKS client waits for the exit node to connect
+    public static final int IPV4 = 1;                       //address type of a 4 byte IP-address
+    public static final int HOSTNAME = 3;                   //address type of a hostname resolved by the exit
+    public static final int IPV6 = 4;                       //address type of a 16 byte IP-address
+    public static final int MAXADDRESSES = 4;               //addresses advertised for one OnionNode
+    public static final int DNSCACHESIZE = 1024;            //hostnames remembered by an exit node
+    public static final long DNSTTL = 60000;                //milliseconds to remember a resolved hostname
+    public static final long DNSNEGATIVETTL = 10000;        //milliseconds to remember a failed lookup
+    public static final int ACKINTERVAL = 16;               //DATA cells answered by one ACK cell
+    public static final int INITWINDOW = 64;                //DATA cells in flight before the first ACK
+    public static final int MINWINDOW = ACKINTERVAL;        //smallest congestion window, must allow an ACK
+    public static final int MAXWINDOW = 4096;               //largest congestion window
+    public static final int VEGASALPHA = 8;                 //queued cells below which the window grows
+    public static final int VEGASBETA = 32;                 //queued cells above which the window shrinks
+    public static final int VEGASGAMMA = 16;                //queued cells ending slow start
+    public static final long DEFAULTCAPACITY = 10485760;    //bytes per second assumed for a node without a rate limit
+    public static final long MAXCAPACITY = 1L << 40;        //largest bytes per second a node is weighted by, so the sum of weights can not overflow
+    public static final long MEMORYLIMIT = 67108864;        //bytes of queued cells an OnionNode holds before killing chains
+    public static final int NODEBACKLOG = 256;              //connections waiting to be accepted on each listening socket of an OnionNode
+    public static final long NODEMAINTENANCE = 500;         //milliseconds between an OnionNode evicting idle connections and expiring broken streams
+    public static final long LOADINTERVAL = 1000;           //milliseconds between an OnionNode reporting its chains and utilization to the Distributors
+    public static final int POOLSIZE = 8;                   //idle connections kept to one pooled destination
+    public static final int POOLIDLE = 64;                  //idle connections kept by an exit node in total
+    public static final long POOLIDLETIME = 30000;          //milliseconds before an idle connection is closed
+    public static final int POOLPOLL = 50;                  //milliseconds between checks for the end of a pooled stream
+    public static final int DISTWORKERS = Runtime.getRuntime().availableProcessors();  //threads doing key exchanges and signature checks in the Distributor
+    public static final int DISTQUEUE = 1024;               //requests waiting for a worker before new ones are refused
+    public static final int DISTPIPELINE = 16;              //requests one connection can have waiting for replies
+    public static final int LOGQUEUE = 4096;                //directory changes waiting for the Distributor log writer before new ones are not logged
+    public static final int LOGPOLL = 100;                  //milliseconds between checks of the Distributor log writer for the Distributor closing
+    public static final int DISTCONNECTIONS = 4096;         //open connections before the Distributor stops accepting
+    public static final long DISTIDLETIME = 30000;          //milliseconds before an idle Distributor connection is closed
+    public static final int DISTTIMEOUT = 1000;             //milliseconds to wait for a Distributor before trying the next
+    public static final long GOSSIPINTERVAL = 1000;         //milliseconds between directory exchanges with a peer Distributor
+    public static final long TOMBSTONETIME = 60000;         //milliseconds a checked out node is remembered, so gossip does not bring it back
+    public static final int GOSSIPSIZE = 1048576;           //largest directory exchanged between Distributors, in bytes
+    public static final long MAXVERSIONSKEW = 60000;        //milliseconds an entry from another Distributor may be ahead of the local clock
+    public static final int MAXENTRYSIZE = 8 + 1 + 8 + 1 + MAXADDRESSES * (1 + 1 + 255 + 2);  //bytes of the largest written NodeEntry
+    public static final int COMPACTRECORDS = 4096;          //directory changes logged before the Distributor snapshot is rewritten
+    public static final int PROBETHREADS = 32;              //nodes checked at once when a Distributor restarts
+    public static final int TOKENLENGTH = 16;               //bytes in the token resuming a stream on a new chain
+    public static final long RESUMETIME = 30000;            //milliseconds an exit node keeps a stream whose chain broke
+    public static final int RESUMEPOLL = 100;               //milliseconds between checks of a stream waiting for a new chain
+    public static final int KEEPALIVEINTERVAL = 5000;       //milliseconds without packets before a client checks its chain
+    public static final int CHAINTIMEOUT = 10000;           //milliseconds without packets before a client gives up on its chain
+    public static final int REBUILDS = 3;                   //new chains tried when resuming a stream
+    public static final int CLUSTERTIMEOUT = 10000;         //milliseconds an OnionCluster waits for its nodes to check in
+    public static final int GUARDS = 3;                     //guard nodes a client keeps links to for the first hop
+    public static final int GUARDTIMEOUT = 5000;            //milliseconds to wait for a guard node to accept a link
+    public static final String ONIONSUFFIX = ".onion";      //ending of the hostname of a hidden service
+    public static final int SERVICEIDLENGTH = 16;           //bytes of the hash of its signing key naming a hidden service
+    public static final int INTROPOINTS = 3;                //nodes a hidden service can be introduced at
+    public static final int COOKIELENGTH = 16;              //bytes in the cookie matching a client and a service at a rendezvous node
+    public static final int INTRONONCELENGTH = 16;          //bytes in the nonce a hidden service signs to become an introduction point
+    public static final String ESTABLISHINFO = "onion establish introduction";  //signed before the id and nonce of an ESTABLISHINTRO cell
+    public static final int INTRODUCTIONSIZE = 256;         //bytes of the encrypted part of an introduction, a multiple of the AES block size
+    public static final String INTROINFO = "onion introduction";  //HKDF info for the key an introduction is encrypted with
+    public static final String RENDEZVOUSINFO = "onion end to end keys";  //HKDF info for the keys between a client and a hidden service
+    public static final int DESCRIPTORSIZE = 4096;          //largest service descriptor a Distributor takes
+    public static final long DESCRIPTORLIFETIME = 600000;   //milliseconds a Distributor keeps a service descriptor
+    public static final long REPUBLISHINTERVAL = DESCRIPTORLIFETIME / 2;  //milliseconds between a hidden service publishing its descriptor
+    public static final int SERVICECACHESIZE = 256;         //service descriptors remembered by a client
+    public static final long SERVICECACHETTL = 300000;      //milliseconds a client uses a descriptor before fetching it again
+    public static final int RENDEZVOUSTIMEOUT = 10000;      //milliseconds a client waits for an introduction point or the service
+    public static final int SERVICERETRY = 1000;            //milliseconds before a hidden service replaces an introduction point that failed
+    public static final int SERVICEPOLL = 100;              //milliseconds between checks for a closed hidden service while accepting
 
     /**
-     * This methods handles a Diffie-Hellman key exchange as the recieving end.
+     * This methods handles a Diffie-Hellman key exchange as the recieving end. The other clients
+     * public key is read from a single packet, and this ends public key is sent back in a single
+     * packet. Keys and initialization vectors for both directions are derived from the shared secret,
+     * so no cipher parameters are exchanged.
      * @param input the InputStream to read from
      * @param output the OutputStream to write to
-     * @return a {@link SessionKey} object holding both the cipher and decipher, this
-     * will be the same object as the client who initiated the handshake.
+     * @return a {@link SessionKey} object holding both the cipher and decipher, the
+     * counterpart of the one made by the client who initiated the handshake.
+     * @throws EOFException if the other end closes without sending anything
      * @throws IOException
      * @throws InvalidKeySpecException
      * @throws InvalidKeyException
@@ -38,33 +138,584 @@ public final class Standards {
      */
     public static SessionKey handleKeyExchange(InputStream input, OutputStream output) throws IOException, InvalidKeySpecException, InvalidKeyException, InvalidAlgorithmParameterException {
         //Read other clients public key
-        byte[] message = input.readNBytes(PACKETSIZE << 1);
-        byte[] lengthArray = Arrays.copyOf(message, 4);
-        int length = ByteBuffer.wrap(lengthArray).getInt();
-        byte[] otherEndodedKey = Arrays.copyOfRange(message, 4, 4 + length);
-
-        //Generate cipher
-        KeyPair keyPair = Crypto.generateKeyPair(otherEndodedKey);
-        SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPair, otherEndodedKey);
-        Cipher cipher = Crypto.generateCipher(secretKeySpec);
-
-        //Send public key and cipher parameters
-        message = new byte[PACKETSIZE << 1];
+        byte[] request = input.readNBytes(PACKETSIZE);
+        if(request.length == 0){
+            throw new EOFException("Closed before the key exchange");
+        }
+
+        return handleKeyExchange(request, output);
+    }
+
+    /**
+     * Handle a key exchange whose first packet has already been read, see
+     * {@link #handleKeyExchange(InputStream, OutputStream) handleKeyExchange}.
+     * @param request the packet sent by the client
+     * @param output the OutputStream to write to
+     * @return a {@link SessionKey} object holding both the cipher and decipher
+     * @throws IOException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public static SessionKey handleKeyExchange(byte[] request, OutputStream output) throws IOException, InvalidKeySpecException, InvalidKeyException, InvalidAlgorithmParameterException {
+        return handleKeyExchange(request, output, PACKETSIZE);
+    }
+
+    /**
+     * Handle a key exchange whose first packet has already been read, advertising the largest cell
+     * size this end takes after its public key. Read by the client with {@link #readCellSize(byte[]) readCellSize}.
+     * @param request the packet sent by the client
+     * @param output the OutputStream to write to
+     * @param cellSize the largest cell size this end takes
+     * @return a {@link SessionKey} object holding both the cipher and decipher
+     * @throws IOException
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public static SessionKey handleKeyExchange(byte[] request, OutputStream output, int cellSize) throws IOException, InvalidKeySpecException, InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] otherEncodedKey = readPublicKey(request);
+
+        //Send public key
+        KeyPair keyPair = Crypto.generateKeyPair(otherEncodedKey);
         byte[] encodedKey = keyPair.getPublic().getEncoded();
-        lengthArray = ByteBuffer.allocate(4).putInt(encodedKey.length).array();
-        byte[] encodedParams = cipher.getParameters().getEncoded();
+        byte[] reply = keyExchangePacket(encodedKey);
+        ByteBuffer.wrap(reply).putInt(4 + encodedKey.length, cellSize);
+        output.write(reply);
+
+        byte[] secret = Crypto.generateSecret(keyPair, otherEncodedKey);
+        return deriveSessionKey(secret, otherEncodedKey, encodedKey, false);
+    }
+
+    /**
+     * Build the packet initiating a Diffie-Hellman key exchange. This is the client side
+     * counterpart to {@link #handleKeyExchange(InputStream, OutputStream) handleKeyExchange}.
+     * @param keyPair the clients key pair
+     * @return a packet of size {@code PACKETSIZE} holding the length and the encoded public key
+     */
+    public static byte[] keyExchangeRequest(KeyPair keyPair){
+        return keyExchangePacket(keyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * Finish a key exchange started with {@link #keyExchangeRequest(KeyPair) keyExchangeRequest}.
+     * Nothing more needs to be sent to the other end.
+     * @param keyPair the clients key pair
+     * @param message the reply packet
+     * @return a {@link SessionKey} object holding both the cipher and decipher
+     * @throws InvalidKeySpecException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public static SessionKey keyExchangeReply(KeyPair keyPair, byte[] message) throws InvalidKeySpecException, InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] otherEncodedKey = readPublicKey(message);
+        byte[] secret = Crypto.generateSecret(keyPair, otherEncodedKey);
+
+        return deriveSessionKey(secret, keyPair.getPublic().getEncoded(), otherEncodedKey, true);
+    }
+
+    private static SessionKey deriveSessionKey(byte[] secret, byte[] clientKey, byte[] serverKey, boolean client) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        return deriveSessionKey(secret, clientKey, serverKey, KEYINFO, client);
+    }
+
+    /**
+     * Derive a key and an initialization vector for each direction from a shared secret. Both
+     * public keys are used as salt, binding the keys to this exchange.
+     * @param secret the shared secret
+     * @param clientKey the encoded public key of the client
+     * @param serverKey the encoded public key of the recieving end
+     * @param info what the keys are used for, {@link #KEYINFO} for the keys of a hop
+     * @param client {@code true} if this is the client, which encrypts with the forward keys
+     * @return a {@link SessionKey} object holding both the cipher and decipher
+     */
+    public static SessionKey deriveSessionKey(byte[] secret, byte[] clientKey, byte[] serverKey, String info, boolean client) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] salt = new byte[clientKey.length + serverKey.length];
+        System.arraycopy(clientKey, 0, salt, 0, clientKey.length);
+        System.arraycopy(serverKey, 0, salt, clientKey.length, serverKey.length);
+        byte[] keys = Crypto.hkdf(salt, secret, info.getBytes(StandardCharsets.US_ASCII), (KEYLENGTH << 2) + (CHAINLENGTH << 1));
+
+        //Forward key and IV, followed by backward key and IV, then the forward and backward chain keys
+        SecretKeySpec forwardKey = new SecretKeySpec(keys, 0, KEYLENGTH, "AES");
+        byte[] forwardIv = Arrays.copyOfRange(keys, KEYLENGTH, KEYLENGTH << 1);
+        SecretKeySpec backwardKey = new SecretKeySpec(keys, KEYLENGTH << 1, KEYLENGTH, "AES");
+        byte[] backwardIv = Arrays.copyOfRange(keys, 3 * KEYLENGTH, KEYLENGTH << 2);
+        byte[] forwardChain = Arrays.copyOfRange(keys, KEYLENGTH << 2, (KEYLENGTH << 2) + CHAINLENGTH);
+        byte[] backwardChain = Arrays.copyOfRange(keys, (KEYLENGTH << 2) + CHAINLENGTH, keys.length);
+
+        if(client){
+            return new SessionKey(Crypto.generateCipher(forwardKey, forwardIv), Crypto.generateDecipher(backwardKey, backwardIv), forwardChain, backwardChain);
+        }
+        return new SessionKey(Crypto.generateCipher(backwardKey, backwardIv), Crypto.generateDecipher(forwardKey, forwardIv), backwardChain, forwardChain);
+    }
 
-        System.arraycopy(lengthArray, 0, message, 0, 4);
-        System.arraycopy(encodedKey, 0, message, 4, encodedKey.length);
-        System.arraycopy(encodedParams, 0, message, 4 + encodedKey.length, 18);
+    /**
+     * Read the largest cell size advertised in the reply to a key exchange, see
+     * {@link #handleKeyExchange(byte[], OutputStream, int) handleKeyExchange}.
+     * @param message the reply packet
+     * @return the cell size rounded down to a multiple of {@link #PACKETSIZE} and at most
+     * {@link #MAXCELLSIZE}, or {@link #PACKETSIZE} if the other end advertised none
+     */
+    public static int readCellSize(byte[] message){
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        int offset = 4 + buffer.getInt(0);
+        if(offset < 4 || offset + 4 > message.length) return PACKETSIZE;
+
+        return cellSize(buffer.getInt(offset));
+    }
+
+    /**
+     * Make a cell size valid: a multiple of {@link #PACKETSIZE}, at least one packet and at most {@link #MAXCELLSIZE}.
+     * @param size the wanted cell size
+     * @return the nearest valid cell size not above it, or {@link #PACKETSIZE}
+     */
+    public static int cellSize(int size){
+        return Math.max(PACKETSIZE, Math.min(size, MAXCELLSIZE) / PACKETSIZE * PACKETSIZE);
+    }
+
+    /**
+     * Build the packet telling a hop to switch the cell size of its chain. The client encrypts it up to
+     * the hop, like a rekey packet, so it looks like any other packet on the links. The hop reads the
+     * packets after it in the new size, and is not answered.
+     * @param size the current cell size, which the packet is sent in
+     * @param cellSize the new cell size
+     * @return a packet of the current size starting with {@link #RESIZE}
+     */
+    public static byte[] resizePacket(int size, int cellSize){
+        return ByteBuffer.allocate(size).put(RESIZE).putInt(cellSize).array();
+    }
+
+    /**
+     * Read the new cell size from a packet with one layer of encryption removed. A packet still
+     * encrypted for later hops, or a relay cell, does not start with {@link #RESIZE}.
+     * @param packet the decrypted packet
+     * @return the new cell size, or {@code 0} if the packet does not switch the cell size
+     */
+    public static int readResize(byte[] packet){
+        if(!Arrays.equals(packet, 0, RESIZE.length, RESIZE, 0, RESIZE.length)) return 0;
+
+        return cellSize(ByteBuffer.wrap(packet).getInt(RESIZE.length));
+    }
+
+    /**
+     * Split payloads into payloads of at most a number of bytes, keeping their order. Used when data
+     * kept for a broken chain is sent again on a chain with smaller cells.
+     * @param payloads the payloads
+     * @param size the largest payload
+     * @return the split payloads
+     */
+    public static ArrayList<byte[]> split(Collection<byte[]> payloads, int size){
+        ArrayList<byte[]> split = new ArrayList<>();
+        for(byte[] payload : payloads){
+            if(payload.length <= size){
+                split.add(payload);
+                continue;
+            }
+            for(int offset=0; offset<payload.length; offset+=size){
+                split.add(Arrays.copyOfRange(payload, offset, Math.min(payload.length, offset + size)));
+            }
+        }
+        return split;
+    }
 
-        output.write(message);
+    /**
+     * Build the packet telling a hop to ratchet its keys. It is sent encrypted with the keys of the
+     * hop before the ratchet, and the hop does not pass it on.
+     * @param size the cell size of the chain
+     * @return a packet of the cell size starting with {@link #REKEY}
+     */
+    public static byte[] rekeyPacket(int size){
+        return Arrays.copyOf(REKEY, size);
+    }
+
+    /**
+     * Check if a packet with one layer of encryption removed tells that hop to ratchet its keys. A
+     * packet still encrypted for later hops, or a relay cell, does not start with {@link #REKEY}.
+     * @param packet the decrypted packet
+     * @return {@code true} if the packet is a rekey packet
+     */
+    public static boolean isRekey(byte[] packet){
+        return Arrays.equals(packet, 0, REKEY.length, REKEY, 0, REKEY.length);
+    }
+
+    private static byte[] keyExchangePacket(byte[] encodedKey){
+        return ByteBuffer.allocate(PACKETSIZE).putInt(encodedKey.length).put(encodedKey).array();
+    }
+
+    private static byte[] readPublicKey(byte[] message) throws InvalidKeySpecException {
+        int length = ByteBuffer.wrap(message).getInt();
+        if(length < 0 || length > message.length - 4){
+            throw new InvalidKeySpecException("Malformed public key of length " + length);
+        }
+
+        return Arrays.copyOfRange(message, 4, 4 + length);
+    }
+
+    /**
+     * Write a network address with its type: one byte of type, the address itself and two bytes of
+     * port number. An IP-address takes 4 bytes for {@link #IPV4} or 16 bytes for {@link #IPV6}, and a
+     * hostname is written with one byte of length before it. Used for every address sent in the
+     * network, from node lists to stream destinations.
+     * @param buffer the buffer to write to
+     * @param address the address to write
+     * @throws IllegalArgumentException if the hostname is longer than 255 bytes
+     */
+    public static void writeAddress(ByteBuffer buffer, Address address){
+        if(address.isUnresolved()){
+            byte[] hostname = address.hostname.getBytes(StandardCharsets.US_ASCII);
+            if(hostname.length > 255){
+                throw new IllegalArgumentException("Hostname is too long: " + address.hostname);
+            }
+            buffer.put((byte) HOSTNAME).put((byte) hostname.length).put(hostname);
+        }else{
+            byte[] ip = address.address.getAddress();
+            buffer.put((byte) (ip.length == 16 ? IPV6 : IPV4)).put(ip);
+        }
+        buffer.putShort((short) address.port);
+    }
+
+    /**
+     * Read a network address written by {@link #writeAddress(ByteBuffer, Address) writeAddress}.
+     * A hostname is not resolved.
+     * @param buffer the buffer to read from
+     * @return the address
+     * @throws UnknownHostException if the address type is unknown
+     */
+    public static Address readAddress(ByteBuffer buffer) throws UnknownHostException {
+        int type = buffer.get();
+        Address address;
+        if(type == HOSTNAME){
+            byte[] hostname = new byte[buffer.get() & 0xFF];
+            buffer.get(hostname);
+            address = new Address(new String(hostname, StandardCharsets.US_ASCII), 0);
+        }else if(type == IPV4 || type == IPV6){
+            byte[] ip = new byte[type == IPV4 ? 4 : 16];
+            buffer.get(ip);
+            address = new Address(InetAddress.getByAddress(ip), 0);
+        }else{
+            throw new UnknownHostException("Unknown address type " + type);
+        }
+        address.port = buffer.getShort() & 0xFFFF;
+
+        return address;
+    }
+
+    /**
+     * Write the addresses of one {@link markussp.onion.router.OnionNode}, with one byte of count
+     * before them. A dual-stack node has both an IPv4 and an IPv6 address.
+     * @param buffer the buffer to write to
+     * @param addresses the addresses to write, at most {@link #MAXADDRESSES}
+     */
+    public static void writeAddresses(ByteBuffer buffer, Address[] addresses){
+        buffer.put((byte) addresses.length);
+        for(Address address : addresses){
+            writeAddress(buffer, address);
+        }
+    }
+
+    /**
+     * Read addresses written by {@link #writeAddresses(ByteBuffer, Address[]) writeAddresses}.
+     * @param buffer the buffer to read from
+     * @return the addresses
+     * @throws UnknownHostException if an address type is unknown, or there are too many addresses
+     */
+    public static Address[] readAddresses(ByteBuffer buffer) throws UnknownHostException {
+        int count = buffer.get() & 0xFF;
+        if(count > MAXADDRESSES){
+            throw new UnknownHostException("Too many addresses: " + count);
+        }
+
+        Address[] addresses = new Address[count];
+        for(int i=0; i<count; i++){
+            addresses[i] = readAddress(buffer);
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Write what a Distributor knows about a node, to another Distributor or to disk. At most
+     * {@link #MAXENTRYSIZE} bytes are written.
+     * @param buffer the buffer to write to
+     * @param entry the entry
+     */
+    public static void writeEntry(ByteBuffer buffer, NodeEntry entry){
+        buffer.putLong(entry.version);
+        buffer.put((byte) (entry.alive ? 1 : 0));
+        buffer.putLong(entry.capacity);
+        writeAddresses(buffer, entry.addresses);
+    }
+
+    /**
+     * Read an entry written by {@link #writeEntry(ByteBuffer, NodeEntry) writeEntry}.
+     * @param buffer the buffer to read from
+     * @return the entry
+     * @throws UnknownHostException if an address type is unknown, or there are too many addresses
+     */
+    public static NodeEntry readEntry(ByteBuffer buffer) throws UnknownHostException {
+        long version = buffer.getLong();
+        boolean alive = buffer.get() != 0;
+        long capacity = buffer.getLong();
+
+        return new NodeEntry(readAddresses(buffer), capacity, version, alive);
+    }
+
+    /**
+     * Get the id of a hidden service, the first {@link #SERVICEIDLENGTH} bytes of the SHA-256 hash of its signing key.
+     * @param signingKey the encoded public key the service signs its descriptor with
+     * @return the id
+     */
+    public static byte[] serviceId(byte[] signingKey){
+        return Arrays.copyOf(Crypto.sha256(signingKey), SERVICEIDLENGTH);
+    }
+
+    /**
+     * Get the hostname of a hidden service: its id in hexadecimal followed by {@link #ONIONSUFFIX}.
+     * @param id the id of the service
+     * @return the hostname
+     */
+    public static String onionHostname(byte[] id){
+        StringBuilder hostname = new StringBuilder();
+        for(byte b : id){
+            hostname.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hostname.append(ONIONSUFFIX).toString();
+    }
+
+    /**
+     * Read the id of a hidden service from the hostname of an address, see {@link #onionHostname(byte[]) onionHostname}.
+     * @param address the address
+     * @return the id, or {@code null} if the address is not the hostname of a hidden service
+     */
+    public static byte[] readOnionHostname(Address address){
+        if(!address.isUnresolved()) return null;
+        String hostname = address.hostname.toLowerCase(Locale.ROOT);
+        if(!hostname.endsWith(ONIONSUFFIX) || hostname.length() != (SERVICEIDLENGTH << 1) + ONIONSUFFIX.length()) return null;
+
+        byte[] id = new byte[SERVICEIDLENGTH];
+        for(int i=0; i<id.length; i++){
+            int high = Character.digit(hostname.charAt(i << 1), 16);
+            int low = Character.digit(hostname.charAt((i << 1) + 1), 16);
+            if(high < 0 || low < 0) return null;
+            id[i] = (byte) ((high << 4) | low);
+        }
+        return id;
+    }
+
+    /**
+     * Write a service descriptor with its signature, at most {@link #DESCRIPTORSIZE} bytes. The keys
+     * and the signature are written with two bytes of length before them.
+     * @param buffer the buffer to write to
+     * @param descriptor the descriptor
+     */
+    public static void writeDescriptor(ByteBuffer buffer, ServiceDescriptor descriptor){
+        buffer.put(descriptorBody(descriptor));
+        buffer.putShort((short) descriptor.signature.length);
+        buffer.put(descriptor.signature);
+    }
+
+    /**
+     * Read a descriptor written by {@link #writeDescriptor(ByteBuffer, ServiceDescriptor) writeDescriptor}.
+     * The signature is not checked, see {@link #verifyDescriptor(ServiceDescriptor, byte[]) verifyDescriptor}.
+     * @param buffer the buffer to read from
+     * @return the descriptor
+     * @throws UnknownHostException if an address type is unknown, or there are too many addresses or introduction points
+     */
+    public static ServiceDescriptor readDescriptor(ByteBuffer buffer) throws UnknownHostException {
+        byte[] signingKey = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(signingKey);
+        byte[] introKey = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(introKey);
+        long version = buffer.getLong();
+        int count = buffer.get() & 0xFF;
+        if(count > INTROPOINTS){
+            throw new UnknownHostException("Too many introduction points: " + count);
+        }
+        Address[][] introPoints = new Address[count][];
+        for(int i=0; i<count; i++){
+            introPoints[i] = readAddresses(buffer);
+        }
+        byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(signature);
+
+        return new ServiceDescriptor(signingKey, introKey, version, introPoints, signature);
+    }
+
+    /**
+     * Sign a service descriptor, setting its signature.
+     * @param descriptor the descriptor
+     * @param signingKey the private signing key of the service
+     * @throws InvalidKeyException
+     */
+    public static void signDescriptor(ServiceDescriptor descriptor, PrivateKey signingKey) throws InvalidKeyException {
+        descriptor.signature = Crypto.sign(signingKey, descriptorBody(descriptor));
+    }
+
+    /**
+     * Check that a descriptor is signed by the service it names.
+     * @param descriptor the descriptor
+     * @param id the id of the service, or {@code null} to only check the signature
+     * @return {@code true} if the signature is valid and the signing key matches the id
+     */
+    public static boolean verifyDescriptor(ServiceDescriptor descriptor, byte[] id){
+        if(id != null && !Arrays.equals(id, serviceId(descriptor.signingKey))) return false;
+
+        return Crypto.verify(descriptor.signingKey, descriptorBody(descriptor), descriptor.signature);
+    }
+
+    /**
+     * Write the payload of an ESTABLISHINTRO cell proving that a chain belongs to a hidden service: its
+     * public signing key and a signature over {@link #ESTABLISHINFO}, its id and the nonce the node sent.
+     * Both are written with two bytes of length before them.
+     * @param signingKeys the signing keys of the service
+     * @param nonce the nonce of the INTROCHALLENGE cell
+     * @return the payload
+     * @throws InvalidKeyException
+     */
+    public static byte[] writeIntroductionProof(KeyPair signingKeys, byte[] nonce) throws InvalidKeyException {
+        byte[] signingKey = signingKeys.getPublic().getEncoded();
+        byte[] signature = Crypto.sign(signingKeys.getPrivate(), introductionProofBody(serviceId(signingKey), nonce));
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + signingKey.length + signature.length);
+        buffer.putShort((short) signingKey.length);
+        buffer.put(signingKey);
+        buffer.putShort((short) signature.length);
+        buffer.put(signature);
+        return buffer.array();
+    }
+
+    /**
+     * Check the payload of an ESTABLISHINTRO cell written by {@link #writeIntroductionProof(KeyPair, byte[]) writeIntroductionProof}.
+     * @param payload the payload
+     * @param nonce the nonce the node sent the chain
+     * @return the id of the service, or {@code null} if the payload is malformed or the signature is not valid
+     */
+    public static byte[] readIntroductionProof(byte[] payload, byte[] nonce){
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte[] signingKey = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(signingKey);
+            byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(signature);
+
+            byte[] id = serviceId(signingKey);
+            return Crypto.verify(signingKey, introductionProofBody(id, nonce), signature) ? id : null;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static byte[] introductionProofBody(byte[] id, byte[] nonce){
+        byte[] info = ESTABLISHINFO.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(info.length + id.length + nonce.length);
+        buffer.put(info);
+        buffer.put(id);
+        buffer.put(nonce);
+        return buffer.array();
+    }
+
+    private static byte[] descriptorBody(ServiceDescriptor descriptor){
+        ByteBuffer buffer = ByteBuffer.allocate(DESCRIPTORSIZE);
+        buffer.putShort((short) descriptor.signingKey.length);
+        buffer.put(descriptor.signingKey);
+        buffer.putShort((short) descriptor.introKey.length);
+        buffer.put(descriptor.introKey);
+        buffer.putLong(descriptor.version);
+        buffer.put((byte) descriptor.introPoints.length);
+        for(Address[] introPoint : descriptor.introPoints){
+            writeAddresses(buffer, introPoint);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Connect to the first reachable of several addresses of the same node, trying them in order.
+     * Packets are sent right away, as waiting to fill TCP segments would delay ACK cells.
+     * @param addresses the addresses of the node
+     * @return the connected socket
+     * @throws IOException the error from the last address, if none could be reached
+     */
+    public static Socket connect(Address[] addresses) throws IOException {
+        IOException error = new ConnectException("No addresses to connect to");
+        for(Address address : addresses){
+            try {
+                Socket socket = new Socket(address.address, address.port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        throw error;
+    }
+
+    /**
+     * Connect to a server, like a Distributor, giving up after a timeout. Reads from the socket
+     * time out as well, so a server that stops answering is noticed.
+     * @param address the address of the server, a hostname is resolved here
+     * @param timeout the timeout in milliseconds for connecting and for each read
+     * @return the connected socket
+     * @throws IOException if the server could not be reached in time
+     */
+    public static Socket connect(Address address, int timeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address.isUnresolved() ?
+                    new InetSocketAddress(address.hostname, address.port) :
+                    new InetSocketAddress(address.address, address.port), timeout);
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rotate a list of equivalent servers to start at a random one, so clients trying them in
+     * order spread their load while still failing over to all of them.
+     * @param addresses the servers
+     * @return a rotated copy
+     */
+    public static Address[] rotate(Address[] addresses){
+        Address[] rotated = new Address[addresses.length];
+        int start = addresses.length == 0 ? 0 : ThreadLocalRandom.current().nextInt(addresses.length);
+        for(int i=0; i<addresses.length; i++){
+            rotated[i] = addresses[(start + i) % addresses.length];
+        }
+
+        return rotated;
+    }
+
+    /**
+     * Parse a comma separated list of servers, each written as {@code host}, {@code host:port}
+     * or {@code [IPv6]:port}. Hostnames are not resolved.
+     * @param list the list
+     * @param defaultPort the port of servers written without one
+     * @return the addresses
+     */
+    public static Address[] parseAddresses(String list, int defaultPort){
+        String[] items = list.split(",");
+        Address[] addresses = new Address[items.length];
+        for(int i=0; i<items.length; i++){
+            String item = items[i].trim();
+            String host = item;
+            int port = defaultPort;
 
-        //Read decipher parameters and generate decipher
-        message = input.readNBytes(PACKETSIZE);
-        byte[] otherEncodedParams = Arrays.copyOf(message, 18);
-        Cipher decipher = Crypto.generateDecipher(otherEncodedParams, secretKeySpec);
+            int colon = item.lastIndexOf(':');
+            if(item.startsWith("[")){
+                //IPv6 literal, with the port after the bracket
+                int bracket = item.indexOf(']');
+                host = item.substring(1, bracket);
+                if(colon > bracket) port = Integer.parseInt(item.substring(colon + 1));
+            }else if(colon > 0 && colon == item.indexOf(':')){
+                host = item.substring(0, colon);
+                port = Integer.parseInt(item.substring(colon + 1));
+            }
+            addresses[i] = new Address(host, port);
+        }
 
-        return new SessionKey(cipher, decipher);
+        return addresses;
     }
 }
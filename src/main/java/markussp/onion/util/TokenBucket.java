@@ -0,0 +1,94 @@
+package markussp.onion.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * The TokenBucket class limits a flow of bytes to a rate, allowing bursts up to a given size.
+ * Instead of a lock, the bucket is a single {@link AtomicLong} holding the time at which all
+ * bytes taken so far are paid for. Taking bytes moves that time forward, and a caller that gets
+ * ahead of the rate by more than the burst sleeps until it is allowed through. Nothing is dropped,
+ * the caller is simply slowed down.
+ */
+public class TokenBucket {
+    private final long rate;
+    private final long burstNanos;
+    private final LongSupplier clock;
+    private final AtomicLong paidUntil;
+
+    /**
+     * Make a new bucket measuring time with {@link System#nanoTime()}.
+     * @param rate the allowed bytes per second
+     * @param burst the bytes that can be taken at once after being idle
+     */
+    public TokenBucket(long rate, long burst){
+        this(rate, burst, System::nanoTime);
+    }
+
+    /**
+     * Make a new bucket with a custom clock.
+     * @param rate the allowed bytes per second
+     * @param burst the bytes that can be taken at once after being idle
+     * @param clock the current time in nanoseconds
+     */
+    public TokenBucket(long rate, long burst, LongSupplier clock){
+        if(rate <= 0){
+            throw new IllegalArgumentException("Rate must be positive: " + rate);
+        }
+
+        this.rate = rate;
+        this.burstNanos = nanos(burst);
+        this.clock = clock;
+        this.paidUntil = new AtomicLong(clock.getAsLong() - burstNanos);
+    }
+
+    /**
+     * Take bytes from the bucket without waiting.
+     * @param bytes the number of bytes
+     * @return the nanoseconds the caller has to wait before using the bytes, {@code 0} if
+     * they can be used right away
+     */
+    public long reserve(int bytes){
+        long cost = nanos(bytes);
+        long now = clock.getAsLong();
+        long previous;
+        long next;
+        do {
+            //An idle bucket only fills up to the burst
+            previous = paidUntil.get();
+            next = Math.max(previous, now - burstNanos) + cost;
+        } while(!paidUntil.compareAndSet(previous, next));
+
+        return Math.max(0, next - now);
+    }
+
+    /**
+     * Take bytes from the bucket, sleeping until the rate allows them.
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException if the thread is interrupted while sleeping
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        if(wait > 0){
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+    }
+
+    /**
+     * Get the rate of this bucket.
+     * @return the allowed bytes per second
+     */
+    public long getRate(){
+        return rate;
+    }
+
+    private long nanos(long bytes){
+        return bytes * 1000000000L / rate;
+    }
+}
@@ -0,0 +1,69 @@
+package markussp.onion.model;
+
+import markussp.onion.util.Standards;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RelayCellTest {
+
+    @Nested
+    public class toPacket{
+
+        @Test
+        public void returns_packet_of_standard_size() {
+            byte[] packet = new RelayCell(RelayCell.DATA, 1, new byte[]{1,2,3}).toPacket();
+
+            assertEquals(Standards.PACKETSIZE, packet.length);
+        }
+
+        @Test
+        public void fills_larger_cell() {
+            byte[] payload = new byte[4096 - RelayCell.HEADERSIZE];
+            byte[] packet = RelayCell.toPacket(RelayCell.DATA, 1, payload, 0, payload.length, 4096);
+
+            assertEquals(4096, packet.length);
+            assertEquals(payload.length, RelayCell.fromPacket(packet).payload.length);
+        }
+
+        @Test
+        public void handles_too_large_payload() {
+            byte[] payload = new byte[RelayCell.PAYLOADSIZE + 1];
+
+            assertThrows(IllegalArgumentException.class, () -> RelayCell.toPacket(RelayCell.DATA, 1, payload, 0, payload.length));
+        }
+    }
+
+    @Nested
+    public class fromPacket{
+
+        @Test
+        public void keeps_command_stream_and_payload() {
+            byte[] payload = ("Hello World!").getBytes(StandardCharsets.UTF_8);
+            RelayCell cell = RelayCell.fromPacket(RelayCell.toPacket(RelayCell.END, 65535, payload, 0, payload.length));
+
+            assertEquals(RelayCell.END, cell.command);
+            assertEquals(65535, cell.stream);
+            assertArrayEquals(payload, cell.payload);
+        }
+
+        @Test
+        public void keeps_part_of_array() {
+            byte[] bytes = {1,2,3,4,5};
+            RelayCell cell = RelayCell.fromPacket(RelayCell.toPacket(RelayCell.DATA, 1, bytes, 1, 3));
+
+            assertArrayEquals(new byte[]{2,3,4}, cell.payload);
+        }
+
+        @Test
+        public void handles_wrong_length() {
+            byte[] packet = new byte[Standards.PACKETSIZE];
+            packet[3] = (byte) 0xFF;
+
+            assertThrows(IllegalArgumentException.class, () -> RelayCell.fromPacket(packet));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package markussp.onion.model;
+
+import markussp.onion.util.Crypto;
+import markussp.onion.util.Standards;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionKeyTest {
+
+    private SessionKey[] exchange() throws IOException, GeneralSecurityException {
+        KeyPair keyPair = Crypto.generateKeyPair();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        SessionKey server = Standards.handleKeyExchange(new ByteArrayInputStream(Standards.keyExchangeRequest(keyPair)), reply);
+        return new SessionKey[]{Standards.keyExchangeReply(keyPair, reply.toByteArray()), server};
+    }
+
+    @Nested
+    public class ratchetCipher{
+
+        @Test
+        public void keeps_both_ends_in_step() throws IOException, GeneralSecurityException {
+            SessionKey[] keys = exchange();
+            byte[] packet = new byte[Standards.PACKETSIZE];
+            packet[0] = 42;
+            byte[] before = keys[0].encrypt(packet);
+
+            for(int i=0; i<3; i++){
+                keys[0].ratchetCipher();
+                keys[1].ratchetDecipher();
+            }
+            byte[] after = keys[0].encrypt(packet);
+
+            assertFalse(Arrays.equals(before, after));
+            assertArrayEquals(packet, keys[1].decrypt(after));
+            assertArrayEquals(packet, keys[0].decrypt(keys[1].encrypt(packet)));
+        }
+
+        @Test
+        public void needs_chain_keys() {
+            SessionKey key = new SessionKey(null, null);
+
+            assertThrows(IllegalStateException.class, key::ratchetCipher);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.util.Standards;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncOnionSocketTest {
+
+    private static AsyncOnionSocket connect(OnionCluster cluster) throws Exception {
+        return AsyncOnionSocket.connect(new Address[]{cluster.getDistributor()}, cluster.getEcho(), null).get(10, TimeUnit.SECONDS);
+    }
+
+    @Nested
+    public class connect{
+
+        @Test
+        public void echoes_through_the_cluster() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                AsyncOnionSocket socket = connect(cluster);
+                socket.send("hello async".getBytes(StandardCharsets.UTF_8)).get(10, TimeUnit.SECONDS);
+
+                assertEquals("hello async", new String(socket.read().get(10, TimeUnit.SECONDS), StandardCharsets.UTF_8));
+                socket.close();
+            }
+        }
+
+        @Test
+        public void fails_when_the_exit_can_not_connect() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Address destination = new Address(InetAddress.getLoopbackAddress(), closed.getLocalPort());
+                closed.close();
+
+                ExecutionException e = assertThrows(ExecutionException.class, () ->
+                        AsyncOnionSocket.connect(new Address[]{cluster.getDistributor()}, destination, null).get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof ConnectException);
+            }
+        }
+    }
+
+    @Nested
+    public class send{
+
+        @Test
+        public void keeps_order_over_several_windows() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                AsyncOnionSocket socket = connect(cluster);
+                byte[] bytes = new byte[Standards.PACKETSIZE * Standards.INITWINDOW * 8];
+                new Random(3).nextBytes(bytes);
+
+                //Sent in small messages, most of them waiting for ACKs handled by the reads below
+                for(int offset=0; offset<bytes.length; offset+=1000){
+                    socket.send(Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + 1000)));
+                }
+
+                ByteArrayOutputStream echo = new ByteArrayOutputStream();
+                while(echo.size() < bytes.length){
+                    echo.write(socket.read().get(10, TimeUnit.SECONDS));
+                }
+                assertArrayEquals(bytes, echo.toByteArray());
+                socket.close();
+            }
+        }
+    }
+
+    @Nested
+    public class subscribe{
+
+        @Test
+        public void publishes_messages_until_the_destination_closes() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                AsyncOnionSocket socket = connect(cluster);
+                CompletableFuture<String> echoed = new CompletableFuture<>();
+                socket.subscribe(new Flow.Subscriber<>() {
+                    private final StringBuilder text = new StringBuilder();
+                    private Flow.Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(byte[] item) {
+                        text.append(new String(item, StandardCharsets.UTF_8));
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        echoed.completeExceptionally(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        echoed.complete(text.toString());
+                    }
+                });
+
+                socket.send("first ".getBytes(StandardCharsets.UTF_8));
+                socket.send("second".getBytes(StandardCharsets.UTF_8));
+                socket.shutdownOutput();
+
+                //The echo server closes once it has sent everything back
+                assertEquals("first second", echoed.get(10, TimeUnit.SECONDS));
+                socket.close();
+            }
+        }
+
+        @Test
+        public void allows_only_one_subscriber() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                AsyncOnionSocket socket = connect(cluster);
+                socket.subscribe(new Failing(new CompletableFuture<>()));
+                CompletableFuture<Throwable> error = new CompletableFuture<>();
+                socket.subscribe(new Failing(error));
+
+                assertTrue(error.get(10, TimeUnit.SECONDS) instanceof IllegalStateException);
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Requests nothing, only remembering the error it gets.
+     */
+    private static class Failing implements Flow.Subscriber<byte[]> {
+        private final CompletableFuture<Throwable> error;
+
+        Failing(CompletableFuture<Throwable> error){
+            this.error = error;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {}
+
+        @Override
+        public void onNext(byte[] item) {}
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.complete(throwable);
+        }
+
+        @Override
+        public void onComplete() {}
+    }
+}
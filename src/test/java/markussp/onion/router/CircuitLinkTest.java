@@ -0,0 +1,134 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.util.Standards;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CircuitLinkTest {
+    private ServerSocket server;
+    private CircuitLink client;
+    private final LinkedBlockingQueue<CircuitLink.Circuit> accepted = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        CompletableFuture.runAsync(() -> {
+            try {
+                Socket socket = server.accept();
+                socket.getInputStream().readNBytes(Standards.PACKETSIZE);
+                new CircuitLink(socket, accepted::add).run();
+            } catch (IOException ignored) {}
+        });
+        client = CircuitLink.connect(new Address[]{new Address(InetAddress.getLoopbackAddress(), server.getLocalPort())}, Standards.GUARDTIMEOUT);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    private byte[] packet(int value){
+        byte[] packet = new byte[Standards.PACKETSIZE];
+        Arrays.fill(packet, (byte) value);
+        return packet;
+    }
+
+    @Nested
+    public class open{
+
+        @Test
+        public void keeps_packets_of_circuits_apart() throws Exception {
+            CircuitLink.Circuit first = client.open();
+            CircuitLink.Circuit second = client.open();
+            second.getOutputStream().write(packet(2));
+            first.getOutputStream().write(packet(1));
+
+            CircuitLink.Circuit firstAccepted = accepted.poll(5, TimeUnit.SECONDS);
+            CircuitLink.Circuit secondAccepted = accepted.poll(5, TimeUnit.SECONDS);
+            assertArrayEquals(packet(1), firstAccepted.getInputStream().readNBytes(Standards.PACKETSIZE));
+            assertArrayEquals(packet(2), secondAccepted.getInputStream().readNBytes(Standards.PACKETSIZE));
+
+            secondAccepted.getOutputStream().write(packet(3));
+            assertArrayEquals(packet(3), second.getInputStream().readNBytes(Standards.PACKETSIZE));
+        }
+
+        @Test
+        public void fails_once_the_link_is_closed() {
+            client.close();
+
+            assertThrows(IOException.class, () -> client.open());
+        }
+    }
+
+    @Nested
+    public class close{
+
+        @Test
+        public void ends_the_circuit_at_the_other_end() throws Exception {
+            CircuitLink.Circuit circuit = client.open();
+            CircuitLink.Circuit other = accepted.poll(5, TimeUnit.SECONDS);
+            other.close();
+
+            assertEquals(-1, circuit.getInputStream().read());
+            assertThrows(IOException.class, () -> circuit.getOutputStream().write(packet(1)));
+            assertFalse(client.isClosed());
+        }
+    }
+
+    @Nested
+    public class setQueueCounter{
+
+        @Test
+        public void counts_unread_packets() throws Exception {
+            CircuitLink.Circuit circuit = client.open();
+            CircuitLink.Circuit other = accepted.poll(5, TimeUnit.SECONDS);
+            AtomicLong queued = new AtomicLong();
+            other.setQueueCounter(queued::addAndGet);
+            circuit.getOutputStream().write(packet(1));
+            circuit.getOutputStream().write(packet(2));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while(queued.get() < 2 * Standards.PACKETSIZE && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            assertEquals(2 * Standards.PACKETSIZE, queued.get());
+            assertEquals(1, other.getInputStream().read());
+            assertEquals(Standards.PACKETSIZE, queued.get());
+
+            //Closing throws away the packets not read
+            other.close();
+            assertEquals(0, queued.get());
+        }
+    }
+
+    @Nested
+    public class setSoTimeout{
+
+        @Test
+        public void times_out_reads_without_closing() throws Exception {
+            CircuitLink.Circuit circuit = client.open();
+            circuit.setSoTimeout(50);
+
+            assertThrows(SocketTimeoutException.class, () -> circuit.getInputStream().read());
+            accepted.poll(5, TimeUnit.SECONDS).getOutputStream().write(packet(4));
+            assertEquals(4, circuit.getInputStream().read());
+        }
+    }
+}
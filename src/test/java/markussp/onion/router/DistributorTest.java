@@ -0,0 +1,276 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.NodeEntry;
+import markussp.onion.util.DirectoryLog;
+import markussp.onion.util.Standards;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistributorTest {
+    private final InetAddress loopback = InetAddress.getLoopbackAddress();
+    private Distributor distributor;
+
+    @TempDir
+    Path folder;
+
+    @BeforeEach
+    public void setUp() {
+        distributor = new Distributor(0);
+    }
+
+    /**
+     * Run the Distributor in a thread of its own until it is closed.
+     * @return the thread
+     */
+    private Thread launch() throws InterruptedException {
+        Thread server = new Thread(() -> {
+            try {
+                distributor.launch();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        while(distributor.getPort() == 0) Thread.sleep(10);
+        return server;
+    }
+
+    @Nested
+    public class launch{
+
+        @Test
+        public void answers_directory_from_peer() throws Exception {
+            distributor = new Distributor(0, new Address[]{new Address(loopback, 1)});
+            Thread server = launch();
+            try {
+                ByteBuffer message = Distributor.encodeDirectory(List.of(new NodeEntry(node(1), 0, 1, true)));
+                try (Socket socket = new Socket(loopback, distributor.getPort())) {
+                    socket.setSoTimeout(5000);
+                    socket.getOutputStream().write(3);
+                    socket.getOutputStream().write(message.array(), 0, message.limit());
+
+                    DataInputStream input = new DataInputStream(socket.getInputStream());
+                    byte[] reply = input.readNBytes(input.readInt());
+                    assertEquals(1, Distributor.decodeDirectory(ByteBuffer.wrap(reply)).size());
+                }
+                assertEquals(1, distributor.getSize());
+            } finally {
+                distributor.close();
+                server.join();
+            }
+        }
+
+        @Test
+        public void logs_changes_before_closing() throws Exception {
+            Path file = folder.resolve("directory");
+            distributor = new Distributor(0, new Address[0], file);
+            Thread server = launch();
+            for(int i=1; i<=100; i++){
+                distributor.checkIn(node(i), 0);
+            }
+            distributor.close();
+            server.join();
+
+            try (DirectoryLog log = new DirectoryLog(file)) {
+                //Each check-in also logs the check-out of an earlier entry of the node
+                assertEquals(100, log.load().stream().filter(node -> node.alive).count());
+            }
+        }
+
+        @Test
+        public void refuses_directory_from_host_that_is_not_a_peer() throws Exception {
+            Thread server = launch();
+            try {
+                ByteBuffer message = Distributor.encodeDirectory(List.of(new NodeEntry(node(1), 0, 1, true)));
+                try (Socket socket = new Socket(loopback, distributor.getPort())) {
+                    socket.setSoTimeout(5000);
+                    socket.getOutputStream().write(3);
+                    socket.getOutputStream().write(message.array(), 0, message.limit());
+
+                    assertEquals(-1, socket.getInputStream().read());
+                }
+                assertEquals(0, distributor.snapshot().size());
+            } finally {
+                distributor.close();
+                server.join();
+            }
+        }
+    }
+
+    private Address[] node(int port){
+        return new Address[]{new Address(loopback, port)};
+    }
+
+    @Nested
+    public class chooseNodes{
+
+        @Test
+        public void returns_null_without_enough_nodes() {
+            distributor.checkIn(node(1), 0);
+            distributor.checkIn(node(2), 0);
+
+            assertNull(distributor.chooseNodes(3, new Random()));
+        }
+
+        @Test
+        public void chooses_distinct_nodes() {
+            for(int i=1; i<=3; i++){
+                distributor.checkIn(node(i), 0);
+            }
+
+            Address[][] chosen = distributor.chooseNodes(3, new Random(1));
+            assertEquals(3, chosen.length);
+            assertNotEquals(chosen[0][0], chosen[1][0]);
+            assertNotEquals(chosen[0][0], chosen[2][0]);
+            assertNotEquals(chosen[1][0], chosen[2][0]);
+        }
+
+        @Test
+        public void favours_nodes_with_more_capacity() {
+            distributor.checkIn(node(1), 9000);
+            distributor.checkIn(node(2), 1000);
+
+            Random random = new Random(1);
+            int fast = 0;
+            for(int i=0; i<1000; i++){
+                if(distributor.chooseNodes(1, random)[0][0].port == 1) fast++;
+            }
+            assertTrue(fast > 850 && fast < 950, "fast node chosen " + fast + " times");
+        }
+
+        @Test
+        public void chooses_nodes_advertising_huge_capacity() {
+            for(int i=1; i<=3; i++){
+                distributor.checkIn(node(i), Long.MAX_VALUE);
+            }
+
+            Address[][] chosen = distributor.chooseNodes(3, new Random(1));
+            assertNotNull(chosen);
+            assertNotEquals(chosen[0][0], chosen[1][0]);
+            assertNotEquals(chosen[0][0], chosen[2][0]);
+            assertNotEquals(chosen[1][0], chosen[2][0]);
+            assertEquals(Standards.MAXCAPACITY, distributor.snapshot().get(0).capacity);
+        }
+
+        @Test
+        public void avoids_loaded_nodes() {
+            distributor.checkIn(node(1), 0);
+            distributor.checkIn(node(2), 0);
+            distributor.checkIn(node(3), 0);
+            distributor.reportLoad(node(1)[0], 1000, 1000);
+
+            Random random = new Random(1);
+            for(int i=0; i<300; i++){
+                assertNotEquals(1, distributor.chooseNodes(1, random)[0][0].port);
+            }
+        }
+
+        @Test
+        public void spreads_chains_evenly() {
+            distributor.checkIn(node(1), 0);
+            distributor.checkIn(node(2), 0);
+            distributor.checkIn(node(3), 0);
+
+            Random random = new Random(1);
+            int[] counts = new int[4];
+            for(int i=0; i<300; i++){
+                counts[distributor.chooseNodes(1, random)[0][0].port]++;
+            }
+            for(int port=1; port<=3; port++){
+                assertTrue(counts[port] >= 95 && counts[port] <= 105, "node " + port + " chosen " + counts[port] + " times");
+            }
+        }
+    }
+
+    @Nested
+    public class checkOut{
+
+        @Test
+        public void removes_node_by_any_address() {
+            Address other = new Address(loopback, 2);
+            distributor.checkIn(new Address[]{new Address(loopback, 1), other}, 0);
+            distributor.checkOut(other);
+
+            assertEquals(0, distributor.getSize());
+        }
+    }
+
+    @Nested
+    public class merge{
+
+        @Test
+        public void keeps_newest_entry() {
+            distributor.checkIn(node(1), 0);
+            long version = distributor.snapshot().get(0).version;
+
+            distributor.merge(List.of(new NodeEntry(node(1), 5000, version + 1, true)));
+            assertEquals(5000, distributor.snapshot().get(0).capacity);
+
+            distributor.merge(List.of(new NodeEntry(node(1), 7000, version, true)));
+            assertEquals(5000, distributor.snapshot().get(0).capacity);
+        }
+
+        @Test
+        public void clamps_capacity() {
+            distributor.merge(List.of(new NodeEntry(node(1), Long.MAX_VALUE, 1, true), new NodeEntry(node(2), -1, 1, true)));
+
+            for(NodeEntry node : distributor.snapshot()){
+                assertEquals(node.addresses[0].port == 1 ? Standards.MAXCAPACITY : 0, node.capacity);
+            }
+        }
+
+        @Test
+        public void check_out_wins_over_check_in_with_same_version() {
+            distributor.checkIn(node(1), 0);
+            long version = distributor.snapshot().get(0).version;
+
+            distributor.merge(List.of(new NodeEntry(node(1), 0, version, false)));
+            assertEquals(0, distributor.getSize());
+        }
+
+        @Test
+        public void check_in_after_merge_is_newer() {
+            distributor.merge(List.of(new NodeEntry(node(1), 0, System.currentTimeMillis() + Standards.MAXVERSIONSKEW / 2, false)));
+            distributor.checkIn(node(1), 0);
+
+            assertEquals(1, distributor.getSize());
+        }
+
+        @Test
+        public void ignores_versions_far_ahead_of_the_clock() {
+            distributor.merge(List.of(new NodeEntry(node(1), 0, Long.MAX_VALUE, true)));
+
+            assertEquals(0, distributor.snapshot().size());
+            distributor.checkIn(node(2), 0);
+            assertTrue(distributor.snapshot().get(0).version < Long.MAX_VALUE);
+        }
+
+        @Test
+        public void reads_encoded_directory() throws UnknownHostException {
+            distributor.checkIn(node(1), 1000);
+            distributor.checkIn(node(2), 2000);
+            distributor.checkOut(node(2)[0]);
+
+            Distributor other = new Distributor(0);
+            other.merge(Distributor.decodeDirectory(Distributor.encodeDirectory(distributor.snapshot()).position(4)));
+            assertEquals(1, other.getSize());
+            assertEquals(1000, other.snapshot().get(0).capacity);
+            assertEquals(2, other.snapshot().size());
+        }
+    }
+}
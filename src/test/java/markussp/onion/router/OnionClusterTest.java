@@ -0,0 +1,233 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.util.Standards;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OnionClusterTest {
+
+    @Nested
+    public class constructor{
+
+        @Test
+        public void needs_enough_nodes_for_a_chain() {
+            assertThrows(IllegalArgumentException.class, () -> new OnionCluster(2));
+        }
+    }
+
+    @Nested
+    public class connect{
+
+        @Test
+        public void echoes_through_the_cluster() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocket socket = cluster.connect();
+                socket.send("hello cluster".getBytes(StandardCharsets.UTF_8));
+
+                assertEquals("hello cluster", new String(socket.read(), StandardCharsets.UTF_8));
+                socket.close();
+            }
+        }
+
+        @Test
+        public void echoes_with_several_acceptors() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.setAcceptors(4);
+                cluster.start();
+                for(int i=0; i<8; i++){
+                    OnionSocket socket = cluster.connect();
+                    socket.send(("hello " + i).getBytes(StandardCharsets.UTF_8));
+
+                    assertEquals("hello " + i, new String(socket.read(), StandardCharsets.UTF_8));
+                    socket.close();
+                }
+            }
+        }
+
+        @Test
+        public void records_chain_build_events() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3); Recording recording = new Recording()) {
+                recording.enable("markussp.onion.ChainBuild");
+                cluster.start();
+                recording.start();
+                OnionSocket socket = cluster.connect();
+                socket.close();
+                recording.stop();
+
+                Path file = Files.createTempFile("onion", ".jfr");
+                recording.dump(file);
+                List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+                Files.delete(file);
+                //Nodes, the guard, a handshake with each node and the stream
+                assertEquals(2 + Standards.NODES + 1, events.stream().filter(e -> e.getEventType().getName().equals("markussp.onion.ChainBuild")).count());
+            }
+        }
+
+        @Test
+        public void echoes_datagrams() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3); DatagramSocket echo = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                Thread echoing = new Thread(() -> {
+                    byte[] buffer = new byte[Standards.MAXCELLSIZE];
+                    try {
+                        while(true){
+                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                            echo.receive(packet);
+                            echo.send(packet);
+                        }
+                    } catch (IOException ignored) {
+                        //The test has closed the socket
+                    }
+                });
+                echoing.start();
+                cluster.start();
+                OnionSocket socket = OnionSocket.datagram(new Address[]{cluster.getDistributor()}, new Address(InetAddress.getLoopbackAddress(), echo.getLocalPort()), Standards.PACKETSIZE);
+                assertThrows(IllegalArgumentException.class, () -> socket.sendDatagram(new byte[Standards.PACKETSIZE], 0, Standards.PACKETSIZE));
+
+                //Loopback does not lose datagrams, so every one comes back whole
+                for(int i=0; i<5; i++){
+                    byte[] bytes = ("datagram " + i).getBytes(StandardCharsets.UTF_8);
+                    socket.sendDatagram(bytes, 0, bytes.length);
+                    assertEquals("datagram " + i, new String(socket.receiveDatagram(), StandardCharsets.UTF_8));
+                }
+                socket.close();
+            }
+        }
+
+        @Test
+        public void echoes_with_large_cells() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocket socket = cluster.connect(Standards.MAXCELLSIZE);
+                byte[] bytes = new byte[Standards.MAXCELLSIZE * 4];
+                new Random(2).nextBytes(bytes);
+                socket.send(bytes);
+
+                ByteArrayOutputStream echo = new ByteArrayOutputStream();
+                while(echo.size() < bytes.length){
+                    echo.write(socket.read());
+                }
+                assertArrayEquals(bytes, echo.toByteArray());
+                socket.close();
+            }
+        }
+
+        @Test
+        public void echoes_while_keys_are_ratcheted() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocket socket = cluster.connect();
+                socket.setRekeyThreshold(Standards.PACKETSIZE * 8, 0);
+                byte[] bytes = new byte[65536];
+                new Random(1).nextBytes(bytes);
+                socket.send(bytes);
+
+                ByteArrayOutputStream echo = new ByteArrayOutputStream();
+                while(echo.size() < bytes.length){
+                    echo.write(socket.read());
+                }
+                assertArrayEquals(bytes, echo.toByteArray());
+                socket.close();
+            }
+        }
+
+        @Test
+        public void echoes_compressed_stream() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocket socket = new OnionSocket(new Address[]{cluster.getDistributor()}, cluster.getEcho(), Standards.PACKETSIZE, true);
+                assertTrue(socket.isCompressed());
+                byte[] bytes = "{\"node\": \"onion\", \"cells\": 512}\n".repeat(2000).getBytes(StandardCharsets.UTF_8);
+                socket.send(bytes);
+
+                ByteArrayOutputStream echo = new ByteArrayOutputStream();
+                while(echo.size() < bytes.length){
+                    echo.write(socket.read());
+                }
+                assertArrayEquals(bytes, echo.toByteArray());
+                socket.close();
+            }
+        }
+
+        @Test
+        public void resumes_stream_when_middle_node_goes_down() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(5)) {
+                cluster.start();
+                OnionSocket socket = cluster.connect();
+                byte[] bytes = new byte[262144];
+                new Random(4).nextBytes(bytes);
+                socket.send(Arrays.copyOf(bytes, bytes.length >> 1));
+
+                //Some of the first half is still on its way when the chain breaks
+                int middle = socket.getChain()[1][0].port;
+                for(OnionNode node : cluster.getNodes()){
+                    if(node.getPort() == middle) node.close();
+                }
+                socket.send(Arrays.copyOfRange(bytes, bytes.length >> 1, bytes.length));
+
+                ByteArrayOutputStream echo = new ByteArrayOutputStream();
+                while(echo.size() < bytes.length){
+                    echo.write(socket.read());
+                }
+                assertArrayEquals(bytes, echo.toByteArray());
+                assertNotEquals(middle, socket.getChain()[1][0].port);
+                socket.close();
+            }
+        }
+
+        @Test
+        public void echoes_through_hidden_service() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(5)) {
+                cluster.start();
+                Address[] distributors = new Address[]{cluster.getDistributor()};
+                try (OnionService service = new OnionService(distributors)) {
+                    service.start();
+                    Thread server = new Thread(() -> {
+                        try {
+                            for(int i=0; i<2; i++){
+                                OnionSocket accepted = service.accept();
+                                byte[] message;
+                                while((message = accepted.read()) != null){
+                                    accepted.send(message);
+                                }
+                                accepted.close();
+                            }
+                        } catch (Exception ignored) {}
+                    });
+                    server.start();
+
+                    //The second connection takes the descriptor from the cache
+                    for(int i=0; i<2; i++){
+                        OnionSocket socket = new OnionSocket(distributors, new Address(service.getHostname(), 80));
+                        socket.send(("hello service " + i).getBytes(StandardCharsets.UTF_8));
+
+                        assertEquals("hello service " + i, new String(socket.read(), StandardCharsets.UTF_8));
+                        socket.shutdownOutput();
+                        assertNull(socket.read());
+                        socket.close();
+                    }
+                    server.join();
+                }
+            }
+        }
+    }
+}
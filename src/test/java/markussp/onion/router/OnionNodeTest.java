@@ -0,0 +1,184 @@
+package markussp.onion.router;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.MemoryStats;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OnionNodeTest {
+
+    @Nested
+    public class setMemoryLimit{
+
+        @Test
+        public void kills_chain_of_destination_that_does_not_read() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3); ServerSocket stalled = new ServerSocket()) {
+                //A small receive buffer, so the exit node has to queue what the congestion window lets through
+                stalled.setReceiveBufferSize(4096);
+                stalled.bind(null);
+                ArrayList<Socket> accepted = new ArrayList<>();
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        while(true) accepted.add(stalled.accept());
+                    } catch (Exception ignored) {
+                        //The test has closed the server
+                    }
+                });
+                acceptor.start();
+
+                cluster.start();
+                for(OnionNode node : cluster.getNodes()){
+                    node.setMemoryLimit(16384, OnionNode.KillPolicy.LARGEST);
+                }
+                OnionSocket socket = new OnionSocket(new Address[]{cluster.getDistributor()}, new Address(InetAddress.getLoopbackAddress(), stalled.getLocalPort()));
+                Thread sender = new Thread(() -> {
+                    try {
+                        for(int i=0; i<256; i++){
+                            socket.send(new byte[16384]);
+                        }
+                    } catch (Exception ignored) {
+                        //The chain was killed
+                    }
+                });
+                sender.start();
+
+                MemoryStats killed = null;
+                long deadline = System.currentTimeMillis() + 10000;
+                while(killed == null && System.currentTimeMillis() < deadline){
+                    for(OnionNode node : cluster.getNodes()){
+                        MemoryStats stats = node.getMemoryStats();
+                        if(stats.circuitsKilled > 0) killed = stats;
+                    }
+                    Thread.sleep(10);
+                }
+                assertNotNull(killed, "no chain was killed");
+                assertTrue(killed.peakQueuedBytes > killed.memoryLimit);
+                assertEquals(16384, killed.memoryLimit);
+
+                sender.join(10000);
+                assertFalse(sender.isAlive());
+                socket.close();
+                for(Socket connection : accepted) connection.close();
+            }
+        }
+    }
+
+    @Nested
+    public class poolConnections{
+
+        @Test
+        public void keeps_slow_response_after_half_close() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3); Responder responder = new Responder(300)) {
+                cluster.start();
+                for(OnionNode node : cluster.getNodes()){
+                    node.poolConnections(InetAddress.getLoopbackAddress(), responder.getPort());
+                }
+                OnionSocket socket = new OnionSocket(new Address[]{cluster.getDistributor()}, new Address(InetAddress.getLoopbackAddress(), responder.getPort()));
+                socket.send("ping".getBytes(StandardCharsets.UTF_8));
+                socket.shutdownOutput();
+
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] bytes;
+                while((bytes = socket.read()) != null){
+                    response.write(bytes);
+                }
+                assertEquals("pong", response.toString(StandardCharsets.UTF_8));
+                socket.close();
+            }
+        }
+
+        @Test
+        public void keeps_connection_open_after_finished_request() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3); Responder responder = new Responder(0)) {
+                cluster.start();
+                for(OnionNode node : cluster.getNodes()){
+                    node.poolConnections(InetAddress.getLoopbackAddress(), responder.getPort());
+                }
+                OnionSocket socket = new OnionSocket(new Address[]{cluster.getDistributor()}, new Address(InetAddress.getLoopbackAddress(), responder.getPort()));
+                socket.send("ping".getBytes(StandardCharsets.UTF_8));
+                byte[] response = new byte[4];
+                int read = 0;
+                while(read < response.length){
+                    read += socket.read(response, read, response.length - read);
+                }
+                assertEquals("pong", new String(response, StandardCharsets.UTF_8));
+                socket.finishRequest();
+                socket.close();
+
+                Thread.sleep(500);
+                assertEquals(1, responder.accepted.get());
+                assertEquals(0, responder.ended.get());
+            }
+        }
+    }
+
+    /**
+     * Answers each "ping" on a connection with "pong" after a delay, counting the connections
+     * and how many of them the other side ended.
+     */
+    private static class Responder implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final ArrayList<Socket> connections = new ArrayList<>();
+        private final AtomicInteger accepted = new AtomicInteger();
+        private final AtomicInteger ended = new AtomicInteger();
+        private final long delay;
+
+        Responder(long delay) throws Exception {
+            this.delay = delay;
+            new Thread(this::accept).start();
+        }
+
+        int getPort(){
+            return server.getLocalPort();
+        }
+
+        private void accept(){
+            try {
+                while(true){
+                    Socket connection = server.accept();
+                    synchronized (connections){
+                        connections.add(connection);
+                    }
+                    accepted.incrementAndGet();
+                    new Thread(() -> respond(connection)).start();
+                }
+            } catch (Exception ignored) {
+                //The test has closed the server
+            }
+        }
+
+        private void respond(Socket connection){
+            try {
+                InputStream input = connection.getInputStream();
+                byte[] request = new byte[4];
+                while(input.readNBytes(request, 0, request.length) == request.length){
+                    Thread.sleep(delay);
+                    connection.getOutputStream().write("pong".getBytes(StandardCharsets.UTF_8));
+                }
+                ended.incrementAndGet();
+                connection.close();
+            } catch (Exception ignored) {
+                //The test has closed the connection
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            server.close();
+            synchronized (connections){
+                for(Socket connection : connections) connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package markussp.onion.router;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OnionSocketAdapterTest {
+
+    private static Socket connect(OnionCluster cluster) throws Exception {
+        Socket socket = new OnionSocketAdapter(InetAddress.getLoopbackAddress(), cluster.getDistributor().port);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), cluster.getEcho().port));
+        return socket;
+    }
+
+    @Nested
+    public class getInputStream{
+
+        @Test
+        public void returns_partial_reads() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                Socket socket = connect(cluster);
+                socket.getOutputStream().write("hello adapter".getBytes(StandardCharsets.UTF_8));
+
+                InputStream input = socket.getInputStream();
+                byte[] bytes = new byte[5];
+                assertEquals(5, input.read(bytes));
+                assertEquals("hello", new String(bytes, StandardCharsets.UTF_8));
+                assertEquals(" adapter", new String(input.readNBytes(8), StandardCharsets.UTF_8));
+                socket.close();
+            }
+        }
+    }
+
+    @Nested
+    public class shutdownOutput{
+
+        @Test
+        public void reads_minus_one_once_the_destination_closes() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                Socket socket = connect(cluster);
+                socket.getOutputStream().write("last words".getBytes(StandardCharsets.UTF_8));
+                socket.shutdownOutput();
+
+                //The echo server sends everything back before it closes
+                InputStream input = socket.getInputStream();
+                assertEquals("last words", new String(input.readAllBytes(), StandardCharsets.UTF_8));
+                assertEquals(-1, input.read());
+                assertThrows(SocketException.class, () -> socket.getOutputStream().write(1));
+                socket.close();
+            }
+        }
+    }
+}
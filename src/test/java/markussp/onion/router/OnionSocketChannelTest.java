@@ -0,0 +1,86 @@
+package markussp.onion.router;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OnionSocketChannelTest {
+
+    private static OnionSocketChannel open(OnionCluster cluster) throws Exception {
+        return OnionSocketChannel.open(InetAddress.getLoopbackAddress(), cluster.getDistributor().port,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), cluster.getEcho().port));
+    }
+
+    @Nested
+    public class read{
+
+        @Test
+        public void fills_at_most_the_remaining_buffer() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocketChannel channel = open(cluster);
+                channel.write(ByteBuffer.wrap("hello channel".getBytes(StandardCharsets.UTF_8)));
+
+                ByteBuffer small = ByteBuffer.allocate(5);
+                assertEquals(5, channel.read(small));
+                assertEquals("hello", new String(small.array(), StandardCharsets.UTF_8));
+
+                //A direct buffer is read through the array of the channel
+                ByteBuffer rest = ByteBuffer.allocateDirect(8);
+                while(rest.hasRemaining()){
+                    assertTrue(channel.read(rest) > 0);
+                }
+                rest.flip();
+                byte[] bytes = new byte[rest.remaining()];
+                rest.get(bytes);
+                assertEquals(" channel", new String(bytes, StandardCharsets.UTF_8));
+                channel.close();
+            }
+        }
+
+        @Test
+        public void fails_once_closed() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocketChannel channel = open(cluster);
+                channel.close();
+
+                assertFalse(channel.isOpen());
+                assertThrows(ClosedChannelException.class, () -> channel.read(ByteBuffer.allocate(1)));
+            }
+        }
+    }
+
+    @Nested
+    public class shutdownOutput{
+
+        @Test
+        public void reads_minus_one_once_the_destination_closes() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                OnionSocketChannel channel = open(cluster);
+                channel.write(ByteBuffer.wrap("last words".getBytes(StandardCharsets.UTF_8)));
+                channel.shutdownOutput();
+
+                ByteArrayOutputStream echo = new ByteArrayOutputStream();
+                ByteBuffer buffer = ByteBuffer.allocate(64);
+                int length;
+                while((length = channel.read(buffer)) >= 0){
+                    echo.write(buffer.array(), 0, length);
+                    buffer.clear();
+                }
+                assertEquals("last words", echo.toString(StandardCharsets.UTF_8));
+                assertEquals(-1, channel.read(buffer));
+                channel.close();
+            }
+        }
+    }
+}
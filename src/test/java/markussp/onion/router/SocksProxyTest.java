@@ -0,0 +1,89 @@
+package markussp.onion.router;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SocksProxyTest {
+
+    /**
+     * Greet the proxy without authentication and send a CONNECT request.
+     * @return the reply code of the proxy
+     */
+    private static int request(Socket socket, byte[] address, int port) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        output.write(new byte[]{5, 1, 0});
+        assertArrayEquals(new byte[]{5, 0}, input.readNBytes(2));
+
+        ByteBuffer request = ByteBuffer.allocate(3 + address.length + 2);
+        request.put(new byte[]{5, 1, 0}).put(address).putShort((short) port);
+        output.write(request.array());
+
+        byte[] reply = input.readNBytes(10);
+        assertEquals(5, reply[0]);
+        return reply[1];
+    }
+
+    private static void assertEchoes(Socket socket) throws IOException {
+        socket.getOutputStream().write("hello proxy".getBytes(StandardCharsets.UTF_8));
+        assertEquals("hello proxy", new String(socket.getInputStream().readNBytes(11), StandardCharsets.UTF_8));
+    }
+
+    @Nested
+    public class launch{
+
+        @Test
+        public void connects_to_ipv4_and_hostname_destinations() throws Exception {
+            try (OnionCluster cluster = new OnionCluster(3)) {
+                cluster.start();
+                SocksProxy proxy = new SocksProxy(0, InetAddress.getLoopbackAddress(), cluster.getDistributor().port, false, false);
+                proxy.launch();
+                try {
+                    int port = cluster.getEcho().port;
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                        ByteBuffer ipv4 = ByteBuffer.allocate(5).put((byte) 1).put(InetAddress.getLoopbackAddress().getAddress());
+                        assertEquals(0, request(socket, ipv4.array(), port));
+                        assertEchoes(socket);
+                    }
+
+                    //Resolved by the exit node, on the chain the first connection built
+                    byte[] host = "localhost".getBytes(StandardCharsets.US_ASCII);
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                        ByteBuffer hostname = ByteBuffer.allocate(2 + host.length).put((byte) 3).put((byte) host.length).put(host);
+                        assertEquals(0, request(socket, hostname.array(), port));
+                        assertEchoes(socket);
+                    }
+                } finally {
+                    proxy.close();
+                }
+            }
+        }
+
+        @Test
+        public void refuses_commands_other_than_connect() throws Exception {
+            SocksProxy proxy = new SocksProxy(0, InetAddress.getLoopbackAddress(), 1, false, false);
+            proxy.launch();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                OutputStream output = socket.getOutputStream();
+                output.write(new byte[]{5, 1, 0});
+                assertArrayEquals(new byte[]{5, 0}, socket.getInputStream().readNBytes(2));
+
+                //BIND is not supported
+                output.write(new byte[]{5, 2, 0, 1, 127, 0, 0, 1, 0, 80});
+                assertEquals(7, socket.getInputStream().readNBytes(10)[1]);
+            } finally {
+                proxy.close();
+            }
+        }
+    }
+}
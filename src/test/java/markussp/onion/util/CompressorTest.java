@@ -0,0 +1,82 @@
+package markussp.onion.util;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressorTest {
+
+    @Nested
+    public class compress{
+
+        @Test
+        public void shrinks_repetitive_data() {
+            Compressor compressor = new Compressor();
+            byte[] bytes = "GET /index.html HTTP/1.1\r\n".repeat(100).getBytes(StandardCharsets.US_ASCII);
+
+            assertTrue(compressor.compress(bytes, 0, bytes.length) < bytes.length / 10);
+            compressor.end();
+        }
+
+        @Test
+        public void decompresses_when_split_anywhere() throws DataFormatException {
+            Compressor compressor = new Compressor();
+            Decompressor decompressor = new Decompressor();
+            Random random = new Random(3);
+            byte[] bytes = new byte[100000];
+            for(int i=0; i<bytes.length; i++){
+                bytes[i] = (byte) ('a' + random.nextInt(4));
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int offset = 0;
+            while(offset < bytes.length){
+                int length = Math.min(bytes.length - offset, random.nextInt(5000) + 1);
+                int size = compressor.compress(bytes, offset, length);
+                byte[] compressed = Arrays.copyOf(compressor.getBuffer(), size);
+                //Cells cut the compressed data at any point, each part must give what it can right away
+                for(int i=0; i<compressed.length; i+=Standards.PACKETSIZE){
+                    int part = Math.min(compressed.length - i, Standards.PACKETSIZE);
+                    decompressor.setInput(compressed, i, part);
+                    int decompressed;
+                    while((decompressed = decompressor.inflate()) > 0){
+                        output.write(decompressor.getBuffer(), 0, decompressed);
+                    }
+                }
+                offset += length;
+                assertEquals(offset, output.size());
+            }
+            assertArrayEquals(bytes, output.toByteArray());
+            compressor.end();
+            decompressor.end();
+        }
+
+        @Test
+        public void decompresses_large_expansion_in_chunks() throws DataFormatException {
+            Compressor compressor = new Compressor();
+            Decompressor decompressor = new Decompressor();
+            byte[] bytes = new byte[Standards.INFLATECHUNK * 64];
+            int size = compressor.compress(bytes, 0, bytes.length);
+            assertTrue(size < Standards.MAXCELLSIZE);
+
+            decompressor.setInput(Arrays.copyOf(compressor.getBuffer(), size), 0, size);
+            int total = 0;
+            int decompressed;
+            while((decompressed = decompressor.inflate()) > 0){
+                assertTrue(decompressed <= Standards.INFLATECHUNK);
+                total += decompressed;
+            }
+            assertEquals(bytes.length, total);
+            assertEquals(Standards.INFLATECHUNK, decompressor.getBuffer().length);
+            compressor.end();
+            decompressor.end();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package markussp.onion.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CongestionWindowTest {
+    private long now;
+    private CongestionWindow window;
+
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        window = new CongestionWindow(() -> now);
+    }
+
+    /**
+     * Fill the window, and acknowledge everything after a round trip time.
+     */
+    private void roundTrip(long rtt){
+        int sent = 0;
+        while(window.tryAcquire()) sent++;
+        now += rtt;
+        for(int i=0; i<sent / Standards.ACKINTERVAL; i++){
+            window.acknowledge();
+        }
+    }
+
+    @Nested
+    public class tryAcquire{
+
+        @Test
+        public void stops_at_window() {
+            for(int i=0; i<Standards.INITWINDOW; i++){
+                assertTrue(window.tryAcquire());
+            }
+
+            assertFalse(window.tryAcquire());
+            assertEquals(Standards.INITWINDOW, window.getInFlight());
+        }
+
+        @Test
+        public void ack_makes_room() {
+            while(window.tryAcquire());
+            window.acknowledge();
+
+            assertTrue(window.tryAcquire());
+        }
+    }
+
+    @Nested
+    public class acknowledge{
+
+        @Test
+        public void measures_rtt() {
+            for(int i=0; i<Standards.ACKINTERVAL; i++) window.tryAcquire();
+            now += 5000;
+            window.acknowledge();
+
+            assertEquals(5000, window.getRtt());
+        }
+
+        @Test
+        public void grows_window_without_queueing() {
+            for(int i=0; i<4; i++) roundTrip(1000);
+
+            assertTrue(window.getWindow() >= Standards.INITWINDOW << 3);
+        }
+
+        @Test
+        public void shrinks_window_when_rtt_grows() {
+            for(int i=0; i<4; i++) roundTrip(1000);
+            int large = window.getWindow();
+            for(int i=0; i<20; i++) roundTrip(4000);
+
+            assertTrue(window.getWindow() < large);
+            assertTrue(window.getWindow() >= Standards.MINWINDOW);
+        }
+
+        @Test
+        public void completes_waiting_senders_in_order() {
+            while(window.tryAcquire());
+            CompletableFuture<Void> first = window.acquireAsync();
+            CompletableFuture<Void> second = window.acquireAsync();
+            assertFalse(first.isDone());
+
+            window.acknowledge();
+
+            assertTrue(first.isDone());
+            assertTrue(second.isDone());
+        }
+
+        @Test
+        public void new_senders_do_not_pass_released_ones() {
+            while(window.tryAcquire());
+            ArrayList<Integer> order = new ArrayList<>();
+            CompletableFuture<Void> first = window.acquireAsync();
+            CompletableFuture<Void> second = window.acquireAsync();
+
+            //A sender arriving while the first is being completed must go after the second
+            first.thenRun(() -> {
+                order.add(1);
+                window.acquireAsync().thenRun(() -> order.add(3));
+            });
+            second.thenRun(() -> order.add(2));
+            window.acknowledge();
+
+            assertEquals(List.of(1, 2, 3), order);
+        }
+    }
+
+    @Nested
+    public class close{
+
+        @Test
+        public void fails_waiting_senders() {
+            while(window.tryAcquire());
+            CompletableFuture<Void> future = window.acquireAsync();
+            window.close();
+
+            assertTrue(future.isCompletedExceptionally());
+            assertThrows(IOException.class, () -> window.acquire());
+        }
+    }
+}
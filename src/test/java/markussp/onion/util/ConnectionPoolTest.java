@@ -0,0 +1,105 @@
+package markussp.onion.util;
+
+import markussp.onion.model.Address;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectionPoolTest {
+    private final Address first = new Address(InetAddress.getLoopbackAddress(), 80);
+    private final Address second = new Address(InetAddress.getLoopbackAddress(), 8080);
+    private long now;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        pool = new ConnectionPool(2, 3, 100, () -> now);
+    }
+
+    @Nested
+    public class take{
+
+        @Test
+        public void returns_newest_connection() {
+            Socket older = new Socket();
+            Socket newer = new Socket();
+            pool.release(first, older);
+            pool.release(first, newer);
+
+            assertSame(newer, pool.take(first));
+            assertSame(older, pool.take(first));
+            assertNull(pool.take(first));
+        }
+
+        @Test
+        public void keeps_destinations_apart() {
+            pool.release(first, new Socket());
+
+            assertNull(pool.take(second));
+            assertEquals(1, pool.size());
+        }
+
+        @Test
+        public void closes_connection_idle_too_long() {
+            Socket socket = new Socket();
+            pool.release(first, socket);
+            now = 100;
+
+            assertNull(pool.take(first));
+            assertTrue(socket.isClosed());
+        }
+    }
+
+    @Nested
+    public class release{
+
+        @Test
+        public void closes_oldest_over_destination_limit() {
+            Socket oldest = new Socket();
+            pool.release(first, oldest);
+            pool.release(first, new Socket());
+            pool.release(first, new Socket());
+
+            assertTrue(oldest.isClosed());
+            assertEquals(2, pool.size());
+        }
+
+        @Test
+        public void closes_oldest_over_total_limit() {
+            Socket oldest = new Socket();
+            pool.release(second, oldest);
+            now = 1;
+            pool.release(first, new Socket());
+            pool.release(first, new Socket());
+            pool.release(second, new Socket());
+
+            assertTrue(oldest.isClosed());
+            assertEquals(3, pool.size());
+        }
+    }
+
+    @Nested
+    public class evict{
+
+        @Test
+        public void closes_only_expired_connections() {
+            Socket expired = new Socket();
+            Socket fresh = new Socket();
+            pool.release(first, expired);
+            now = 50;
+            pool.release(second, fresh);
+            now = 120;
+            pool.evict();
+
+            assertTrue(expired.isClosed());
+            assertFalse(fresh.isClosed());
+            assertEquals(1, pool.size());
+        }
+    }
+}
@@ -7,10 +7,11 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
 import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -30,6 +31,14 @@ public class CryptoTest {
             assertNotNull(keyPairB);
         }
 
+        @Test
+        public void public_key_fits_in_a_packet() {
+            KeyPair keyPair = Crypto.generateKeyPair();
+            assertNotNull(keyPair);
+
+            assertTrue(keyPair.getPublic().getEncoded().length + 4 <= Standards.PACKETSIZE);
+        }
+
         @Test
         public void handles_wrong_encoded_key() {
             assertThrows(InvalidKeySpecException.class, () -> Crypto.generateKeyPair(new byte[]{1,2,3,4}));
@@ -37,45 +46,45 @@ public class CryptoTest {
     }
 
     @Nested
-    public class generateSecretKeySpec{
+    public class generateSecret{
 
         @Test
-        public void returns_keyspec() throws InvalidKeySpecException, InvalidKeyException {
+        public void returns_secret() throws InvalidKeySpecException, InvalidKeyException {
             KeyPair keyPairA = Crypto.generateKeyPair();
             assertNotNull(keyPairA);
             KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
             assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpecA = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            SecretKeySpec secretKeySpecB = Crypto.generateSecretKeySpec(keyPairB, keyPairA.getPublic().getEncoded());
+            byte[] secretA = Crypto.generateSecret(keyPairA, keyPairB.getPublic().getEncoded());
+            byte[] secretB = Crypto.generateSecret(keyPairB, keyPairA.getPublic().getEncoded());
 
-            assertNotNull(secretKeySpecA);
-            assertNotNull(secretKeySpecB);
+            assertNotNull(secretA);
+            assertNotNull(secretB);
         }
 
         @Test
-        public void produces_equal_keyspecs() throws InvalidKeySpecException, InvalidKeyException {
+        public void produces_equal_secrets() throws InvalidKeySpecException, InvalidKeyException {
             KeyPair keyPairA = Crypto.generateKeyPair();
             assertNotNull(keyPairA);
             KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
             assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpecA = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            SecretKeySpec secretKeySpecB = Crypto.generateSecretKeySpec(keyPairB, keyPairA.getPublic().getEncoded());
+            byte[] secretA = Crypto.generateSecret(keyPairA, keyPairB.getPublic().getEncoded());
+            byte[] secretB = Crypto.generateSecret(keyPairB, keyPairA.getPublic().getEncoded());
 
-            assertEquals(secretKeySpecA, secretKeySpecB);
+            assertArrayEquals(secretA, secretB);
         }
 
         @Test
-        public void handles_wrong_key_pair() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        public void handles_wrong_key_pair() throws InvalidKeySpecException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
             KeyPair keyPairA = Crypto.generateKeyPair();
             assertNotNull(keyPairA);
             KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
             assertNotNull(keyPairB);
 
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
-            keyPairGenerator.initialize(Standards.KEYSIZE >> 1);
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("XDH");
+            keyPairGenerator.initialize(NamedParameterSpec.X448);
             KeyPair wrongKeyPair = keyPairGenerator.generateKeyPair();
 
-            assertThrows(InvalidKeyException.class, () -> Crypto.generateSecretKeySpec(wrongKeyPair, keyPairB.getPublic().getEncoded()));
+            assertThrows(InvalidKeyException.class, () -> Crypto.generateSecret(wrongKeyPair, keyPairB.getPublic().getEncoded()));
         }
 
         @Test
@@ -84,7 +93,33 @@ public class CryptoTest {
             assertNotNull(keyPairA);
             byte[] wrongEncodedKey = {1,2,3,4};
 
-            assertThrows(InvalidKeySpecException.class, () -> Crypto.generateSecretKeySpec(keyPairA, wrongEncodedKey));
+            assertThrows(InvalidKeySpecException.class, () -> Crypto.generateSecret(keyPairA, wrongEncodedKey));
+        }
+    }
+
+    @Nested
+    public class hkdf{
+
+        @Test
+        public void matches_rfc_test_vector() throws InvalidKeyException {
+            //Test case 1 from RFC 5869
+            byte[] secret = new byte[22];
+            Arrays.fill(secret, (byte) 0x0b);
+            byte[] salt = hex("000102030405060708090a0b0c");
+            byte[] info = hex("f0f1f2f3f4f5f6f7f8f9");
+
+            byte[] expected = hex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865");
+            assertArrayEquals(expected, Crypto.hkdf(salt, secret, info, 42));
+        }
+
+        @Test
+        public void depends_on_info() throws InvalidKeyException {
+            byte[] secret = {1,2,3,4};
+            byte[] keysA = Crypto.hkdf(new byte[0], secret, "a".getBytes(StandardCharsets.US_ASCII), 64);
+            byte[] keysB = Crypto.hkdf(new byte[0], secret, "b".getBytes(StandardCharsets.US_ASCII), 64);
+
+            assertEquals(64, keysA.length);
+            assertFalse(Arrays.equals(keysA, keysB));
         }
     }
 
@@ -92,25 +127,15 @@ public class CryptoTest {
     public class generateCipher{
 
         @Test
-        public void returns_cipher() throws InvalidKeySpecException, InvalidKeyException {
-            KeyPair keyPairA = Crypto.generateKeyPair();
-            assertNotNull(keyPairA);
-            KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
-            assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            Cipher cipher = Crypto.generateCipher(secretKeySpec);
+        public void returns_cipher() throws InvalidKeyException, InvalidAlgorithmParameterException {
+            Cipher cipher = Crypto.generateCipher(key(), new byte[16]);
 
             assertNotNull(cipher);
         }
 
         @Test
-        public void cipher_encrypts_with_equal_size() throws InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-            KeyPair keyPairA = Crypto.generateKeyPair();
-            assertNotNull(keyPairA);
-            KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
-            assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            Cipher cipher = Crypto.generateCipher(secretKeySpec);
+        public void cipher_encrypts_with_equal_size() throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+            Cipher cipher = Crypto.generateCipher(key(), new byte[16]);
             assertNotNull(cipher);
 
             byte[] string = ("Hello World!").getBytes(StandardCharsets.UTF_8);
@@ -126,30 +151,19 @@ public class CryptoTest {
     public class generateDecipher{
 
         @Test
-        public void returns_decipher() throws InvalidKeySpecException, InvalidKeyException, IOException, InvalidAlgorithmParameterException {
-            KeyPair keyPairA = Crypto.generateKeyPair();
-            assertNotNull(keyPairA);
-            KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
-            assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            Cipher cipher = Crypto.generateCipher(secretKeySpec);
-            assertNotNull(cipher);
-
-            Cipher decipher = Crypto.generateDecipher(cipher.getParameters().getEncoded(), secretKeySpec);
+        public void returns_decipher() throws InvalidKeyException, InvalidAlgorithmParameterException {
+            Cipher decipher = Crypto.generateDecipher(key(), new byte[16]);
 
             assertNotNull(decipher);
         }
 
         @Test
-        public void decipher_decrypts_correctly() throws InvalidKeyException, InvalidKeySpecException, IOException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
-            KeyPair keyPairA = Crypto.generateKeyPair();
-            assertNotNull(keyPairA);
-            KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
-            assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            Cipher cipher = Crypto.generateCipher(secretKeySpec);
+        public void decipher_decrypts_correctly() throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+            SecretKeySpec secretKeySpec = key();
+            byte[] iv = hex("000102030405060708090a0b0c0d0e0f");
+            Cipher cipher = Crypto.generateCipher(secretKeySpec, iv);
             assertNotNull(cipher);
-            Cipher decipher = Crypto.generateDecipher(cipher.getParameters().getEncoded(), secretKeySpec);
+            Cipher decipher = Crypto.generateDecipher(secretKeySpec, iv);
             assertNotNull(decipher);
 
             String strA = "Hello world!";
@@ -162,17 +176,30 @@ public class CryptoTest {
         }
 
         @Test
-        public void handles_wrong_params() throws InvalidKeySpecException, InvalidKeyException {
-            KeyPair keyPairA = Crypto.generateKeyPair();
-            assertNotNull(keyPairA);
+        public void handles_wrong_iv() {
+            byte[] wrongIv = {1,2,3,4};
+
+            assertThrows(InvalidAlgorithmParameterException.class, () -> Crypto.generateDecipher(key(), wrongIv));
+        }
+    }
+
+    private static SecretKeySpec key() throws InvalidKeyException {
+        KeyPair keyPairA = Crypto.generateKeyPair();
+        assertNotNull(keyPairA);
+        try {
             KeyPair keyPairB = Crypto.generateKeyPair(keyPairA.getPublic().getEncoded());
             assertNotNull(keyPairB);
-            SecretKeySpec secretKeySpec = Crypto.generateSecretKeySpec(keyPairA, keyPairB.getPublic().getEncoded());
-            Cipher cipher = Crypto.generateCipher(secretKeySpec);
-            assertNotNull(cipher);
+            byte[] secret = Crypto.generateSecret(keyPairA, keyPairB.getPublic().getEncoded());
 
-            byte[] wrongParams = {1,2,3,4};
-            assertThrows(IOException.class, () -> Crypto.generateDecipher(wrongParams, secretKeySpec));
+            return new SecretKeySpec(Crypto.hkdf(new byte[0], secret, new byte[0], 16), "AES");
+        } catch (InvalidKeySpecException e) {
+            throw new AssertionError(e);
         }
     }
+
+    private static byte[] hex(String string){
+        byte[] bytes = new BigInteger("01" + string, 16).toByteArray();
+
+        return Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
 }
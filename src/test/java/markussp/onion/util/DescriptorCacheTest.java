@@ -0,0 +1,89 @@
+package markussp.onion.util;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.ServiceDescriptor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DescriptorCacheTest {
+    private long now;
+    private int fetches;
+    private DescriptorCache cache;
+    private DescriptorCache.Fetcher fetcher;
+
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        fetches = 0;
+        cache = new DescriptorCache(2, 100, () -> now);
+        fetcher = id -> {
+            fetches++;
+            if(id[0] == 0){
+                throw new IOException("Unknown service");
+            }
+            return new ServiceDescriptor(id, new byte[0], fetches, new Address[0][], new byte[0]);
+        };
+    }
+
+    @Nested
+    public class get{
+
+        @Test
+        public void reuses_cached_descriptor() throws IOException {
+            ServiceDescriptor first = cache.get(new byte[]{1}, fetcher);
+            ServiceDescriptor second = cache.get(new byte[]{1}, fetcher);
+
+            assertSame(first, second);
+            assertEquals(1, fetches);
+        }
+
+        @Test
+        public void fetches_again_after_ttl() throws IOException {
+            cache.get(new byte[]{1}, fetcher);
+            now = 100;
+            cache.get(new byte[]{1}, fetcher);
+
+            assertEquals(2, fetches);
+        }
+
+        @Test
+        public void does_not_remember_failed_fetch() {
+            assertThrows(IOException.class, () -> cache.get(new byte[]{0}, fetcher));
+            assertThrows(IOException.class, () -> cache.get(new byte[]{0}, fetcher));
+
+            assertEquals(2, fetches);
+            assertEquals(0, cache.size());
+        }
+
+        @Test
+        public void forgets_least_recently_used() throws IOException {
+            cache.get(new byte[]{1}, fetcher);
+            cache.get(new byte[]{2}, fetcher);
+            cache.get(new byte[]{1}, fetcher);
+            cache.get(new byte[]{3}, fetcher);
+
+            assertEquals(2, cache.size());
+            cache.get(new byte[]{2}, fetcher);
+            assertEquals(4, fetches);
+        }
+    }
+
+    @Nested
+    public class invalidate{
+
+        @Test
+        public void fetches_again() throws IOException {
+            cache.get(new byte[]{1}, fetcher);
+            cache.invalidate(new byte[]{1});
+            ServiceDescriptor descriptor = cache.get(new byte[]{1}, fetcher);
+
+            assertEquals(2, fetches);
+            assertEquals(2, descriptor.version);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package markussp.onion.util;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.NodeEntry;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectoryLogTest {
+    @TempDir
+    Path folder;
+
+    private NodeEntry entry(int port, long version){
+        return new NodeEntry(new Address[]{new Address(InetAddress.getLoopbackAddress(), port)}, 1000, version, true);
+    }
+
+    @Nested
+    public class load{
+
+        @Test
+        public void reads_appended_entries() throws IOException {
+            Path path = folder.resolve("directory");
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                log.append(entry(1, 10));
+                log.append(new NodeEntry(entry(1, 11).addresses, 0, 11, false));
+            }
+
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                List<NodeEntry> entries = log.load();
+                assertEquals(2, entries.size());
+                assertEquals(1, entries.get(0).addresses[0].port);
+                assertEquals(1000, entries.get(0).capacity);
+                assertFalse(entries.get(1).alive);
+                assertEquals(11, entries.get(1).version);
+            }
+        }
+
+        @Test
+        public void drops_broken_record_at_the_end() throws IOException {
+            Path path = folder.resolve("directory");
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                log.append(entry(1, 10));
+                log.append(entry(2, 11));
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                assertEquals(1, log.load().size());
+                log.append(entry(3, 12));
+            }
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                List<NodeEntry> entries = log.load();
+                assertEquals(2, entries.size());
+                assertEquals(3, entries.get(1).addresses[0].port);
+            }
+        }
+    }
+
+    @Nested
+    public class compact{
+
+        @Test
+        public void replaces_log_with_snapshot() throws IOException {
+            Path path = folder.resolve("directory");
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                for(int i=0; i<10; i++){
+                    log.append(entry(1, i));
+                }
+                log.compact(() -> List.of(entry(1, 9)));
+                log.append(entry(2, 10));
+                assertEquals(1, log.getAppended());
+            }
+
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                List<NodeEntry> entries = log.load();
+                assertEquals(2, entries.size());
+                assertEquals(9, entries.get(0).version);
+                assertEquals(10, entries.get(1).version);
+            }
+        }
+
+        @Test
+        public void keeps_entries_appended_while_compacting() throws IOException {
+            Path path = folder.resolve("directory");
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                log.append(entry(1, 1));
+                log.compact(() -> {
+                    try {
+                        log.append(entry(2, 2));
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    return List.of(entry(1, 1));
+                });
+            }
+
+            try (DirectoryLog log = new DirectoryLog(path)) {
+                assertEquals(2, log.load().size());
+            }
+        }
+    }
+}
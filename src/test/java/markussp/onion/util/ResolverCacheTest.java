@@ -0,0 +1,77 @@
+package markussp.onion.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolverCacheTest {
+    private long now;
+    private int lookups;
+    private ResolverCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        lookups = 0;
+        cache = new ResolverCache(2, 100, 10, hostname -> {
+            lookups++;
+            if(hostname.startsWith("unknown")){
+                throw new UnknownHostException(hostname);
+            }
+            return InetAddress.getByAddress(hostname, new byte[]{10, 0, 0, (byte) lookups});
+        }, () -> now);
+    }
+
+    @Nested
+    public class resolve{
+
+        @Test
+        public void reuses_cached_address() throws UnknownHostException {
+            InetAddress first = cache.resolve("example.com");
+            InetAddress second = cache.resolve("EXAMPLE.com");
+
+            assertEquals(first, second);
+            assertEquals(1, lookups);
+        }
+
+        @Test
+        public void resolves_again_after_ttl() throws UnknownHostException {
+            cache.resolve("example.com");
+            now = 100;
+            cache.resolve("example.com");
+
+            assertEquals(2, lookups);
+        }
+
+        @Test
+        public void remembers_unknown_host_for_negative_ttl() {
+            assertThrows(UnknownHostException.class, () -> cache.resolve("unknown.com"));
+            assertThrows(UnknownHostException.class, () -> cache.resolve("unknown.com"));
+            assertEquals(1, lookups);
+
+            now = 10;
+            assertThrows(UnknownHostException.class, () -> cache.resolve("unknown.com"));
+            assertEquals(2, lookups);
+        }
+
+        @Test
+        public void forgets_least_recently_used() throws UnknownHostException {
+            cache.resolve("a.com");
+            cache.resolve("b.com");
+            cache.resolve("a.com");
+            cache.resolve("c.com");
+            cache.resolve("a.com");
+
+            assertEquals(2, cache.size());
+            assertEquals(3, lookups);
+
+            cache.resolve("b.com");
+            assertEquals(4, lookups);
+        }
+    }
+}
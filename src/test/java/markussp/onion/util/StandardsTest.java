@@ -0,0 +1,188 @@
+package markussp.onion.util;
+
+import markussp.onion.model.Address;
+import markussp.onion.model.SessionKey;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StandardsTest {
+
+    @Nested
+    public class keyExchangeReply{
+
+        @Test
+        public void matches_receiving_end() throws IOException, GeneralSecurityException {
+            KeyPair keyPair = Crypto.generateKeyPair();
+            byte[] request = Standards.keyExchangeRequest(keyPair);
+            assertEquals(Standards.PACKETSIZE, request.length);
+
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            SessionKey server = Standards.handleKeyExchange(new ByteArrayInputStream(request), reply);
+            assertEquals(Standards.PACKETSIZE, reply.size());
+            SessionKey client = Standards.keyExchangeReply(keyPair, reply.toByteArray());
+
+            byte[] packet = new byte[Standards.PACKETSIZE];
+            packet[0] = 42;
+            assertArrayEquals(packet, server.decrypt(client.encrypt(packet)));
+            assertArrayEquals(packet, client.decrypt(server.encrypt(packet)));
+        }
+
+        @Test
+        public void uses_different_keys_for_each_direction() throws IOException, GeneralSecurityException {
+            KeyPair keyPair = Crypto.generateKeyPair();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            SessionKey server = Standards.handleKeyExchange(new ByteArrayInputStream(Standards.keyExchangeRequest(keyPair)), reply);
+            SessionKey client = Standards.keyExchangeReply(keyPair, reply.toByteArray());
+
+            byte[] packet = new byte[Standards.PACKETSIZE];
+            assertFalse(Arrays.equals(client.encrypt(packet), server.encrypt(packet)));
+        }
+
+        @Test
+        public void handles_malformed_reply() {
+            KeyPair keyPair = Crypto.generateKeyPair();
+            byte[] reply = new byte[Standards.PACKETSIZE];
+            reply[0] = 0x7F;
+
+            assertThrows(InvalidKeySpecException.class, () -> Standards.keyExchangeReply(keyPair, reply));
+        }
+    }
+
+    @Nested
+    public class readCellSize{
+
+        @Test
+        public void reads_advertised_size() throws IOException, GeneralSecurityException {
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            Standards.handleKeyExchange(Standards.keyExchangeRequest(Crypto.generateKeyPair()), reply, 8192);
+
+            assertEquals(8192, Standards.readCellSize(reply.toByteArray()));
+        }
+
+        @Test
+        public void falls_back_to_packet_size() {
+            byte[] reply = ByteBuffer.allocate(Standards.PACKETSIZE).putInt(44).array();
+
+            assertEquals(Standards.PACKETSIZE, Standards.readCellSize(reply));
+        }
+    }
+
+    @Nested
+    public class readResize{
+
+        @Test
+        public void reads_new_size() {
+            assertEquals(4096, Standards.readResize(Standards.resizePacket(Standards.PACKETSIZE, 4096)));
+        }
+
+        @Test
+        public void ignores_other_packets() {
+            assertEquals(0, Standards.readResize(new byte[Standards.PACKETSIZE]));
+        }
+    }
+
+    @Nested
+    public class readAddress{
+
+        @Test
+        public void reads_ipv4_address() throws UnknownHostException {
+            Address address = new Address(InetAddress.getByName("10.0.0.1"), 3000);
+            ByteBuffer buffer = ByteBuffer.allocate(Standards.PACKETSIZE);
+            Standards.writeAddress(buffer, address);
+
+            assertEquals(7, buffer.position());
+            assertEquals(address, Standards.readAddress(buffer.flip()));
+        }
+
+        @Test
+        public void reads_ipv6_address() throws UnknownHostException {
+            Address address = new Address(InetAddress.getByName("2001:db8::1"), 65535);
+            ByteBuffer buffer = ByteBuffer.allocate(Standards.PACKETSIZE);
+            Standards.writeAddress(buffer, address);
+
+            assertEquals(19, buffer.position());
+            assertEquals(address, Standards.readAddress(buffer.flip()));
+        }
+
+        @Test
+        public void keeps_hostname_unresolved() throws UnknownHostException {
+            Address address = Standards.readAddress(write(new Address("example.com", 80)));
+
+            assertTrue(address.isUnresolved());
+            assertEquals(new Address("example.com", 80), address);
+        }
+
+        @Test
+        public void handles_unknown_type() {
+            assertThrows(UnknownHostException.class, () -> Standards.readAddress(ByteBuffer.wrap(new byte[]{9, 0, 0})));
+        }
+    }
+
+    @Nested
+    public class readAddresses{
+
+        @Test
+        public void reads_dual_stack_addresses() throws UnknownHostException {
+            Address[] addresses = {
+                    new Address(InetAddress.getByName("10.0.0.1"), 3000),
+                    new Address(InetAddress.getByName("2001:db8::1"), 3000)
+            };
+            ByteBuffer buffer = ByteBuffer.allocate(Standards.PACKETSIZE);
+            Standards.writeAddresses(buffer, addresses);
+
+            assertArrayEquals(addresses, Standards.readAddresses(buffer.flip()));
+        }
+
+        @Test
+        public void handles_too_many_addresses() {
+            assertThrows(UnknownHostException.class, () -> Standards.readAddresses(ByteBuffer.wrap(new byte[]{(byte) (Standards.MAXADDRESSES + 1)})));
+        }
+    }
+
+    @Nested
+    public class readIntroductionProof{
+
+        @Test
+        public void reads_id_of_signing_service() throws GeneralSecurityException {
+            KeyPair signingKeys = Crypto.generateSigningKeyPair();
+            byte[] nonce = new byte[Standards.INTRONONCELENGTH];
+            byte[] proof = Standards.writeIntroductionProof(signingKeys, nonce);
+
+            assertArrayEquals(Standards.serviceId(signingKeys.getPublic().getEncoded()), Standards.readIntroductionProof(proof, nonce));
+        }
+
+        @Test
+        public void rejects_other_nonce() throws GeneralSecurityException {
+            byte[] proof = Standards.writeIntroductionProof(Crypto.generateSigningKeyPair(), new byte[Standards.INTRONONCELENGTH]);
+            byte[] nonce = new byte[Standards.INTRONONCELENGTH];
+            nonce[0] = 1;
+
+            assertNull(Standards.readIntroductionProof(proof, nonce));
+        }
+
+        @Test
+        public void handles_malformed_proof() {
+            assertNull(Standards.readIntroductionProof(new byte[]{(byte) 0xFF, (byte) 0xFF, 1}, new byte[Standards.INTRONONCELENGTH]));
+        }
+    }
+
+    private static ByteBuffer write(Address address){
+        ByteBuffer buffer = ByteBuffer.allocate(Standards.PACKETSIZE);
+        Standards.writeAddress(buffer, address);
+
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,54 @@
+package markussp.onion.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest {
+    private long now;
+    private TokenBucket bucket;
+
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        //1000 bytes per second, so a byte costs a millisecond
+        bucket = new TokenBucket(1000, 100, () -> now);
+    }
+
+    @Nested
+    public class reserve{
+
+        @Test
+        public void allows_burst_without_waiting() {
+            assertEquals(0, bucket.reserve(60));
+            assertEquals(0, bucket.reserve(40));
+        }
+
+        @Test
+        public void waits_for_bytes_over_burst() {
+            bucket.reserve(100);
+
+            assertEquals(10000000, bucket.reserve(10));
+            assertEquals(20000000, bucket.reserve(10));
+        }
+
+        @Test
+        public void refills_with_time() {
+            bucket.reserve(100);
+            now = 50000000;
+
+            assertEquals(0, bucket.reserve(50));
+            assertEquals(10000000, bucket.reserve(10));
+        }
+
+        @Test
+        public void fills_only_up_to_burst() {
+            now = 10000000000L;
+            bucket.reserve(100);
+
+            assertEquals(1000000, bucket.reserve(1));
+        }
+    }
+}